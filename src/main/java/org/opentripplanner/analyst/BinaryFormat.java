@@ -0,0 +1,97 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.analyst;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.opentripplanner.common.geometry.DlugoszVarLenIntPacker;
+
+/**
+ * A compact binary encoding of time surfaces, indicators and point sets for web clients, as an alternative to JSON.
+ * Every message starts with a magic number, a format version and the kind of object encoded. Scalars are written as
+ * by DataOutputStream, in big-endian order, and strings in modified UTF-8. Integer arrays are written as their length
+ * followed by the difference of each value from the previous one (the first from zero), each in the variable-length
+ * encoding of DlugoszVarLenIntPacker, so runs of similar values take a byte each.
+ *
+ * The server compresses this media type like JSON when the client accepts gzip.
+ */
+public class BinaryFormat {
+
+    public static final String MEDIA_TYPE = "application/x-otp-analyst";
+
+    /**
+     * The media type as produced by web resources. Its lower quality makes clients that accept any type, such as
+     * browsers, get the JSON representation. Clients get this one only when they ask for it.
+     */
+    public static final String PRODUCES = MEDIA_TYPE + ";qs=0.5";
+
+    /* "OTPA" */
+    static final int MAGIC = 0x4f545041;
+
+    static final int VERSION = 1;
+
+    static final int TIME_SURFACE = 1;
+
+    static final int RESULT_FEATURE = 2;
+
+    static final int POINT_SET = 3;
+
+    private BinaryFormat() {
+    }
+
+    static void writeHeader(DataOutputStream out, int kind) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(kind);
+    }
+
+    /** @return the kind of object that follows the header. */
+    static int readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+            throw new IOException("Not an analyst binary message of a supported version.");
+        }
+        return in.readByte();
+    }
+
+    /** Write length values of an array starting at offset, delta-encoded. */
+    static void writeDeltas(OutputStream out, int[] values, int offset, int length) throws IOException {
+        int[] deltas = new int[length];
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            deltas[i] = values[offset + i] - previous;
+            previous = values[offset + i];
+        }
+        DlugoszVarLenIntPacker.pack(length, out);
+        out.write(DlugoszVarLenIntPacker.pack(deltas));
+    }
+
+    static int[] readDeltas(DataInputStream in) throws IOException {
+        int[] values = new int[DlugoszVarLenIntPacker.unpack(in)];
+        int previous = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = previous + DlugoszVarLenIntPacker.unpack(in);
+            previous = values[i];
+        }
+        return values;
+    }
+
+    /* Strings may be null in the objects encoded, and are written as empty strings. */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeUTF(s == null ? "" : s);
+    }
+
+}
@@ -32,8 +32,13 @@ public class DiskBackedPointSetCache extends PointSetCache {
                 	
                 	PointSet pointSet = this.loadFromFile(file);
                 	
-                	if(pointSet != null)
+                	if(pointSet != null) {
+                		if (pointSet.id == null)
+                			pointSet.id = pointSetId;
+                		// keep the samples of the point set next to it, so they survive restarts
+                		pointSet.setSampleSetDirectory(pointSetPath);
                 		return pointSet;
+                	}
                 }
             }
 			return null;
@@ -0,0 +1,256 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.analyst;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bedatadriven.geojson.GeometryDeserializer;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingJsonFactory;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Reads the features of an OTPA GeoJSON feature collection with the Jackson streaming parser, in a single pass,
+ * straight into the columns of point sets. Point geometries are read token by token; only the coordinates of polygons
+ * are read into a tree, to build their geometry. A large collection can be read as a series of point sets of a
+ * bounded size, so that it never needs to be held in memory all at once.
+ *
+ * Features that are not of type Feature, have no properties object, or have an empty or unsupported geometry are
+ * skipped, with a warning for the latter.
+ */
+public class GeoJsonPointSetReader implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GeoJsonPointSetReader.class);
+
+    /* Log progress every time this many more features have been read. */
+    private static final int LOG_INTERVAL = 1000000;
+
+    private final JsonParser jp;
+
+    private boolean finished = false;
+
+    private int nRead = 0;
+
+    private final long startTime = System.currentTimeMillis();
+
+    /* The properties of the feature being read, reused from one feature to the next. */
+    private final List<String> propertyIds = new ArrayList<String>();
+    private int[] propertyValues = new int[16];
+
+    /* The geometry of the feature being read. */
+    private String geometryType;
+    private double x, y;
+    private boolean hasPoint;
+    private JsonNode coordinates;
+
+    /**
+     * Start reading the features of a collection. The stream is positioned on the first feature, skipping everything
+     * in the collection before it.
+     */
+    public GeoJsonPointSetReader(InputStream is) throws IOException {
+        jp = new MappingJsonFactory().createParser(is);
+        if (jp.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Root of OTPA GeoJSON should be a JSON object.");
+        }
+        // Iterate over the key:value pairs in the top-level JSON object until the features
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String key = jp.getCurrentName();
+            JsonToken current = jp.nextToken();
+            if (key.equals("features")) {
+                if (current != JsonToken.START_ARRAY) {
+                    throw new IOException("GeoJSON features are not in an array.");
+                }
+                return;
+            }
+            jp.skipChildren(); // ignore all other keys except features
+        }
+        finished = true;
+    }
+
+    /**
+     * Read the next features of the collection.
+     *
+     * @param maxFeatures the maximum number of features in the returned point set.
+     * @return a point set holding the features read, or null once all features have been read.
+     */
+    public PointSet next(int maxFeatures) throws IOException {
+        if (finished) return null;
+        PointSetBuilder builder = new PointSetBuilder();
+        while (builder.size() < maxFeatures) {
+            if (jp.nextToken() != JsonToken.START_OBJECT) {
+                // the end of the features array, or a stray value in it
+                if (jp.getCurrentToken() == JsonToken.END_ARRAY) {
+                    finished = true;
+                    logProgress(true);
+                    break;
+                }
+                jp.skipChildren();
+                continue;
+            }
+            readFeature(builder);
+        }
+        if (builder.size() == 0) return null;
+        return builder.build();
+    }
+
+    /** Read the feature whose START_OBJECT the parser is on, adding it to the builder unless it is skipped. */
+    private void readFeature(PointSetBuilder builder) throws IOException {
+        String id = null;
+        boolean isFeature = false;
+        boolean hasProperties = false;
+        propertyIds.clear();
+        geometryType = null;
+        hasPoint = false;
+        coordinates = null;
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String key = jp.getCurrentName();
+            JsonToken current = jp.nextToken();
+            if (key.equals("type")) {
+                isFeature = current.isScalarValue() && "Feature".equalsIgnoreCase(jp.getText());
+                jp.skipChildren();
+            } else if (key.equals("id")) {
+                if (current.isScalarValue()) id = jp.getText();
+                else jp.skipChildren();
+            } else if (key.equals("properties") && current == JsonToken.START_OBJECT) {
+                hasProperties = true;
+                readProperties();
+            } else if (key.equals("geometry") && current == JsonToken.START_OBJECT) {
+                readGeometry();
+            } else {
+                jp.skipChildren();
+            }
+        }
+        if (!isFeature || !hasProperties) return;
+
+        int index;
+        if (hasPoint && "Point".equals(geometryType)) {
+            index = builder.addFeature(id, y, x, null);
+        } else {
+            PointFeature feat = new PointFeature(id);
+            try {
+                feat.setGeom(parseGeometry());
+            } catch (EmptyPolygonException e) {
+                LOG.warn("Empty MultiPolygon, skipping.");
+                return;
+            } catch (UnsupportedGeometryException e) {
+                LOG.warn(e.message);
+                return;
+            }
+            index = builder.addFeature(id, feat.getLat(), feat.getLon(), feat.getPolygon());
+        }
+        for (int p = 0; p < propertyIds.size(); p++) {
+            builder.setProperty(index, propertyIds.get(p), propertyValues[p]);
+        }
+        nRead++;
+        if (nRead % LOG_INTERVAL == 0) logProgress(false);
+    }
+
+    /**
+     * Read the structured properties of a feature, as category:property ids. Everything else in the properties of a
+     * feature is ignored.
+     */
+    private void readProperties() throws IOException {
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String key = jp.getCurrentName();
+            if (jp.nextToken() != JsonToken.START_OBJECT || !key.equals("structured")) {
+                jp.skipChildren();
+                continue;
+            }
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String catName = jp.getCurrentName();
+                if (jp.nextToken() != JsonToken.START_OBJECT) {
+                    jp.skipChildren();
+                    continue;
+                }
+                while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                    String propName = jp.getCurrentName();
+                    jp.nextToken();
+                    int magnitude = jp.getValueAsInt();
+                    jp.skipChildren();
+                    if (propertyIds.size() == propertyValues.length) {
+                        propertyValues = Arrays.copyOf(propertyValues, propertyValues.length * 2);
+                    }
+                    propertyValues[propertyIds.size()] = magnitude;
+                    propertyIds.add(catName + ":" + propName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a geometry object. The coordinates of a point are kept as numbers, any other coordinates are read into a
+     * tree for parseGeometry().
+     */
+    private void readGeometry() throws IOException {
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String key = jp.getCurrentName();
+            JsonToken current = jp.nextToken();
+            if (key.equals("type")) {
+                if (current.isScalarValue()) geometryType = jp.getText();
+                jp.skipChildren();
+            } else if (key.equals("coordinates") && current == JsonToken.START_ARRAY) {
+                current = jp.nextToken();
+                if (current.isNumeric()) {
+                    x = jp.getDoubleValue();
+                    jp.nextToken();
+                    y = jp.getDoubleValue();
+                    hasPoint = true;
+                    while (jp.nextToken() != JsonToken.END_ARRAY) jp.skipChildren(); // elevation
+                } else {
+                    ArrayNode array = JsonNodeFactory.instance.arrayNode();
+                    while (current != JsonToken.END_ARRAY) {
+                        array.add((JsonNode) jp.readValueAsTree());
+                        current = jp.nextToken();
+                    }
+                    coordinates = array;
+                }
+            } else {
+                jp.skipChildren();
+            }
+        }
+    }
+
+    private Geometry parseGeometry() {
+        if (geometryType == null || coordinates == null) return null;
+        ObjectNode geometry = JsonNodeFactory.instance.objectNode();
+        geometry.put("type", geometryType);
+        geometry.put("coordinates", coordinates);
+        return new GeometryDeserializer().parseGeometry(geometry);
+    }
+
+    private void logProgress(boolean done) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        LOG.info("{} {} features in {} msec, {} features per second.", done ? "Read" : "Reading", nRead, elapsed,
+                nRead * 1000L / elapsed);
+    }
+
+    @Override
+    public void close() throws IOException {
+        jp.close();
+    }
+
+}
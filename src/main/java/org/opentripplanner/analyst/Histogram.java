@@ -5,8 +5,10 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.collect.Lists;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -15,6 +17,9 @@ import java.util.List;
  */
 public class Histogram implements Serializable {
 
+    /* Times are binned up to this many minutes, later times are left out like unreachable ones. */
+    static final int MAX_BINS = 1000;
+
     public final int[] counts;
     public final int[] sums;
 
@@ -26,35 +31,59 @@ public class Histogram implements Serializable {
      * @param weights the weight or magnitude of each destination reached. parallel to times.
      */
     public Histogram (int[] times, int[] weights) {
+        this(times, weights, 0);
+    }
+
+    /**
+     * @param weightOffset the index in weights of the weight of the first destination, for weights shared with a
+     *        larger point set.
+     */
+    public Histogram (int[] times, int[] weights, int weightOffset) {
        
-    	int tmpCounts[] = new int[1000];
-    	int tmpSums[] = new int[1000];
+    	int tmpCounts[] = new int[MAX_BINS];
+    	int tmpSums[] = new int[MAX_BINS];
     	
     	int uppperBound = 0;
     	
     	for(int i = 0; i < times.length; i++) {
     		
-    		if(times[i] < 0 || times[i] == Integer.MAX_VALUE)
+    		int minuteBin = bin(times[i]);
+    		if(minuteBin < 0)
     			continue;
-    	
-    		int minuteBin = (int)Math.ceil(times[i] / 60.0);
     		
     		tmpCounts[minuteBin] += 1; 
-    		tmpSums[minuteBin] += weights[i];
+    		tmpSums[minuteBin] += weights[weightOffset + i];
     				
     		if(minuteBin > uppperBound)
     			uppperBound = minuteBin;
     	}
     	
-    	counts = new int[uppperBound];
-    	sums = new int[uppperBound];
+    	counts = Arrays.copyOf(tmpCounts, uppperBound);
+    	sums = Arrays.copyOf(tmpSums, uppperBound);
+    }
 
-    	for(int i = 0; i < uppperBound; i++) {
-    		counts[i] = tmpCounts[i];
-    		sums[i] = tmpSums[i];
-    	}   	
+    /** Make a histogram from counts and sums already binned by bin(), keeping the bins below upperBound. */
+    Histogram (int upperBound, int[] binCounts, int[] binSums) {
+    	counts = Arrays.copyOf(binCounts, upperBound);
+    	sums = Arrays.copyOf(binSums, upperBound);
+    }
+
+    /**
+     * @return the minute bin of a time in seconds (0 for 0 seconds, 1 for 1-60 seconds, etc.), or -1 if the time is
+     *         unreachable or beyond the last bin.
+     */
+    static int bin(int time) {
+    	if(time < 0 || time > (MAX_BINS - 1) * 60)
+    		return -1;
+    	return (time + 59) / 60;
     }
     
+    /** Write the sums then the counts, as delta-encoded arrays of BinaryFormat. */
+    public void writeBinary(OutputStream out) throws IOException {
+    	BinaryFormat.writeDeltas(out, sums, 0, sums.length);
+    	BinaryFormat.writeDeltas(out, counts, 0, counts.length);
+    }
+
     public void writeJson(JsonGenerator jgen) throws JsonGenerationException, IOException {
     	
     	jgen.writeArrayFieldStart("sums"); {
@@ -8,8 +8,6 @@ import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.MappingJsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeType;
 import com.google.common.base.Joiner;
@@ -42,6 +40,8 @@ import org.opentripplanner.routing.services.GraphService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -93,6 +93,12 @@ public class PointSet implements Serializable{
 	 */
 	protected GraphService graphService;
 
+	/*
+	 * If set, sample sets are saved in this directory and loaded back from it
+	 * rather than computed again, see SampleSet.write().
+	 */
+	protected File sampleSetDirectory;
+
 	/*
 	 * In a detailed Indicator, the time to reach each target, for each origin.
 	 * Null in non-indicator pointsets.
@@ -101,14 +107,25 @@ public class PointSet implements Serializable{
 
 	/**
 	 * The geometries of the features. Each Attribute must contain an array of
-	 * magnitudes with the same length as this list.
+	 * magnitudes with the same length as this list. Coordinates are stored in
+	 * fixed point, see toFixed(). Polygons are null if there are none.
 	 */
 
 	protected String[] ids;
-	protected double[] lats;
-	protected double[] lons;
+	protected int[] lats;
+	protected int[] lons;
 	protected Polygon[] polygons;
 
+	/*
+	 * The index of the first feature of this PointSet in the arrays above and
+	 * in the property arrays. A slice shares the arrays of the PointSet it was
+	 * taken from, so its features start at an offset in them.
+	 */
+	protected int offset = 0;
+
+	/* Fixed-point coordinate units per degree, about 1cm. */
+	private static final double FIXED_PER_DEGREE = 1e7;
+
 	/**
 	 * Rather than trying to load anything any everything, we stick to a strict
 	 * format and rely on other tools to get the data into the correct format.
@@ -116,65 +133,59 @@ public class PointSet implements Serializable{
 	 * and coordinates in WGS84. Comments begin with a #.
 	 */
 	public static PointSet fromCsv(File filename) throws IOException {
-		/* First, scan through the file to count lines and check for errors. */
+		long t0 = System.currentTimeMillis();
 		CsvReader reader = new CsvReader(filename.getAbsolutePath(), ',', Charset.forName("UTF8"));
-		reader.readHeaders();
-		int nCols = reader.getHeaderCount();
-		while (reader.readRecord()) {
-			if (reader.getColumnCount() != nCols) {
-				LOG.error("CSV record {} has the wrong number of fields.", reader.getCurrentRecord());
-				return null;
+		try {
+			reader.readHeaders();
+			int nCols = reader.getHeaderCount();
+			int latCol = -1;
+			int lonCol = -1;
+			String[] headers = reader.getHeaders();
+			for (int c = 0; c < nCols; c++) {
+				String header = headers[c];
+				if (header.equalsIgnoreCase("lat") || header.equalsIgnoreCase("latitude")) {
+					latCol = c;
+				} else if (header.equalsIgnoreCase("lon") || header.equalsIgnoreCase("longitude")) {
+					lonCol = c;
+				}
 			}
-		}
-		// getCurrentRecord is zero-based and does not include headers or blank
-		// lines.
-		int nRecs = (int) reader.getCurrentRecord() + 1;
-		reader.close();
-		/* If we reached here, the file is entirely readable. Start over. */
-		reader = new CsvReader(filename.getAbsolutePath(), ',', Charset.forName("UTF8"));
-		PointSet ret = new PointSet(nRecs);
-		reader.readHeaders();
-		if (reader.getHeaderCount() != nCols) {
-			LOG.error("Number of headers changed.");
-			return null;
-		}
-		int latCol = -1;
-		int lonCol = -1;
-
-		int[][] properties = new int[nCols][ret.capacity];
-		for (int c = 0; c < nCols; c++) {
-			String header = reader.getHeader(c);
-			if (header.equalsIgnoreCase("lat") || header.equalsIgnoreCase("latitude")) {
-				latCol = c;
-			} else if (header.equalsIgnoreCase("lon") || header.equalsIgnoreCase("longitude")) {
-				lonCol = c;
-			} else {
-				ret.getOrCreatePropertyForId(header);
-				properties[c] = ret.properties.get(header);
+			if (latCol < 0 || lonCol < 0) {
+				LOG.error("CSV file did not contain a latitude or longitude column.");
+				throw new IOException();
 			}
-		}
-		if (latCol < 0 || lonCol < 0) {
-			LOG.error("CSV file did not contain a latitude or longitude column.");
-			throw new IOException();
-		}
-		ret.lats = new double[nRecs];
-		ret.lons = new double[nRecs];
-		while (reader.readRecord()) {
-			int rec = (int) reader.getCurrentRecord();
-			for (int c = 0; c < nCols; c++) {
-				if(c==latCol || c==lonCol){
-					continue;
+			/* Read the records straight into the columns, in a single pass. */
+			PointSetBuilder builder = new PointSetBuilder();
+			while (reader.readRecord()) {
+				if (reader.getColumnCount() != nCols) {
+					LOG.error("CSV record {} has the wrong number of fields.", reader.getCurrentRecord());
+					return null;
 				}
-				
-				int[] prop = properties[c];
-				int mag = Integer.parseInt(reader.get(c));
-				prop[rec] = mag;
+				int rec;
+				try {
+					rec = builder.addFeature(null, Double.parseDouble(reader.get(latCol)),
+							Double.parseDouble(reader.get(lonCol)), null);
+					for (int c = 0; c < nCols; c++) {
+						if (c == latCol || c == lonCol) {
+							continue;
+						}
+						builder.setProperty(rec, headers[c], Integer.parseInt(reader.get(c)));
+					}
+				} catch (NumberFormatException e) {
+					LOG.error("CSV record {} has a field that is not a number.", reader.getCurrentRecord());
+					return null;
+				}
+			}
+			PointSet ret = builder.build();
+			// create properties that no record had a value for, as when the columns were read separately
+			for (int c = 0; c < nCols; c++) {
+				if (c != latCol && c != lonCol)
+					ret.getOrCreatePropertyForId(headers[c]);
 			}
-			ret.lats[rec] = Double.parseDouble(reader.get(latCol));
-			ret.lons[rec] = Double.parseDouble(reader.get(lonCol));
+			logLoadTime("CSV", ret.capacity, t0);
+			return ret;
+		} finally {
+			reader.close();
 		}
-		ret.capacity = nRecs;
-		return ret;
 	}
 	
 	public static PointSet fromShapefile( File file ) throws IOException, NoSuchAuthorityCodeException, FactoryException, EmptyPolygonException, UnsupportedGeometryException {
@@ -233,22 +244,38 @@ public class PointSet implements Serializable{
 	}
 
 	public static PointSet fromGeoJson(File filename) {
+		long t0 = System.currentTimeMillis();
+		GeoJsonPointSetReader reader = null;
 		try {
-			FileInputStream fis = new FileInputStream(filename);
-			int n = validateGeoJson(fis);
-			if (n < 0)
-				return null;
-			fis.getChannel().position(0); // rewind file
-			return fromValidatedGeoJson(fis, n);
+			reader = new GeoJsonPointSetReader(new FileInputStream(filename));
+			PointSet ret = reader.next(Integer.MAX_VALUE);
+			if (ret == null)
+				return null; // JSON has no features
+			logLoadTime("GeoJSON", ret.capacity, t0);
+			return ret;
 		} catch (FileNotFoundException ex) {
 			LOG.error("GeoJSON file not found: {}", filename);
 			return null;
 		} catch (IOException ex) {
-			LOG.error("I/O exception while reading GeoJSON file: {}", filename);
+			LOG.error("GeoJSON parsing failure in {}: {}", filename, ex.getMessage());
 			return null;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// nothing left to read
+				}
+			}
 		}
 	}
 
+	private static void logLoadTime(String format, int n, long t0) {
+		long elapsed = Math.max(1, System.currentTimeMillis() - t0);
+		LOG.info("Loaded {} features from {} in {} msec, {} features per second.", n, format, elapsed,
+				n * 1000L / elapsed);
+	}
+
 	/**
 	 * Examines a JSON stream to see if it matches the expected OTPA format.
 	 * 
@@ -292,68 +319,6 @@ public class PointSet implements Serializable{
 		}
 	}
 
-	/**
-	 * Reads with a combination of streaming and tree-model to allow very large
-	 * GeoJSON files. The JSON should be already validated, and you must pass in
-	 * the maximum number of features from that validation step.
-	 */
-	private static PointSet fromValidatedGeoJson(InputStream is, int n) {
-		JsonFactory f = new MappingJsonFactory();
-		PointSet ret = new PointSet(n);
-		int index = 0;
-		try {
-			JsonParser jp = f.createParser(is);
-			JsonToken current = jp.nextToken();
-			// Iterate over the key:value pairs in the top-level JSON object
-			while (jp.nextToken() != JsonToken.END_OBJECT) {
-				String key = jp.getCurrentName();
-				current = jp.nextToken();
-				if (key.equals("features")) {
-					while (jp.nextToken() != JsonToken.END_ARRAY) {
-						// Read the feature into a tree model, which moves
-						// parser to its end.
-						JsonNode feature = jp.readValueAsTree();
-						ret.addFeature(feature, index++);
-					}
-				} else {
-					jp.skipChildren(); // ignore all other keys except features
-				}
-			}
-		} catch (Exception ex) {			
-			LOG.error("GeoJSON parsing failure.");
-			return null;
-		}
-		return ret;
-	}
-
-	/**
-	 * Add one GeoJSON feature to this PointSet from a Jackson node tree.
-	 * com.bedatadriven.geojson only exposed its streaming Geometry parser as a
-	 * public method. I made its tree parser public as well. Geotools also has a
-	 * GeoJSON parser called GeometryJson (which OTP wraps in
-	 * GeoJsonDeserializer) but it consumes straight text, not a Jackson model
-	 * or streaming parser.
-	 */
-	private void addFeature(JsonNode feature, int index) {
-
-		PointFeature feat = null;
-		try {
-			feat = PointFeature.fromJsonNode(feature);
-		} catch (EmptyPolygonException e) {
-			LOG.warn("Empty MultiPolygon, skipping.");
-			return;
-		} catch (UnsupportedGeometryException e) {
-			LOG.warn(e.message);
-			return;
-		}
-
-		if (feat == null) {
-			return;
-		}
-
-		addFeature(feat, index);
-	}
-
 	/**
 	 * Create a PointSet manually by defining capacity and calling
 	 * addFeature(geom, data) repeatedly.
@@ -364,9 +329,26 @@ public class PointSet implements Serializable{
 	public PointSet(int capacity) {
 		this.capacity = capacity;
 		ids = new String[capacity];
-		lats = new double[capacity];
-		lons = new double[capacity];
-		polygons = new Polygon[capacity];
+		lats = new int[capacity];
+		lons = new int[capacity];
+	}
+
+	static int toFixed(double degrees) {
+		return (int) Math.round(degrees * FIXED_PER_DEGREE);
+	}
+
+	static double fromFixed(int fixed) {
+		return fixed / FIXED_PER_DEGREE;
+	}
+
+	/** @return the latitude of feature i, in degrees */
+	public double getLat(int i) {
+		return fromFixed(lats[offset + i]);
+	}
+
+	/** @return the longitude of feature i, in degrees */
+	public double getLon(int i) {
+		return fromFixed(lons[offset + i]);
 	}
 
 	/**
@@ -393,26 +375,64 @@ public class PointSet implements Serializable{
 		if(this.graphService == null) 
 			return null;
 		
-		if (this.samples.containsKey(routerId))
-			return this.samples.get(routerId);
+		// the cached samples are checked against the current graph, which may have been reloaded
 		Graph g = this.graphService.getGraph(routerId);
 		
 		return getSampleSet(g);
 	}
 	
 	/** 
-	 * gets a sample set for a graph object -- does not require graph service to be set 
+	 * gets a sample set for a graph object -- does not require graph service to be set.
+	 * Synchronized so that concurrent requests snap the points and write the file only once.
 	 * @param g a graph objects
 	 * @return sampleset for graph
 	 */
 	
-	public SampleSet getSampleSet(Graph g) {	
+	public synchronized SampleSet getSampleSet(Graph g) {	
 		if (g == null)
 			return null;
-		SampleSet sampleSet = new SampleSet(this, g.getSampleFactory());
+		SampleSet sampleSet = this.samples.get(g.routerId);
+		if (sampleSet != null && sampleSet.isFor(g))
+			return sampleSet;
+		sampleSet = null;
+		File file = getSampleSetFile(g);
+		if (file != null && file.exists()) {
+			try {
+				sampleSet = SampleSet.read(file, this, g);
+			} catch (IOException e) {
+				LOG.warn("Could not read sample set {}: {}", file, e);
+			}
+		}
+		if (sampleSet == null) {
+			long t0 = System.currentTimeMillis();
+			sampleSet = new SampleSet(this, g);
+			LOG.info("Snapped {} points of point set {} to graph {} in {} msec.", capacity, id, g.routerId,
+					System.currentTimeMillis() - t0);
+			if (file != null) {
+				try {
+					sampleSet.write(file, g);
+				} catch (IOException e) {
+					LOG.warn("Could not save sample set {}: {}", file, e);
+				}
+			}
+		}
 		this.samples.put(g.routerId, sampleSet);
 		return sampleSet;
 	}
+
+	public void setSampleSetDirectory(File sampleSetDirectory) {
+		this.sampleSetDirectory = sampleSetDirectory;
+	}
+
+	/**
+	 * @return the file the sample set of this point set for the given graph is
+	 *         saved in, or null if sample sets are not saved.
+	 */
+	public File getSampleSetFile(Graph g) {
+		if (sampleSetDirectory == null || id == null)
+			return null;
+		return new File(sampleSetDirectory, String.format("%s.%s.samples", id, g.routerId));
+	}
 	
 
 	/**
@@ -427,7 +447,7 @@ public class PointSet implements Serializable{
 	 */
 
 	public int featureCount() {
-		return ids.length;
+		return capacity;
 	}
 
 	public void addFeature(PointFeature feat, int index) {
@@ -435,29 +455,36 @@ public class PointSet implements Serializable{
 			throw new AssertionError("Number of features seems to have grown since validation.");
 		}
 
-		polygons[index] = feat.getPolygon();
-		lats[index] = feat.getLat();
-		lons[index] = feat.getLon();
+		int i = offset + index;
+		Polygon polygon = feat.getPolygon();
+		if (polygon != null) {
+			if (polygons == null)
+				polygons = new Polygon[ids.length];
+			polygons[i] = polygon;
+		}
+		lats[i] = toFixed(feat.getLat());
+		lons[i] = toFixed(feat.getLon());
 
-		ids[index] = feat.getId();
+		ids[i] = feat.getId();
 
 		for (Entry<String,Integer> ad : feat.getProperties().entrySet()) {
 			String propId = ad.getKey();
 			Integer propVal = ad.getValue();
 			
 			this.getOrCreatePropertyForId(propId);
-			this.properties.get(propId)[index] = propVal;
+			this.properties.get(propId)[i] = propVal;
 
 
 		}
 	}
 
 	public PointFeature getFeature(int index) {
-		PointFeature ret = new PointFeature(ids[index]);
+		int i = offset + index;
+		PointFeature ret = new PointFeature(ids[i]);
 
-		if (polygons[index] != null) {
+		if (polygons != null && polygons[i] != null) {
 			try {
-				ret.setGeom(polygons[index]);
+				ret.setGeom(polygons[i]);
 			} catch (Exception e) {	
 				// The polygon is clean; this should never happen. We
 				// could pass the exception up but that'd just make the calling
@@ -469,11 +496,11 @@ public class PointSet implements Serializable{
 		// ret.setGeom, if it was called, will already set the lat and lon
 		// properties. But since every item in this pointset is guaranteed
 		// to have a lat/lon coordinate, we defer to it as more authoritative.
-		ret.setLat(lats[index]);
-		ret.setLon(lons[index]);
+		ret.setLat(fromFixed(lats[i]));
+		ret.setLon(fromFixed(lons[i]));
 
 		for (Entry<String, int[]> property : this.properties.entrySet()) {
-			ret.addAttribute( property.getKey(), property.getValue()[index]);
+			ret.addAttribute( property.getKey(), property.getValue()[i]);
 		}
 
 		return ret;
@@ -508,7 +535,8 @@ public class PointSet implements Serializable{
 		if (property == null) {
 			property = new PropertyMetadata(id);
 			propMetadata.put(id, property);
-			properties.put(id, new int[capacity]);
+			// sized like the shared arrays, so that a slice indexes it like the others
+			properties.put(id, new int[offset + capacity]);
 		}
 		return property;
 	}
@@ -550,6 +578,33 @@ public class PointSet implements Serializable{
 		}
 	}
 	
+	/**
+	 * Write this PointSet in the compact binary format of BinaryFormat: its
+	 * id, label and description, the number of features, the feature ids,
+	 * the fixed-point latitudes and longitudes (see toFixed()), then the id
+	 * and values of each property. Polygons are represented by their
+	 * centroids, as with forcePoints in writeJson.
+	 */
+	public void writeBinary(OutputStream output) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+		BinaryFormat.writeHeader(out, BinaryFormat.POINT_SET);
+		BinaryFormat.writeString(out, id);
+		BinaryFormat.writeString(out, label);
+		BinaryFormat.writeString(out, description);
+		out.writeInt(capacity);
+		for (int i = 0; i < capacity; i++) {
+			BinaryFormat.writeString(out, ids[offset + i]);
+		}
+		BinaryFormat.writeDeltas(out, lats, offset, capacity);
+		BinaryFormat.writeDeltas(out, lons, offset, capacity);
+		out.writeInt(properties.size());
+		for (Entry<String, int[]> property : properties.entrySet()) {
+			out.writeUTF(property.getKey());
+			BinaryFormat.writeDeltas(out, property.getValue(), offset, capacity);
+		}
+		out.flush();
+	}
+
 	public void writeJsonProperties(JsonGenerator jgen) throws JsonGenerationException, IOException {
 		jgen.writeObjectFieldStart("properties");
 		{
@@ -613,7 +668,7 @@ public class PointSet implements Serializable{
 													// a one-to-many indicator
 			int t = times[i];
 			if (t != Integer.MAX_VALUE)
-				jgen.writeNumberField(ids[i], t);
+				jgen.writeNumberField(ids[offset + i], t);
 		}
 		jgen.writeEndObject();
 	}
@@ -639,16 +694,16 @@ public class PointSet implements Serializable{
 
 		jgen.writeStartObject();
 		{
-			jgen.writeStringField("id", ids[i]);
+			jgen.writeStringField("id", ids[offset + i]);
 			jgen.writeStringField("type", "Feature");
 			jgen.writeFieldName("geometry");
 			{
 
-				if (!forcePoints && polygons != null && polygons.length >= i && polygons[i] != null) {
-					geomSerializer.writeGeometry(jgen, polygons[i]);
+				if (!forcePoints && polygons != null && polygons[offset + i] != null) {
+					geomSerializer.writeGeometry(jgen, polygons[offset + i]);
 				} else {
 
-					Point p = geometryFactory.createPoint(new Coordinate(lons[i], lats[i]));
+					Point p = geometryFactory.createPoint(new Coordinate(getLon(i), getLat(i)));
 					geomSerializer.writeGeometry(jgen, p);
 				}
 
@@ -669,39 +724,32 @@ public class PointSet implements Serializable{
 	protected void writeStructured(int i, JsonGenerator jgen) throws IOException {
 		jgen.writeObjectFieldStart("structured");
 		for (Entry<String,int[]> entry : properties.entrySet()) {
-			jgen.writeNumberField( entry.getKey(), entry.getValue()[i] );
+			jgen.writeNumberField( entry.getKey(), entry.getValue()[offset + i] );
 		}
 		jgen.writeEndObject();
 	}
 
+	/**
+	 * @return a PointSet of the features from start (inclusive) to end
+	 *         (exclusive). It shares the coordinates, ids and properties of
+	 *         this PointSet rather than copying them, so changing the features
+	 *         of one changes those of the other.
+	 */
 	public PointSet slice(int start, int end) {
-		PointSet ret = new PointSet(end - start);
+		PointSet ret = new PointSet(0);
 
 		ret.id = id;
 		ret.label = label;
 		ret.description = description;
 
-		int n = 0;
-		for (int i = start; i < end; i++) {
-			ret.lats[n] = this.lats[i];
-			ret.lons[n] = this.lons[i];
-			ret.ids[n] = this.ids[i];
-			ret.polygons[n] = this.polygons[i];
-			n++;
-		}
-
-		for(Entry<String, int[]> property : this.properties.entrySet()) {
-			int[] data = property.getValue();
-			
-			int[] magSlice = new int[end-start];
-			n=0;
-			for(int i=start; i<end; i++){
-				magSlice[n] = data[i];
-				n++;
-			}
-			
-			ret.properties.put( property.getKey(), magSlice );
-		}
+		ret.capacity = end - start;
+		ret.offset = offset + start;
+		ret.ids = ids;
+		ret.lats = lats;
+		ret.lons = lons;
+		ret.polygons = polygons;
+		ret.propMetadata.putAll(propMetadata);
+		ret.properties.putAll(properties);
 
 		return ret;
 	}
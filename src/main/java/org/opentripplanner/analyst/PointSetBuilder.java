@@ -0,0 +1,98 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.analyst;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Accumulates features in growable columns of primitives, so that a point set can be read in a single pass without
+ * knowing its size in advance and without keeping an object per feature. Columns grow by half their size when full
+ * and are trimmed to the number of features when the point set is built.
+ */
+class PointSetBuilder {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int size = 0;
+
+    private String[] ids = new String[INITIAL_CAPACITY];
+
+    private int[] lats = new int[INITIAL_CAPACITY];
+
+    private int[] lons = new int[INITIAL_CAPACITY];
+
+    /* Only allocated once a polygon is added, as most point sets only hold points. */
+    private Polygon[] polygons;
+
+    private final Map<String, int[]> properties = new LinkedHashMap<String, int[]>();
+
+    /** @return the index of the new feature, to set its properties. */
+    int addFeature(String id, double lat, double lon, Polygon polygon) {
+        if (size == ids.length) grow();
+        ids[size] = id;
+        lats[size] = PointSet.toFixed(lat);
+        lons[size] = PointSet.toFixed(lon);
+        if (polygon != null) {
+            if (polygons == null) polygons = new Polygon[ids.length];
+            polygons[size] = polygon;
+        }
+        return size++;
+    }
+
+    void setProperty(int index, String propertyId, int value) {
+        int[] column = properties.get(propertyId);
+        if (column == null) {
+            // features added before this one do not have this property, and leave it at zero
+            column = new int[ids.length];
+            properties.put(propertyId, column);
+        }
+        column[index] = value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        int capacity = ids.length + (ids.length >> 1);
+        ids = Arrays.copyOf(ids, capacity);
+        lats = Arrays.copyOf(lats, capacity);
+        lons = Arrays.copyOf(lons, capacity);
+        if (polygons != null) polygons = Arrays.copyOf(polygons, capacity);
+        for (Entry<String, int[]> property : properties.entrySet()) {
+            property.setValue(Arrays.copyOf(property.getValue(), capacity));
+        }
+    }
+
+    /** @return a point set holding the features added so far. The builder should not be used afterwards. */
+    PointSet build() {
+        PointSet ret = new PointSet(0);
+        ret.capacity = size;
+        ret.ids = Arrays.copyOf(ids, size);
+        ret.lats = Arrays.copyOf(lats, size);
+        ret.lons = Arrays.copyOf(lons, size);
+        ret.polygons = polygons == null ? null : Arrays.copyOf(polygons, size);
+        for (Entry<String, int[]> property : properties.entrySet()) {
+            ret.getOrCreatePropertyForId(property.getKey());
+            ret.properties.put(property.getKey(), Arrays.copyOf(property.getValue(), size));
+        }
+        return ret;
+    }
+
+}
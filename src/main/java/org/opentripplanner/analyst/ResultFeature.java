@@ -1,5 +1,7 @@
 package org.opentripplanner.analyst;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
@@ -31,18 +33,16 @@ public class ResultFeature implements Serializable{
 	public ResultFeature(SampleSet samples, TimeSurface surface){
     	id = samples.pset.id + "_" + surface.id;
     	
-        PointSet targets = samples.pset;
-        // Evaluate the surface at all points in the pointset
-        int[] times = samples.eval(surface);
-        buildHistograms(times, targets);
-        
+        // Evaluate the surface at all points in the pointset, straight into histograms
+        histograms.putAll(samples.evalHistograms(surface));
+
 	}
 	
     protected void buildHistograms(int[] times, PointSet targets) {
     	for (Entry<String, int[]> cat : targets.properties.entrySet()) {
         	String catId = cat.getKey();
         	int[] mags = cat.getValue();
-        	this.histograms.put(catId, new Histogram(times, mags));
+        	this.histograms.put(catId, new Histogram(times, mags, targets.offset));
         }
     }
     
@@ -55,6 +55,22 @@ public class ResultFeature implements Serializable{
 
     }
     
+    /**
+     * Write the histograms in the compact binary format of BinaryFormat: the id, the number of histograms, then the
+     * property id and the histogram of each property.
+     */
+    public void writeBinary(OutputStream output) throws IOException {
+    	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+    	BinaryFormat.writeHeader(out, BinaryFormat.RESULT_FEATURE);
+    	BinaryFormat.writeString(out, id);
+    	out.writeInt(histograms.size());
+    	for (Entry<String, Histogram> histogram : histograms.entrySet()) {
+    		out.writeUTF(histogram.getKey());
+    		histogram.getValue().writeBinary(out);
+    	}
+    	out.flush();
+    }
+    
     public void writeJson(OutputStream output) {
     	writeJson(output, null);
     }
@@ -30,12 +30,12 @@ public class ResultFeatureDelta extends ResultFeatureWithTimes {
         
         buildDeltaHistograms(samples1.pset);
         
-		int i = 0;
-		for(String id : samples1.pset.ids) {
+		PointSet pset = samples1.pset;
+		for(int i = 0; i < pset.capacity; i++) {
+			String id = pset.ids[pset.offset + i];
 			timeIdMap.put(id, times[i]);
 			times2IdMap.put(id, times2[i]);
 			deltaIdMap.put(id, delta[i]);
-			i++;
 		}
 	}
 	
@@ -49,8 +49,8 @@ public class ResultFeatureDelta extends ResultFeatureWithTimes {
 		for (Entry<String, int[]> cat : targets.properties.entrySet()) {
         	String catId = cat.getKey();
         	int[] values = cat.getValue();
-        	for(int i = 0; i < values.length; i++){
-        		magSum[i] += values[i];
+        	for(int i = 0; i < magSum.length; i++){
+        		magSum[i] += values[targets.offset + i];
         	}	
         }
 		
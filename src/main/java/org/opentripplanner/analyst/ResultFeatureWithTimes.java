@@ -23,10 +23,9 @@ public class ResultFeatureWithTimes extends ResultFeature {
         
         buildHistograms(times, samples.pset);
         
-		int i = 0;
-		for(String id : samples.pset.ids) {
-			timeIdMap.put(id, times[i]);
-			i++;
+		PointSet pset = samples.pset;
+		for(int i = 0; i < pset.capacity; i++) {
+			timeIdMap.put(pset.ids[pset.offset + i], times[i]);
 		}
 	}
 	
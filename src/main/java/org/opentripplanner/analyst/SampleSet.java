@@ -1,65 +1,387 @@
 package org.opentripplanner.analyst;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
 import org.opentripplanner.analyst.core.Sample;
 import org.opentripplanner.analyst.request.SampleFactory;
+import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * We never use samples in isolation, so let's store them as a column store.
+ * We never use samples in isolation, so let's store them as a column store. Vertices are kept as their indexes, and
+ * distances as walk times, so that evaluating a surface over the whole point set is a single loop over primitive
+ * arrays.
+ *
+ * Snapping a large point set to the streets is slow, so a sample set can be saved to a binary file and loaded back
+ * when the same point set is used with the same graph. Vertices are saved by label, since their indexes change each
+ * time a graph is loaded, and the file records the graph build time so that it is not used with a rebuilt graph.
+ * For the same reason, samples held in memory are only valid for the graph instance they were made or loaded for,
+ * even if another instance was loaded from the same file.
  */
 public class SampleSet {
 
+    private static final Logger LOG = LoggerFactory.getLogger(SampleSet.class);
+
+    /* "OTPS" followed by the format version */
+    private static final int MAGIC = 0x4f545053;
+
+    private static final int VERSION = 2;
+
+    /* Walk speed used to turn the distances of the samples into times, in meters per second. */
+    private static final float WALK_SPEED = 1.3f;
+
+    /* Surfaces are evaluated in parallel over runs of this many points. */
+    private static final int POINTS_PER_TASK = 1 << 16;
+
+    private static final ForkJoinPool pool = new ForkJoinPool();
+
     public final PointSet pset;
 
-    /* Vertices at the two ends of a road, one per sample. */
-    Vertex[] v0s;
-    Vertex[] v1s;
+    /* The build time of the graph the samples were made for, or 0 if unknown. */
+    final long graphBuildTime;
+
+    /*
+     * The graph instance the vertex indexes refer to, or null if unknown. Weak, so that a cached sample set does not
+     * keep a replaced graph in memory.
+     */
+    private Reference<Graph> graph;
+
+    /* Indexes of the vertices at the two ends of a road, one per sample, or -1 for points that were not snapped. */
+    int[] v0s;
+    int[] v1s;
 
-    /* Distances to the vertices at the two ends of a road, one per sample. */
-    float[] d0s;
-    float[] d1s;
+    /* Walk times in seconds to the vertices at the two ends of a road, one per sample. */
+    int[] t0s;
+    int[] t1s;
+
+    public SampleSet (PointSet pset, Graph graph) {
+        this(pset, graph.getSampleFactory(), graph.buildTime.getTime());
+        this.graph = new WeakReference<Graph>(graph);
+    }
 
     public SampleSet (PointSet pset, SampleFactory sfac) {
-        this.pset = pset;
-        v0s = new Vertex[pset.capacity];
-        v1s = new Vertex[pset.capacity];
-        d0s = new float[pset.capacity];
-        d1s = new float[pset.capacity];
+        this(pset, sfac, 0);
+    }
+
+    private SampleSet (PointSet pset, SampleFactory sfac, long graphBuildTime) {
+        this(pset, graphBuildTime);
+        Sample[] samples = sfac.getSamples(pset);
         for (int i = 0; i < pset.capacity; i++) {
-            Sample sample = sfac.getSample(pset.lons[i], pset.lats[i]);
-            if (sample == null) {
-                d0s[i] = Float.NaN;
-                d1s[i] = Float.NaN;
-                continue;
+            Sample sample = samples[i];
+            if (sample == null) continue;
+            setSample(i, sample.v0, sample.t0, sample.v1, sample.t1); // TODO time not distance in samples
+        }
+    }
+
+    SampleSet (PointSet pset, long graphBuildTime) {
+        this.pset = pset;
+        this.graphBuildTime = graphBuildTime;
+        v0s = new int[pset.capacity];
+        v1s = new int[pset.capacity];
+        t0s = new int[pset.capacity];
+        t1s = new int[pset.capacity];
+        Arrays.fill(v0s, -1);
+        Arrays.fill(v1s, -1);
+    }
+
+    /** Set the sample of point i from the vertices at either end of its road and the distances to them. */
+    void setSample(int i, Vertex v0, float d0, Vertex v1, float d1) {
+        v0s[i] = v0 == null ? -1 : v0.getIndex();
+        v1s[i] = v1 == null ? -1 : v1.getIndex();
+        t0s[i] = v0 == null ? 0 : (int) (d0 / WALK_SPEED);
+        t1s[i] = v1 == null ? 0 : (int) (d1 / WALK_SPEED);
+    }
+
+    /**
+     * @return true if these samples were made or loaded for the given graph instance. Vertex indexes are assigned
+     *         anew each time a graph is loaded, so samples made for another instance loaded from the same file would
+     *         read the wrong vertices.
+     */
+    public boolean isFor(Graph graph) {
+        return this.graph != null && this.graph.get() == graph;
+    }
+
+    /**
+     * Save the samples. The file holds the point set id and the build time of the graph, a table of the labels of
+     * the vertices used, then for each point the table indexes of its two vertices (-1 if none) and the walk times
+     * to them. The samples are written to a temporary file in the same directory, which then replaces the file, so
+     * that an interrupted write does not leave a truncated sample set behind.
+     *
+     * @param graph the graph the samples were made for, to look up the vertices by index.
+     */
+    public void write(File file, Graph graph) throws IOException {
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            write(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))), graph);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete(); // if the move did not happen
+        }
+    }
+
+    private void write(DataOutputStream out, Graph graph) throws IOException {
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(pset.id == null ? "" : pset.id);
+            out.writeLong(graphBuildTime);
+            out.writeInt(pset.capacity);
+            Map<Integer, Integer> tableIndexes = new HashMap<Integer, Integer>();
+            List<String> labels = new ArrayList<String>();
+            int[] i0s = new int[pset.capacity];
+            int[] i1s = new int[pset.capacity];
+            for (int i = 0; i < pset.capacity; i++) {
+                i0s[i] = tableIndex(tableIndexes, labels, graph, v0s[i]);
+                i1s[i] = tableIndex(tableIndexes, labels, graph, v1s[i]);
+            }
+            out.writeInt(labels.size());
+            for (String label : labels) out.writeUTF(label);
+            for (int i = 0; i < pset.capacity; i++) {
+                out.writeInt(i0s[i]);
+                out.writeInt(i1s[i]);
+                out.writeInt(t0s[i]);
+                out.writeInt(t1s[i]);
             }
-            v0s[i] = sample.v0;
-            v1s[i] = sample.v1;
-            d0s[i] = sample.t0; // TODO time not distance in samples
-            d1s[i] = sample.t1; // TODO time not distance in samples
+        } finally {
+            out.close();
         }
     }
 
-    public int[] eval (TimeSurface surf) {
-        final float WALK_SPEED = 1.3f;
-        int[] ret = new int[pset.capacity];
-        for (int i = 0; i < pset.capacity; i++) {
-            int m0 = Integer.MAX_VALUE;
-            int m1 = Integer.MAX_VALUE;
-            if (v0s[i] != null) {
-                int s0 = surf.getTime(v0s[i]);
-                if (s0 != TimeSurface.UNREACHABLE) {
-                    m0 = (int) (s0 + d0s[i] / WALK_SPEED);
-                }
+    private static int tableIndex(Map<Integer, Integer> tableIndexes, List<String> labels, Graph graph,
+            int vertexIndex) throws IOException {
+        if (vertexIndex < 0) return -1;
+        Integer index = tableIndexes.get(vertexIndex);
+        if (index == null) {
+            Vertex v = graph.getVertexById(vertexIndex);
+            if (v == null) throw new IOException("Sampled vertex " + vertexIndex + " is not in the graph.");
+            index = labels.size();
+            labels.add(v.getLabel());
+            tableIndexes.put(vertexIndex, index);
+        }
+        return index;
+    }
+
+    /**
+     * Load samples saved by write().
+     *
+     * @return the samples, or null if the file was made for another point set or another build of the graph.
+     */
+    public static SampleSet read(File file, PointSet pset, Graph graph) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOG.warn("{} is not a sample set file of a supported version.", file);
+                return null;
+            }
+            String pointSetId = in.readUTF();
+            long graphBuildTime = in.readLong();
+            int capacity = in.readInt();
+            if (!pointSetId.equals(pset.id == null ? "" : pset.id) || capacity != pset.capacity
+                    || graphBuildTime != graph.buildTime.getTime()) {
+                LOG.info("Sample set {} was made for another point set or graph, ignoring it.", file);
+                return null;
             }
-            if (v1s[i] != null) {
-                int s1 = surf.getTime(v1s[i]);
-                if (s1 != TimeSurface.UNREACHABLE) {
-                    m1 = (int) (s1 + d1s[i] / WALK_SPEED);
+            int[] vertexIndexes = new int[in.readInt()];
+            for (int v = 0; v < vertexIndexes.length; v++) {
+                String label = in.readUTF();
+                Vertex vertex = graph.getVertex(label);
+                if (vertex == null) {
+                    LOG.warn("Vertex {} of sample set {} is not in the graph, ignoring the sample set.", label, file);
+                    return null;
                 }
+                vertexIndexes[v] = vertex.getIndex();
             }
-            ret[i] = (m0 < m1) ? m0 : m1;
+            SampleSet sampleSet = new SampleSet(pset, graphBuildTime);
+            sampleSet.graph = new WeakReference<Graph>(graph);
+            for (int i = 0; i < capacity; i++) {
+                int i0 = in.readInt();
+                int i1 = in.readInt();
+                sampleSet.v0s[i] = i0 < 0 ? -1 : vertexIndexes[i0];
+                sampleSet.v1s[i] = i1 < 0 ? -1 : vertexIndexes[i1];
+                sampleSet.t0s[i] = in.readInt();
+                sampleSet.t1s[i] = in.readInt();
+            }
+            return sampleSet;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Evaluate the surface at all the points, in parallel for large point sets.
+     *
+     * @return the time at which each point is reached, Integer.MAX_VALUE for unreachable points.
+     */
+    public int[] eval (TimeSurface surf) {
+        int[] ret = new int[pset.capacity];
+        if (pset.capacity < 2 * POINTS_PER_TASK) {
+            eval(surf.times, ret, 0, pset.capacity);
+        } else {
+            pool.invoke(new EvalAction(surf.times, ret, 0, pset.capacity));
         }
         return ret;
     }
 
+    /** Evaluate the times of points from (inclusive) to to (exclusive) into ret. */
+    private void eval (int[] times, int[] ret, int from, int to) {
+        for (int i = from; i < to; i++) {
+            ret[i] = time(times, i);
+        }
+    }
+
+    /** @return the time at which point i is reached, over the faster of the two ends of its road. */
+    private int time (int[] times, int i) {
+        int m0 = Integer.MAX_VALUE;
+        int m1 = Integer.MAX_VALUE;
+        int v0 = v0s[i];
+        if (v0 >= 0) {
+            int s0 = times[v0];
+            if (s0 != TimeSurface.UNREACHABLE) m0 = s0 + t0s[i];
+        }
+        int v1 = v1s[i];
+        if (v1 >= 0) {
+            int s1 = times[v1];
+            if (s1 != TimeSurface.UNREACHABLE) m1 = s1 + t1s[i];
+        }
+        return (m0 < m1) ? m0 : m1;
+    }
+
+    /**
+     * Evaluate the surface and sum up the reached points into one histogram per property of the point set, in a
+     * single pass that does not keep the time of each point. This gives the same histograms as building them from
+     * the result of eval().
+     */
+    public Map<String, Histogram> evalHistograms (TimeSurface surf) {
+        String[] keys = pset.properties.keySet().toArray(new String[0]);
+        int[][] weights = new int[keys.length][];
+        for (int p = 0; p < keys.length; p++) weights[p] = pset.properties.get(keys[p]);
+        HistogramBins bins;
+        if (pset.capacity < 2 * POINTS_PER_TASK) {
+            bins = evalBins(surf.times, weights, 0, pset.capacity);
+        } else {
+            bins = pool.invoke(new HistogramTask(surf.times, weights, 0, pset.capacity));
+        }
+        Map<String, Histogram> histograms = new HashMap<String, Histogram>();
+        for (int p = 0; p < keys.length; p++) {
+            histograms.put(keys[p], new Histogram(bins.upperBound, bins.counts, bins.sums[p]));
+        }
+        return histograms;
+    }
+
+    private HistogramBins evalBins (int[] times, int[][] weights, int from, int to) {
+        HistogramBins bins = new HistogramBins(weights.length);
+        int offset = pset.offset; // the weights of a sliced point set are shared with the whole point set
+        int[] counts = bins.counts;
+        int upperBound = 0;
+        for (int i = from; i < to; i++) {
+            int bin = Histogram.bin(time(times, i));
+            if (bin < 0) continue;
+            counts[bin] += 1;
+            for (int p = 0; p < weights.length; p++) bins.sums[p][bin] += weights[p][offset + i];
+            if (bin > upperBound) upperBound = bin;
+        }
+        bins.upperBound = upperBound;
+        return bins;
+    }
+
+    /** Counts and sums of weights per minute, for each property, over part of the points. */
+    private static class HistogramBins {
+
+        final int[] counts = new int[Histogram.MAX_BINS];
+
+        final int[][] sums;
+
+        int upperBound;
+
+        HistogramBins(int nProperties) {
+            sums = new int[nProperties][Histogram.MAX_BINS];
+        }
+
+        void add(HistogramBins other) {
+            for (int b = 0; b <= other.upperBound; b++) counts[b] += other.counts[b];
+            for (int p = 0; p < sums.length; p++) {
+                for (int b = 0; b <= other.upperBound; b++) sums[p][b] += other.sums[p][b];
+            }
+            upperBound = Math.max(upperBound, other.upperBound);
+        }
+    }
+
+    /** Splits a range of points in half until it is small enough to evaluate in one go. */
+    private class EvalAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] times, ret;
+
+        private final int from, to;
+
+        EvalAction(int[] times, int[] ret, int from, int to) {
+            this.times = times;
+            this.ret = ret;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= POINTS_PER_TASK) {
+                eval(times, ret, from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new EvalAction(times, ret, from, mid), new EvalAction(times, ret, mid, to));
+            }
+        }
+    }
+
+    private class HistogramTask extends RecursiveTask<HistogramBins> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] times;
+
+        private final int[][] weights;
+
+        private final int from, to;
+
+        HistogramTask(int[] times, int[][] weights, int from, int to) {
+            this.times = times;
+            this.weights = weights;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected HistogramBins compute() {
+            if (to - from <= POINTS_PER_TASK) return evalBins(times, weights, from, to);
+            int mid = (from + to) >>> 1;
+            HistogramTask right = new HistogramTask(times, weights, mid, to);
+            right.fork();
+            HistogramBins bins = new HistogramTask(times, weights, from, mid).compute();
+            bins.add(right.join());
+            return bins;
+        }
+    }
+
 }
@@ -22,6 +22,10 @@ import org.opentripplanner.analyst.request.SampleGridRenderer.WTWD;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -100,6 +104,30 @@ public class TimeSurface implements Serializable{
         times = maxNotMin ? profileRouter.maxs : profileRouter.mins;
     }
 
+    /** Make a surface from times per vertex index computed elsewhere. */
+    TimeSurface (String routerId, int[] times, double lat, double lon) {
+        this.routerId = routerId;
+        this.times = times;
+        this.lat = lat;
+        this.lon = lon;
+        this.id = makeUniqueId();
+    }
+
+    /**
+     * Write the surface in the compact binary format of BinaryFormat: its id, origin and cutoff, then the time to
+     * each vertex in seconds, by vertex index.
+     */
+    public void writeBinary(OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        BinaryFormat.writeHeader(out, BinaryFormat.TIME_SURFACE);
+        out.writeInt(id);
+        out.writeDouble(lat);
+        out.writeDouble(lon);
+        out.writeInt(cutoffMinutes);
+        BinaryFormat.writeDeltas(out, times, 0, times.length);
+        out.flush();
+    }
+
     public int getTime(Vertex v) {
         return times[v.getIndex()];
     }
@@ -14,7 +14,11 @@
 package org.opentripplanner.analyst.batch;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
@@ -27,6 +31,7 @@ import org.opentripplanner.analyst.batch.aggregator.Aggregator;
 import org.opentripplanner.analyst.core.Sample;
 import org.opentripplanner.analyst.request.SampleFactory;
 import org.opentripplanner.common.model.GenericLocation;
+import org.opentripplanner.routing.algorithm.GenericAStar;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.error.VertexNotFoundException;
 import org.opentripplanner.routing.services.GraphService;
@@ -62,6 +67,13 @@ public class BatchProcessor {
      */
     private int nThreads = Runtime.getRuntime().availableProcessors(); 
 
+    /**
+     * Origins are handed to the thread pool only as fast as results come back, keeping at most
+     * this many tasks per thread queued or running. This bounds memory use on very large origin
+     * populations while keeping every thread busy.
+     */
+    private int tasksPerThread = 4;
+
     private String date = "2011-02-04";
     private String time = "08:00 AM";
     private TimeZone timeZone = TimeZone.getDefault();
@@ -74,12 +86,67 @@ public class BatchProcessor {
     private long lastLogTime = 0;
     private long lastCheckpointTime = 0;
     private ResultSet aggregateResultSet = null;
+
+    /** In accumulate mode, the partial sums made by each worker thread. */
+    private final List<ResultSet> partialResultSets = new CopyOnWriteArrayList<ResultSet>();
+
+    /** Per-thread search service and result buffers, reused across all origins a thread handles. */
+    private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
     
     /** Cut off the search instead of building a full path tree. Can greatly improve run times. */
     public void setSearchCutoffMinutes(int minutes) {
         this.searchCutoffSeconds = minutes * 60;
     }
 
+    public void setGraphService(GraphService graphService) {
+        this.graphService = graphService;
+    }
+
+    public void setSptService(SPTService sptService) {
+        this.sptService = sptService;
+    }
+
+    public void setSampleFactory(SampleFactory sampleFactory) {
+        this.sampleFactory = sampleFactory;
+    }
+
+    public void setOrigins(Population origins) {
+        this.origins = origins;
+    }
+
+    public void setDestinations(Population destinations) {
+        this.destinations = destinations;
+    }
+
+    public void setPrototypeRoutingRequest(RoutingRequest prototypeRoutingRequest) {
+        this.prototypeRoutingRequest = prototypeRoutingRequest;
+    }
+
+    public void setAggregator(Aggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    public void setAccumulator(Accumulator accumulator) {
+        this.accumulator = accumulator;
+    }
+
+    public void setNThreads(int nThreads) {
+        this.nThreads = nThreads;
+    }
+
+    public void setTasksPerThread(int tasksPerThread) {
+        this.tasksPerThread = tasksPerThread;
+    }
+
+    public void setOutputPath(String outputPath) {
+        this.outputPath = outputPath;
+    }
+
     /*
     public static void main(String[] args) throws IOException {
         org.springframework.core.io.Resource appContextResource;
@@ -103,7 +170,7 @@ public class BatchProcessor {
     }
     */
 
-    private void run() {
+    public void run() {
         origins.setup();
         destinations.setup();
         linkIntoGraph(destinations);
@@ -129,16 +196,23 @@ public class BatchProcessor {
                 System.exit(-1);
             }
         }
+        partialResultSets.clear();
         startTime = System.currentTimeMillis();
         int nTasks = 0;
-        for (Individual oi : origins) { // using filtered iterator
-            ecs.submit(new BatchAnalystTask(nTasks, oi), null);
-            ++nTasks;
+        for (Iterator<Individual> iter = origins.iterator(); iter.hasNext(); iter.next()) {
+            ++nTasks; // using filtered iterator
         }
-        LOG.info("created {} tasks.", nTasks);
+        LOG.info("{} tasks to run.", nTasks);
+        Iterator<Individual> originIterator = origins.iterator();
+        int maxInFlight = nThreads * tasksPerThread;
+        int nSubmitted = 0;
         int nCompleted = 0;
-        try { // pull Futures off the queue as tasks are finished
+        try { // pull Futures off the queue as tasks are finished, submitting new ones as we go
             while (nCompleted < nTasks) {
+                while (nSubmitted - nCompleted < maxInFlight && originIterator.hasNext()) {
+                    ecs.submit(new BatchAnalystTask(nSubmitted, originIterator.next()), null);
+                    ++nSubmitted;
+                }
                 try {
                     ecs.take().get(); // call get to check for exceptions in the completed task
                     LOG.debug("got result {}/{}", nCompleted, nTasks);
@@ -155,8 +229,13 @@ public class BatchProcessor {
             LOG.warn("run was interrupted after {} tasks", nCompleted);
         }
         threadPool.shutdown();
-        if (accumulator != null)
+        double runTimeSec = (System.currentTimeMillis() - startTime) / 1000.0;
+        LOG.info("{} origins in {} sec, {} origins/sec", nCompleted, (int) runTimeSec,
+                String.format("%.1f", nCompleted / runTimeSec));
+        if (accumulator != null) {
+            mergePartialResults();
             accumulator.finish();
+        }
         if (aggregateResultSet != null)
             aggregateResultSet.writeAppropriateFormat(outputPath);
         LOG.info("DONE.");
@@ -170,7 +249,8 @@ public class BatchProcessor {
             lastLogTime = currentTime;
             double runTimeMin = (currentTime - startTime) / 1000.0 / 60.0;
             double projectedMin = (total - current) * (runTimeMin / current);
-            LOG.info("received {} results out of {}", current, total);
+            LOG.info("received {} results out of {}, {} origins/sec", current, total,
+                    String.format("%.1f", current / (runTimeMin * 60)));
             LOG.info("running {} min, {} min remaining (projected)", (int)runTimeMin, (int)projectedMin);
         }
     }
@@ -183,12 +263,30 @@ public class BatchProcessor {
         // anyway, this is being called in the controller thread now
         if (currentTime > lastCheckpointTime + checkpointIntervalMinutes * 60 * 1000) {
             lastCheckpointTime = currentTime;
+            if (mode == Mode.ACCUMULATE)
+                mergePartialResults();
             aggregateResultSet.writeAppropriateFormat(outputPath);
             return true;
         }
         return false;
     }
     
+    /**
+     * Sum the partial results accumulated by each thread into the aggregate result set. This
+     * relies on accumulators being additive, which holds for all existing implementations.
+     */
+    private void mergePartialResults() {
+        double[] merged = aggregateResultSet.results;
+        Arrays.fill(merged, 0);
+        for (ResultSet partial : partialResultSets) {
+            synchronized (partial) {
+                for (int i = 0; i < merged.length; i++) {
+                    merged[i] += partial.results[i];
+                }
+            }
+        }
+    }
+
     private RoutingRequest buildRequest(Individual i) {
         RoutingRequest req = prototypeRoutingRequest.clone();
         req.setDateTime(date, time, timeZone);
@@ -228,6 +326,36 @@ public class BatchProcessor {
         LOG.info("successfully linked {} individuals out of {}", nonNull, n);
     }
         
+    /**
+     * The state reused by a single worker thread. When the configured service is a GenericAStar,
+     * each thread gets its own instance searching in vertex-indexed mode, so its shortest path
+     * tree storage is recycled between origins without reconfiguring the shared service. Any
+     * other SPTService is shared.
+     */
+    private class Worker {
+
+        final SPTService sptService;
+        final ResultSet results;
+        final ResultSet partial;
+
+        Worker() {
+            if (BatchProcessor.this.sptService instanceof GenericAStar) {
+                GenericAStar aStar = new GenericAStar();
+                aStar.setVertexIndexed(true);
+                sptService = aStar;
+            } else {
+                sptService = BatchProcessor.this.sptService;
+            }
+            results = new ResultSet(destinations);
+            if (mode == Mode.ACCUMULATE) {
+                partial = new ResultSet(destinations);
+                partialResultSets.add(partial);
+            } else {
+                partial = null;
+            }
+        }
+    }
+
     /** 
      * A single computation to perform for a single origin.
      * Runnable, not Callable. We want accumulation to happen in the worker thread. 
@@ -249,14 +377,18 @@ public class BatchProcessor {
             LOG.debug("calling origin : {}", oi);
             RoutingRequest req = buildRequest(oi);
             if (req != null) {
-                ShortestPathTree spt = sptService.getShortestPathTree(req);
-                // ResultSet should be a local to avoid memory leak
-                ResultSet results = ResultSet.forTravelTimes(destinations, spt);
+                Worker worker = workers.get();
+                ShortestPathTree spt = worker.sptService.getShortestPathTree(req);
+                // The worker's ResultSet is consumed before this task ends, so it can be reused
+                ResultSet results = worker.results;
+                results.setTravelTimes(spt);
+                spt.release();
                 req.cleanup();
                 switch (mode) {
                 case ACCUMULATE:
-                    synchronized (aggregateResultSet) {
-                        accumulator.accumulate(oi.input, results, aggregateResultSet);
+                    // Only contended while a checkpoint is merging the partial results
+                    synchronized (worker.partial) {
+                        accumulator.accumulate(oi.input, results, worker.partial);
                     }
                     break;
                 case AGGREGATE:
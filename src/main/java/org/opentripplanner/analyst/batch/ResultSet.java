@@ -27,7 +27,16 @@ public class ResultSet {
     public double[] results;
     
     public static ResultSet forTravelTimes(Population population, ShortestPathTree spt) {
-        double[] results = new double[population.size()];
+        ResultSet resultSet = new ResultSet(population);
+        resultSet.setTravelTimes(spt);
+        return resultSet;
+    }
+
+    /**
+     * Overwrite the results with travel times to this result set's population from the given
+     * tree, allowing one ResultSet to be reused for successive searches.
+     */
+    public void setTravelTimes(ShortestPathTree spt) {
         int i = 0;
         for (Individual indiv : population) {
             Sample s = indiv.sample;
@@ -41,7 +50,6 @@ public class ResultSet {
             results[i] = t;
             i++;
         }
-        return new ResultSet(population, results);
     }
     
     public ResultSet(Population population, double[] results) {
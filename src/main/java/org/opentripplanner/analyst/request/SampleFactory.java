@@ -13,13 +13,21 @@
 
 package org.opentripplanner.analyst.request;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import org.opentripplanner.analyst.PointSet;
 import org.opentripplanner.analyst.core.GeometryIndex;
 import org.opentripplanner.analyst.core.Sample;
 import org.opentripplanner.analyst.core.SampleSource;
 import org.opentripplanner.common.geometry.DistanceLibrary;
 import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.common.geometry.PackedSpatialIndex;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
 import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Vertex;
@@ -33,6 +41,15 @@ public class SampleFactory implements SampleSource {
 
     private static DistanceLibrary distanceLibrary = SphericalDistanceLibrary.getInstance();
 
+    /* The number of consecutive points, in Morton order, snapped by one task in getSamples. */
+    private static final int POINTS_PER_TASK = 4096;
+
+    /* Mask of the point index in the sort keys of mortonOrder. */
+    private static final int INDEX_MASK = (1 << 24) - 1;
+
+    /* Shared by all calls to getSamples, rather than started and shut down for each point set. */
+    private static final ForkJoinPool pool = new ForkJoinPool();
+
     public SampleFactory(GeometryIndex index) {
         this.index = index;
         this.setSearchRadiusM(200);
@@ -63,6 +80,74 @@ public class SampleFactory implements SampleSource {
         return findClosest(edges, c, xscale);
     }
 
+    /**
+     * Snap many points at once. The points are sorted along a Morton curve, so that consecutive queries hit the same
+     * parts of the spatial index and the same edge geometries, and runs of consecutive points are snapped in parallel.
+     *
+     * @return one sample per point, in the same order, null for points that are too far from any street.
+     */
+    public Sample[] getSamples(final PointSet pset) {
+        final int n = pset.capacity;
+        final Sample[] samples = new Sample[n];
+        if (n == 0) return samples;
+        final int[] order = mortonOrder(pset);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int start = 0; start < n; start += POINTS_PER_TASK) {
+            final int from = start;
+            final int to = Math.min(n, start + POINTS_PER_TASK);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = from; i < to; i++) {
+                        int p = order[i];
+                        samples[p] = getSample(pset.getLon(p), pset.getLat(p));
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while snapping points", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return samples;
+    }
+
+    /** @return the indexes of the points, sorted by the Morton code of their position. */
+    static int[] mortonOrder(PointSet pset) {
+        int n = pset.capacity;
+        int[] order = new int[n];
+        if (n > INDEX_MASK) {
+            // too many points to pack their index with the code, keep the original order
+            for (int i = 0; i < n; i++) order[i] = i;
+            return order;
+        }
+        double minLon = Double.POSITIVE_INFINITY, minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minLon = Math.min(minLon, pset.getLon(i));
+            minLat = Math.min(minLat, pset.getLat(i));
+            maxLon = Math.max(maxLon, pset.getLon(i));
+            maxLat = Math.max(maxLat, pset.getLat(i));
+        }
+        // Scale the coordinates to 20 bits each, so that the 40-bit code and a 24-bit point index fit in a long.
+        double extent = Math.max(Math.max(maxLon - minLon, maxLat - minLat), 1e-9);
+        double scale = ((1 << 20) - 1) / extent;
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            int x = (int) ((pset.getLon(i) - minLon) * scale);
+            int y = (int) ((pset.getLat(i) - minLat) * scale);
+            keys[i] = (PackedSpatialIndex.morton(x, y) << 24) | i;
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < n; i++) order[i] = (int) (keys[i] & INDEX_MASK);
+        return order;
+    }
+
     /**
      * DistanceToPoint.computeDistance() uses a LineSegment, which has a closestPoint method.
      * That finds the true distance every time rather than once the closest segment is known, 
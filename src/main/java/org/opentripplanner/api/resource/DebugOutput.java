@@ -49,6 +49,9 @@ public class DebugOutput {
     public long renderingTime;
     public long totalTime;
     public boolean timedOut;
+    /** Whether the heuristic pre-calculation was reused from an earlier request, and how long it took then. */
+    public boolean precalculationReused;
+    public long precalculationTimeSaved;
 
     /**
      * Record the time when we first began calculating a path for this request
@@ -66,8 +69,14 @@ public class DebugOutput {
         finishedPrecalculating = System.currentTimeMillis();
     }
 
+    /** Record that the heuristic pre-calculation was reused, and how long it took in the request that made it. */
+    public void reusedPrecalculation(long msecSaved) {
+        precalculationReused = true;
+        precalculationTimeSaved = msecSaved;
+    }
+
     /** Record the time when a path was found. */
-    public void foundPath() {
+    public synchronized void foundPath() {
         foundPaths.add(System.currentTimeMillis());
     }
 
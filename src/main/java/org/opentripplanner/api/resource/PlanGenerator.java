@@ -890,7 +890,7 @@ public class PlanGenerator {
                     if (edge instanceof PlainStreetEdge) {
                         // the next edges will be PlainStreetEdges, we hope
                         double angleDiff = getAbsoluteAngleDiff(thisAngle, lastAngle);
-                        for (Edge alternative : backState.getVertex().getOutgoingStreetEdges()) {
+                        for (Edge alternative : getOutgoingStreetEdges(backState, backState.getVertex())) {
                             if (alternative.getName().equals(streetName)) {
                                 // alternatives that have the same name
                                 // are usually caused by street splits
@@ -909,9 +909,9 @@ public class PlanGenerator {
                         // FIXME: this code might be wrong with the removal of the edge-based graph
                         State twoStatesBack = backState.getBackState();
                         Vertex backVertex = twoStatesBack.getVertex();
-                        for (Edge alternative : backVertex.getOutgoingStreetEdges()) {
-                            List<Edge> alternatives = alternative.getToVertex()
-                                    .getOutgoingStreetEdges();
+                        for (Edge alternative : getOutgoingStreetEdges(backState, backVertex)) {
+                            List<Edge> alternatives = getOutgoingStreetEdges(backState,
+                                    alternative.getToVertex());
                             if (alternatives.size() == 0) {
                                 continue; // this is not an alternative
                             }
@@ -1032,6 +1032,18 @@ public class PlanGenerator {
         return steps;
     }
 
+    /**
+     * The street edges leaving a vertex, including the temporary edges of the state's routing context, which are
+     * not in the edge lists of permanent vertices.
+     */
+    private static List<Edge> getOutgoingStreetEdges(State state, Vertex v) {
+        List<Edge> result = new ArrayList<Edge>();
+        for (Edge out : state.getContext().getOutgoingEdges(v)) {
+            if (out instanceof StreetEdge) result.add(out);
+        }
+        return result;
+    }
+
     private static boolean isLink(Edge edge) {
         return edge instanceof StreetEdge && (((StreetEdge)edge).getStreetClass() & StreetEdge.CLASS_LINK) == StreetEdge.CLASS_LINK;
     }
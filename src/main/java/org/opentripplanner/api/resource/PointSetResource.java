@@ -1,5 +1,6 @@
 package org.opentripplanner.api.resource;
 
+import org.opentripplanner.analyst.BinaryFormat;
 import org.opentripplanner.analyst.PointSet;
 import org.opentripplanner.analyst.TimeSurface;
 import org.opentripplanner.api.model.PointSetShort;
@@ -67,4 +68,24 @@ public class PointSetResource {
         }).build();
     }
 
+    /**
+     * The whole PointSet in the compact binary format, for clients that accept it. Unlike the JSON representation
+     * it is never summarized, since it takes a few bytes per feature.
+     */
+    @GET
+    @Path("/{pointSetId}")
+    @Produces(BinaryFormat.PRODUCES)
+    public Response getPointSetBinary (@PathParam("pointSetId") String pointSetId) {
+        final PointSet pset = server.pointSetCache.get(pointSetId);
+        if (pset == null) {
+            return Response.status(Status.NOT_FOUND).entity("Invalid PointSet ID.").build();
+        }
+        return Response.ok().entity(new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException, WebApplicationException {
+                pset.writeBinary(output);
+            }
+        }).build();
+    }
+
 }
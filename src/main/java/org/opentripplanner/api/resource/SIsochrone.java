@@ -251,7 +251,6 @@ public class SIsochrone extends RoutingResource {
         }
         ShortestPathTree sptA = sptService.getShortestPathTree(sptRequestA);
         StreetLocation origin = (StreetLocation) sptRequestA.rctx.fromVertex;
-        sptRequestA.cleanup(); // remove inserted points
 
         // create a LineString for display
         Coordinate pathToStreetCoords[] = new Coordinate[2];
@@ -302,7 +301,7 @@ public class SIsochrone extends RoutingResource {
                     // -- get all Edges needed later for the edge representation
                     // and to calculate an edge-based walkshed
                     // Note, it can happen that we get a null geometry here, e.g. for hop-edges!
-                    Collection<Edge> vertexEdgesIn = state.getVertex().getIncoming();
+                    Collection<Edge> vertexEdgesIn = state.getContext().getIncomingEdges(state.getVertex());
                     for (Iterator<Edge> iterator = vertexEdgesIn.iterator(); iterator.hasNext();) {
                         Edge edge = (Edge) iterator.next();
                         Geometry edgeGeom = edge.getGeometry();
@@ -314,7 +313,7 @@ public class SIsochrone extends RoutingResource {
                             }
                         }
                     }
-                    Collection<Edge> vertexEdgesOut = state.getVertex().getOutgoing();
+                    Collection<Edge> vertexEdgesOut = state.getContext().getOutgoingEdges(state.getVertex());
                     for (Iterator<Edge> iterator = vertexEdgesOut.iterator(); iterator.hasNext();) {
                         Edge edge = (Edge) iterator.next();
                         Geometry edgeGeom = edge.getGeometry();
@@ -473,6 +472,8 @@ public class SIsochrone extends RoutingResource {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        // the edges of the origin are read until here
+        sptRequestA.cleanup(); // remove inserted points
         return sw.toString();
     }
 
@@ -11,6 +11,7 @@ import org.geotools.feature.FeatureCollection;
 import org.geotools.geojson.feature.FeatureJSON;
 import org.geotools.geojson.geom.GeometryJSON;
 import org.geotools.geometry.Envelope2D;
+import org.opentripplanner.analyst.BinaryFormat;
 import org.opentripplanner.analyst.ResultFeature;
 import org.opentripplanner.analyst.PointSet;
 import org.opentripplanner.analyst.SampleSet;
@@ -114,10 +115,12 @@ public class SurfaceResource extends RoutingResource {
         	
             EarliestArrivalSPTService sptService = new EarliestArrivalSPTService();
             sptService.maxDuration = (60 * cutoffMinutes);
+            sptService.vertexIndexed = true;
             ShortestPathTree spt = sptService.getShortestPathTree(req);
             req.cleanup();
             if (spt != null) {
                 TimeSurface surface = new TimeSurface(spt);
+                spt.release();
                 surface.params = Maps.newHashMap();
                 for (Map.Entry<String, List<String>> e : uriInfo.getQueryParameters().entrySet()) {
                     // include only the first instance of each query parameter
@@ -149,13 +152,41 @@ public class SurfaceResource extends RoutingResource {
         return Response.ok().entity(new TimeSurfaceShort(surface)).build();
     }
 
+    /**
+     * The travel time to every vertex of a surface, for clients that accept the compact binary format. There is no
+     * JSON equivalent, the times are too many.
+     */
+    @GET @Path("/{surfaceId}") @Produces(BinaryFormat.PRODUCES)
+    public Response getTimeSurfaceBinary (@PathParam("surfaceId") Integer surfaceId) {
+        final TimeSurface surface = server.surfaceCache.get(surfaceId);
+        if (surface == null) return Response.status(Response.Status.NOT_FOUND).entity("Invalid surface ID.").build();
+        return Response.ok().entity(new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException, WebApplicationException {
+                surface.writeBinary(output);
+            }
+        }).build();
+    }
+
     /** Evaluate a surface at all the points in a PointSet. */
     @GET @Path("/{surfaceId}/indicator")
     public Response getIndicator (@PathParam("surfaceId") Integer surfaceId,
                                   @QueryParam("targets")  String  targetPointSetId,
                                   @QueryParam("origins")  String  originPointSetId,
                                   @QueryParam("detail")   boolean detail) {
+        return getIndicator(surfaceId, targetPointSetId, false);
+    }
+
+    /** Evaluate a surface at all the points in a PointSet, for clients that accept the compact binary format. */
+    @GET @Path("/{surfaceId}/indicator") @Produces(BinaryFormat.PRODUCES)
+    public Response getIndicatorBinary (@PathParam("surfaceId") Integer surfaceId,
+                                        @QueryParam("targets")  String  targetPointSetId,
+                                        @QueryParam("origins")  String  originPointSetId,
+                                        @QueryParam("detail")   boolean detail) {
+        return getIndicator(surfaceId, targetPointSetId, true);
+    }
 
+    private Response getIndicator (Integer surfaceId, String targetPointSetId, final boolean binary) {
 
     	final TimeSurface surf = server.surfaceCache.get(surfaceId);
     	
@@ -172,7 +203,8 @@ public class SurfaceResource extends RoutingResource {
         return Response.ok().entity(new StreamingOutput() {
             @Override
             public void write(OutputStream output) throws IOException, WebApplicationException {
-                indicator.writeJson(output);
+                if (binary) indicator.writeBinary(output);
+                else indicator.writeJson(output);
             }
         }).build();
 
@@ -0,0 +1,390 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common.geometry;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.ItemVisitor;
+import com.vividsolutions.jts.index.SpatialIndex;
+
+/**
+ * An immutable spatial index packed into a few flat arrays, for fast read-only queries of street edges, vertices
+ * and stops.
+ *
+ * Like the JTS STRtree, items are first inserted and the index is then built, explicitly or on the first query;
+ * after that no more items can be inserted. Each item is stored with its envelope in fixed-point coordinates
+ * (1e-7 degrees), so queries return no false positives. The index is a grid of square cells: the non-empty cells
+ * are sorted by the Morton code of their position, so that nearby cells are close together in memory, and found by
+ * binary search. Each cell holds the indexes of the items whose envelope overlaps it, in one shared int array.
+ *
+ * Queries do not allocate per visited cell and are thread-safe once the index is built. An item spanning several
+ * cells is only reported from the cell holding the lower left corner of its intersection with the query envelope,
+ * so results need no deduplication.
+ *
+ * @param <T> Type of objects to be spatial indexed.
+ */
+public class PackedSpatialIndex<T> implements SpatialIndex, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final double FIXED_PER_DEGREE = 1e7;
+
+    private static final double M_PER_DEGREE_LAT = 111111.111111;
+
+    /* The first search radius of nearest-neighbour queries, in meters. */
+    private static final double INITIAL_NEAREST_RADIUS = 50;
+
+    /* The average number of items per cell aimed at when the cell size is chosen automatically. */
+    private static final double TARGET_ITEMS_PER_CELL = 4;
+
+    /* Bounds of the automatic cell size in degrees: ~10m, and ~500m as the default bins of HashGridSpatialIndex. */
+    private static final double MIN_CELL_SIZE = 0.0001;
+
+    private static final double MAX_CELL_SIZE = 0.005;
+
+    /** Computes the distance in meters from an item to a point, for nearest-neighbour queries. */
+    public interface DistanceFunction<T> {
+        public double distance(T item, double lon, double lat);
+    }
+
+    /** Callback for each item found by a query. */
+    public interface Visitor<T> {
+        public void visit(T item);
+    }
+
+    /* Cell size in fixed-point units, chosen when the index is built if zero. */
+    private int cellSize;
+
+    /* Items and their envelopes (minX, minY, maxX, maxY in fixed point), filled until the index is built. */
+    private List<Object> insertedItems = new ArrayList<Object>();
+
+    private TIntArrayList insertedEnvelopes = new TIntArrayList();
+
+    private volatile boolean built = false;
+
+    private Object[] items;
+
+    private int[] envelopes;
+
+    /* Origin of the cell grid in fixed point, so that cell coordinates of all items are positive. */
+    private int originX, originY;
+
+    /* Morton keys of the non-empty cells, sorted. */
+    private long[] cellKeys;
+
+    /* The entries of cell i are cellItems[cellStarts[i]] to cellItems[cellStarts[i + 1] - 1]. */
+    private int[] cellStarts;
+
+    private int[] cellItems;
+
+    public PackedSpatialIndex(double cellSizeDegrees) {
+        if (cellSizeDegrees <= 0)
+            throw new IllegalStateException("cell size must be positive.");
+        this.cellSize = (int) Math.round(cellSizeDegrees * FIXED_PER_DEGREE);
+    }
+
+    /** Create an index whose cell size is chosen from the density of the items when it is built. */
+    public PackedSpatialIndex() {
+        this.cellSize = 0;
+    }
+
+    @Override
+    public synchronized void insert(Envelope envelope, Object item) {
+        if (built)
+            throw new UnsupportedOperationException("Cannot insert items into a packed index after it has been built.");
+        insertedItems.add(item);
+        insertedEnvelopes.add(toFixedFloor(envelope.getMinX()));
+        insertedEnvelopes.add(toFixedFloor(envelope.getMinY()));
+        insertedEnvelopes.add(toFixedCeil(envelope.getMaxX()));
+        insertedEnvelopes.add(toFixedCeil(envelope.getMaxY()));
+    }
+
+    @Override
+    public boolean remove(Envelope envelope, Object item) {
+        throw new UnsupportedOperationException("A packed spatial index is immutable.");
+    }
+
+    /** Pack the inserted items. Called on the first query if it has not been called before. */
+    public synchronized void build() {
+        if (built) return;
+        int n = insertedItems.size();
+        items = insertedItems.toArray();
+        envelopes = insertedEnvelopes.toArray();
+        insertedItems = null;
+        insertedEnvelopes = null;
+        originX = Integer.MAX_VALUE;
+        originY = Integer.MAX_VALUE;
+        long maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            originX = Math.min(originX, envelopes[i * 4]);
+            originY = Math.min(originY, envelopes[i * 4 + 1]);
+            maxX = Math.max(maxX, envelopes[i * 4 + 2]);
+            maxY = Math.max(maxY, envelopes[i * 4 + 3]);
+        }
+        if (cellSize == 0) {
+            // Small cells keep the number of items scanned per query low, as long as items do not span many cells.
+            double area = n == 0 ? 0 : (double) (maxX - originX) * (maxY - originY) / (FIXED_PER_DEGREE * FIXED_PER_DEGREE);
+            double size = Math.sqrt(area * TARGET_ITEMS_PER_CELL / Math.max(n, 1));
+            cellSize = (int) Math.round(Math.max(MIN_CELL_SIZE, Math.min(MAX_CELL_SIZE, size)) * FIXED_PER_DEGREE);
+        }
+        // Compute the cell key of each (cell, item) entry, then counting-sort the entries into the sorted cells.
+        int nEntries = 0;
+        for (int i = 0; i < n; i++) {
+            nEntries += (cellX(envelopes[i * 4 + 2]) - cellX(envelopes[i * 4]) + 1)
+                    * (cellY(envelopes[i * 4 + 3]) - cellY(envelopes[i * 4 + 1]) + 1);
+        }
+        long[] entryKeys = new long[nEntries];
+        int e = 0;
+        for (int i = 0; i < n; i++) {
+            for (int cx = cellX(envelopes[i * 4]); cx <= cellX(envelopes[i * 4 + 2]); cx++) {
+                for (int cy = cellY(envelopes[i * 4 + 1]); cy <= cellY(envelopes[i * 4 + 3]); cy++) {
+                    entryKeys[e++] = morton(cx, cy);
+                }
+            }
+        }
+        long[] sortedKeys = entryKeys.clone();
+        Arrays.sort(sortedKeys);
+        int nCells = 0;
+        for (e = 0; e < nEntries; e++) {
+            if (nCells == 0 || sortedKeys[e] != sortedKeys[nCells - 1]) sortedKeys[nCells++] = sortedKeys[e];
+        }
+        cellKeys = Arrays.copyOf(sortedKeys, nCells);
+        int[] entryCells = new int[nEntries];
+        cellStarts = new int[nCells + 1];
+        for (e = 0; e < nEntries; e++) {
+            entryCells[e] = Arrays.binarySearch(cellKeys, entryKeys[e]);
+            cellStarts[entryCells[e] + 1]++;
+        }
+        for (int c = 0; c < nCells; c++) cellStarts[c + 1] += cellStarts[c];
+        int[] next = Arrays.copyOf(cellStarts, nCells);
+        cellItems = new int[nEntries];
+        e = 0;
+        for (int i = 0; i < n; i++) {
+            int nItemEntries = (cellX(envelopes[i * 4 + 2]) - cellX(envelopes[i * 4]) + 1)
+                    * (cellY(envelopes[i * 4 + 3]) - cellY(envelopes[i * 4 + 1]) + 1);
+            for (int j = 0; j < nItemEntries; j++) {
+                cellItems[next[entryCells[e++]]++] = i;
+            }
+        }
+        built = true;
+    }
+
+    @Override
+    public List<T> query(Envelope envelope) {
+        final List<T> result = new ArrayList<T>();
+        query(envelope, new Visitor<T>() {
+            @Override
+            public void visit(T item) {
+                result.add(item);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void query(Envelope envelope, final ItemVisitor visitor) {
+        query(envelope, new Visitor<T>() {
+            @Override
+            public void visit(T item) {
+                visitor.visitItem(item);
+            }
+        });
+    }
+
+    /** Visit every item whose envelope intersects the given one, once. */
+    public void query(Envelope envelope, Visitor<T> visitor) {
+        if (envelope.isNull()) return;
+        query(toFixedFloor(envelope.getMinX()), toFixedFloor(envelope.getMinY()),
+                toFixedCeil(envelope.getMaxX()), toFixedCeil(envelope.getMaxY()), visitor);
+    }
+
+    /**
+     * @return the items within the given distance of the given point, plus some items whose envelope is within that
+     *         distance, like the equivalent HashGrid query.
+     */
+    public List<T> query(double lon, double lat, double radiusMeters) {
+        double dLat = radiusMeters / M_PER_DEGREE_LAT;
+        double dLon = dLat / Math.cos(Math.toRadians(lat));
+        return query(new Envelope(lon - dLon, lon + dLon, lat - dLat, lat + dLat));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void query(int minX, int minY, int maxX, int maxY, Visitor<T> visitor) {
+        if (!built) build();
+        if (cellKeys.length == 0) return;
+        int minCx = Math.max(0, cellX(minX)), maxCx = cellX(maxX);
+        int minCy = Math.max(0, cellY(minY)), maxCy = cellY(maxY);
+        if (maxCx < 0 || maxCy < 0) return;
+        long nQueryCells = (long) (maxCx - minCx + 1) * (maxCy - minCy + 1);
+        if (nQueryCells > cellKeys.length) {
+            // Large query: scanning all non-empty cells is cheaper than looking each query cell up.
+            for (int c = 0; c < cellKeys.length; c++) {
+                int cx = unmortonX(cellKeys[c]), cy = unmortonY(cellKeys[c]);
+                if (cx >= minCx && cx <= maxCx && cy >= minCy && cy <= maxCy) {
+                    visitCell(c, cx, cy, minX, minY, maxX, maxY, visitor);
+                }
+            }
+        } else {
+            for (int cx = minCx; cx <= maxCx; cx++) {
+                for (int cy = minCy; cy <= maxCy; cy++) {
+                    int c = Arrays.binarySearch(cellKeys, morton(cx, cy));
+                    if (c >= 0) visitCell(c, cx, cy, minX, minY, maxX, maxY, visitor);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void visitCell(int c, int cx, int cy, int minX, int minY, int maxX, int maxY, Visitor<T> visitor) {
+        for (int e = cellStarts[c]; e < cellStarts[c + 1]; e++) {
+            int i = cellItems[e];
+            int iMinX = envelopes[i * 4], iMinY = envelopes[i * 4 + 1];
+            if (iMinX > maxX || iMinY > maxY || envelopes[i * 4 + 2] < minX || envelopes[i * 4 + 3] < minY)
+                continue;
+            // report the item from one cell only
+            if (cellX(Math.max(iMinX, minX)) != cx || cellY(Math.max(iMinY, minY)) != cy)
+                continue;
+            visitor.visit((T) items[i]);
+        }
+    }
+
+    /**
+     * Find the k items closest to the given point, searching squares of increasing size around it up to the given
+     * radius.
+     *
+     * @return up to k items within radiusMeters of the point, closest first.
+     */
+    public List<T> nearest(double lon, double lat, int k, double radiusMeters, final DistanceFunction<T> distance) {
+        final double[] point = { lon, lat };
+        final double cosLat = Math.cos(Math.toRadians(lat));
+        // Start small, as dense street networks usually have several edges within a few dozen meters.
+        double searchRadius = Math.min(radiusMeters, INITIAL_NEAREST_RADIUS);
+        while (true) {
+            final double r = searchRadius;
+            final int maxSize = k;
+            // a max-heap of the closest items found so far
+            final PriorityQueue<ItemDistance<T>> closest = new PriorityQueue<ItemDistance<T>>(k + 1,
+                    Collections.reverseOrder(ItemDistance.COMPARATOR));
+            double dLat = r / M_PER_DEGREE_LAT;
+            double dLon = dLat / cosLat;
+            query(toFixedFloor(lon - dLon), toFixedFloor(lat - dLat), toFixedCeil(lon + dLon),
+                    toFixedCeil(lat + dLat), new Visitor<T>() {
+                        @Override
+                        public void visit(T item) {
+                            double d = distance.distance(item, point[0], point[1]);
+                            if (d > r) return;
+                            closest.add(new ItemDistance<T>(item, d));
+                            if (closest.size() > maxSize) closest.poll();
+                        }
+                    });
+            // Everything within r of the point is inside the searched square, so the search is complete once k
+            // items are found within r, or the maximum radius is reached.
+            if (closest.size() == k || r >= radiusMeters) {
+                List<ItemDistance<T>> sorted = new ArrayList<ItemDistance<T>>(closest);
+                Collections.sort(sorted, ItemDistance.COMPARATOR);
+                List<T> result = new ArrayList<T>(sorted.size());
+                for (ItemDistance<T> id : sorted) result.add(id.item);
+                return result;
+            }
+            searchRadius = Math.min(radiusMeters, searchRadius * 2);
+        }
+    }
+
+    private static class ItemDistance<T> {
+        static final Comparator<ItemDistance<?>> COMPARATOR = new Comparator<ItemDistance<?>>() {
+            @Override
+            public int compare(ItemDistance<?> a, ItemDistance<?> b) {
+                return Double.compare(a.distance, b.distance);
+            }
+        };
+
+        final T item;
+
+        final double distance;
+
+        ItemDistance(T item, double distance) {
+            this.item = item;
+            this.distance = distance;
+        }
+    }
+
+    public int size() {
+        return built ? items.length : insertedItems.size();
+    }
+
+    private int cellX(int x) {
+        return (int) (((long) x - originX) / cellSize);
+    }
+
+    private int cellY(int y) {
+        return (int) (((long) y - originY) / cellSize);
+    }
+
+    private static int toFixedFloor(double degrees) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.floor(degrees * FIXED_PER_DEGREE)));
+    }
+
+    private static int toFixedCeil(double degrees) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.ceil(degrees * FIXED_PER_DEGREE)));
+    }
+
+    /** Interleave the bits of two non-negative integer coordinates, x in the even bits, to give a Morton code. */
+    public static long morton(int x, int y) {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    private static long spread(int v) {
+        long x = v & 0xFFFFFFFFL;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        x = (x | (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    private static int compact(long x) {
+        x &= 0x5555555555555555L;
+        x = (x | (x >>> 1)) & 0x3333333333333333L;
+        x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) x;
+    }
+
+    private static int unmortonX(long key) {
+        return compact(key);
+    }
+
+    private static int unmortonY(long key) {
+        return compact(key >>> 1);
+    }
+
+    public String toString() {
+        if (!built) return String.format("PackedSpatialIndex (not built), %d objs", size());
+        return String.format("PackedSpatialIndex %f deg, %d cells, %d objs, %d entries (avg %.2f entries/cell)",
+                cellSize / FIXED_PER_DEGREE, cellKeys.length, items.length, cellItems.length,
+                cellItems.length * 1.0 / cellKeys.length);
+    }
+}
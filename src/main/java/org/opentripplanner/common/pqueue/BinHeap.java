@@ -113,8 +113,9 @@ public class BinHeap<T> {
     }
     
     public void reset() {
-    	// empties the queue in one operation
-    	size=0;
+        // empties the queue, dropping references to the remaining elements so they can be collected
+        Arrays.fill(elem, 1, size + 1, null);
+        size = 0;
     } 
 
     public void insert(T e, double p) {
@@ -149,6 +150,7 @@ public class BinHeap<T> {
         }
         elem[i] = lastElem;
         prio[i] = lastPrio;
+        elem[size + 1] = null; // the slot vacated by the last element
         return minElem;
     }
     
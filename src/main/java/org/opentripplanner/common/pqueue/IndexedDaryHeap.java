@@ -0,0 +1,220 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common.pqueue;
+
+import java.util.Arrays;
+
+/**
+ * A d-ary min-heap where every element is identified by a small non-negative integer index
+ * (typically a vertex index). Each index can appear in the queue at most once, which allows
+ * decrease-key in O(log n) instead of the linear search in {@link BinHeap#rekey}, and keeps the
+ * queue size bounded by the number of distinct indexes rather than the number of insertions.
+ *
+ * A branching factor of 4 makes the tree shallower than a binary heap and keeps all children of a
+ * node on the same cache line, which pays off because extract_min dominates in path searches.
+ *
+ * The method names follow {@link BinHeap} so the two can be swapped easily.
+ */
+public class IndexedDaryHeap<T> {
+
+    private static final int D = 4;
+
+    private static final double GROW_FACTOR = 2.0;
+
+    /* Heap-ordered arrays, 0-based. */
+    private double[] prio;
+    private int[] heapIndex;
+
+    /* Arrays addressed by element index. Positions are stored plus one so that 0 means absent. */
+    private int[] position;
+    private T[] elem;
+
+    private int size;
+
+    public IndexedDaryHeap() {
+        this(1000);
+    }
+
+    /**
+     * @param indexCapacity one more than the largest element index expected. The queue will grow
+     *        if larger indexes are inserted.
+     */
+    @SuppressWarnings("unchecked")
+    public IndexedDaryHeap(int indexCapacity) {
+        if (indexCapacity < 10) indexCapacity = 10;
+        position = new int[indexCapacity];
+        elem = (T[]) new Object[indexCapacity];
+        int heapCapacity = Math.max(10, (int) Math.ceil(Math.sqrt(indexCapacity)));
+        prio = new double[heapCapacity];
+        heapIndex = new int[heapCapacity];
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean empty() {
+        return size <= 0;
+    }
+
+    /** @return true if an element with the given index is currently enqueued. */
+    public boolean contains(int index) {
+        return index < position.length && position[index] != 0;
+    }
+
+    /** @return the element enqueued under the given index, or null if it is not enqueued. */
+    public T get(int index) {
+        if (!contains(index)) return null;
+        return elem[index];
+    }
+
+    /** @return the key of the given index, or positive infinity if it is not enqueued. */
+    public double key(int index) {
+        if (!contains(index)) return Double.POSITIVE_INFINITY;
+        return prio[position[index] - 1];
+    }
+
+    public double peek_min_key() {
+        if (size > 0)
+            return prio[0];
+        else
+            throw new IllegalStateException("An empty queue does not have a minimum key.");
+    }
+
+    public T peek_min() {
+        if (size > 0)
+            return elem[heapIndex[0]];
+        else
+            return null;
+    }
+
+    /** @return the index of the element with the lowest key. */
+    public int peek_min_index() {
+        if (size > 0)
+            return heapIndex[0];
+        else
+            throw new IllegalStateException("An empty queue does not have a minimum.");
+    }
+
+    /** Add a new element. The index must not already be present in the queue. */
+    public void insert(int index, T e, double p) {
+        if (contains(index))
+            throw new IllegalStateException("Index " + index + " is already in the queue.");
+        ensureIndexCapacity(index + 1);
+        if (size == prio.length) {
+            int capacity = (int) (prio.length * GROW_FACTOR);
+            prio = Arrays.copyOf(prio, capacity);
+            heapIndex = Arrays.copyOf(heapIndex, capacity);
+        }
+        elem[index] = e;
+        siftUp(size++, index, p);
+    }
+
+    /**
+     * Insert the element if its index is not yet present. If the index is present with a higher
+     * key, replace the element stored under that index and decrease its key.
+     *
+     * @return true if the element was inserted or replaced the existing one, false if the existing
+     *         key was lower than or equal to p and nothing was changed.
+     */
+    public boolean insert_or_dec_key(int index, T e, double p) {
+        if (!contains(index)) {
+            insert(index, e, p);
+            return true;
+        }
+        int pos = position[index] - 1;
+        if (p >= prio[pos])
+            return false;
+        elem[index] = e;
+        siftUp(pos, index, p);
+        return true;
+    }
+
+    public T extract_min() {
+        if (size <= 0)
+            return null;
+        int minIndex = heapIndex[0];
+        T minElem = elem[minIndex];
+        position[minIndex] = 0;
+        elem[minIndex] = null;
+        size -= 1;
+        if (size > 0)
+            siftDown(0, heapIndex[size], prio[size]);
+        return minElem;
+    }
+
+    /** Empty the queue. Cost is proportional to the number of elements still enqueued. */
+    public void reset() {
+        for (int i = 0; i < size; i++) {
+            position[heapIndex[i]] = 0;
+            elem[heapIndex[i]] = null;
+        }
+        size = 0;
+    }
+
+    /** Make sure indexes in the range [0, n) can be inserted without growing the queue. */
+    public void ensureIndexCapacity(int n) {
+        if (n <= position.length)
+            return;
+        int capacity = Math.max(n, (int) (position.length * GROW_FACTOR));
+        position = Arrays.copyOf(position, capacity);
+        elem = Arrays.copyOf(elem, capacity);
+    }
+
+    /** Move the hole at pos toward the root until index/p can be placed in it. */
+    private void siftUp(int pos, int index, double p) {
+        while (pos > 0) {
+            int parent = (pos - 1) / D;
+            if (prio[parent] <= p)
+                break;
+            move(parent, pos);
+            pos = parent;
+        }
+        place(pos, index, p);
+    }
+
+    /** Move the hole at pos toward the leaves until index/p can be placed in it. */
+    private void siftDown(int pos, int index, double p) {
+        while (true) {
+            int first = pos * D + 1;
+            if (first >= size)
+                break;
+            int last = Math.min(first + D, size);
+            int child = first;
+            for (int c = first + 1; c < last; c++) {
+                if (prio[c] < prio[child])
+                    child = c;
+            }
+            if (prio[child] >= p)
+                break;
+            move(child, pos);
+            pos = child;
+        }
+        place(pos, index, p);
+    }
+
+    private void move(int from, int to) {
+        prio[to] = prio[from];
+        heapIndex[to] = heapIndex[from];
+        position[heapIndex[to]] = to + 1;
+    }
+
+    private void place(int pos, int index, double p) {
+        prio[pos] = p;
+        heapIndex[pos] = index;
+        position[index] = pos + 1;
+    }
+
+}
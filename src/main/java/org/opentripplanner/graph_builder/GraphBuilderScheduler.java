@@ -0,0 +1,167 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.routing.graph.Graph;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a list of graph builders, overlapping those that the provides() and getPrerequisites() declarations show to
+ * be independent, and logs how long each one took.
+ *
+ * Builders are started in list order. A builder waits for every earlier builder that it conflicts with, where two
+ * builders conflict if any stage appears among the provided or required stages of both of them. Sharing a
+ * prerequisite counts as a conflict because both builders may modify the part of the graph that stage built. A
+ * builder that provides nothing, such as a checker or a pruning step, conflicts with every other builder, since
+ * nothing tells us which parts of the graph it reads or modifies. With the usual configuration this lets the street
+ * and transit builders run at the same time, while everything that links or refines them runs after both.
+ */
+public class GraphBuilderScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GraphBuilderScheduler.class);
+
+    private final List<GraphBuilder> builders;
+
+    private final int threads;
+
+    /* Timing of each builder, in the same order as the builders, in milliseconds from the start of the build. */
+    private final long[] startTimes;
+    private final long[] endTimes;
+
+    private long buildStart;
+
+    public GraphBuilderScheduler(List<GraphBuilder> builders, int threads) {
+        this.builders = builders;
+        this.threads = threads;
+        this.startTimes = new long[builders.size()];
+        this.endTimes = new long[builders.size()];
+    }
+
+    /** @return true if the two builders cannot safely run at the same time. */
+    static boolean conflict(GraphBuilder b1, GraphBuilder b2) {
+        if (b1.provides().isEmpty() || b2.provides().isEmpty()) return true;
+        Set<String> stages = new HashSet<String>(b1.provides());
+        stages.addAll(b1.getPrerequisites());
+        for (String stage : b2.provides()) {
+            if (stages.contains(stage)) return true;
+        }
+        for (String stage : b2.getPrerequisites()) {
+            if (stages.contains(stage)) return true;
+        }
+        return false;
+    }
+
+    /** @return for each builder, the indexes of the earlier builders it must wait for. */
+    List<List<Integer>> dependencies() {
+        List<List<Integer>> dependencies = new ArrayList<List<Integer>>();
+        for (int i = 0; i < builders.size(); i++) {
+            List<Integer> deps = new ArrayList<Integer>();
+            for (int j = 0; j < i; j++) {
+                if (conflict(builders.get(i), builders.get(j))) deps.add(j);
+            }
+            dependencies.add(deps);
+        }
+        return dependencies;
+    }
+
+    public void run(final Graph graph, final HashMap<Class<?>, Object> extra) {
+        buildStart = System.currentTimeMillis();
+        if (threads <= 1) {
+            for (int i = 0; i < builders.size(); i++) runBuilder(i, graph, extra);
+        } else {
+            runConcurrently(graph, extra);
+        }
+        logReport();
+    }
+
+    private void runConcurrently(final Graph graph, final HashMap<Class<?>, Object> extra) {
+        List<List<Integer>> dependencies = dependencies();
+        // The tasks are queued in list order and only wait on earlier ones, so the earliest unfinished task is always
+        // running and a fixed-size pool cannot deadlock.
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final Future<?>[] futures = new Future<?>[builders.size()];
+        try {
+            for (int i = 0; i < builders.size(); i++) {
+                final int index = i;
+                final List<Integer> deps = dependencies.get(i);
+                futures[i] = executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int dep : deps) futures[dep].get();
+                        runBuilder(index, graph, extra);
+                        return null;
+                    }
+                });
+            }
+            for (Future<?> future : futures) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while building graph", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // A builder waiting on a failed one fails in turn, so unwrap down to the original failure.
+            while (cause instanceof ExecutionException) cause = cause.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runBuilder(int i, Graph graph, HashMap<Class<?>, Object> extra) {
+        GraphBuilder builder = builders.get(i);
+        startTimes[i] = System.currentTimeMillis() - buildStart;
+        LOG.info("Running graph builder {}", name(builder));
+        builder.buildGraph(graph, extra);
+        endTimes[i] = System.currentTimeMillis() - buildStart;
+    }
+
+    private static String name(GraphBuilder builder) {
+        String name = builder.getClass().getSimpleName();
+        return name.isEmpty() ? builder.getClass().getName() : name;
+    }
+
+    private void logReport() {
+        long total = System.currentTimeMillis() - buildStart;
+        long sum = 0;
+        LOG.info("Graph build stages (start and end in seconds from the start of the build):");
+        for (int i = 0; i < builders.size(); i++) {
+            long elapsed = endTimes[i] - startTimes[i];
+            sum += elapsed;
+            LOG.info(String.format("  %-45s %8.1f %8.1f %8.1f sec", name(builders.get(i)),
+                    startTimes[i] / 1000.0, endTimes[i] / 1000.0, elapsed / 1000.0));
+        }
+        LOG.info(String.format("Graph builders took %.1f sec in total, %.1f sec of wall time on %d thread(s).",
+                sum / 1000.0, total / 1000.0, threads));
+    }
+
+    /** @return the time the given builder took during the last run, in milliseconds. */
+    public long getElapsedTime(int builderIndex) {
+        return endTimes[builderIndex] - startTimes[builderIndex];
+    }
+
+}
@@ -47,6 +47,15 @@ public class GraphBuilderTask implements Runnable {
     /** Should the graph be serialized to disk after being created or not? */
     public boolean serializeGraph = true;
 
+    /** Should the street network be saved in the memory-mappable columnar format? */
+    public boolean mappedGraph = false;
+
+    /**
+     * The number of threads used to run independent graph builders at the same time, and by builders that split
+     * their own work into spatial tiles.
+     */
+    public int threads = 1;
+
     public void addGraphBuilder(GraphBuilder loader) {
         _graphBuilders.add(loader);
     }
@@ -134,13 +143,16 @@ public class GraphBuilderTask implements Runnable {
         }
         
         HashMap<Class<?>, Object> extra = new HashMap<Class<?>, Object>();
-        for (GraphBuilder load : _graphBuilders)
-            load.buildGraph(graph, extra);
+        SpatialTiles.setParallelism(threads);
+        new GraphBuilderScheduler(_graphBuilders, threads).run(graph, extra);
 
         graph.summarizeBuilderAnnotations();
         if (serializeGraph) {
             try {
-                graph.save(graphFile);
+                if (mappedGraph)
+                    graph.saveMapped(graphFile);
+                else
+                    graph.save(graphFile);
             } catch (Exception ex) {
                 throw new IllegalStateException(ex);
             }
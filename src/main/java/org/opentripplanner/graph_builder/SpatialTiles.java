@@ -0,0 +1,126 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Groups items with a location into square tiles of a fixed size in degrees, so that graph builders whose work is
+ * independent from one place to another can process the tiles in parallel on a shared fork-join pool. Items in the
+ * same tile are processed together, which keeps the data they touch (raster tiles, nearby street edges) local to one
+ * thread. Tiles are ordered by their position, so the grouping does not depend on the order of the items.
+ */
+public class SpatialTiles<T> {
+
+    /** Gives the location of an item, as longitude (x) and latitude (y). */
+    public interface Locator<T> {
+        public Coordinate getCoordinate(T item);
+    }
+
+    /** Does the work for all the items in one tile. Called concurrently for different tiles. */
+    public interface TileProcessor<T> {
+        public void process(List<T> tile);
+    }
+
+    private static ForkJoinPool pool = new ForkJoinPool();
+
+    private final List<List<T>> tiles;
+
+    /** Set the number of threads used to process tiles by all graph builders. */
+    public static synchronized void setParallelism(int threads) {
+        if (pool.getParallelism() != threads) {
+            pool.shutdown();
+            pool = new ForkJoinPool(threads);
+        }
+    }
+
+    public static synchronized ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public SpatialTiles(Iterable<T> items, Locator<T> locator, double tileSizeDegrees) {
+        Map<Long, List<T>> tilesByKey = new HashMap<Long, List<T>>();
+        for (T item : items) {
+            Coordinate c = locator.getCoordinate(item);
+            long key = key((int) Math.floor(c.x / tileSizeDegrees), (int) Math.floor(c.y / tileSizeDegrees));
+            List<T> tile = tilesByKey.get(key);
+            if (tile == null) {
+                tile = new ArrayList<T>();
+                tilesByKey.put(key, tile);
+            }
+            tile.add(item);
+        }
+        Long[] keys = tilesByKey.keySet().toArray(new Long[0]);
+        Arrays.sort(keys);
+        tiles = new ArrayList<List<T>>(keys.length);
+        for (Long key : keys) tiles.add(tilesByKey.get(key));
+    }
+
+    /**
+     * Tiles are keyed on their row, then column, so sorting the keys sorts the tiles by row then column. The sign bit
+     * of the column is flipped so that negative columns sort before positive ones in the low half of the key.
+     */
+    private static long key(int column, int row) {
+        return ((long) row << 32) | ((column ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    public List<List<T>> getTiles() {
+        return tiles;
+    }
+
+    /** Process every tile, in parallel if there is more than one thread, and return when all are done. */
+    public void forEachTile(TileProcessor<T> processor) {
+        ForkJoinPool pool = getPool();
+        if (tiles.size() <= 1 || pool.getParallelism() <= 1) {
+            for (List<T> tile : tiles) processor.process(tile);
+        } else {
+            pool.invoke(new TileAction(processor, 0, tiles.size()));
+        }
+    }
+
+    /** Splits a range of tiles in half until a single tile remains. */
+    private class TileAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TileProcessor<T> processor;
+
+        private final int from, to;
+
+        TileAction(TileProcessor<T> processor, int from, int to) {
+            this.processor = processor;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                processor.process(tiles.get(from));
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileAction(processor, from, mid), new TileAction(processor, mid, to));
+            }
+        }
+    }
+
+}
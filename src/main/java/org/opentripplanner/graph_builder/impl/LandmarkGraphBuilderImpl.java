@@ -0,0 +1,218 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.opentripplanner.common.pqueue.IndexedDaryHeap;
+import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.routing.algorithm.strategies.LandmarkTable;
+import org.opentripplanner.routing.algorithm.strategies.LandmarkTable.Landmarks;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.edgetype.PreAlightEdge;
+import org.opentripplanner.routing.edgetype.PreBoardEdge;
+import org.opentripplanner.routing.edgetype.SimpleTransfer;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.graph.AdjacencyIndex;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This module is part of the {@link GraphBuilder} process. It chooses landmarks in the street network for cars and
+ * for bicycles, computes the distances between them and every vertex, and stores them in the graph as a LandmarkTable
+ * for LandmarkRemainingWeightHeuristic. It should run after every other builder that changes the street network,
+ * including elevation, since slopes make some bicycle routes cheaper.
+ *
+ * The distances are in metrics that never exceed the weight of an edge in a request of the mode, once scaled by the
+ * heuristic, see edgeLength(). Landmarks are chosen one at a time, each as far as possible from those already chosen,
+ * so that they end up around the edges of the network, where they give the best bounds.
+ */
+public class LandmarkGraphBuilderImpl implements GraphBuilder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LandmarkGraphBuilderImpl.class);
+
+    /** The modes for which landmarks are computed, and the length of a unit of their stored distances. */
+    private static final TraverseMode[] MODES = { TraverseMode.CAR, TraverseMode.BICYCLE };
+
+    private static final double[] UNITS = { 1.0, 4.0 }; // seconds, meters
+
+    /** The number of landmarks per mode. Each one takes 4 bytes per vertex and mode. */
+    private int numLandmarks = 8;
+
+    public void setNumLandmarks(int numLandmarks) {
+        this.numLandmarks = numLandmarks;
+    }
+
+    public List<String> provides() {
+        return Arrays.asList("landmarks");
+    }
+
+    public List<String> getPrerequisites() {
+        return Arrays.asList("streets");
+    }
+
+    @Override
+    public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
+        if (graph.getVertices().isEmpty())
+            return;
+        long t0 = System.currentTimeMillis();
+        AdjacencyIndex adjacency = new AdjacencyIndex(graph);
+        Vertex[] byIndex = new Vertex[adjacency.vertexIndexLimit()];
+        for (Vertex v : graph.getVertices())
+            byIndex[v.getIndex()] = v;
+        int nVertices = 0;
+        for (Vertex v : byIndex)
+            if (v != null)
+                nVertices++;
+        // the table holds the vertices in index order
+        Vertex[] vertices = new Vertex[nVertices];
+        int[] indexes = new int[nVertices];
+        for (int i = 0, p = 0; i < byIndex.length; i++) {
+            if (byIndex[i] != null) {
+                vertices[p] = byIndex[i];
+                indexes[p++] = i;
+            }
+        }
+        LandmarkTable table = new LandmarkTable(vertices);
+        for (int m = 0; m < MODES.length; m++) {
+            Landmarks landmarks = buildLandmarks(adjacency, byIndex, indexes, MODES[m], UNITS[m]);
+            if (landmarks != null)
+                table.put(MODES[m], landmarks);
+        }
+        graph.putService(LandmarkTable.class, table);
+        LOG.info("Computed {} landmarks per mode for {} vertices in {} msec.", numLandmarks, nVertices,
+                System.currentTimeMillis() - t0);
+    }
+
+    /** @return the landmarks of a mode, or null if no edge of the graph can be used in that mode. */
+    private Landmarks buildLandmarks(AdjacencyIndex adjacency, Vertex[] byIndex, int[] indexes, TraverseMode mode,
+            double unit) {
+        double[] lengths = new double[adjacency.size()];
+        int start = -1;
+        for (int e = 0; e < lengths.length; e++) {
+            lengths[e] = edgeLength(adjacency.edges[e], mode);
+            if (start < 0 && adjacency.edges[e] instanceof PlainStreetEdge && lengths[e] < Double.POSITIVE_INFINITY)
+                start = adjacency.fromVertex[e];
+        }
+        if (start < 0) {
+            LOG.info("No streets can be used by {}, skipping its landmarks.", mode);
+            return null;
+        }
+
+        // Start from the vertex farthest from an arbitrary street vertex, then take each time the vertex farthest
+        // from all the landmarks already chosen. Vertices that cannot be reached from them are never chosen.
+        double[] nearest = dijkstra(adjacency, lengths, start, false);
+        int n = Math.min(numLandmarks, indexes.length);
+        Vertex[] landmarkVertices = new Vertex[n];
+        char[][] fromLandmark = new char[n][];
+        char[][] toLandmark = new char[n][];
+        for (int l = 0; l < n; l++) {
+            int landmark = -1;
+            double farthest = -1;
+            for (int i = 0; i < nearest.length; i++) {
+                if (nearest[i] < Double.POSITIVE_INFINITY && nearest[i] > farthest) {
+                    landmark = i;
+                    farthest = nearest[i];
+                }
+            }
+            double[] from = dijkstra(adjacency, lengths, landmark, false);
+            double[] to = dijkstra(adjacency, lengths, landmark, true);
+            landmarkVertices[l] = byIndex[landmark];
+            fromLandmark[l] = Landmarks.toUnits(byPosition(from, indexes), unit);
+            toLandmark[l] = Landmarks.toUnits(byPosition(to, indexes), unit);
+            for (int i = 0; i < nearest.length; i++) {
+                nearest[i] = l == 0 ? from[i] : Math.min(nearest[i], from[i]);
+            }
+        }
+        return new Landmarks(unit, landmarkVertices, fromLandmark, toLandmark);
+    }
+
+    private static double[] byPosition(double[] distances, int[] indexes) {
+        double[] ret = new double[indexes.length];
+        for (int p = 0; p < indexes.length; p++)
+            ret[p] = distances[indexes[p]];
+        return ret;
+    }
+
+    /** @return the distance of every vertex, by vertex index, from the source or to it if reverse is true. */
+    private static double[] dijkstra(AdjacencyIndex adjacency, double[] lengths, int source, boolean reverse) {
+        int nVertices = adjacency.vertexIndexLimit();
+        double[] distances = new double[nVertices];
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        IndexedDaryHeap<Object> queue = new IndexedDaryHeap<Object>(nVertices);
+        distances[source] = 0;
+        queue.insert(source, null, 0);
+        while (!queue.empty()) {
+            int u = queue.peek_min_index();
+            queue.extract_min();
+            int end = adjacency.end(u, reverse);
+            for (int pos = adjacency.start(u, reverse); pos < end; pos++) {
+                int e = adjacency.edgeAt(pos, reverse);
+                int v = reverse ? adjacency.fromVertex[e] : adjacency.toVertex[e];
+                if (v < 0 || v >= nVertices)
+                    continue;
+                double d = distances[u] + lengths[e];
+                if (d < distances[v]) {
+                    distances[v] = d;
+                    queue.insert_or_dec_key(v, null, d);
+                }
+            }
+        }
+        return distances;
+    }
+
+    /**
+     * @return the length of an edge in the distance metric of a mode, or infinity if a search in that mode without
+     *         transit can never use it. For cars it is the driving time on streets that allow cars. For bicycles it is
+     *         the least of the lengths PlainStreetEdge uses for the different optimizations, on streets where a bicycle
+     *         can be ridden or walked, in meters. Other edges are free, except those onto transit.
+     */
+    public static double edgeLength(Edge e, TraverseMode mode) {
+        if (e instanceof PlainStreetEdge) {
+            PlainStreetEdge pse = (PlainStreetEdge) e;
+            StreetTraversalPermission permission = pse.getPermission();
+            if (permission == null)
+                return Double.POSITIVE_INFINITY;
+            if (mode == TraverseMode.CAR) {
+                if (!permission.allows(TraverseMode.CAR))
+                    return Double.POSITIVE_INFINITY;
+                return pse.getDistance() / pse.getCarSpeed();
+            }
+            if (!permission.allows(TraverseMode.BICYCLE) && !permission.allows(TraverseMode.WALK))
+                return Double.POSITIVE_INFINITY;
+            double length = Math.min(pse.getDistance(), pse.getSlopeSpeedEffectiveLength());
+            length = Math.min(length, pse.getWorkCost());
+            // greenways count for two thirds of their safety length
+            length = Math.min(length, 0.66 * pse.getBicycleSafetyFactor() * pse.getDistance());
+            return Math.max(0, length);
+        }
+        if (e instanceof PreBoardEdge || e instanceof PreAlightEdge)
+            return Double.POSITIVE_INFINITY;
+        if (e instanceof SimpleTransfer && mode == TraverseMode.BICYCLE)
+            return e.getDistance();
+        return 0;
+    }
+
+    @Override
+    public void checkInputs() {
+        //no inputs
+    }
+
+}
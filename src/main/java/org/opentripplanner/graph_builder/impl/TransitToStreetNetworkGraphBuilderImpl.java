@@ -36,7 +36,7 @@ public class TransitToStreetNetworkGraphBuilderImpl implements GraphBuilder {
     }
 
     public List<String> getPrerequisites() {
-        return Arrays.asList("streets"); // why not "transit" ?
+        return Arrays.asList("streets", "transit");
     }
 
     @Override
@@ -33,7 +33,7 @@ public class TransitToTaggedStopsGraphBuilderImpl implements GraphBuilder {
     }
 
     public List<String> getPrerequisites() {
-        return Arrays.asList("streets"); // why not "transit" ?
+        return Arrays.asList("streets", "transit");
     }
 
     @Override
@@ -19,17 +19,18 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.media.jai.InterpolationBilinear;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.Interpolator2D;
-import org.geotools.geometry.DirectPosition2D;
 import org.opengis.coverage.Coverage;
 import org.opentripplanner.common.geometry.DistanceLibrary;
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
 import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.graph_builder.SpatialTiles;
 import org.opentripplanner.graph_builder.annotation.ElevationFlattened;
 import org.opentripplanner.graph_builder.impl.extra_elevation_data.ElevationPoint;
 import org.opentripplanner.graph_builder.services.GraphBuilder;
@@ -67,6 +68,15 @@ public class ElevationGraphBuilderImpl implements GraphBuilder {
      */
     private double distanceBetweenSamplesM = 10;
 
+    /**
+     * Edges are sampled in parallel in square tiles of this size in degrees, so that each thread reads a compact area
+     * of the raster. Defaults to a little under the extent of a typical 256-pixel GeoTIFF tile of NED data.
+     */
+    private double tileSizeDegrees = 0.02;
+
+    /** The number of decoded raster tiles each sampling thread keeps in memory. */
+    private int maxCachedTilesPerThread = 64;
+
     private DistanceLibrary distanceLibrary = SphericalDistanceLibrary.getInstance();
 
     public ElevationGraphBuilderImpl() { /* This makes me a "bean" */ };
@@ -91,8 +101,16 @@ public class ElevationGraphBuilderImpl implements GraphBuilder {
         distanceBetweenSamplesM = distance;
     }
 
+    public void setTileSizeDegrees(double tileSizeDegrees) {
+        this.tileSizeDegrees = tileSizeDegrees;
+    }
+
+    public void setMaxCachedTilesPerThread(int maxCachedTilesPerThread) {
+        this.maxCachedTilesPerThread = maxCachedTilesPerThread;
+    }
+
     @Override
-    public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
+    public void buildGraph(final Graph graph, HashMap<Class<?>, Object> extra) {
         gridCoverageFactory.setGraph(graph);
         Coverage gridCov = gridCoverageFactory.getGridCoverage();
 
@@ -102,21 +120,17 @@ public class ElevationGraphBuilderImpl implements GraphBuilder {
         coverage = (gridCov instanceof GridCoverage2D) ? Interpolator2D.create(
                 (GridCoverage2D) gridCov, new InterpolationBilinear()) : gridCov;
         log.info("setting street elevation profiles from NED data...");
-        List<EdgeWithElevation> edgesWithElevation = new ArrayList<EdgeWithElevation>();
-        int nProcessed = 0;
-        int nTotal = graph.countEdges();
+        List<EdgeWithElevation> allEdges = new ArrayList<EdgeWithElevation>();
         for (Vertex gv : graph.getVertices()) {
             for (Edge ee : gv.getOutgoing()) {
-                if (ee instanceof EdgeWithElevation) {
-                    EdgeWithElevation edgeWithElevation = (EdgeWithElevation) ee;
-                    processEdge(graph, edgeWithElevation);
-                    if (edgeWithElevation.getElevationProfile() != null && !edgeWithElevation.isElevationFlattened()) {
-                        edgesWithElevation.add(edgeWithElevation);
-                    }
-                    nProcessed += 1;
-                    if (nProcessed % 50000 == 0)
-                        log.info("set elevation on {}/{} edges", nProcessed, nTotal);
-                }
+                if (ee instanceof EdgeWithElevation) allEdges.add((EdgeWithElevation) ee);
+            }
+        }
+        sampleEdges(graph, allEdges);
+        List<EdgeWithElevation> edgesWithElevation = new ArrayList<EdgeWithElevation>();
+        for (EdgeWithElevation edgeWithElevation : allEdges) {
+            if (edgeWithElevation.getElevationProfile() != null && !edgeWithElevation.isElevationFlattened()) {
+                edgesWithElevation.add(edgeWithElevation);
             }
         }
 
@@ -125,6 +139,40 @@ public class ElevationGraphBuilderImpl implements GraphBuilder {
         assignMissingElevations(graph, edgesWithElevation, extraElevation);
     }
 
+    /**
+     * Set the elevation profiles of the given edges, grouping them into spatial tiles that are sampled in parallel.
+     * Each thread samples through its own ElevationSampler, which caches the raster tiles it has recently read.
+     */
+    private void sampleEdges(final Graph graph, List<EdgeWithElevation> edges) {
+        final int nTotal = edges.size();
+        final AtomicInteger nProcessed = new AtomicInteger();
+        final ThreadLocal<ElevationSampler> samplers = new ThreadLocal<ElevationSampler>() {
+            @Override
+            protected ElevationSampler initialValue() {
+                return new ElevationSampler(coverage, maxCachedTilesPerThread);
+            }
+        };
+        SpatialTiles<EdgeWithElevation> tiles = new SpatialTiles<EdgeWithElevation>(edges,
+                new SpatialTiles.Locator<EdgeWithElevation>() {
+                    @Override
+                    public Coordinate getCoordinate(EdgeWithElevation edge) {
+                        return edge.getFromVertex().getCoordinate();
+                    }
+                }, tileSizeDegrees);
+        tiles.forEachTile(new SpatialTiles.TileProcessor<EdgeWithElevation>() {
+            @Override
+            public void process(List<EdgeWithElevation> tile) {
+                ElevationSampler sampler = samplers.get();
+                for (EdgeWithElevation edge : tile) {
+                    processEdge(graph, edge, sampler);
+                    int n = nProcessed.incrementAndGet();
+                    if (n % 50000 == 0)
+                        log.info("set elevation on {}/{} edges", n, nTotal);
+                }
+            }
+        });
+    }
+
     class ElevationRepairState {
         /* This uses an intuitionist approach to elevation inspection */
         public EdgeWithElevation backEdge;
@@ -324,8 +372,9 @@ public class ElevationGraphBuilderImpl implements GraphBuilder {
      * 
      * @param ee the street edge
      * @param graph the graph (used only for error handling)
+     * @param sampler the elevation sampler of the current thread
      */
-    private void processEdge(Graph graph, EdgeWithElevation ee) {
+    private void processEdge(Graph graph, EdgeWithElevation ee, ElevationSampler sampler) {
         if (ee.getElevationProfile() != null) {
             return; /* already set up */
         }
@@ -342,7 +391,7 @@ public class ElevationGraphBuilderImpl implements GraphBuilder {
         }
 
         // initial sample (x = 0)
-        coordList.add(new Coordinate(0, getElevation(coords[0])));
+        coordList.add(new Coordinate(0, sampler.getElevation(coords[0].x, coords[0].y)));
 
         // loop for edge-internal samples
         for (double x = distanceBetweenSamplesM; x < edgeLenM; x += distanceBetweenSamplesM) {
@@ -352,11 +401,12 @@ public class ElevationGraphBuilderImpl implements GraphBuilder {
             }
 
             Coordinate internal = getPointAlongEdge(coords, edgeLenM, x / edgeLenM);
-            coordList.add(new Coordinate(x, getElevation(internal)));
+            coordList.add(new Coordinate(x, sampler.getElevation(internal.x, internal.y)));
         }
 
         // final sample (x = edge length)
-        coordList.add(new Coordinate(edgeLenM, getElevation(coords[coords.length - 1])));
+        Coordinate last = coords[coords.length - 1];
+        coordList.add(new Coordinate(edgeLenM, sampler.getElevation(last.x, last.y)));
 
         // construct the PCS
         Coordinate coordArr[] = new Coordinate[coordList.size()];
@@ -413,33 +463,6 @@ public class ElevationGraphBuilderImpl implements GraphBuilder {
         return new Coordinate(x1 + (pctAlongSeg * (x2 - x1)), y1 + (pctAlongSeg * (y2 - y1)));
     }
 
-    /**
-     * Method for retrieving the elevation at a given Coordinate.
-     * 
-     * @param c the coordinate (NAD83)
-     * @return elevation in meters
-     */
-    private double getElevation(Coordinate c) {
-        return getElevation(c.x, c.y);
-    }
-
-    /**
-     * Method for retrieving the elevation at a given (x, y) pair.
-     * 
-     * @param x the query longitude (NAD83)
-     * @param y the query latitude (NAD83)
-     * @return elevation in meters
-     */
-    private double getElevation(double x, double y) {
-        double values[] = new double[1];
-        try {
-            coverage.evaluate(new DirectPosition2D(x, y), values);
-        } catch (org.opengis.coverage.PointOutsideCoverageException e) {
-            // skip this for now
-        }
-        return values[0];
-    }
-
     @Override
     public void checkInputs() {
         gridCoverageFactory.checkInputs();
@@ -0,0 +1,196 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.ned;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.Envelope2D;
+import org.opengis.coverage.Coverage;
+import org.opengis.coverage.PointOutsideCoverageException;
+import org.opengis.metadata.spatial.PixelOrientation;
+import org.opengis.referencing.operation.MathTransform2D;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples elevations from a coverage with bilinear interpolation, reading the pixels directly from the raster tiles
+ * of the underlying images and keeping the most recently used tiles in a small cache. This avoids the per-point
+ * overhead of the geotools evaluation path, and lets several threads sample the same coverage at once: each thread
+ * uses its own sampler, and raster tiles are only read.
+ *
+ * Points whose neighbouring pixels fall outside an image or hold no data, and coverages that are not grid coverages
+ * in a plain affine grid, are evaluated through the coverage itself, one thread at a time. UnifiedGridCoverages are
+ * sampled region by region, and corrected with the same vertical datums.
+ *
+ * A sampler is not thread-safe.
+ */
+class ElevationSampler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ElevationSampler.class);
+
+    /** Samples below this are treated as missing data, as NED uses a large negative value for no data. */
+    private static final double MIN_VALID_ELEVATION = -1e6;
+
+    private final List<Region> regions = new ArrayList<Region>();
+
+    private final List<VerticalDatum> datums;
+
+    private final int maxCachedTiles;
+
+    ElevationSampler(Coverage coverage, int maxCachedTiles) {
+        this.maxCachedTiles = maxCachedTiles;
+        if (coverage instanceof UnifiedGridCoverage) {
+            UnifiedGridCoverage unified = (UnifiedGridCoverage) coverage;
+            for (Coverage region : unified.getRegions()) regions.add(new Region(region));
+            datums = unified.getDatums();
+        } else {
+            regions.add(new Region(coverage));
+            datums = null;
+        }
+    }
+
+    /**
+     * @return the elevation in meters at the given longitude and latitude, or 0 if the point is outside the
+     *         coverage, as the coverage evaluation path would return.
+     */
+    double getElevation(double x, double y) {
+        for (Region region : regions) {
+            if ( ! region.contains(x, y)) continue;
+            double elevation;
+            try {
+                elevation = region.sample(x, y);
+            } catch (PointOutsideCoverageException e) {
+                continue;
+            }
+            if (datums == null) return elevation;
+            for (VerticalDatum datum : datums) {
+                if (datum.covers(x, y)) {
+                    return elevation + datum.interpolatedHeight(x, y);
+                }
+            }
+            LOG.error("Failed to convert elevation at " + y + ", " + x + " from NAVD88 to NAD83");
+            return elevation;
+        }
+        if (datums != null) LOG.warn("Point not found: {}, {}", x, y);
+        return 0;
+    }
+
+    private static int floorDiv(int a, int b) {
+        int q = a / b;
+        return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+    }
+
+    /** One coverage of a possibly unified coverage, with its image and the transform to its pixel grid. */
+    private class Region {
+
+        private final Coverage regionCoverage;
+
+        private Envelope2D envelope;
+
+        private RenderedImage image;
+
+        private AffineTransform crsToGrid;
+
+        private final Map<Long, Raster> tiles;
+
+        private final Point2D.Double gridPoint = new Point2D.Double();
+
+        private final double[] values = new double[1];
+
+        Region(Coverage regionCoverage) {
+            this.regionCoverage = regionCoverage;
+            this.tiles = new LinkedHashMap<Long, Raster>(maxCachedTiles * 2, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Raster> eldest) {
+                    return size() > maxCachedTiles;
+                }
+            };
+            if (regionCoverage instanceof GridCoverage2D) {
+                GridCoverage2D grid = (GridCoverage2D) regionCoverage;
+                envelope = grid.getEnvelope2D();
+                MathTransform2D gridToCrs = grid.getGridGeometry().getGridToCRS2D(PixelOrientation.CENTER);
+                if (gridToCrs instanceof AffineTransform) {
+                    try {
+                        crsToGrid = ((AffineTransform) gridToCrs).createInverse();
+                        image = grid.getRenderedImage();
+                    } catch (NoninvertibleTransformException e) {
+                        LOG.warn("Grid transform of elevation coverage is not invertible, sampling it slowly.");
+                    }
+                }
+            }
+        }
+
+        boolean contains(double x, double y) {
+            if (envelope != null) return envelope.contains(x, y);
+            // Let the coverage itself decide, as UnifiedGridCoverage does when it cannot test its regions.
+            return true;
+        }
+
+        double sample(double x, double y) {
+            if (image == null) return evaluate(x, y);
+            gridPoint.setLocation(x, y);
+            crsToGrid.transform(gridPoint, gridPoint);
+            int x0 = (int) Math.floor(gridPoint.x);
+            int y0 = (int) Math.floor(gridPoint.y);
+            if (x0 < image.getMinX() || y0 < image.getMinY()
+                    || x0 + 1 >= image.getMinX() + image.getWidth() || y0 + 1 >= image.getMinY() + image.getHeight()) {
+                return evaluate(x, y);
+            }
+            double v00 = pixel(x0, y0), v10 = pixel(x0 + 1, y0);
+            double v01 = pixel(x0, y0 + 1), v11 = pixel(x0 + 1, y0 + 1);
+            if ( ! (v00 > MIN_VALID_ELEVATION && v10 > MIN_VALID_ELEVATION
+                    && v01 > MIN_VALID_ELEVATION && v11 > MIN_VALID_ELEVATION)) {
+                return evaluate(x, y); // no data or NaN nearby
+            }
+            double fx = gridPoint.x - x0, fy = gridPoint.y - y0;
+            double top = v00 + (v10 - v00) * fx;
+            double bottom = v01 + (v11 - v01) * fx;
+            return top + (bottom - top) * fy;
+        }
+
+        private double pixel(int px, int py) {
+            int tx = floorDiv(px - image.getTileGridXOffset(), image.getTileWidth());
+            int ty = floorDiv(py - image.getTileGridYOffset(), image.getTileHeight());
+            long key = ((long) ty << 32) | (tx & 0xFFFFFFFFL);
+            Raster tile = tiles.get(key);
+            if (tile == null) {
+                tile = image.getTile(tx, ty);
+                tiles.put(key, tile);
+            }
+            return tile.getSampleDouble(px, py, 0);
+        }
+
+        /** The slow path, through the coverage's own interpolation. Geotools coverages are not thread-safe. */
+        private double evaluate(double x, double y) {
+            values[0] = 0;
+            synchronized (regionCoverage) {
+                regionCoverage.evaluate(new DirectPosition2D(x, y), values);
+            }
+            return values[0];
+        }
+    }
+
+}
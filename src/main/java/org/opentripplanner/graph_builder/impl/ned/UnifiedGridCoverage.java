@@ -105,4 +105,12 @@ public class UnifiedGridCoverage extends AbstractCoverage {
         regions.add(regionCoverage);
     }
 
+    List<Coverage> getRegions() {
+        return regions;
+    }
+
+    List<VerticalDatum> getDatums() {
+        return datums;
+    }
+
 }
@@ -101,6 +101,12 @@ import org.opentripplanner.visibility.VisibilityPolygon;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.procedure.TLongObjectProcedure;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Multimap;
@@ -276,9 +282,11 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
 
         private static final String levelnodeLabelFormat = nodeLabelFormat + ":level:%s";
 
-        private Map<Long, OSMNode> _nodes = new HashMap<Long, OSMNode>();
+        // Nodes, ways and node sets are keyed on primitive longs: boxed Long keys and map entries
+        // dominate the heap when loading large extracts.
+        private TLongObjectMap<OSMNode> _nodes = new TLongObjectHashMap<OSMNode>();
 
-        private Map<Long, OSMWay> _ways = new HashMap<Long, OSMWay>();
+        private TLongObjectMap<OSMWay> _ways = new TLongObjectHashMap<OSMWay>();
 
         private List<Area> _walkableAreas = new ArrayList<Area>();
         
@@ -296,9 +304,9 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
 
         private Set<OSMWithTags> _processedAreas = new HashSet<OSMWithTags>();
 
-        private Set<Long> _nodesWithNeighbors = new HashSet<Long>();
+        private TLongSet _nodesWithNeighbors = new TLongHashSet();
 
-        private Set<Long> _areaNodes = new HashSet<Long>();
+        private TLongSet _areaNodes = new TLongHashSet();
 
         private Multimap<Long, TurnRestrictionTag> turnRestrictionsByFromWay = ArrayListMultimap.create();
 
@@ -733,7 +741,7 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
         private HashMap<Long, HashMap<OSMLevel, IntersectionVertex>> multiLevelNodes = new HashMap<Long, HashMap<OSMLevel, IntersectionVertex>>();
 
         // track OSM nodes that will become graph vertices because they appear in multiple OSM ways
-        private Map<Long, IntersectionVertex> intersectionNodes = new HashMap<Long, IntersectionVertex>();
+        private TLongObjectMap<IntersectionVertex> intersectionNodes = new TLongObjectHashMap<IntersectionVertex>();
 
         // track vertices to be removed in the turn-graph conversion.
         // this is a superset of intersectionNodes.values, which contains
@@ -764,9 +772,12 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
             }
 
             // Remove all simple islands
-            HashSet<Long> _keep = new HashSet<Long>(_nodesWithNeighbors);
-            _keep.addAll(_areaNodes);
-            _nodes.keySet().retainAll(_keep);
+            _nodes.retainEntries(new TLongObjectProcedure<OSMNode>() {
+                @Override
+                public boolean execute(long nodeId, OSMNode node) {
+                    return _nodesWithNeighbors.contains(nodeId) || _areaNodes.contains(nodeId);
+                }
+            });
 
             // figure out which nodes that are actually intersections
             initIntersectionNodes();
@@ -1543,7 +1554,7 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
             long wayIndex = 0;
 
             WAY:
-            for (OSMWay way : _ways.values()) {
+            for (OSMWay way : _ways.valueCollection()) {
 
                 if (wayIndex % 10000 == 0)
                     LOG.debug("ways=" + wayIndex + "/" + _ways.size());
@@ -1856,8 +1867,8 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
         }
 
         private void initIntersectionNodes() {
-            Set<Long> possibleIntersectionNodes = new HashSet<Long>();
-            for (OSMWay way : _ways.values()) {
+            TLongSet possibleIntersectionNodes = new TLongHashSet();
+            for (OSMWay way : _ways.valueCollection()) {
                 List<Long> nodes = way.getNodeRefs();
                 for (long node : nodes) {
                     if (possibleIntersectionNodes.contains(node)) {
@@ -2098,7 +2109,7 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
             // only 2 steps -- ways+relations, followed by used nodes.
             // Ways can be tag-filtered in phase 1.
 
-            markNodesForKeeping(_ways.values(), _nodesWithNeighbors);
+            markNodesForKeeping(_ways.valueCollection(), _nodesWithNeighbors);
             markNodesForKeeping(_areaWaysById.values(), _areaNodes);
         }
 
@@ -2129,13 +2140,13 @@ public class OpenStreetMapGraphBuilderImpl implements GraphBuilder {
 
         }
 
-        private void markNodesForKeeping(Collection<OSMWay> osmWays, Set<Long> nodeSet) {
+        private void markNodesForKeeping(Collection<OSMWay> osmWays, TLongSet nodeSet) {
             for (Iterator<OSMWay> it = osmWays.iterator(); it.hasNext(); ) {
                 OSMWay way = it.next();
                 // Since the way is kept, update nodes-with-neighbors
                 List<Long> nodes = way.getNodeRefs();
                 if (nodes.size() > 1) {
-                    nodeSet.addAll(nodes);
+                    for (long node : nodes) nodeSet.add(node);
                 }
             }
         }
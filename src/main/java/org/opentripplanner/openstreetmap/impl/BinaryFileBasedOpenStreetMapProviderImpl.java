@@ -18,6 +18,9 @@ import org.opentripplanner.openstreetmap.services.OpenStreetMapProvider;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import crosby.binary.file.BlockInputStream;
 
@@ -25,6 +28,9 @@ import crosby.binary.file.BlockInputStream;
  * Parser for the OpenStreetMap PBF format. Parses files in three passes:
  * First the relations, then the ways, then the nodes are also loaded.
  *
+ * When more than one thread is configured, the blocks of each pass are inflated and decoded in parallel, while the
+ * handler still receives every entity on the calling thread in file order.
+ *
  * @see http://wiki.openstreetmap.org/wiki/PBF_Format
  * @see org.opentripplanner.openstreetmap.services.graph_builder.services.osm.OpenStreetMapContentHandler#biPhase
  * @since 0.4
@@ -33,37 +39,63 @@ public class BinaryFileBasedOpenStreetMapProviderImpl implements OpenStreetMapPr
 
     private File _path;
 
+    private int threads = Runtime.getRuntime().availableProcessors();
+
     public void readOSM(OpenStreetMapContentHandler handler) {
+        ExecutorService executor = null;
         try {
             BinaryOpenStreetMapParser parser = new BinaryOpenStreetMapParser(handler);
+            ParallelBlockReader reader = null;
+            if (threads > 1) {
+                executor = Executors.newFixedThreadPool(threads);
+                reader = new ParallelBlockReader(executor, threads);
+            }
 
-            FileInputStream input = new FileInputStream(_path);
             parser.setParseNodes(false);
             parser.setParseWays(false);
-            (new BlockInputStream(input, parser)).process();
+            readPass(reader, parser, handler);
 
             handler.doneRelations();
 
-            input = new FileInputStream(_path);
             parser.setParseRelations(false);
             parser.setParseWays(true);
-            (new BlockInputStream(input, parser)).process();
+            readPass(reader, parser, handler);
 
             handler.secondPhase();
 
-            input = new FileInputStream(_path);
             parser.setParseNodes(true);
             parser.setParseWays(false);
-            (new BlockInputStream(input, parser)).process();
+            readPass(reader, parser, handler);
             handler.nodesLoaded();
         } catch (Exception ex) {
-            throw new IllegalStateException("error loading OSM from path " + _path, ex);        }
+            throw new IllegalStateException("error loading OSM from path " + _path, ex);
+        } finally {
+            if (executor != null) executor.shutdownNow();
+        }
+    }
+
+    private void readPass(ParallelBlockReader reader, BinaryOpenStreetMapParser parser,
+            OpenStreetMapContentHandler handler) throws IOException {
+        FileInputStream input = new FileInputStream(_path);
+        if (reader == null) {
+            (new BlockInputStream(input, parser)).process();
+        } else {
+            reader.process(input, parser, handler);
+        }
     }
 
     public void setPath(File path) {
         _path = path;
     }
 
+    /**
+     * Set the number of threads used to decode PBF blocks. With a single thread the file is decoded on the
+     * calling thread. Defaults to the number of available processors.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     public String toString() {
         return "BinaryFileBasedOpenStreetMapProviderImpl(" + _path + ")";
     }
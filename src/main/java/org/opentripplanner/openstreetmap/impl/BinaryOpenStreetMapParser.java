@@ -16,9 +16,9 @@ package org.opentripplanner.openstreetmap.impl;
 import org.opentripplanner.openstreetmap.services.OpenStreetMapContentHandler;
 import org.opentripplanner.openstreetmap.model.*;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import crosby.binary.BinaryParser;
 import crosby.binary.Osmformat;
@@ -33,10 +33,23 @@ public class BinaryOpenStreetMapParser extends BinaryParser {
     private boolean _parseWays = true;
     private boolean _parseRelations = true;
     private boolean _parseNodes = true;
-    private Map<String, String> stringTable = new HashMap<String, String>();
+    private final ConcurrentMap<String, String> stringTable;
 
     public BinaryOpenStreetMapParser(OpenStreetMapContentHandler handler) {
         _handler = handler;
+        stringTable = new ConcurrentHashMap<String, String>();
+    }
+
+    /**
+     * Make a parser for a single block that sends its entities to the given handler, with the same settings as the
+     * given parser and sharing its string table, so blocks can be decoded on several threads at once.
+     */
+    public BinaryOpenStreetMapParser(OpenStreetMapContentHandler handler, BinaryOpenStreetMapParser template) {
+        _handler = handler;
+        _parseWays = template._parseWays;
+        _parseRelations = template._parseRelations;
+        _parseNodes = template._parseNodes;
+        stringTable = template.stringTable;
     }
 
     // The strings are already being pulled from a string table in the PBF file,
@@ -44,12 +57,8 @@ public class BinaryOpenStreetMapParser extends BinaryParser {
     // String.intern grinds to a halt on large PBF files (as it did on GTFS import), so 
     // we implement our own. 
     public String internalize(String s) {
-        String fromTable = stringTable.get(s);
-        if (fromTable == null) {
-            stringTable.put(s, s);
-            return s;
-        } 
-        return fromTable;
+        String fromTable = stringTable.putIfAbsent(s, s);
+        return fromTable == null ? s : fromTable;
     }
 
     public void complete() {
@@ -0,0 +1,229 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.openstreetmap.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.opentripplanner.openstreetmap.model.OSMNode;
+import org.opentripplanner.openstreetmap.model.OSMRelation;
+import org.opentripplanner.openstreetmap.model.OSMWay;
+import org.opentripplanner.openstreetmap.services.OpenStreetMapContentHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import crosby.binary.Fileformat;
+import crosby.binary.Osmformat;
+
+/**
+ * Reads a PBF file, inflating and decoding its blocks on the threads of an executor, and hands the decoded entities
+ * to a content handler on the calling thread in file order. The handler therefore sees exactly the same sequence of
+ * calls as it would from a single-threaded BlockInputStream, and does not need to be thread-safe.
+ *
+ * Only the framing of the file is read on the calling thread. The number of blocks decoded ahead of the handler is
+ * bounded, so memory use does not grow with the size of the file.
+ */
+public class ParallelBlockReader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelBlockReader.class);
+
+    /** Limits from the PBF specification, used to detect corrupt files before allocating buffers. */
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+    private final ExecutorService executor;
+
+    private final int maxBlocksInFlight;
+
+    public ParallelBlockReader(ExecutorService executor, int nThreads) {
+        this.executor = executor;
+        this.maxBlocksInFlight = Math.max(2, nThreads * 2);
+    }
+
+    /**
+     * Decode all the blocks of the given stream with copies of the given parser, sending their entities to the
+     * given handler. The stream is closed when this method returns.
+     */
+    public void process(InputStream input, BinaryOpenStreetMapParser parser, OpenStreetMapContentHandler handler)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+        Deque<Future<BufferedBlock>> inFlight = new ArrayDeque<Future<BufferedBlock>>();
+        int nBlocks = 0;
+        try {
+            while (true) {
+                int headerSize;
+                try {
+                    headerSize = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+                    throw new IOException("Invalid PBF block header size " + headerSize);
+                }
+                byte[] headerBytes = new byte[headerSize];
+                in.readFully(headerBytes);
+                Fileformat.BlobHeader header = Fileformat.BlobHeader.parseFrom(headerBytes);
+                int blobSize = header.getDatasize();
+                if (blobSize < 0 || blobSize > MAX_BLOB_SIZE) {
+                    throw new IOException("Invalid PBF blob size " + blobSize);
+                }
+                byte[] blobBytes = new byte[blobSize];
+                in.readFully(blobBytes);
+                if (inFlight.size() >= maxBlocksInFlight) {
+                    replay(inFlight.removeFirst(), handler);
+                }
+                inFlight.addLast(executor.submit(new DecodeTask(header.getType(), blobBytes, parser)));
+                nBlocks++;
+            }
+            while ( ! inFlight.isEmpty()) {
+                replay(inFlight.removeFirst(), handler);
+            }
+        } finally {
+            for (Future<BufferedBlock> future : inFlight) {
+                future.cancel(true);
+            }
+            in.close();
+        }
+        LOG.debug("Decoded {} PBF blocks.", nBlocks);
+    }
+
+    private static void replay(Future<BufferedBlock> future, OpenStreetMapContentHandler handler)
+            throws IOException {
+        BufferedBlock block;
+        try {
+            block = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding PBF blocks", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error decoding PBF block", e.getCause());
+        }
+        block.replay(handler);
+    }
+
+    /** Inflates one blob and decodes it into a buffer. */
+    private static class DecodeTask implements Callable<BufferedBlock> {
+
+        private final String type;
+
+        private final byte[] blobBytes;
+
+        private final BinaryOpenStreetMapParser template;
+
+        DecodeTask(String type, byte[] blobBytes, BinaryOpenStreetMapParser template) {
+            this.type = type;
+            this.blobBytes = blobBytes;
+            this.template = template;
+        }
+
+        @Override
+        public BufferedBlock call() throws IOException, DataFormatException {
+            BufferedBlock buffer = new BufferedBlock();
+            BinaryOpenStreetMapParser parser = new BinaryOpenStreetMapParser(buffer, template);
+            if (type.equals("OSMHeader")) {
+                parser.parse(Osmformat.HeaderBlock.parseFrom(inflate(blobBytes)));
+            } else if (type.equals("OSMData")) {
+                parser.parse(Osmformat.PrimitiveBlock.parseFrom(inflate(blobBytes)));
+            } else {
+                LOG.debug("Skipping PBF block of unknown type {}", type);
+            }
+            return buffer;
+        }
+
+        private static byte[] inflate(byte[] blobBytes) throws IOException, DataFormatException {
+            Fileformat.Blob blob = Fileformat.Blob.parseFrom(blobBytes);
+            if (blob.hasRaw()) {
+                return blob.getRaw().toByteArray();
+            }
+            if ( ! blob.hasZlibData()) {
+                throw new IOException("PBF blob uses an unsupported compression");
+            }
+            byte[] raw = new byte[blob.getRawSize()];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(blob.getZlibData().toByteArray());
+                inflater.inflate(raw);
+                if ( ! inflater.finished()) {
+                    throw new IOException("PBF blob is larger than its declared size");
+                }
+            } finally {
+                inflater.end();
+            }
+            return raw;
+        }
+    }
+
+    /**
+     * Collects the entities of a single block so they can be passed on to the real handler in file order. The
+     * parser only calls the add methods, so the phase notifications are not expected here.
+     */
+    private static class BufferedBlock implements OpenStreetMapContentHandler {
+
+        private final List<OSMNode> nodes = new ArrayList<OSMNode>();
+
+        private final List<OSMWay> ways = new ArrayList<OSMWay>();
+
+        private final List<OSMRelation> relations = new ArrayList<OSMRelation>();
+
+        void replay(OpenStreetMapContentHandler handler) {
+            // A block only holds one kind of entity in each pass, so this preserves the order of the file.
+            for (OSMNode node : nodes) handler.addNode(node);
+            for (OSMWay way : ways) handler.addWay(way);
+            for (OSMRelation relation : relations) handler.addRelation(relation);
+        }
+
+        @Override
+        public void addNode(OSMNode node) {
+            nodes.add(node);
+        }
+
+        @Override
+        public void addWay(OSMWay way) {
+            ways.add(way);
+        }
+
+        @Override
+        public void addRelation(OSMRelation relation) {
+            relations.add(relation);
+        }
+
+        // The reader signals phase changes to the real handler, never to a buffer.
+
+        @Override
+        public void secondPhase() {
+        }
+
+        @Override
+        public void doneRelations() {
+        }
+
+        @Override
+        public void nodesLoaded() {
+        }
+    }
+
+}
@@ -14,4 +14,14 @@ public class FullParser extends Parser {
         osm = new OSM(true);
     }
 
+    public FullParser(OSM.Storage storage) {
+        osm = new OSM(storage);
+    }
+
+    @Override
+    public void complete() {
+        super.complete();
+        osm.seal();
+    }
+
 }
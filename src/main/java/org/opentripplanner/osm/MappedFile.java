@@ -0,0 +1,124 @@
+package org.opentripplanner.osm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An append-only temporary file that is written sequentially through a buffered stream, then memory-mapped read-only
+ * once writing is finished. Files larger than 2GB are mapped in several segments. Fixed-size records never straddle
+ * two segments as long as the segment size is a multiple of the record size; single bytes can be read anywhere.
+ */
+class MappedFile {
+
+    private final File file;
+
+    private final long segmentSize;
+
+    private DataOutputStream out;
+
+    private long position = 0;
+
+    private MappedByteBuffer[] segments;
+
+    MappedFile(String prefix, long segmentSize) {
+        this.segmentSize = segmentSize;
+        try {
+            file = File.createTempFile(prefix, ".dat");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create temporary file for OSM storage.", e);
+        }
+    }
+
+    /** @return the number of bytes written so far, which is the position of the next byte written. */
+    long position() {
+        return position;
+    }
+
+    void writeInt(int i) {
+        try {
+            out.writeInt(i);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        position += 4;
+    }
+
+    void writeLong(long l) {
+        try {
+            out.writeLong(l);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        position += 8;
+    }
+
+    void writeBytes(byte[] bytes) {
+        try {
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        position += bytes.length;
+    }
+
+    /** Write an unsigned variable-length integer, seven bits per byte, low bits first. */
+    void writeVarLong(long l) {
+        try {
+            while ((l & ~0x7FL) != 0) {
+                out.write((int) ((l & 0x7F) | 0x80));
+                l >>>= 7;
+                position++;
+            }
+            out.write((int) l);
+            position++;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Finish writing and map the file for reading. */
+    void map() {
+        if (segments != null) return;
+        try {
+            out.close();
+            out = null;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                int nSegments = (int) ((position + segmentSize - 1) / segmentSize);
+                segments = new MappedByteBuffer[nSegments];
+                for (int s = 0; s < nSegments; s++) {
+                    long start = s * segmentSize;
+                    segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(segmentSize, position - start));
+                }
+            } finally {
+                // The mappings remain valid after the channel is closed.
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not map temporary file for OSM storage.", e);
+        }
+    }
+
+    int getInt(long pos) {
+        return segments[(int) (pos / segmentSize)].getInt((int) (pos % segmentSize));
+    }
+
+    long getLong(long pos) {
+        return segments[(int) (pos / segmentSize)].getLong((int) (pos % segmentSize));
+    }
+
+    byte getByte(long pos) {
+        return segments[(int) (pos / segmentSize)].get((int) (pos % segmentSize));
+    }
+
+}
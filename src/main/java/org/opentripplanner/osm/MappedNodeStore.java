@@ -0,0 +1,38 @@
+package org.opentripplanner.osm;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+/**
+ * Memory-mapped node storage. Each record holds the latitude and longitude of a node in fixed point, in units of
+ * 1e-7 degrees as in the PBF format, so a node takes 12 bytes. Most nodes have no retained tags, so the tags of the
+ * few that do are kept in a map on the heap. Untagged nodes are read back with empty tags.
+ */
+class MappedNodeStore extends MappedStore<Node> {
+
+    private static final double FIXED_POINT = 1e7;
+
+    private final TLongObjectMap<String> tags = new TLongObjectHashMap<String>();
+
+    MappedNodeStore() {
+        super("osm-nodes", 8);
+    }
+
+    @Override
+    protected void writeRecord(long id, Node node) {
+        records.writeInt((int) Math.round(node.lat * FIXED_POINT));
+        records.writeInt((int) Math.round(node.lon * FIXED_POINT));
+        if ( ! node.tagless()) tags.put(id, node.tags);
+    }
+
+    @Override
+    protected Node readRecord(long id, long position) {
+        Node node = new Node();
+        node.lat = (float) (records.getInt(position) / FIXED_POINT);
+        node.lon = (float) (records.getInt(position + 4) / FIXED_POINT);
+        String nodeTags = tags.get(id);
+        node.tags = nodeTags == null ? "" : nodeTags;
+        return node;
+    }
+
+}
@@ -0,0 +1,179 @@
+package org.opentripplanner.osm;
+
+import gnu.trove.list.array.TLongArrayList;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-mostly map from OSM ids to OSM elements, stored as fixed-size records sorted by id in a memory-mapped
+ * temporary file. Elements must be put in ascending id order, which is the order in which they appear in a sorted
+ * PBF file. Sealing the store maps the file, after which it cannot be written and may be read from several threads.
+ * The first read seals the store if that has not been done explicitly.
+ *
+ * Records are grouped into blocks of at most BLOCK_SIZE. The first id of each block is kept on the heap and each
+ * record begins with the offset of its id from that of its block, so a lookup is a binary search over the blocks
+ * followed by a binary search within one block. Elements are materialized as new objects on each read.
+ */
+abstract class MappedStore<T extends Tagged> extends AbstractMap<Long, T> {
+
+    private static final int BLOCK_SIZE = 256;
+
+    /** Records are never split across mapped segments as long as the segment size is a multiple of this. */
+    private static final long RECORDS_PER_SEGMENT = 1L << 26;
+
+    protected final MappedFile records;
+
+    private final int recordSize;
+
+    /* The id of the first record in each block, and the index of that record. */
+    private final TLongArrayList blockFirstIds = new TLongArrayList();
+    private final TLongArrayList blockStarts = new TLongArrayList();
+
+    private long count = 0;
+
+    private long lastId;
+
+    private volatile boolean sealed = false;
+
+    /** @param payloadSize the number of bytes each record holds in addition to its id offset. */
+    MappedStore(String name, int payloadSize) {
+        this.recordSize = payloadSize + 4;
+        this.records = new MappedFile(name, RECORDS_PER_SEGMENT * recordSize);
+    }
+
+    /** Write the fields of the given element following its id offset, in exactly payloadSize bytes. */
+    protected abstract void writeRecord(long id, T element);
+
+    /** Materialize the element whose record fields following the id offset begin at the given position. */
+    protected abstract T readRecord(long id, long position);
+
+    /** Finish writing and map the files of this store. Only called once, before the first read. */
+    protected void map() {
+        records.map();
+    }
+
+    /** Finish writing and map the store for reading. Readers on several threads will only map it once. */
+    synchronized void seal() {
+        if (sealed) return;
+        map();
+        sealed = true;
+    }
+
+    @Override
+    public T put(Long id, T element) {
+        if (sealed) {
+            throw new IllegalStateException("Mapped OSM storage cannot be written after it has been read.");
+        }
+        long base = blockFirstIds.isEmpty() ? 0 : blockFirstIds.get(blockFirstIds.size() - 1);
+        if (count > 0 && id <= lastId) {
+            throw new IllegalArgumentException("Mapped OSM storage requires ascending ids, but " + id
+                    + " follows " + lastId + ".");
+        }
+        if (count == 0 || count - blockStarts.get(blockStarts.size() - 1) >= BLOCK_SIZE
+                || id - base > Integer.MAX_VALUE) {
+            blockFirstIds.add(id);
+            blockStarts.add(count);
+            base = id;
+        }
+        records.writeInt((int) (id - base));
+        writeRecord(id, element);
+        lastId = id;
+        count++;
+        return null;
+    }
+
+    /** @return the index of the record with the given id, or -1 if there is none. */
+    private long find(long id) {
+        if ( ! sealed) seal();
+        int nBlocks = blockFirstIds.size();
+        if (nBlocks == 0 || id < blockFirstIds.get(0) || id > lastId) return -1;
+        // The last block whose first id is not greater than the one we are looking for.
+        int lo = 0, hi = nBlocks - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (blockFirstIds.get(mid) <= id) lo = mid;
+            else hi = mid - 1;
+        }
+        long offset = id - blockFirstIds.get(lo);
+        if (offset > Integer.MAX_VALUE) return -1;
+        long first = blockStarts.get(lo);
+        long last = (lo + 1 < nBlocks ? blockStarts.get(lo + 1) : count) - 1;
+        while (first <= last) {
+            long mid = (first + last) >>> 1;
+            int midOffset = records.getInt(mid * recordSize);
+            if (midOffset < offset) first = mid + 1;
+            else if (midOffset > offset) last = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    @Override
+    public T get(Object key) {
+        if ( ! (key instanceof Long)) return null;
+        long id = (Long) key;
+        long index = find(id);
+        if (index < 0) return null;
+        return readRecord(id, index * recordSize + 4);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Long && find((Long) key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Set<Map.Entry<Long, T>> entrySet() {
+        return new AbstractSet<Map.Entry<Long, T>>() {
+            @Override
+            public Iterator<Map.Entry<Long, T>> iterator() {
+                if ( ! sealed) seal();
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return MappedStore.this.size();
+            }
+        };
+    }
+
+    /** Iterates over the records in id order, reading the file sequentially. */
+    private class EntryIterator implements Iterator<Map.Entry<Long, T>> {
+
+        private long index = 0;
+
+        private int block = -1;
+
+        @Override
+        public boolean hasNext() {
+            return index < count;
+        }
+
+        @Override
+        public Map.Entry<Long, T> next() {
+            if (index >= count) throw new NoSuchElementException();
+            while (block + 1 < blockStarts.size() && blockStarts.get(block + 1) <= index) block++;
+            long position = index * recordSize;
+            long id = blockFirstIds.get(block) + records.getInt(position);
+            index++;
+            return new AbstractMap.SimpleImmutableEntry<Long, T>(id, readRecord(id, position + 4));
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.opentripplanner.osm;
+
+import java.nio.charset.Charset;
+
+/**
+ * Memory-mapped way storage. Each record holds the position of the way's data in a second mapped file, where the
+ * way's tags are stored as UTF-8 followed by its node references. The references are delta-coded from one node to
+ * the next and written as zigzag variable-length integers, so consecutive node ids usually take one or two bytes.
+ */
+class MappedWayStore extends MappedStore<Way> {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MappedFile data = new MappedFile("osm-way-data", 1L << 30);
+
+    MappedWayStore() {
+        super("osm-ways", 8);
+    }
+
+    @Override
+    protected void map() {
+        super.map();
+        data.map();
+    }
+
+    @Override
+    protected void writeRecord(long id, Way way) {
+        records.writeLong(data.position());
+        byte[] tagBytes = way.tags == null ? new byte[0] : way.tags.getBytes(UTF8);
+        data.writeVarLong(tagBytes.length);
+        data.writeBytes(tagBytes);
+        long[] nodes = way.nodes == null ? new long[0] : way.nodes;
+        data.writeVarLong(nodes.length);
+        long prev = 0;
+        for (long node : nodes) {
+            long delta = node - prev;
+            data.writeVarLong((delta << 1) ^ (delta >> 63));
+            prev = node;
+        }
+    }
+
+    @Override
+    protected Way readRecord(long id, long position) {
+        long pos = records.getLong(position);
+        Way way = new Way();
+        long[] cursor = new long[] { pos };
+        byte[] tagBytes = new byte[(int) readVarLong(cursor)];
+        for (int i = 0; i < tagBytes.length; i++) tagBytes[i] = data.getByte(cursor[0]++);
+        way.tags = new String(tagBytes, UTF8);
+        long[] nodes = new long[(int) readVarLong(cursor)];
+        long prev = 0;
+        for (int n = 0; n < nodes.length; n++) {
+            long zigzag = readVarLong(cursor);
+            prev += (zigzag >>> 1) ^ -(zigzag & 1);
+            nodes[n] = prev;
+        }
+        way.nodes = nodes;
+        return way;
+    }
+
+    /** Read a variable-length integer from the data file, advancing the position held in the cursor. */
+    private long readVarLong(long[] cursor) {
+        long result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data.getByte(cursor[0]++);
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+
+}
@@ -27,11 +27,33 @@ public class OSM {
     
     /** The MapDB backing this OSM, if any. */
     DB db = null; // db.close(); ?
-            
+
+    /** Where the nodes, ways and relations of an OSM are stored. */
+    public static enum Storage {
+        /** In-memory hash maps. */
+        MEMORY,
+        /** MapDB tree maps in a temporary file. */
+        MAPDB,
+        /**
+         * Sorted memory-mapped arrays in temporary files, for nodes and ways loaded in ascending id order from a
+         * single PBF file. Relations are few and are kept in memory.
+         */
+        MAPPED;
+    }
+
     public OSM(boolean diskBacked) {
+        this(diskBacked ? Storage.MAPDB : Storage.MEMORY);
+    }
+
+    public OSM(Storage storage) {
         // Using DB TreeMaps is observed not to be slower than memory.
         // It lets you run in 400MB instead of a few GB.
-        if (diskBacked) {
+        if (storage == Storage.MAPPED) {
+            LOG.info("OSM backed by memory-mapped temporary files.");
+            nodes = new MappedNodeStore();
+            ways = new MappedWayStore();
+            relations = Maps.newHashMap();
+        } else if (storage == Storage.MAPDB) {
             LOG.info("OSM backed by temporary file.");
             DB db = DBMaker.newTempFileDB()
                     .transactionDisable()
@@ -51,8 +73,12 @@ public class OSM {
     
     // boolean filterTags
     public static OSM fromPBF(String pbfFile) {
+        return fromPBF(pbfFile, Storage.MAPDB);
+    }
+
+    public static OSM fromPBF(String pbfFile, Storage storage) {
         LOG.info("Reading entire PBF file '{}'", pbfFile);
-        FullParser fp = new FullParser();
+        FullParser fp = new FullParser(storage);
         fp.parse(pbfFile);
         return fp.osm;
     }
@@ -73,6 +99,12 @@ public class OSM {
         return osm;
     }
     
+    /** Finish writing memory-mapped storage, before it is read from several threads. */
+    void seal() {
+        if (nodes instanceof MappedStore) ((MappedStore<?>) nodes).seal();
+        if (ways instanceof MappedStore) ((MappedStore<?>) ways).seal();
+    }
+
     /**
      * Find nodes referenced by more than one way. NodeTracker intersections will be null until this
      * is called. MapDB TreeSets are much faster than MapDB HashSets, but in-memory NodeTrackers are
@@ -22,5 +22,6 @@ public class ProfileRequest {
     public int limit;
     public TraverseModeSet modes;
     public boolean analyst = false; // if true, propagate travel times out to street network
+    public boolean roundBased = false; // if true, explore transit in rounds over dense arrays rather than with a queue
 
 }
@@ -33,7 +33,7 @@ public class ProfileRouter {
     public static final int SLACK = 60; // in seconds, time required to catch a transit vehicle
     private static final int TIMEOUT = 10; // in seconds, maximum computation time
     public static final int MAX_DURATION = 90 * 60; // in seconds, the longest we want to travel
-    private static final int MAX_RIDES = 3; // maximum number of boardings in a trip
+    static final int MAX_RIDES = 3; // maximum number of boardings in a trip
     private static final int MIN_DRIVE_TIME = 10 * 60; // in seconds
     private static final List<TraverseMode> ACCESS_MODES =
             Lists.newArrayList(TraverseMode.WALK, TraverseMode.BICYCLE, TraverseMode.CAR);
@@ -117,7 +117,68 @@ public class ProfileRouter {
         LOG.info("From patterns/stops: {}", fromStops);
         LOG.info("To patterns/stops: {}", toStops);
 
-        /* Enqueue an unfinished PatternRide for each pattern near the origin, grouped by Stop into unfinished Rides. */
+        findRides(abortTime);
+        LOG.info("Profile routing request finished in {} sec.", (System.currentTimeMillis() - searchBeginTime) / 1000.0);
+        if (request.analyst) {
+            makeSurfaces();
+            return null;
+        }
+        /* Non-analyst: Determine which rides are good ways to reach the destination. */
+        Set<Ride> targetRides = Sets.newHashSet(); // FIXME determine why there are multiple copies of the same ride then maybe use a list
+        for (StopCluster cluster : toStopPaths.keySet()) {
+            for (Ride ride : retainedRides.get(cluster)) {
+                PATTERN: for (PatternRide pr : ride.patternRides) {
+                    StopAtDistance clusterForPattern = toStops.get(pr.pattern);
+                    if (clusterForPattern != null && clusterForPattern.stop == cluster) {
+                        targetRides.add(ride);
+                        break PATTERN;
+                    }
+                }
+            }
+        }
+        LOG.info("{} nondominated rides stop near the destination.", targetRides.size());
+        /* Non-analyst: Build the list of Options by following the back-pointers in Rides. */
+        List<Option> options = Lists.newArrayList();
+        for (Ride ride : targetRides) {
+            /* We alight from all patterns in a ride at the same stop. */
+            int dist = toStops.get(ride.patternRides.get(0).pattern).etime; // TODO time vs dist
+            Collection<StopAtDistance> accessPaths = fromStopPaths.get(ride.getAccessStopCluster());
+            Collection<StopAtDistance> egressPaths = toStopPaths.get(ride.getEgressStopCluster());
+            Option option = new Option(ride, accessPaths, egressPaths);
+            if ( ! option.hasEmptyRides()) options.add(option);
+        }
+        /* Include the direct (no-transit) biking, driving, and walking options. */
+        options.add(new Option(null, directPaths, null));
+/*
+        for (Stop stop : graph.index.stopVertexForStop.keySet()) {
+            TransitStop tstop = graph.index.stopVertexForStop.get(stop);
+            int min = mins[tstop.getIndex()];
+            int max = maxs[tstop.getIndex()];
+            if (min == Integer.MAX_VALUE)
+                LOG.info("{} unreachable", tstop.getName());
+            else
+                LOG.info("{} min {} max {}", tstop.getName(), min, max);
+        }
+*/
+        return new ProfileResponse(options, request.orderBy, request.limit);
+    }
+
+    /**
+     * Explore transit rides outward from the patterns near the origin, retaining the nondominated ones in
+     * retainedRides and, in analyst mode, recording travel time bounds at each stop reached.
+     * The window and fromStops must already be set.
+     */
+    void findRides(long abortTime) {
+        Collection<Ride> initialRides = makeInitialRides();
+        if (request.roundBased) {
+            new RoundBasedProfileSearch(this, graph.index.getProfileTransitIndex()).run(initialRides);
+        } else {
+            exploreQueue(initialRides, abortTime);
+        }
+    }
+
+    /** Make an unfinished Ride for each stop cluster near the origin, containing an unfinished PatternRide for each nearby pattern. */
+    private Collection<Ride> makeInitialRides() {
         Map<StopCluster, Ride> initialRides = Maps.newHashMap(); // One ride per stop cluster
         for (Entry<TripPattern, StopAtDistance> entry : fromStops.entrySet()) {
             TripPattern pattern = entry.getKey();
@@ -138,7 +199,12 @@ public class ProfileRouter {
                 }
             }
         }
-        for (Ride ride : initialRides.values()) {
+        return initialRides.values();
+    }
+
+    /** Explore rides in order of increasing minimum travel time using a priority queue. */
+    private void exploreQueue(Collection<Ride> initialRides, long abortTime) {
+        for (Ride ride : initialRides) {
             queue.insert(ride, 0);
         }
         /* Explore incomplete rides as long as there are any in the queue. */
@@ -189,17 +255,7 @@ public class ProfileRouter {
                 }
                 if ( ! addIfNondominated(r1)) continue; // abandon this ride if it is dominated by some existing ride at the same location
                 // We have a new, nondominated, completed ride. Record its lower and upper bounds at the arrival stop.
-                if (request.analyst) {
-                    // This could be done at the end now that we are retaining all rides.
-                    TransitStop tstop = graph.index.stopVertexForStop.get(r1.to);
-                    int tsidx = tstop.getIndex();
-                    int lb = r1.durationLowerBound();
-                    int ub = r1.durationUpperBound();
-                    if (mins[tsidx] == TimeSurface.UNREACHABLE || mins[tsidx] > lb)
-                        mins[tsidx] = lb;
-                    if (maxs[tsidx] == TimeSurface.UNREACHABLE || maxs[tsidx] > ub) // Yes, we want the _minimum_ upper bound.
-                        maxs[tsidx] = ub;
-                }
+                if (request.analyst) recordBounds(r1);
                 /* Find transfers out of this new ride. */
                 // Do not transfer too many times. Check after calculating stats since stats are needed in any case.
                 int nRides = r1.pathLength();
@@ -247,49 +303,25 @@ public class ProfileRouter {
             }
             if (System.currentTimeMillis() > abortTime) throw new RuntimeException("TIMEOUT");
         }
-        LOG.info("Profile routing request finished in {} sec.", (System.currentTimeMillis() - searchBeginTime) / 1000.0);
-        if (request.analyst) {
-            makeSurfaces();
-            return null;
-        }
-        /* Non-analyst: Determine which rides are good ways to reach the destination. */
-        Set<Ride> targetRides = Sets.newHashSet(); // FIXME determine why there are multiple copies of the same ride then maybe use a list
-        for (StopCluster cluster : toStopPaths.keySet()) {
-            for (Ride ride : retainedRides.get(cluster)) {
-                PATTERN: for (PatternRide pr : ride.patternRides) {
-                    StopAtDistance clusterForPattern = toStops.get(pr.pattern);
-                    if (clusterForPattern != null && clusterForPattern.stop == cluster) {
-                        targetRides.add(ride);
-                        break PATTERN;
-                    }
-                }
-            }
-        }
-        LOG.info("{} nondominated rides stop near the destination.", targetRides.size());
-        /* Non-analyst: Build the list of Options by following the back-pointers in Rides. */
-        List<Option> options = Lists.newArrayList();
-        for (Ride ride : targetRides) {
-            /* We alight from all patterns in a ride at the same stop. */
-            int dist = toStops.get(ride.patternRides.get(0).pattern).etime; // TODO time vs dist
-            Collection<StopAtDistance> accessPaths = fromStopPaths.get(ride.getAccessStopCluster());
-            Collection<StopAtDistance> egressPaths = toStopPaths.get(ride.getEgressStopCluster());
-            Option option = new Option(ride, accessPaths, egressPaths);
-            if ( ! option.hasEmptyRides()) options.add(option);
-        }
-        /* Include the direct (no-transit) biking, driving, and walking options. */
-        options.add(new Option(null, directPaths, null));
-/*
-        for (Stop stop : graph.index.stopVertexForStop.keySet()) {
+    }
+
+    /**
+     * Record the lower and upper bounds on travel time of a completed ride at the stops of its arrival cluster,
+     * for analyst mode.
+     */
+    void recordBounds(Ride ride) {
+        // This could be done at the end now that we are retaining all rides.
+        int lb = ride.durationLowerBound();
+        int ub = ride.durationUpperBound();
+        for (Stop stop : ride.to.children) {
             TransitStop tstop = graph.index.stopVertexForStop.get(stop);
-            int min = mins[tstop.getIndex()];
-            int max = maxs[tstop.getIndex()];
-            if (min == Integer.MAX_VALUE)
-                LOG.info("{} unreachable", tstop.getName());
-            else
-                LOG.info("{} min {} max {}", tstop.getName(), min, max);
+            if (tstop == null) continue;
+            int tsidx = tstop.getIndex();
+            if (mins[tsidx] == TimeSurface.UNREACHABLE || mins[tsidx] > lb)
+                mins[tsidx] = lb;
+            if (maxs[tsidx] == TimeSurface.UNREACHABLE || maxs[tsidx] > ub) // Yes, we want the _minimum_ upper bound.
+                maxs[tsidx] = ub;
         }
-*/
-        return new ProfileResponse(options, request.orderBy, request.limit);
     }
 
     /** Check whether a new ride has too long a duration relative to existing rides at the same location or global time limit. */
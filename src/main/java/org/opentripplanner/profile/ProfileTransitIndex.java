@@ -0,0 +1,120 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.profile;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.onebusaway.gtfs.model.Stop;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.graph.GraphIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dense integer numbering of the stop clusters, patterns and profile transfers in a GraphIndex, used by the
+ * round-based profile search. Stop clusters and patterns are numbered in order of their IDs so that the numbering
+ * does not depend on hash order. This is built once per graph, after the profile transfers have been initialized.
+ */
+public class ProfileTransitIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProfileTransitIndex.class);
+
+    public final StopCluster[] clusters;
+    public final TripPattern[] patterns;
+
+    /** For each pattern, the index of the stop cluster at each position in the pattern. */
+    public final int[][] patternClusters;
+
+    /* For each stop cluster, parallel arrays describing the profile transfers leaving it. */
+    public final int[][] transferFromPattern;
+    public final int[][] transferToPattern;
+    public final int[][] transferToCluster;
+    public final int[][] transferDistance;
+
+    private final Map<StopCluster, Integer> indexForCluster = Maps.newHashMap();
+    private final Map<TripPattern, Integer> indexForPattern = Maps.newHashMap();
+
+    public ProfileTransitIndex (GraphIndex index) {
+        if (index.transfersFromStopCluster == null) {
+            throw new IllegalStateException("Profile transfers must be initialized before the profile transit index.");
+        }
+        clusters = index.stopClusterForId.values().toArray(new StopCluster[0]);
+        Arrays.sort(clusters, new Comparator<StopCluster>() {
+            @Override public int compare(StopCluster c1, StopCluster c2) {
+                return c1.id.compareTo(c2.id);
+            }
+        });
+        for (int c = 0; c < clusters.length; c++) indexForCluster.put(clusters[c], c);
+
+        patterns = index.patternForId.values().toArray(new TripPattern[0]);
+        Arrays.sort(patterns, new Comparator<TripPattern>() {
+            @Override public int compare(TripPattern p1, TripPattern p2) {
+                return p1.code.compareTo(p2.code);
+            }
+        });
+        patternClusters = new int[patterns.length][];
+        for (int p = 0; p < patterns.length; p++) {
+            indexForPattern.put(patterns[p], p);
+            List<Stop> stops = patterns[p].getStops();
+            int[] pc = new int[stops.size()];
+            for (int s = 0; s < pc.length; s++) {
+                pc[s] = clusterIndex(index.stopClusterForStop.get(stops.get(s)));
+            }
+            patternClusters[p] = pc;
+        }
+
+        int nClusters = clusters.length;
+        transferFromPattern = new int[nClusters][];
+        transferToPattern = new int[nClusters][];
+        transferToCluster = new int[nClusters][];
+        transferDistance = new int[nClusters][];
+        int nTransfers = 0;
+        for (int c = 0; c < nClusters; c++) {
+            List<ProfileTransfer> transfers = Lists.newArrayList(index.transfersFromStopCluster.get(clusters[c]));
+            int n = transfers.size();
+            transferFromPattern[c] = new int[n];
+            transferToPattern[c] = new int[n];
+            transferToCluster[c] = new int[n];
+            transferDistance[c] = new int[n];
+            for (int t = 0; t < n; t++) {
+                ProfileTransfer tr = transfers.get(t);
+                transferFromPattern[c][t] = patternIndex(tr.tp1);
+                transferToPattern[c][t] = patternIndex(tr.tp2);
+                transferToCluster[c][t] = clusterIndex(tr.sc2);
+                transferDistance[c][t] = tr.distance;
+            }
+            nTransfers += n;
+        }
+        LOG.info("Indexed {} stop clusters, {} patterns and {} transfers for profile routing.",
+                nClusters, patterns.length, nTransfers);
+    }
+
+    /** @return the dense index of the given stop cluster, or -1 if it is not part of this index. */
+    public int clusterIndex (StopCluster cluster) {
+        Integer c = indexForCluster.get(cluster);
+        return c == null ? -1 : c;
+    }
+
+    /** @return the dense index of the given pattern, or -1 if it is not part of this index. */
+    public int patternIndex (TripPattern pattern) {
+        Integer p = indexForPattern.get(pattern);
+        return p == null ? -1 : p;
+    }
+
+}
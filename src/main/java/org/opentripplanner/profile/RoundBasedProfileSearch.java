@@ -0,0 +1,236 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.profile;
+
+import com.google.common.collect.Lists;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.trippattern.TripTimes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Explores the same Rides as the queue in ProfileRouter, but one round (number of boardings) at a time, working on
+ * the dense stop cluster and pattern numbering of a ProfileTransitIndex. Each round completes all the unfinished
+ * rides produced by the previous one, so the search ends after at most MAX_RIDES rounds and needs no timeout.
+ *
+ * Within a round, rides are explored in order of increasing minimum travel time to their boarding stop, which is
+ * the order the queue would have used. Rides are kept or pruned by the router's own dominance check, and their
+ * stats are computed the same way, so the two searches produce the same kind of Options and time bounds.
+ */
+class RoundBasedProfileSearch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RoundBasedProfileSearch.class);
+
+    private final ProfileRouter router;
+    private final ProfileRequest request;
+    private final ProfileTransitIndex index;
+    private final TimeWindow window;
+
+    /**
+     * For each pattern, the departure and arrival times at each stop of the scheduled trips running on the request
+     * date, one row of 2 * nStops ints per trip. Filled in lazily as patterns are reached.
+     */
+    private final int[][] schedules;
+
+    /* Completed rides leaving the current unfinished ride, and unfinished rides transferring from them. */
+    private final RidesByCluster rides;
+    private final RidesByCluster xferRides;
+
+    RoundBasedProfileSearch(ProfileRouter router, ProfileTransitIndex index) {
+        this.router = router;
+        this.request = router.request;
+        this.index = index;
+        this.window = router.window;
+        this.schedules = new int[index.patterns.length][];
+        this.rides = new RidesByCluster(index.clusters.length);
+        this.xferRides = new RidesByCluster(index.clusters.length);
+    }
+
+    /** Explore rides outward from the given initial unfinished rides, until no new rides are found. */
+    void run(Collection<Ride> initialRides) {
+        long t0 = System.currentTimeMillis();
+        List<Ride> round = Lists.newArrayList(initialRides);
+        int nRounds = 0;
+        while ( ! round.isEmpty()) {
+            List<Ride> nextRound = Lists.newArrayList();
+            for (Ride ride : round) {
+                exploreRide(ride, nextRound);
+            }
+            nRounds += 1;
+            LOG.debug("Round {} explored {} rides.", nRounds, round.size());
+            sortByPreviousLowerBound(nextRound);
+            round = nextRound;
+        }
+        LOG.info("Round-based profile search finished in {} rounds, {} msec.", nRounds,
+                System.currentTimeMillis() - t0);
+    }
+
+    /**
+     * Complete all the PatternRides in an unfinished ride, then enqueue unfinished rides for the next round by
+     * transferring from the completed ones.
+     */
+    private void exploreRide(Ride ride, List<Ride> nextRound) {
+        rides.clear();
+        PR: for (PatternRide pr : ride.patternRides) {
+            int p = index.patternIndex(pr.pattern);
+            int[] stopClusters = index.patternClusters[p];
+            for (int s = pr.fromIndex + 1; s < stopClusters.length; ++s) {
+                Stats stats = stats(p, pr.fromIndex, s);
+                // No trips within the time window, nor at any later stop.
+                if (stats == null) continue PR;
+                int c = stopClusters[s];
+                if (c < 0) continue; // stop is not in any cluster
+                Ride ride2 = rides.get(c);
+                if (ride2 == null) {
+                    ride2 = ride.extendTo(index.clusters[c]);
+                    rides.put(c, ride2);
+                }
+                ride2.patternRides.add(new PatternRide(pr, s, stats));
+            }
+        }
+        xferRides.clear();
+        for (int r = 0; r < rides.size; ++r) {
+            int c1 = rides.touched[r];
+            Ride r1 = rides.get(c1);
+            r1.calcStats(window, request.walkSpeed);
+            if (r1.waitStats == null) continue;
+            if ( ! router.addIfNondominated(r1)) continue;
+            if (request.analyst) router.recordBounds(r1);
+            int nRides = r1.pathLength();
+            if (nRides >= ProfileRouter.MAX_RIDES) continue;
+            boolean penultimateRide = (nRides == ProfileRouter.MAX_RIDES - 1);
+            int[] fromPatterns = index.transferFromPattern[c1];
+            int[] toPatterns = index.transferToPattern[c1];
+            int[] toClusters = index.transferToCluster[c1];
+            int[] distances = index.transferDistance[c1];
+            for (int t = 0; t < fromPatterns.length; ++t) {
+                TripPattern tp2 = index.patterns[toPatterns[t]];
+                if ( ! request.modes.contains(tp2.mode)) continue;
+                if ( ! r1.containsPattern(index.patterns[fromPatterns[t]])) continue;
+                // Prune loopy or repetitive paths.
+                if (r1.pathContainsRoute(tp2.route)) continue;
+                int c2 = toClusters[t];
+                StopCluster sc2 = index.clusters[c2];
+                if (c2 != c1 && r1.pathContainsStop(sc2)) continue;
+                // On the last ride of point-to-point searches, only transfer to patterns that pass near the destination.
+                if ( ! request.analyst && penultimateRide && ! router.toStops.containsKey(tp2)) continue;
+                // The target stop cluster might appear more than once in the pattern.
+                int[] stopClusters2 = index.patternClusters[toPatterns[t]];
+                TARGET_STOP: for (int i = 0; i < stopClusters2.length; ++i) {
+                    if (stopClusters2[i] != c2) continue;
+                    Ride r2 = xferRides.get(c2);
+                    if (r2 == null) {
+                        r2 = new Ride(sc2, r1);
+                        r2.accessDist = distances[t];
+                        r2.accessTime = (int) (distances[t] / request.walkSpeed);
+                        xferRides.put(c2, r2);
+                    }
+                    for (PatternRide pr : r2.patternRides) {
+                        if (pr.pattern == tp2 && pr.fromIndex == i) continue TARGET_STOP;
+                    }
+                    r2.patternRides.add(new PatternRide(tp2, i));
+                }
+            }
+        }
+        for (int r = 0; r < xferRides.size; ++r) {
+            Ride r2 = xferRides.get(xferRides.touched[r]);
+            if (router.addIfNondominated(r2)) nextRound.add(r2);
+        }
+    }
+
+    /** Equivalent to Stats.create(pattern, stop0, stop1, window), but reading the dense schedule of the pattern. */
+    private Stats stats(int p, int stop0, int stop1) {
+        Stats s = new Stats();
+        s.min = Integer.MAX_VALUE;
+        s.num = 0;
+        int[] times = schedule(p);
+        int rowLength = index.patternClusters[p].length * 2;
+        int dep0 = stop0 * 2;
+        int arr1 = stop1 * 2 + 1;
+        for (int row = 0; row < times.length; row += rowLength) {
+            int depart = times[row + dep0];
+            int arrive = times[row + arr1];
+            if (window.includes(depart) && window.includes(arrive)) {
+                int t = arrive - depart;
+                if (t < s.min) s.min = t;
+                if (t > s.max) s.max = t;
+                s.avg += t;
+                ++s.num;
+            }
+        }
+        return Stats.addFrequencies(s, index.patterns[p], stop0, stop1, window);
+    }
+
+    private int[] schedule(int p) {
+        int[] times = schedules[p];
+        if (times == null) {
+            int nStops = index.patternClusters[p].length;
+            List<TripTimes> tripTimes = index.patterns[p].scheduledTimetable.tripTimes;
+            times = new int[tripTimes.size() * nStops * 2];
+            int n = 0;
+            for (TripTimes tt : tripTimes) {
+                if ( ! window.servicesRunning.get(tt.serviceCode)) continue;
+                for (int s = 0; s < nStops; ++s) {
+                    times[n++] = tt.getDepartureTime(s);
+                    times[n++] = tt.getArrivalTime(s);
+                }
+            }
+            if (n < times.length) times = Arrays.copyOf(times, n);
+            schedules[p] = times;
+        }
+        return times;
+    }
+
+    /** Sort unfinished rides by the minimum travel time of the ride they transfer from, as the queue would. */
+    private static void sortByPreviousLowerBound(List<Ride> unfinishedRides) {
+        Collections.sort(unfinishedRides, new Comparator<Ride>() {
+            @Override public int compare(Ride r1, Ride r2) {
+                return Integer.compare(r1.previous.durationLowerBound(), r2.previous.durationLowerBound());
+            }
+        });
+    }
+
+    /** A map from dense stop cluster indexes to rides that can be cleared in time proportional to its size. */
+    private static class RidesByCluster {
+        final Ride[] rides;
+        final int[] touched;
+        int size;
+
+        RidesByCluster(int nClusters) {
+            rides = new Ride[nClusters];
+            touched = new int[nClusters];
+        }
+
+        Ride get(int c) {
+            return rides[c];
+        }
+
+        void put(int c, Ride ride) {
+            if (rides[c] == null) touched[size++] = c;
+            rides[c] = ride;
+        }
+
+        void clear() {
+            for (int i = 0; i < size; ++i) rides[touched[i]] = null;
+            size = 0;
+        }
+    }
+
+}
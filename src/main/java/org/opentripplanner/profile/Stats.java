@@ -123,7 +123,15 @@ class Stats implements Cloneable {
                 ++s.num;
             }
         }
-        /* Do the same thing for any frequency-based trips. */
+        return addFrequencies(s, pattern, stop0, stop1, window);
+    }
+
+    /**
+     * Accumulate the frequency-based trips on this pattern into stats which already contain its
+     * running scheduled trips, as in create(TripPattern, int, int, TimeWindow).
+     * @return the finished stats, or null if no trips at all are running within the time range.
+     */
+    static Stats addFrequencies (Stats s, TripPattern pattern, int stop0, int stop1, TimeWindow window) {
         for (FrequencyEntry freq : pattern.scheduledTimetable.frequencyEntries) {
             TripTimes tt = freq.tripTimes;
             int overlap = window.overlap(freq.startTime, freq.endTime, tt.serviceCode);
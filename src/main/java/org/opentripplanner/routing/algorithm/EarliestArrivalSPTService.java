@@ -24,6 +24,8 @@ import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.services.SPTService;
 import org.opentripplanner.routing.spt.EarliestArrivalShortestPathTree;
 import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.spt.VertexIndexedShortestPathTree;
+import org.opentripplanner.routing.spt.VertexIndexedShortestPathTree.Criterion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,6 +41,12 @@ public class EarliestArrivalSPTService implements SPTService {
 
     public int maxDuration = 60 * 60 * 2;
 
+    /**
+     * Store the tree in arrays indexed by vertex index rather than a vertex-keyed map. Callers
+     * should release() the resulting tree when they are done with it.
+     */
+    public boolean vertexIndexed = false;
+
     @Override
     public ShortestPathTree getShortestPathTree(RoutingRequest req) {
         return getShortestPathTree(req, -1, null); // negative timeout means no timeout
@@ -68,7 +76,9 @@ public class EarliestArrivalSPTService implements SPTService {
             
         // SPT cache does not look at routing request in SPT to perform lookup, 
         // so it's OK to construct with the local cloned one
-        ShortestPathTree spt = new EarliestArrivalShortestPathTree(options); 
+        ShortestPathTree spt = vertexIndexed ?
+                new VertexIndexedShortestPathTree(options, Criterion.ARRIVAL_TIME) :
+                new EarliestArrivalShortestPathTree(options);
         State initialState = new State(options);
         spt.add(initialState);
 
@@ -80,7 +90,8 @@ public class EarliestArrivalSPTService implements SPTService {
             Vertex u_vertex = u.getVertex();
             if (!spt.visit(u))
                 continue;
-            Collection<Edge> edges = options.arriveBy ? u_vertex.getIncoming() : u_vertex.getOutgoing();
+            Collection<Edge> edges = options.arriveBy ?
+                    options.rctx.getIncomingEdges(u_vertex) : options.rctx.getOutgoingEdges(u_vertex);
             for (Edge edge : edges) {
                 for (State v = edge.traverse(u); v != null; v = v.getNextResult()) {
                     if (isWorstTimeExceeded(v, options)) {
@@ -17,17 +17,22 @@ import java.util.Collection;
 import java.util.List;
 
 import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.common.pqueue.IndexedDaryHeap;
 import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.SearchTerminationStrategy;
 import org.opentripplanner.routing.algorithm.strategies.TrivialRemainingWeightHeuristic;
 import org.opentripplanner.routing.core.RoutingContext;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.graph.AdjacencyIndex;
 import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.services.SPTService;
 import org.opentripplanner.routing.spt.MultiShortestPathTree;
 import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.spt.VertexIndexedShortestPathTree;
+import org.opentripplanner.routing.spt.VertexIndexedShortestPathTree.Criterion;
 import org.opentripplanner.util.DateUtils;
 import org.opentripplanner.util.monitoring.MonitoringStore;
 import org.opentripplanner.util.monitoring.MonitoringStoreFactory;
@@ -38,44 +43,95 @@ import com.beust.jcommander.internal.Lists;
 
 /**
  * Find the shortest path between graph vertices using A*.
+ *
+ * A GenericAStar may be shared between threads. The state of a search in progress lives in a RunState, which holds
+ * the priority queues and other scratch structures. Each thread keeps one RunState and reuses it from one search to
+ * the next, so that a search only allocates the states it creates and the shortest path tree it returns.
  */
 public class GenericAStar implements SPTService { // maybe this should be wrapped in a component SPT service 
 
     private static final Logger LOG = LoggerFactory.getLogger(GenericAStar.class);
     private static final MonitoringStore store = MonitoringStoreFactory.getStore();
     private static final double OVERSEARCH_MULTIPLIER = 4.0;
+    private static final RemainingWeightHeuristic TRIVIAL_HEURISTIC = new TrivialRemainingWeightHeuristic();
+
+    /**
+     * The RunState reused by searches on each thread. A search started on a thread whose RunState is already in use
+     * (e.g. from a TraverseVisitor) gets a fresh one instead.
+     */
+    private static final ThreadLocal<RunState> threadRunState = new ThreadLocal<RunState>() {
+        @Override
+        protected RunState initialValue() {
+            return new RunState();
+        }
+    };
 
     private boolean verbose = false;
 
     private TraverseVisitor traverseVisitor;
 
+    /**
+     * When true, searches that keep a single state per vertex (see {@link #isSingleStatePerVertex})
+     * use data structures indexed by vertex index: a priority queue with decrease-key instead of
+     * enqueueing a new state every time a vertex is improved, and an array-backed SPT.
+     */
+    private boolean vertexIndexed = false;
+
     enum RunStatus {
         RUNNING, STOPPED
     }
-    class RunState {
+    static class RunState {
 
         public State u;
         public ShortestPathTree spt;
-        BinHeap<State> pq;
+        BinHeap<State> pq = new BinHeap<State>();
+        /** Indexed queue holding the best state per vertex. Only used in indexed mode, created on first use. */
+        IndexedDaryHeap<State> ipq;
+        /** True if ipq is in use by the current search. */
+        boolean indexed;
         RemainingWeightHeuristic heuristic;
+        /** The street permission bits of the modes of the request, see AdjacencyIndex.permissionMask. */
+        int permissionMask;
         public RoutingContext rctx;
         public int nVisited;
-        public List<Object> targetAcceptedStates;
+        public final List<Object> targetAcceptedStates = Lists.newArrayList();
         public RunStatus status;
         private RoutingRequest options;
         private SearchTerminationStrategy terminationStrategy;
         public Vertex u_vertex;
-        Double foundPathWeight = null;
+        double foundPathWeight = Double.POSITIVE_INFINITY;
+        boolean inUse = false;
 
-        public RunState(RoutingRequest options, SearchTerminationStrategy terminationStrategy) {
+        void start(RoutingRequest options, SearchTerminationStrategy terminationStrategy) {
             this.options = options;
             this.terminationStrategy = terminationStrategy;
+            inUse = true;
+        }
+
+        /**
+         * Release everything belonging to the finished search, so that neither the graph nor the states are kept
+         * reachable through this RunState. Cost is proportional to the number of states left in the queues.
+         */
+        void finish() {
+            pq.reset();
+            if (ipq != null) ipq.reset();
+            indexed = false;
+            targetAcceptedStates.clear();
+            u = null;
+            u_vertex = null;
+            spt = null;
+            heuristic = null;
+            rctx = null;
+            options = null;
+            terminationStrategy = null;
+            nVisited = 0;
+            status = null;
+            foundPathWeight = Double.POSITIVE_INFINITY;
+            inUse = false;
         }
 
     }
-    
-    private RunState runState;
-    
+
     /**
      * Compute SPT using default timeout and termination strategy.
      */
@@ -92,40 +148,59 @@ public class GenericAStar implements SPTService { // maybe this should be wrappe
         return this.getShortestPathTree(req, timeoutSeconds, null);
     }
     
-    public void startSearch(RoutingRequest options,
+    /**
+     * Prepare a search, taking the RunState of the current thread if it is available.
+     * @return the RunState of the new search, or null if it timed out during initialization.
+     */
+    RunState startSearch(RoutingRequest options,
             SearchTerminationStrategy terminationStrategy, long abortTime) {
-        runState = new RunState( options, terminationStrategy );
+        RunState runState = threadRunState.get();
+        if (runState.inUse) {
+            runState = new RunState();
+        }
+        runState.start(options, terminationStrategy);
 
-        runState.rctx = options.getRoutingContext();
+        try {
+            runState.rctx = options.getRoutingContext();
+            runState.permissionMask = AdjacencyIndex.permissionMask(options);
 
-        // null checks on origin and destination vertices are already performed in setRoutingContext
-        // options.rctx.check();
+            // null checks on origin and destination vertices are already performed in setRoutingContext
+            // options.rctx.check();
         
-        runState.spt = new MultiShortestPathTree(runState.options);
-
-        runState.heuristic = options.batch ? 
-                new TrivialRemainingWeightHeuristic() : runState.rctx.remainingWeightHeuristic; 
-
-        // heuristic calc could actually be done when states are constructed, inside state
-        State initialState = new State(options);
-        runState.heuristic.initialize(initialState, runState.rctx.target, abortTime);
-        if (abortTime < Long.MAX_VALUE  && System.currentTimeMillis() > abortTime) {
-            LOG.warn("Timeout during initialization of interleaved bidirectional heuristic.");
-            options.rctx.debugOutput.timedOut = true;
-            runState = null; // Search timed out
-            return;
-        }
-        runState.spt.add(initialState);
-
-        // Priority Queue.
-        // NOTE(flamholz): the queue is self-resizing, so we initialize it to have 
-        // size = O(sqrt(|V|)) << |V|. For reference, a random, undirected search
-        // on a uniform 2d grid will examine roughly sqrt(|V|) vertices before
-        // reaching its target. 
-        int initialSize = runState.rctx.graph.getVertices().size();
-        initialSize = (int) Math.ceil(2 * (Math.sqrt((double) initialSize + 1)));
-        runState.pq = new BinHeap<State>(initialSize);
-        runState.pq.insert(initialState, 0);
+            runState.indexed = vertexIndexed && isSingleStatePerVertex(options);
+            if (runState.indexed) {
+                runState.spt = new VertexIndexedShortestPathTree(runState.options, Criterion.WEIGHT);
+            } else {
+                runState.spt = new MultiShortestPathTree(runState.options);
+            }
+
+            runState.heuristic = options.batch ? 
+                    TRIVIAL_HEURISTIC : runState.rctx.remainingWeightHeuristic; 
+
+            // heuristic calc could actually be done when states are constructed, inside state
+            State initialState = new State(options);
+            runState.heuristic.initialize(initialState, runState.rctx.target, abortTime);
+            if (abortTime < Long.MAX_VALUE  && System.currentTimeMillis() > abortTime) {
+                LOG.warn("Timeout during initialization of interleaved bidirectional heuristic.");
+                options.rctx.debugOutput.timedOut = true;
+                runState.finish();
+                return null; // Search timed out
+            }
+            runState.spt.add(initialState);
+
+            // Priority Queue.
+            // The queues are kept from one search to the next on this thread and grow as needed, so they are not
+            // sized from the graph here. For reference, a random, undirected search on a uniform 2d grid will
+            // examine roughly sqrt(|V|) vertices before reaching its target.
+            if (runState.indexed) {
+                // The binary heap only receives the occasional extra state (e.g. around turn restrictions).
+                if (runState.ipq == null) {
+                    runState.ipq = new IndexedDaryHeap<State>(Vertex.getMaxIndex());
+                } else {
+                    runState.ipq.ensureIndexCapacity(Vertex.getMaxIndex());
+                }
+            }
+            enqueue(runState, initialState, 0);
 
 //        options = options.clone();
 //        /** max walk distance cannot be less than distances to nearest transit stops */
@@ -133,15 +208,18 @@ public class GenericAStar implements SPTService { // maybe this should be wrappe
 //                + target.getDistanceToNearestTransitStop();
 //        options.setMaxWalkDistance(Math.max(options.getMaxWalkDistance(), rctx.getMinWalkDistance()));
 
-        runState.nVisited = 0;
-        runState.targetAcceptedStates = Lists.newArrayList();
-
+            runState.nVisited = 0;
+            return runState;
+        } catch (RuntimeException e) {
+            runState.finish();
+            throw e;
+        }
     }
 
-    boolean iterate(){
+    boolean iterate(RunState runState){
         // print debug info
         if (verbose) {
-            double w = runState.pq.peek_min_key();
+            double w = peekMinKey(runState);
             System.out.println("pq min key = " + w);
         }
         
@@ -149,7 +227,7 @@ public class GenericAStar implements SPTService { // maybe this should be wrappe
         runState.heuristic.doSomeWork();
 
         // get the lowest-weight state in the queue
-        runState.u = runState.pq.extract_min();
+        runState.u = extractMin(runState);
         
         // check that this state has not been dominated
         // and mark vertex as visited
@@ -170,70 +248,95 @@ public class GenericAStar implements SPTService { // maybe this should be wrappe
 
         runState.nVisited += 1;
         
-        Collection<Edge> edges = runState.options.arriveBy ? runState.u_vertex.getIncoming() : runState.u_vertex.getOutgoing();
-        for (Edge edge : edges) {
-
-            // Iterate over traversal results. When an edge leads nowhere (as indicated by
-            // returning NULL), the iteration is over. TODO Use this to board multiple trips.
-            for (State v = edge.traverse(runState.u); v != null; v = v.getNextResult()) {
-                // Could be: for (State v : traverseEdge...)
-
-                if (traverseVisitor != null) {
-                    traverseVisitor.visitEdge(edge, v);
-                }
-                // TEST: uncomment to verify that all optimisticTraverse functions are actually
-                // admissible
-                // State lbs = edge.optimisticTraverse(u);
-                // if ( ! (lbs.getWeight() <= v.getWeight())) {
-                // System.out.printf("inadmissible lower bound %f vs %f on edge %s\n",
-                // lbs.getWeightDelta(), v.getWeightDelta(), edge);
-                // }
-
-                double remaining_w = computeRemainingWeight(runState.heuristic, v, runState.rctx.target, runState.options);
-
-                if (remaining_w < 0 || Double.isInfinite(remaining_w) ) {
+        boolean incoming = runState.options.arriveBy;
+        AdjacencyIndex adjacency = runState.rctx.graph.adjacency;
+        if (adjacency != null && adjacency.covers(runState.u_vertex)) {
+            // Walk the frozen adjacency arrays, skipping streets closed to every mode of the request without
+            // touching their Edge objects, then the temporary edges of this request, if any, at this vertex.
+            int end = adjacency.end(runState.u_vertex, incoming);
+            for (int i = adjacency.start(runState.u_vertex, incoming); i < end; i++) {
+                int e = adjacency.edgeAt(i, incoming);
+                if ((adjacency.permissions[e] & runState.permissionMask) == 0) {
                     continue;
                 }
-                double estimate = v.getWeight() + remaining_w*runState.options.heuristicWeight;
-
-                if (verbose) {
-                    System.out.println("      edge " + edge);
-                    System.out.println("      " + runState.u.getWeight() + " -> " + v.getWeight()
-                            + "(w) + " + remaining_w + "(heur) = " + estimate + " vert = "
-                            + v.getVertex());
-                }
-
-                // avoid enqueuing useless branches 
-                if (estimate > runState.options.maxWeight) {
-                    // too expensive to get here
-                    if (verbose)
-                        System.out.println("         too expensive to reach, not enqueued. estimated weight = " + estimate);
-                    continue;
-                }
-                if (isWorstTimeExceeded(v, runState.options)) {
-                    // too much time to get here
-                    if (verbose)
-                        System.out.println("         too much time to reach, not enqueued. time = " + v.getTimeSeconds());
-                    continue;
-                }
-                
-                // spt.add returns true if the state is hopeful; enqueue state if it's hopeful
-                if (runState.spt.add(v)) {
-                    // report to the visitor if there is one
-                    if (traverseVisitor != null)
-                        traverseVisitor.visitEnqueue(v);
-                    
-                    runState.pq.insert(v, estimate);
-                } 
+                traverseEdge(runState, adjacency.edges[e]);
+            }
+            List<Edge> extra = incoming ? runState.rctx.temporaryEdges.getIncoming(runState.u_vertex)
+                    : runState.rctx.temporaryEdges.getOutgoing(runState.u_vertex);
+            for (int i = 0; i < extra.size(); i++) {
+                traverseEdge(runState, extra.get(i));
+            }
+        } else {
+            Collection<Edge> edges = incoming ?
+                    runState.rctx.getIncomingEdges(runState.u_vertex) : runState.rctx.getOutgoingEdges(runState.u_vertex);
+            for (Edge edge : edges) {
+                traverseEdge(runState, edge);
             }
         }
         
         return true;
     }
     
-    void runSearch(long abortTime){
+    /** Traverse an edge from the current state, adding each hopeful resulting state to the SPT and the queue. */
+    private void traverseEdge(RunState runState, Edge edge) {
+        // Iterate over traversal results. When an edge leads nowhere (as indicated by
+        // returning NULL), the iteration is over. TODO Use this to board multiple trips.
+        for (State v = edge.traverse(runState.u); v != null; v = v.getNextResult()) {
+            // Could be: for (State v : traverseEdge...)
+
+            if (traverseVisitor != null) {
+                traverseVisitor.visitEdge(edge, v);
+            }
+            // TEST: uncomment to verify that all optimisticTraverse functions are actually
+            // admissible
+            // State lbs = edge.optimisticTraverse(u);
+            // if ( ! (lbs.getWeight() <= v.getWeight())) {
+            // System.out.printf("inadmissible lower bound %f vs %f on edge %s\n",
+            // lbs.getWeightDelta(), v.getWeightDelta(), edge);
+            // }
+
+            double remaining_w = computeRemainingWeight(runState.heuristic, v, runState.rctx.target, runState.options);
+
+            if (remaining_w < 0 || Double.isInfinite(remaining_w) ) {
+                continue;
+            }
+            double estimate = v.getWeight() + remaining_w*runState.options.heuristicWeight;
+
+            if (verbose) {
+                System.out.println("      edge " + edge);
+                System.out.println("      " + runState.u.getWeight() + " -> " + v.getWeight()
+                        + "(w) + " + remaining_w + "(heur) = " + estimate + " vert = "
+                        + v.getVertex());
+            }
+
+            // avoid enqueuing useless branches 
+            if (estimate > runState.options.maxWeight) {
+                // too expensive to get here
+                if (verbose)
+                    System.out.println("         too expensive to reach, not enqueued. estimated weight = " + estimate);
+                continue;
+            }
+            if (isWorstTimeExceeded(v, runState.options)) {
+                // too much time to get here
+                if (verbose)
+                    System.out.println("         too much time to reach, not enqueued. time = " + v.getTimeSeconds());
+                continue;
+            }
+            
+            // spt.add returns true if the state is hopeful; enqueue state if it's hopeful
+            if (runState.spt.add(v)) {
+                // report to the visitor if there is one
+                if (traverseVisitor != null)
+                    traverseVisitor.visitEnqueue(v);
+                
+                enqueue(runState, v, estimate);
+            } 
+        }
+    }
+
+    void runSearch(RunState runState, long abortTime){
         /* the core of the A* algorithm */
-        while (!runState.pq.empty()) { // Until the priority queue is empty:
+        while (!queueEmpty(runState)) { // Until the priority queue is empty:
             /*
              * Terminate based on timeout?
              */
@@ -247,6 +350,12 @@ public class GenericAStar implements SPTService { // maybe this should be wrappe
 
                 break;
             }
+            if (Thread.currentThread().isInterrupted()) {
+                // the results of this search are no longer needed, see RetryingPathServiceImpl
+                LOG.debug("Search interrupted. origin={} target={}", runState.rctx.origin, runState.rctx.target);
+                runState.options.rctx.aborted = true;
+                break;
+            }
             
             /*
              * Get next best state and, if it hasn't already been dominated, add adjacent states to queue.
@@ -257,7 +366,7 @@ public class GenericAStar implements SPTService { // maybe this should be wrappe
              * of this is that the algorithm is always left in a restartable state, which is useful for debugging or
              * potential future variations.
              */
-            if(!iterate()){
+            if(!iterate(runState)){
                 continue;
             }
             
@@ -265,8 +374,7 @@ public class GenericAStar implements SPTService { // maybe this should be wrappe
              * Should we terminate the search?
              */
             // Don't search too far past the most recently found accepted path/state
-            if (runState.foundPathWeight != null &&
-                runState.u.getWeight() > runState.foundPathWeight * OVERSEARCH_MULTIPLIER ) {
+            if (runState.u.getWeight() > runState.foundPathWeight * OVERSEARCH_MULTIPLIER) {
 
                 break;
             }
@@ -290,17 +398,84 @@ public class GenericAStar implements SPTService { // maybe this should be wrappe
         }
     }
 
+    /**
+     * Add a state to the queue. In indexed mode, a state that is the current best for its vertex
+     * replaces any worse state for the same vertex still waiting in the indexed queue; all other
+     * states go to the plain binary heap. A state reached through an edge with turn restrictions
+     * does not make the worse state redundant, since the worse state may be allowed turns that it
+     * is not (see VertexIndexedShortestPathTree.visit), so the replaced state is moved to the
+     * binary heap rather than dropped.
+     */
+    private void enqueue(RunState runState, State v, double estimate) {
+        if (runState.indexed && runState.spt.getState(v.getVertex()) == v) {
+            IndexedDaryHeap<State> ipq = runState.ipq;
+            int index = v.getVertex().getIndex();
+            State replaced = ipq.get(index);
+            double replacedKey = ipq.key(index);
+            if (ipq.insert_or_dec_key(index, v, estimate)) {
+                if (replaced != null && reachedThroughTurnRestriction(v)) {
+                    runState.pq.insert(replaced, replacedKey);
+                }
+                return;
+            }
+        }
+        runState.pq.insert(v, estimate);
+    }
+
+    private static boolean reachedThroughTurnRestriction(State s) {
+        Edge backEdge = s.getBackEdge();
+        return backEdge instanceof PlainStreetEdge
+                && ((PlainStreetEdge) backEdge).hasExplicitTurnRestrictions();
+    }
+
+    private boolean queueEmpty(RunState runState) {
+        return runState.pq.empty() && (!runState.indexed || runState.ipq.empty());
+    }
+
+    private boolean indexedQueueHasMin(RunState runState) {
+        IndexedDaryHeap<State> ipq = runState.ipq;
+        return runState.indexed && !ipq.empty()
+                && (runState.pq.empty() || ipq.peek_min_key() <= runState.pq.peek_min_key());
+    }
+
+    private State extractMin(RunState runState) {
+        return indexedQueueHasMin(runState) ? runState.ipq.extract_min() : runState.pq.extract_min();
+    }
+
+    private double peekMinKey(RunState runState) {
+        return indexedQueueHasMin(runState) ? runState.ipq.peek_min_key() : runState.pq.peek_min_key();
+    }
+
+    /**
+     * @return true if the request can be answered keeping only the lowest-weight state at each
+     *         vertex: a single non-transit mode, with no rental or parking mode changes along the way.
+     */
+    public static boolean isSingleStatePerVertex(RoutingRequest options) {
+        if (options.modes.isTransit() || options.allowBikeRental || options.bikeParkAndRide
+                || options.parkAndRide || options.kissAndRide)
+            return false;
+        int streetModes = 0;
+        if (options.modes.getWalk()) streetModes++;
+        if (options.modes.getBicycle()) streetModes++;
+        if (options.modes.getDriving()) streetModes++;
+        return streetModes == 1;
+    }
+
     /** @return the shortest path, or null if none is found */
     public ShortestPathTree getShortestPathTree(RoutingRequest options, double relTimeout,
             SearchTerminationStrategy terminationStrategy) {
         ShortestPathTree spt = null;
         long abortTime = DateUtils.absoluteTimeout(relTimeout);
 
-        startSearch (options, terminationStrategy, abortTime);
+        RunState runState = startSearch (options, terminationStrategy, abortTime);
 
         if (runState != null) {
-            runSearch(abortTime);
-            spt = runState.spt;
+            try {
+                runSearch(runState, abortTime);
+                spt = runState.spt;
+            } finally {
+                runState.finish();
+            }
         }
         
         storeMemory();
@@ -337,4 +512,8 @@ public class GenericAStar implements SPTService { // maybe this should be wrappe
     public void setTraverseVisitor(TraverseVisitor traverseVisitor) {
         this.traverseVisitor = traverseVisitor;
     }
+
+    public void setVertexIndexed(boolean vertexIndexed) {
+        this.vertexIndexed = vertexIndexed;
+    }
 }
@@ -13,6 +13,8 @@
 
 package org.opentripplanner.routing.algorithm;
 
+import java.util.Collection;
+
 import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.SearchTerminationStrategy;
 import org.opentripplanner.routing.algorithm.strategies.SkipEdgeStrategy;
@@ -88,7 +90,14 @@ public class GenericDijkstra {
                     null, u, spt, options))
                         break;
 
-            for (Edge edge : options.arriveBy ? u_vertex.getIncoming() : u_vertex.getOutgoing()) {
+            Collection<Edge> edges;
+            if (options.rctx == null) {
+                edges = options.arriveBy ? u_vertex.getIncoming() : u_vertex.getOutgoing();
+            } else {
+                edges = options.arriveBy ?
+                        options.rctx.getIncomingEdges(u_vertex) : options.rctx.getOutgoingEdges(u_vertex);
+            }
+            for (Edge edge : edges) {
 
                 if (skipEdgeStrategy != null
                         && skipEdgeStrategy.shouldSkipEdge(initialState.getVertex(), null, u, edge, spt,
@@ -0,0 +1,222 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.Map;
+
+import org.opentripplanner.common.model.GenericLocation;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.ServiceDay;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * The reverse searches of InterleavedBidirectionalHeuristic, kept for later requests to the same target, so that plans
+ * to popular destinations (an airport, downtown, a stadium) do not all repeat nearly the same search. This is a graph
+ * service, created on first use.
+ *
+ * A table holds the lower bound of the heuristic at every vertex reached by a reverse search that ran to the end. The
+ * bounds do not depend on the time of day: only on the target, on the parameters of the request, and on which transit
+ * services run on the days of the search. So a table is kept under the target (or the coordinates of a temporary
+ * target), a copy of the request without its endpoints and times, and the set of running services, and is shared by
+ * all the days that run the same services. Tables are evicted least recently used first once their estimated size
+ * goes over maxBytes.
+ */
+public class BidirectionalHeuristicCache implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(BidirectionalHeuristicCache.class);
+
+    /* The endpoints of the requests in the keys, the same object for all as locations are compared by identity. */
+    private static final GenericLocation NO_LOCATION = new GenericLocation();
+
+    /** The estimated size of the entry of one vertex in a table, a hash map entry with a boxed Double. */
+    public static final int BYTES_PER_VERTEX = 64;
+
+    /** The largest estimated size of all the tables, in bytes. Zero disables the cache. Set it before the first use. */
+    public long maxBytes = 64L * 1024 * 1024;
+
+    private transient volatile Cache<Key, Table> cache;
+
+    private transient long nanosSaved;
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    private Cache<Key, Table> cache() {
+        Cache<Key, Table> cache = this.cache;
+        if (cache == null) {
+            synchronized (this) {
+                if (this.cache == null) {
+                    // A single segment, as the weight limit is split between segments. There is one lookup per plan.
+                    this.cache = CacheBuilder.newBuilder().concurrencyLevel(1)
+                            .maximumWeight(Math.max(1, maxBytes / BYTES_PER_VERTEX))
+                            .weigher(new Weigher<Key, Table>() {
+                                @Override
+                                public int weigh(Key key, Table table) {
+                                    return Math.max(1, table.weights.size());
+                                }
+                            }).recordStats().build();
+                }
+                cache = this.cache;
+            }
+        }
+        return cache;
+    }
+
+    /** @return the table of a search, or null if there is none. */
+    public Table get(Key key) {
+        Table table = cache().getIfPresent(key);
+        if (table != null) {
+            addNanosSaved(table.nanos);
+        }
+        LOG.debug("heuristic table {} for {}, {}", table == null ? "missed" : "found", key.target, this);
+        return table;
+    }
+
+    public void put(Key key, Table table) {
+        cache().put(key, table);
+    }
+
+    private synchronized void addNanosSaved(long nanos) {
+        nanosSaved += nanos;
+    }
+
+    /** @return the time that the cached tables took to compute, summed over the searches that found them. */
+    public synchronized long getTimeSavedMillis() {
+        return nanosSaved / 1000000;
+    }
+
+    /** @return the hit, miss and eviction counts of the cache. */
+    public CacheStats stats() {
+        return cache().stats();
+    }
+
+    public long size() {
+        return cache().size();
+    }
+
+    /** @return the estimated size of all the tables, in bytes. */
+    public long getEstimatedBytes() {
+        long vertices = 0;
+        for (Table table : cache().asMap().values()) {
+            vertices += table.weights.size();
+        }
+        return vertices * BYTES_PER_VERTEX;
+    }
+
+    public void clear() {
+        cache().invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = stats();
+        return String.format("%d tables, about %d kB, hit rate %.2f, %d evicted, %d msec saved", size(),
+                getEstimatedBytes() / 1024, stats.hitRate(), stats.evictionCount(), getTimeSavedMillis());
+    }
+
+    /**
+     * @return the key of the reverse search of a request to a target. The endpoints, times and banned trips of the
+     *         request are left out, as the bounds do not depend on them.
+     */
+    public static Key key(RoutingRequest options, Vertex target) {
+        RoutingRequest request = options.clone();
+        request.rctx = null;
+        request.from = NO_LOCATION;
+        request.to = NO_LOCATION;
+        request.batch = false;
+        request.startingTransitTripId = null;
+        request.dateTime = 0;
+        request.worstTime = 0;
+        request.numItineraries = 1;
+        request.bannedTrips.clear();
+        // the bounds of boarding depend on the services running on the days of the search
+        BitSet services = new BitSet();
+        Graph graph = options.rctx.graph;
+        if (options.rctx.serviceDays != null) {
+            for (ServiceDay serviceDay : options.rctx.serviceDays) {
+                for (int serviceCode : graph.serviceCodes.values()) {
+                    if (serviceDay.serviceRunning(serviceCode))
+                        services.set(serviceCode);
+                }
+            }
+        }
+        // a temporary target is made anew for each request
+        Object targetKey = target.isTemporary() ? target.getCoordinate() : target;
+        return new Key(targetKey, request, services);
+    }
+
+    /** The target, parameters and running services of a reverse search. */
+    public static final class Key {
+
+        private final Object target;
+
+        private final RoutingRequest options;
+
+        private final BitSet services;
+
+        private Key(Object target, RoutingRequest options, BitSet services) {
+            this.target = target;
+            this.options = options;
+            this.services = services;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return target.equals(other.target) && services.equals(other.services) && options.equals(other.options);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(target, services, options);
+        }
+
+    }
+
+    /** The bounds of a reverse search that ran to the end. The weights must not be changed once cached. */
+    public static final class Table {
+
+        final Map<Vertex, Double> weights;
+
+        /** The highest weight of the search. */
+        final double maxFound;
+
+        /** The time the search took. */
+        final long nanos;
+
+        public Table(Map<Vertex, Double> weights, double maxFound, long nanos) {
+            this.weights = weights;
+            this.maxFound = maxFound;
+            this.nanos = nanos;
+        }
+
+    }
+
+}
@@ -15,10 +15,13 @@ package org.opentripplanner.routing.algorithm.strategies;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.opentripplanner.common.geometry.DistanceLibrary;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
 import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.routing.algorithm.strategies.BidirectionalHeuristicCache.Key;
+import org.opentripplanner.routing.algorithm.strategies.BidirectionalHeuristicCache.Table;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.edgetype.StreetTransitLink;
@@ -36,6 +39,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 public class InterleavedBidirectionalHeuristic implements RemainingWeightHeuristic {
 
@@ -62,6 +66,9 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
 
     Map <Vertex, Double> weights;
 
+    /** The vertices around the origin, where the heuristic is zero. Kept apart from the weights, which may be cached. */
+    Set<Vertex> nearOrigin;
+
     Graph graph;
     
     Vertex origin;
@@ -105,6 +112,7 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
         // int nVertices = AbstractVertex.getMaxIndex(); // will be ever increasing?
         int nVertices = graph.countVertices();
         weights = Maps.newHashMapWithExpectedSize(((int)Math.log(nVertices)) + 1);
+        nearOrigin = Sets.newHashSet();
         this.options = s.getOptions();
         this.origin = s.getVertex();
         // do not use soft limiting in long-distance mode
@@ -116,15 +124,31 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
         List<State> search = streetSearch(options, false, abortTime); // ~30 msec
         if (search == null) return; // Search timed out
         LOG.info("end foreward street search {} ms", System.currentTimeMillis() - start);
-        // create a new priority queue
-        q = new BinHeap<Vertex>();
-        // enqueue states for each stop within walking distance of the destination
-        search = streetSearch(options, true, abortTime);
-        if (search == null) return; // Search timed out
-        for (State stopState : search) { // backward street search
-            q.insert(stopState.getVertex(), stopState.getWeight());
+        // the rest only depends on the target, and may have been done by an earlier search to the same target
+        BidirectionalHeuristicCache cache = graph.getService(BidirectionalHeuristicCache.class, true);
+        Key key = cache.isEnabled() ? BidirectionalHeuristicCache.key(options, target) : null;
+        Table table = key == null ? null : cache.get(key);
+        if (table != null) {
+            weights = table.weights;
+            maxFound = table.maxFound;
+            finished = true;
+            options.rctx.debugOutput.reusedPrecalculation(table.nanos / 1000000);
+        } else {
+            long reverseStart = System.nanoTime();
+            // create a new priority queue
+            q = new BinHeap<Vertex>();
+            // enqueue states for each stop within walking distance of the destination
+            search = streetSearch(options, true, abortTime);
+            if (search == null) return; // Search timed out
+            for (State stopState : search) { // backward street search
+                q.insert(stopState.getVertex(), stopState.getWeight());
+            }
+            LOG.info("end backward street search {} ms", System.currentTimeMillis() - start);
+            if (key != null && finishReverseSearch(abortTime)) {
+                table = makeTable(System.nanoTime() - reverseStart);
+                if (table != null) cache.put(key, table);
+            }
         }
-        LOG.info("end backward street search {} ms", System.currentTimeMillis() - start);
         // once street searches are done, raise the limits to max
         // because hard walk limiting is incorrect and is observed to cause problems 
         // for trips near the cutoff
@@ -134,6 +158,38 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
         s.getOptions().rctx.debugOutput.finishedPrecalculating();
     }
 
+    /**
+     * Run the reverse search to the end, so that it can be cached, unless that takes more than half of the time left
+     * before abortTime. In that case it goes on interleaved with the main search as usual.
+     * @return whether the reverse search is finished.
+     */
+    private boolean finishReverseSearch(long abortTime) {
+        long deadline = Long.MAX_VALUE;
+        if (abortTime < Long.MAX_VALUE) {
+            long now = System.currentTimeMillis();
+            deadline = now + (abortTime - now) / 2;
+        }
+        while (!finished) {
+            if (deadline < Long.MAX_VALUE && System.currentTimeMillis() > deadline) return false;
+            doSomeWork();
+        }
+        return true;
+    }
+
+    /**
+     * @return a table of the finished reverse search, without the temporary target, or null if the search went
+     *         through other temporary vertices (those of an origin on the same street as the target).
+     */
+    private Table makeTable(long nanos) {
+        Map<Vertex, Double> cached = Maps.newHashMapWithExpectedSize(weights.size());
+        for (Map.Entry<Vertex, Double> entry : weights.entrySet()) {
+            Vertex v = entry.getKey();
+            if (!v.isTemporary()) cached.put(v, entry.getValue());
+            else if (v != target) return null;
+        }
+        return new Table(cached, maxFound, nanos);
+    }
+
     /** Do up to N iterations as long as the queue is not empty */
     @Override
     public void doSomeWork() {
@@ -193,6 +249,7 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
         final Vertex v = s.getVertex();
         // Temporary vertices (StreetLocations) might not be found in walk search.
         if (v instanceof StreetLocation) return 0;
+        if (nearOrigin.contains(v)) return 0;
         Double weight = weights.get(v);
         // All valid street vertices should be explored before the main search starts,
         // but many transit vertices may not yet be explored when the search starts.
@@ -281,7 +338,7 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
             // on reverse search save measured weights.
             // on forward search set heuristic to 0 -- we have no idea how far to the destination, 
             // the optimal path may use transit etc.
-            if (!fromTarget) weights.put(v, 0.0);
+            if (!fromTarget) nearOrigin.add(v);
             else {
                 Double old_weight = weights.get(v);
                 if (old_weight == null || old_weight > w) {
@@ -289,7 +346,7 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
                 }
             }
 
-            for (Edge e : rr.arriveBy ? v.getIncoming() : v.getOutgoing()) {
+            for (Edge e : rr.arriveBy ? rr.rctx.getIncomingEdges(v) : rr.rctx.getOutgoingEdges(v)) {
                 // arriveBy has been set to match actual directional behavior in this subsearch
                 State s1 = e.traverse(s);
                 if (s1 == null)
@@ -0,0 +1,181 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.opentripplanner.routing.algorithm.strategies.LandmarkTable.Landmarks;
+import org.opentripplanner.routing.core.OptimizeType;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Vertex;
+
+/**
+ * A remaining weight heuristic for car and bicycle searches without transit, from the landmark distances of the
+ * LandmarkTable of the graph. These follow the streets and their speeds, so they are much tighter than the Euclidean
+ * distance at the highest speed, and a long drive settles far fewer vertices. The Euclidean bound of
+ * DefaultRemainingWeightHeuristic is used when the graph has no table or the request does not fit it, and otherwise
+ * the larger of the two bounds is used.
+ *
+ * Weights are at least the landmark distance scaled by the lowest reluctance of the request, and for bicycles divided
+ * by the highest speed; see LandmarkGraphBuilderImpl.edgeLength(). A temporary target is bounded through the permanent
+ * vertices it is linked to.
+ */
+public class LandmarkRemainingWeightHeuristic implements RemainingWeightHeuristic {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int[] NO_TARGETS = new int[0];
+
+    private final DefaultRemainingWeightHeuristic euclidean = new DefaultRemainingWeightHeuristic();
+
+    private LandmarkTable table;
+
+    /* The landmarks of the mode of the search, null if they cannot be used. */
+    private Landmarks landmarks;
+
+    /* The positions of the target, or of the permanent vertices a temporary target is linked to. */
+    private int[] targets = NO_TARGETS;
+
+    private double weightPerDistance;
+
+    @Override
+    public void initialize(State s, Vertex target, long abortTime) {
+        euclidean.initialize(s, target, abortTime);
+        RoutingRequest options = s.getOptions();
+        landmarks = null;
+        table = options.rctx.graph.getService(LandmarkTable.class);
+        TraverseMode mode = getMode(options);
+        if (table == null || mode == null || table.get(mode) == null)
+            return;
+        targets = findTargets(table, target, options.arriveBy);
+        if (targets.length == 0)
+            return;
+        landmarks = table.get(mode);
+        weightPerDistance = getWeightPerDistance(options, mode);
+    }
+
+    /**
+     * @return the mode whose landmarks can bound the weights of a request, or null if there is none. A car search must
+     *         not switch to walking or cycling, and a bicycle search must not rent bicycles or drive.
+     */
+    public static TraverseMode getMode(RoutingRequest options) {
+        TraverseModeSet modes = options.modes;
+        if (modes.isTransit() || options.wheelchairAccessible || options.allowBikeRental)
+            return null;
+        if (modes.getCar()) {
+            if (options.parkAndRide || options.kissAndRide)
+                return null;
+            return TraverseMode.CAR;
+        }
+        if (modes.getBicycle() && !modes.getCustomMotorVehicle() && !options.bikeParkAndRide)
+            return TraverseMode.BICYCLE;
+        return null;
+    }
+
+    /**
+     * @return the least weight per landmark distance of a mode in a request. Street weights are multiplied by
+     *         the walk or stairs reluctance in every mode. Driving weights are in seconds, and bicycle weights are at
+     *         least the bicycle distance at the highest speed the bicycle can be ridden or walked, and for the
+     *         triangle optimization the sum of its factors.
+     */
+    static double getWeightPerDistance(RoutingRequest options, TraverseMode mode) {
+        double reluctance = Math.min(options.walkReluctance, options.stairsReluctance);
+        if (mode == TraverseMode.CAR)
+            return reluctance;
+        RoutingRequest walking = options.bikeWalkingOptions;
+        double speed = Math.max(options.bikeSpeed, options.walkSpeed);
+        if (walking != null) {
+            reluctance = Math.min(reluctance, Math.min(walking.walkReluctance, walking.stairsReluctance));
+            speed = Math.max(speed, walking.walkSpeed);
+        }
+        double weight = reluctance / speed;
+        if (options.optimize == OptimizeType.TRIANGLE) {
+            weight *= Math.min(1, options.triangleTimeFactor + options.triangleSlopeFactor
+                    + options.triangleSafetyFactor);
+        }
+        return Math.max(0, weight);
+    }
+
+    /**
+     * @return the positions in the table of the target, or of the permanent vertices from which the edges of a
+     *         temporary target lead to it (from it in an arriveBy search), following other temporary vertices. Empty
+     *         if any of them is not in the table.
+     */
+    private static int[] findTargets(LandmarkTable table, Vertex target, boolean arriveBy) {
+        List<Vertex> found = new ArrayList<Vertex>();
+        Set<Vertex> seen = Collections.newSetFromMap(new IdentityHashMap<Vertex, Boolean>());
+        List<Vertex> pending = new ArrayList<Vertex>();
+        pending.add(target);
+        seen.add(target);
+        while (!pending.isEmpty()) {
+            Vertex v = pending.remove(pending.size() - 1);
+            if (!v.isTemporary()) {
+                found.add(v);
+                continue;
+            }
+            for (Edge e : arriveBy ? v.getOutgoing() : v.getIncoming()) {
+                Vertex u = arriveBy ? e.getToVertex() : e.getFromVertex();
+                if (seen.add(u))
+                    pending.add(u);
+            }
+        }
+        int[] positions = new int[found.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = table.position(found.get(i));
+            if (positions[i] < 0)
+                return NO_TARGETS;
+        }
+        return positions;
+    }
+
+    @Override
+    public double computeForwardWeight(State s, Vertex target) {
+        return Math.max(euclidean.computeForwardWeight(s, target), landmarkWeight(s.getVertex(), false));
+    }
+
+    @Override
+    public double computeReverseWeight(State s, Vertex target) {
+        return Math.max(euclidean.computeReverseWeight(s, target), landmarkWeight(s.getVertex(), true));
+    }
+
+    /* The weight bound from the landmarks, between the vertex and the target, or from the target in reverse. */
+    private double landmarkWeight(Vertex v, boolean reverse) {
+        if (landmarks == null)
+            return 0;
+        int position = table.position(v);
+        if (position < 0)
+            return 0;
+        double distance = Double.POSITIVE_INFINITY;
+        for (int target : targets) {
+            double d = reverse ? landmarks.lowerBound(target, position) : landmarks.lowerBound(position, target);
+            distance = Math.min(distance, d);
+        }
+        return distance * weightPerDistance;
+    }
+
+    @Override
+    public void reset() {}
+
+    @Override
+    public void doSomeWork() {}
+
+}
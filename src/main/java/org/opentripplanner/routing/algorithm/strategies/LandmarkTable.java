@@ -0,0 +1,166 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.graph.Vertex;
+
+/**
+ * Landmark distance tables of the street graph, from which LandmarkRemainingWeightHeuristic bounds the remaining weight
+ * of car and bicycle searches (ALT: A*, landmarks and the triangle inequality). For each mode a few landmark vertices
+ * are chosen, and the table holds the distance in that mode from every vertex to each landmark and from each landmark
+ * to every vertex. For any landmark L, d(v, t) >= d(v, L) - d(t, L) and d(v, t) >= d(L, t) - d(L, v).
+ *
+ * Distances are rounded down to a whole number of units (see Landmarks.unit) and stored in a char each. The largest
+ * value, FAR, stands for any distance that does not fit, including no path at all, and is only used as a lower bound.
+ * The table is built by LandmarkGraphBuilderImpl and stored as a graph service.
+ */
+public class LandmarkTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The stored value of distances that are too long to store, or infinite. */
+    public static final int FAR = Character.MAX_VALUE;
+
+    /* The vertices of the table, by position. */
+    private final Vertex[] vertices;
+
+    private final Map<TraverseMode, Landmarks> landmarks = new EnumMap<TraverseMode, Landmarks>(
+            TraverseMode.class);
+
+    /* The position of each vertex by vertex index, made on first use as indices change on deserialization. */
+    private transient volatile int[] positions;
+
+    public LandmarkTable(Vertex[] vertices) {
+        this.vertices = vertices;
+    }
+
+    /** @return the number of vertices in the table. */
+    public int size() {
+        return vertices.length;
+    }
+
+    public Vertex getVertex(int position) {
+        return vertices[position];
+    }
+
+    /** @return the position of a vertex in the table, or -1 if it is not in the table. */
+    public int position(Vertex v) {
+        int[] positions = this.positions;
+        if (positions == null)
+            positions = indexPositions();
+        int index = v.getIndex();
+        if (index >= positions.length)
+            return -1;
+        int position = positions[index];
+        // a vertex whose index was reassigned since is not found rather than mistaken for another
+        return position >= 0 && vertices[position] == v ? position : -1;
+    }
+
+    private synchronized int[] indexPositions() {
+        if (positions == null) {
+            int n = 0;
+            for (Vertex v : vertices)
+                n = Math.max(n, v.getIndex() + 1);
+            int[] positions = new int[n];
+            Arrays.fill(positions, -1);
+            for (int p = 0; p < vertices.length; p++)
+                positions[vertices[p].getIndex()] = p;
+            this.positions = positions;
+        }
+        return positions;
+    }
+
+    public void put(TraverseMode mode, Landmarks modeLandmarks) {
+        landmarks.put(mode, modeLandmarks);
+    }
+
+    /** @return the landmarks for a mode, or null if the table has none. */
+    public Landmarks get(TraverseMode mode) {
+        return landmarks.get(mode);
+    }
+
+    /** The landmarks of one mode and the distances between them and the vertices of the table. */
+    public static class Landmarks implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** The length of a unit of the stored distances, in the distance metric of the mode. */
+        public final double unit;
+
+        /** The landmark vertices. */
+        public final Vertex[] vertices;
+
+        /* The distance from each landmark to each vertex, by landmark and then by position. */
+        private final char[][] fromLandmark;
+
+        /* The distance from each vertex to each landmark. */
+        private final char[][] toLandmark;
+
+        public Landmarks(double unit, Vertex[] vertices, char[][] fromLandmark, char[][] toLandmark) {
+            this.unit = unit;
+            this.vertices = vertices;
+            this.fromLandmark = fromLandmark;
+            this.toLandmark = toLandmark;
+        }
+
+        /** @return the stored distance from a landmark to the vertex at a position, in units. */
+        public int fromLandmark(int landmark, int position) {
+            return fromLandmark[landmark][position];
+        }
+
+        /** @return the stored distance from the vertex at a position to a landmark, in units. */
+        public int toLandmark(int landmark, int position) {
+            return toLandmark[landmark][position];
+        }
+
+        /**
+         * @return a lower bound on the distance between the vertices at two positions, in the distance metric of the
+         *         mode. A stored distance may be up to one unit shorter than the real one, so one unit is taken off
+         *         each difference, and the terms where it would be subtracted from FAR are left out.
+         */
+        public double lowerBound(int from, int to) {
+            int best = 0;
+            for (int l = 0; l < vertices.length; l++) {
+                int toL = toLandmark[l][to];
+                if (toL != FAR)
+                    best = Math.max(best, toLandmark[l][from] - toL - 1);
+                int fromL = fromLandmark[l][from];
+                if (fromL != FAR)
+                    best = Math.max(best, fromLandmark[l][to] - fromL - 1);
+            }
+            return best * unit;
+        }
+
+        /**
+         * @return the distances rounded down to units, FAR for those that do not fit. They are shortened by a millionth
+         *         first, so that rounding errors in summing edge weights never make them longer than the real ones.
+         */
+        public static char[] toUnits(double[] distances, double unit) {
+            char[] units = new char[distances.length];
+            for (int i = 0; i < distances.length; i++) {
+                double d = Math.floor(distances[i] * (1 - 1e-6) / unit);
+                units[i] = d < FAR ? (char) d : (char) FAR;
+            }
+            return units;
+        }
+
+    }
+
+}
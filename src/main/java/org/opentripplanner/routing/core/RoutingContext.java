@@ -29,6 +29,7 @@ import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic
 import org.opentripplanner.routing.algorithm.strategies.TrivialRemainingWeightHeuristic;
 import org.opentripplanner.routing.edgetype.PartialPlainStreetEdge;
 import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.edgetype.Timetable;
 import org.opentripplanner.routing.edgetype.TimetableResolver;
 import org.opentripplanner.routing.error.GraphNotFoundException;
 import org.opentripplanner.routing.error.TransitTimesException;
@@ -48,10 +49,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -109,6 +114,13 @@ public class RoutingContext implements Cloneable {
      */
     public ArrayList<ServiceDay> serviceDays;
 
+    /**
+     * For each ServiceDay and Timetable consulted during this search, the set of indexes of the trips in that Timetable whose service runs
+     * on that day. Filled in lazily by {@link Timetable#getNextTrip} so that trips not running are never examined at each boarding. Like
+     * serviceDays this ties the context to a single search at a time.
+     */
+    public Map<ServiceDay, Map<Timetable, BitSet>> tripsRunning = new IdentityHashMap<ServiceDay, Map<Timetable, BitSet>>();
+
     /**
      * The search will be aborted if it is still running after this time (in milliseconds since the epoch). A negative or zero value implies no limit.
      * This provides an absolute timeout, whereas the maxComputationTime is relative to the beginning of an individual search. While the two might
@@ -126,6 +138,19 @@ public class RoutingContext implements Cloneable {
 
     /** Indicates that the search timed out or was otherwise aborted. */
     public boolean aborted;
+
+    /**
+     * The temporary edges of this request leading to or from permanent vertices, which are kept out of the edge lists
+     * of the shared graph (see {@link Vertex#isTemporary()}) and only seen by searches using this context.
+     */
+    public final OverlayGraph temporaryEdges = new OverlayGraph();
+
+    /**
+     * The context that created the temporary vertices and edges: this one, or the one it was copied from by
+     * {@link #copyForConcurrentSearch(RoutingRequest)}. Split street edges are only traversable by the contexts of
+     * their owner.
+     */
+    public final RoutingContext temporaryEdgeOwner = this;
     
     /* CONSTRUCTORS */
 
@@ -310,6 +335,12 @@ public class RoutingContext implements Cloneable {
         else
             remainingWeightHeuristic = heuristicFactory.getInstanceForSearch(opt);
 
+        addTemporaryEdges(fromVertex);
+        addTemporaryEdges(toVertex);
+        for (Vertex vertex : intermediateVertices) {
+            addTemporaryEdges(vertex);
+        }
+
         // If any temporary half-street-edges were created, record the fact that they should
         // only be visible to the routing context we are currently constructing.
         for (Vertex vertex : new Vertex[] {fromVertex, toVertex}) {
@@ -332,6 +363,45 @@ public class RoutingContext implements Cloneable {
 
     /* INSTANCE METHODS */
 
+    /** Record the temporary edges of a temporary vertex at the permanent vertices they lead to or from. */
+    private void addTemporaryEdges(Vertex vertex) {
+        if (vertex == null || !vertex.isTemporary())
+            return;
+        Iterable<Edge> edges;
+        if (vertex instanceof StreetLocation) {
+            // includes the edges of any other temporary vertices it was linked to
+            edges = ((StreetLocation) vertex).getExtra();
+        } else {
+            edges = Iterables.concat(vertex.getOutgoing(), vertex.getIncoming());
+        }
+        for (Edge e : edges) {
+            if (!e.getFromVertex().isTemporary())
+                temporaryEdges.addOutgoing(e.getFromVertex(), e);
+            if (!e.getToVertex().isTemporary())
+                temporaryEdges.addIncoming(e.getToVertex(), e);
+        }
+    }
+
+    /** @return the edges leading from a vertex, including the temporary edges of this context. */
+    public Collection<Edge> getOutgoingEdges(Vertex v) {
+        List<Edge> extra = temporaryEdges.getOutgoing(v);
+        if (extra.isEmpty())
+            return v.getOutgoing();
+        List<Edge> ret = new ArrayList<Edge>(v.getOutgoing());
+        ret.addAll(extra);
+        return ret;
+    }
+
+    /** @return the edges leading to a vertex, including the temporary edges of this context. */
+    public Collection<Edge> getIncomingEdges(Vertex v) {
+        List<Edge> extra = temporaryEdges.getIncoming(v);
+        if (extra.isEmpty())
+            return v.getIncoming();
+        List<Edge> ret = new ArrayList<Edge>(v.getIncoming());
+        ret.addAll(extra);
+        return ret;
+    }
+
     public void check() {
         ArrayList<String> notFound = new ArrayList<String>();
 
@@ -413,6 +483,30 @@ public class RoutingContext implements Cloneable {
         return true;
     }
 
+    /**
+     * Make a context for a search with other options (banned trips, walk distance) between the same endpoints, which
+     * may run at the same time as searches using this context. The copy shares the endpoints, temporary edges,
+     * service days and debug output, and has its own per-search state: the trips running, the heuristic and the
+     * aborted flag. It must not be destroyed; destroying this context removes the temporary edges of both.
+     */
+    public RoutingContext copyForConcurrentSearch(RoutingRequest options) {
+        RoutingContext copy;
+        try {
+            copy = (RoutingContext) super.clone();
+        } catch (CloneNotSupportedException e) {
+            /* this will never happen since our super is the cloneable object */
+            throw new RuntimeException(e);
+        }
+        copy.opt = options;
+        copy.tripsRunning = new IdentityHashMap<ServiceDay, Map<Timetable, BitSet>>();
+        copy.aborted = false;
+        if (options.batch)
+            copy.remainingWeightHeuristic = new TrivialRemainingWeightHeuristic();
+        else
+            copy.remainingWeightHeuristic = heuristicFactory.getInstanceForSearch(options);
+        return copy;
+    }
+
     /**
      * Tear down this routing context, removing any temporary edges.
      * 
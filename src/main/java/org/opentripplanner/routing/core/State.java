@@ -56,6 +56,12 @@ public class State implements Cloneable {
     // allow traverse result chaining (multiple results)
     protected State next;
 
+    // the mode that was used to traverse the backEdge. This changes often during bike searches
+    // (walking the bike), so it is kept here rather than in StateData to avoid cloning StateData.
+    protected TraverseMode backMode;
+
+    protected boolean backWalkingBike;
+
     /* StateData contains data which is unlikely to change as often */
     public StateData stateData;
 
@@ -357,11 +363,11 @@ public class State implements Cloneable {
     }
     
     public TraverseMode getBackMode () {
-        return stateData.backMode;
+        return backMode;
     }
     
     public boolean isBackWalkingBike () {
-        return stateData.backWalkingBike;
+        return backWalkingBike;
     }
 
     /**
@@ -568,7 +574,7 @@ public class State implements Cloneable {
     public boolean multipleOptionsBefore() {
         boolean foundAlternatePaths = false;
         TraverseMode requestedMode = getNonTransitMode();
-        for (Edge out : backState.vertex.getOutgoing()) {
+        for (Edge out : getContext().getOutgoingEdges(backState.vertex)) {
             if (out == backEdge) {
                 continue;
             }
@@ -590,7 +596,7 @@ public class State implements Cloneable {
             //now, from here, try a continuing path.
             Vertex tov = outState.getVertex();
             boolean found = false;
-            for (Edge out2 : tov.getOutgoing()) {
+            for (Edge out2 : getContext().getOutgoingEdges(tov)) {
                 State outState2 = out2.traverse(outState);
                 if (outState2 != null && !outState2.getBackMode().equals(requestedMode)) {
                     // walking a bike, so, not really an exit
@@ -83,13 +83,6 @@ public class StateData implements Cloneable {
      */
     protected int lastNextArrivalDelta;
 
-    /**
-     * The mode that was used to traverse the backEdge
-     */
-    protected TraverseMode backMode;
-
-    protected boolean backWalkingBike;
-
     public Set<String> bikeRentalNetworks;
 
     public StateData(RoutingRequest options) {
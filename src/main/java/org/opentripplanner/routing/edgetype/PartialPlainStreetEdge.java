@@ -135,7 +135,9 @@ public class PartialPlainStreetEdge extends PlainStreetEdge {
         // Split edges should only be usable by the routing context that created them.
         // This should alleviate the concurrency problem in issue 1025.
         // In the window of time before the visibleTo field is set, traversal will also fail (which is what we want).
-        if ( ! (this.visibleTo == s0.getOptions().rctx)) {
+        // Copies of the routing context made for concurrent searches see the edges of the context they come from.
+        RoutingContext rctx = s0.getOptions().rctx;
+        if ( ! (this.visibleTo == (rctx == null ? null : rctx.temporaryEdgeOwner))) {
             return null;
         }
         return super.traverse(s0);
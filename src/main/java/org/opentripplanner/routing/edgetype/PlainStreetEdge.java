@@ -284,6 +284,16 @@ public class PlainStreetEdge extends StreetEdge implements Cloneable {
             return null;
         }
 
+        /* Apply turn restrictions now, so that forbidden turns do not create a new state. */
+        if (backEdge instanceof PlainStreetEdge) {
+            PlainStreetEdge backPSE = (PlainStreetEdge) backEdge;
+            if (options.arriveBy && !canTurnOnto(backPSE, s0, backMode)) {
+                return null;
+            } else if (!options.arriveBy && !backPSE.canTurnOnto(this, s0, traverseMode)) {
+                return null;
+            }
+        }
+
         // Automobiles have variable speeds depending on the edge type
         double speed = calculateSpeed(options, traverseMode);
         
@@ -370,13 +380,6 @@ public class PlainStreetEdge extends StreetEdge implements Cloneable {
             double backSpeed = backPSE.calculateSpeed(backOptions, backMode);
             final double realTurnCost;  // Units are seconds.
 
-            // Apply turn restrictions
-            if (options.arriveBy && !canTurnOnto(backPSE, s0, backMode)) {
-                return null;
-            } else if (!options.arriveBy && !backPSE.canTurnOnto(this, s0, traverseMode)) {
-                return null;
-            }
-
             /*
              * This is a subtle piece of code. Turn costs are evaluated differently during
              * forward and reverse traversal. During forward traversal of an edge, the turn
@@ -633,6 +636,15 @@ public class PlainStreetEdge extends StreetEdge implements Cloneable {
 		this.compactGeometry = CompactLineString.compactLineString(fromv.getLon(), fromv.getLat(), tov.getLon(), tov.getLat(), geometry);
 	}
 
+	/** The geometry in the delta-encoded form of {@link CompactLineString}, for compact storage. */
+	public int[] getCompactGeometry() {
+		return compactGeometry;
+	}
+
+	public void setCompactGeometry(int[] compactGeometry) {
+		this.compactGeometry = compactGeometry;
+	}
+
 	public String getLabel() {
 		return label;
 	}
@@ -665,6 +677,15 @@ public class PlainStreetEdge extends StreetEdge implements Cloneable {
 		this.streetClass = streetClass;
 	}
 
+	/** All the boolean flags (back, roundabout, stairs...) packed in one byte, for compact storage. */
+	public byte getFlags() {
+		return flags;
+	}
+
+	public void setFlags(byte flags) {
+		this.flags = flags;
+	}
+
 	/**
 	 * Marks that this edge is the reverse of the one defined in the source
 	 * data. Does NOT mean fromv/tov are reversed.
@@ -15,6 +15,9 @@ package org.opentripplanner.routing.edgetype;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -27,6 +30,7 @@ import org.onebusaway.gtfs.model.Stop;
 import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.opentripplanner.common.MavenVersion;
+import org.opentripplanner.routing.core.RoutingContext;
 import org.opentripplanner.routing.core.ServiceDay;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.core.StopTransfer;
@@ -88,6 +92,23 @@ public class Timetable implements Serializable {
      * Helps determine whether a particular pattern is worth searching for departures at a given time. 
      */
     private transient int minTime, maxTime;
+
+    /**
+     * Timetables with fewer trips than this are searched with a plain linear scan, which is as
+     * fast as a binary search at that size and saves the memory used by the sorted indexes.
+     */
+    private static final int MIN_TRIPS_FOR_INDEX = 16;
+
+    /**
+     * For each stop, the indexes of the elements of tripTimes sorted by departure (arrival) time
+     * at that stop, ties broken by index. Consecutive stops with the same order share a single
+     * array, which is the usual case since trips rarely overtake one another. These are null
+     * when the timetable has too few trips to be worth indexing.
+     */
+    private transient int[][] departureOrder, arrivalOrder;
+
+    /** Orders inherited from the timetable this one was copied from, consumed by finish(). */
+    private transient int[][] departureSeed, arrivalSeed;
     
     /** Construct an empty Timetable. */
     public Timetable(TripPattern pattern) {
@@ -102,6 +123,9 @@ public class Timetable implements Serializable {
         tripTimes.addAll(tt.tripTimes);
         this.serviceDate = serviceDate;
         this.pattern = tt.pattern;
+        // The copy is searched linearly until finish() re-sorts it, starting from these orders.
+        this.departureSeed = tt.departureOrder;
+        this.arrivalSeed = tt.arrivalOrder;
     }
 
     /**
@@ -141,18 +165,53 @@ public class Timetable implements Serializable {
         // NOTE the time is sometimes negative here. That is fine, we search for the first trip of the day.
         TripTimes bestTrip = null;
         Stop currentStop = pattern.getStop(stopIndex);
-        // Linear search through the timetable looking for the best departure.
-        // We no longer use a binary search on Timetables because:
-        // 1. we allow combining trips from different service IDs on the same tripPattern.
-        // 2. We mix frequency-based and one-off TripTimes together on tripPatterns.
-        // 3. Stoptimes may change with realtime updates, and we cannot count on them being sorted.
-        //    The complexity of keeping sorted indexes up to date does not appear to be worth the
-        //    apparently minor speed improvement.
         int bestTime = boarding ? Integer.MAX_VALUE : Integer.MIN_VALUE;
-        // Hoping JVM JIT will distribute the loop over the if clauses as needed.
-        // We could invert this and skip some service days based on schedule overlap as in RRRR.
-        for (TripTimes tt : tripTimes) {
-            if ( ! serviceDay.serviceRunning(tt.serviceCode)) continue; // TODO merge into call on next line
+        BitSet running = tripsRunning(s0, serviceDay);
+        if (running.isEmpty()) {
+            // No scheduled trip runs on this day, only frequency entries need to be checked.
+        } else if (departureOrder != null) {
+            // Binary search in the sorted index for the first candidate trip, then scan forward
+            // (backward) until a trip passes the service, acceptability and transfer checks.
+            // Transfer rules only ever make the adjusted time later (earlier) than the search
+            // time, so no trip before the search position can be the best one.
+            if (boarding) {
+                int[] order = departureOrder[stopIndex];
+                for (int i = firstDepartureAtOrAfter(order, stopIndex, time); i < order.length; i++) {
+                    if ( ! running.get(order[i])) continue;
+                    TripTimes tt = tripTimes.get(order[i]);
+                    if ( ! tt.tripAcceptable(s0, stopIndex)) continue;
+                    int adjustedTime = adjustTimeForTransfer(s0, currentStop, tt.trip, boarding, serviceDay, time);
+                    if (adjustedTime == -1) continue;
+                    int depTime = tt.getDepartureTime(stopIndex);
+                    if (depTime < 0) continue;
+                    if (depTime >= adjustedTime) {
+                        bestTrip = tt;
+                        bestTime = depTime;
+                        break;
+                    }
+                }
+            } else {
+                int[] order = arrivalOrder[stopIndex];
+                for (int i = firstArrivalAfter(order, stopIndex, time) - 1; i >= 0; i--) {
+                    TripTimes tt = tripTimes.get(order[i]);
+                    int arvTime = tt.getArrivalTime(stopIndex);
+                    if (arvTime < 0) break; // unavailable times are sorted first
+                    // Among trips arriving at the same time the linear scan keeps the lowest
+                    // index, which comes last when scanning backward.
+                    if (bestTrip != null && arvTime < bestTime) break;
+                    if ( ! running.get(order[i])) continue;
+                    if ( ! tt.tripAcceptable(s0, stopIndex)) continue;
+                    int adjustedTime = adjustTimeForTransfer(s0, currentStop, tt.trip, boarding, serviceDay, time);
+                    if (adjustedTime == -1) continue;
+                    if (arvTime <= adjustedTime) {
+                        bestTrip = tt;
+                        bestTime = arvTime;
+                    }
+                }
+            }
+        } else for (int i = running.nextSetBit(0); i >= 0; i = running.nextSetBit(i + 1)) {
+            // Linear search through small or unfinished timetables.
+            TripTimes tt = tripTimes.get(i);
             if ( ! tt.tripAcceptable(s0, stopIndex)) continue;
             int adjustedTime = adjustTimeForTransfer(s0, currentStop, tt.trip, boarding, serviceDay, time);
             if (adjustedTime == -1) continue;
@@ -206,6 +265,31 @@ public class Timetable implements Serializable {
         return bestTrip;
     }
 
+    /**
+     * @return the set of indexes of the trips in this Timetable whose service runs on the given
+     * day. This is computed once per search and cached in the routing context, since the same
+     * timetable is consulted at every stop of the pattern.
+     */
+    private BitSet tripsRunning(State s0, ServiceDay serviceDay) {
+        RoutingContext rctx = s0.getOptions().getRoutingContext();
+        Map<Timetable, BitSet> cache = null;
+        if (rctx != null) {
+            cache = rctx.tripsRunning.get(serviceDay);
+            if (cache == null) {
+                cache = new IdentityHashMap<Timetable, BitSet>();
+                rctx.tripsRunning.put(serviceDay, cache);
+            }
+            BitSet running = cache.get(this);
+            if (running != null) return running;
+        }
+        BitSet running = new BitSet(tripTimes.size());
+        for (int i = 0; i < tripTimes.size(); i++) {
+            if (serviceDay.serviceRunning(tripTimes.get(i).serviceCode)) running.set(i);
+        }
+        if (cache != null) cache.put(this, running);
+        return running;
+    }
+
     /**
      * Check transfer table rules. Given the last alight time from the State,
      * return the boarding time t0 adjusted for this particular trip's minimum transfer time,
@@ -286,6 +370,110 @@ public class Timetable implements Serializable {
             minTime = Math.min(minTime, freq.getMinDeparture());
             maxTime = Math.max(maxTime, freq.getMaxArrival());
         }
+        /* Sort the trips at each stop so getNextTrip can binary search instead of scanning them all. */
+        if (tripTimes.size() >= MIN_TRIPS_FOR_INDEX) {
+            departureOrder = sortTrips(departureSeed, nStops, true);
+            arrivalOrder = sortTrips(arrivalSeed, nStops, false);
+        } else {
+            departureOrder = arrivalOrder = null;
+        }
+        departureSeed = arrivalSeed = null;
+    }
+
+    /**
+     * Sort the indexes of tripTimes at each stop by time and index. Each stop's order is sorted
+     * starting from the order of the same stop in the seed if there is one, otherwise from that of
+     * the previous stop. Either one is usually already sorted or nearly so, since trips seldom
+     * overtake each other and realtime updates shift only a few trips, so an insertion sort makes
+     * this close to linear in the number of trips.
+     */
+    private int[][] sortTrips(int[][] seed, int nStops, boolean departures) {
+        int nTrips = tripTimes.size();
+        int[][] orders = new int[nStops][];
+        for (int s = 0; s < nStops; s++) {
+            int[] start = (seed != null && seed.length == nStops) ? seed[s] : (s > 0 ? orders[s - 1] : null);
+            int[] order;
+            if (start != null && start.length <= nTrips) {
+                // Trips are only ever replaced or appended, so append those added since start was made.
+                order = Arrays.copyOf(start, nTrips);
+                for (int i = start.length; i < nTrips; i++) order[i] = i;
+                insertionSort(order, s, departures);
+            } else {
+                order = mergeSort(nTrips, s, departures);
+            }
+            if (s > 0 && Arrays.equals(order, orders[s - 1])) order = orders[s - 1];
+            orders[s] = order;
+        }
+        return orders;
+    }
+
+    private int[] mergeSort(int nTrips, final int stop, final boolean departures) {
+        Integer[] boxed = new Integer[nTrips];
+        for (int i = 0; i < nTrips; i++) boxed[i] = i;
+        // Arrays.sort on objects is a stable merge sort, so ties stay in index order.
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(tripTime(a, stop, departures), tripTime(b, stop, departures));
+            }
+        });
+        int[] order = new int[nTrips];
+        for (int i = 0; i < nTrips; i++) order[i] = boxed[i];
+        return order;
+    }
+
+    private void insertionSort(int[] order, int stop, boolean departures) {
+        for (int i = 1; i < order.length; i++) {
+            int trip = order[i];
+            int time = tripTime(trip, stop, departures);
+            int j = i - 1;
+            while (j >= 0) {
+                int t = tripTime(order[j], stop, departures);
+                if (t < time || (t == time && order[j] < trip)) break;
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = trip;
+        }
+    }
+
+    private int tripTime(int trip, int stop, boolean departures) {
+        TripTimes tt = tripTimes.get(trip);
+        return departures ? tt.getDepartureTime(stop) : tt.getArrivalTime(stop);
+    }
+
+    /** @return the position of the first trip in order departing at or after the given time. */
+    private int firstDepartureAtOrAfter(int[] order, int stop, int time) {
+        int lo = 0, hi = order.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tripTimes.get(order[mid]).getDepartureTime(stop) < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** @return the position of the first trip in order arriving strictly after the given time. */
+    private int firstArrivalAfter(int[] order, int stop, int time) {
+        int lo = 0, hi = order.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tripTimes.get(order[mid]).getArrivalTime(stop) <= time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Called when trips are added or replaced. Searches fall back on a linear scan until finish()
+     * is called again, which re-sorts starting from the current orders.
+     */
+    private void invalidateOrder() {
+        if (departureOrder != null) {
+            departureSeed = departureOrder;
+            arrivalSeed = arrivalOrder;
+            departureOrder = arrivalOrder = null;
+        }
     }
 
     /** @return the index of TripTimes for this trip ID in this particular Timetable */
@@ -468,6 +656,7 @@ public class Timetable implements Serializable {
 
             // Update succeeded, save the new TripTimes back into this Timetable.
             tripTimes.set(tripIndex, newTimes);
+            invalidateOrder();
         } catch (Exception e) { // prevent server from dying while debugging
             e.printStackTrace();
             return false;
@@ -486,6 +675,7 @@ public class Timetable implements Serializable {
      */
     public void addTripTimes(TripTimes tt) {
         tripTimes.add(tt);
+        invalidateOrder();
     }
 
     /**
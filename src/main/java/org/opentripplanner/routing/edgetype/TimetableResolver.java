@@ -13,11 +13,13 @@
 
 package org.opentripplanner.routing.edgetype;
 
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TimeZone;
@@ -41,6 +43,12 @@ import com.google.transit.realtime.GtfsRealtime.TripUpdate;
  * relative arrival and departure times of other trips that have not necessarily been boarded.
  *
  * At this point, only one writing thread at a time is supported.
+ *
+ * Snapshots share structure with each other: a snapshot holds a base map shared with earlier
+ * snapshots plus a small overlay of the patterns changed since that base was copied, so that
+ * committing costs time proportional to the number of changed patterns rather than to the total
+ * number of patterns with realtime data. The overlay is folded into a fresh base once it grows
+ * beyond the square root of the number of patterns.
  */
 public class TimetableResolver {
 
@@ -57,18 +65,40 @@ public class TimetableResolver {
     // if this turns out to be slow/spacious we can use an array with integer pattern indexes
     // The SortedSet members are copy-on-write
     // FIXME: this could be made into a flat hashtable with compound keys.
+    // In a snapshot this is the base map, shared with other snapshots and never modified.
     private HashMap<TripPattern, SortedSet<Timetable>> timetables =
             new HashMap<TripPattern, SortedSet<Timetable>>();
 
+    /**
+     * In a snapshot, the timetables of patterns changed since the base map was copied, which take
+     * precedence over those in the base map. An empty set means the pattern no longer has any
+     * realtime timetables. Always empty in the writable resolver.
+     */
+    private Map<TripPattern, SortedSet<Timetable>> overlay = Collections.emptyMap();
+
+    private static final SortedSet<Timetable> NO_TIMETABLES =
+            Collections.unmodifiableSortedSet(new TreeSet<Timetable>(new SortedTimetableComparator()));
+
+    /** The overlay is never allowed to grow smaller than this before being merged. */
+    private static final int MIN_OVERLAY_SIZE = 16;
+
     /** A set of all timetables which have been modified and are waiting to be indexed. */
     private Set<Timetable> dirty = new HashSet<Timetable>();
 
+    /** The patterns whose timetables have been modified or purged since the last commit. */
+    private Set<TripPattern> dirtyPatterns = new HashSet<TripPattern>();
+
+    /** The last snapshot committed from this resolver, on which the next one is built. */
+    private TimetableResolver lastCommit = null;
+
     /**
      * Returns an updated timetable for the specified pattern if one is available in this snapshot,
      * or the originally scheduled timetable if there are no updates in this snapshot.
      */
     public Timetable resolve(TripPattern pattern, ServiceDate serviceDate) {
-        SortedSet<Timetable> sortedTimetables = timetables.get(pattern);
+        SortedSet<Timetable> sortedTimetables = overlay.get(pattern);
+        if (sortedTimetables == null)
+            sortedTimetables = timetables.get(pattern);
 
         if(sortedTimetables != null && serviceDate != null) {
             for(Timetable timetable : sortedTimetables) {
@@ -111,6 +141,7 @@ public class TimetableResolver {
                 sortedTimetables.add(tt);
                 timetables.put(pattern, sortedTimetables);
                 dirty.add(tt);
+                dirtyPatterns.add(pattern);
             }
             return tt.update(tripUpdate, agencyId, timeZone, serviceDate);
         }
@@ -142,9 +173,26 @@ public class TimetableResolver {
             for (Timetable tt : dirty) {
                 tt.finish(); // summarize, index, etc. the new timetables
             }
-            ret.timetables =
-                    (HashMap<TripPattern, SortedSet<Timetable>>) this.timetables.clone();
+            int maxOverlaySize = Math.max(MIN_OVERLAY_SIZE, (int) Math.sqrt(timetables.size()));
+            if (lastCommit == null
+                    || lastCommit.overlay.size() + dirtyPatterns.size() > maxOverlaySize) {
+                // Start over with a fresh base map and an empty overlay.
+                ret.timetables =
+                        (HashMap<TripPattern, SortedSet<Timetable>>) this.timetables.clone();
+            } else {
+                // Share the previous base map, copying only the overlay.
+                ret.timetables = lastCommit.timetables;
+                HashMap<TripPattern, SortedSet<Timetable>> overlay =
+                        new HashMap<TripPattern, SortedSet<Timetable>>(lastCommit.overlay);
+                for (TripPattern pattern : dirtyPatterns) {
+                    SortedSet<Timetable> sortedTimetables = timetables.get(pattern);
+                    overlay.put(pattern, sortedTimetables == null ? NO_TIMETABLES : sortedTimetables);
+                }
+                ret.overlay = overlay;
+            }
             this.dirty.clear();
+            this.dirtyPatterns.clear();
+            this.lastCommit = ret;
         }
         ret.dirty = null; // mark the snapshot as henceforth immutable
         return ret;
@@ -173,6 +221,10 @@ public class TimetableResolver {
                     }
                 }
 
+                if (toKeepTimetables.size() == sortedTimetables.size()) {
+                    continue;
+                }
+                dirtyPatterns.add(pattern);
                 if(toKeepTimetables.isEmpty()) {
                     it.remove();
                 } else {
@@ -190,7 +242,8 @@ public class TimetableResolver {
     }
 
     public String toString() {
-        String d = dirty == null ? "committed" : String.format("%d dirty", dirty.size());
+        String d = dirty == null ? String.format("committed, %d in overlay", overlay.size())
+                : String.format("%d dirty", dirty.size());
         return String.format("Timetable snapshot: %d timetables (%s)", timetables.size(), d);
     }
 }
@@ -16,21 +16,16 @@ package org.opentripplanner.routing.edgetype.loader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 
-import org.onebusaway.gtfs.model.Route;
 import org.opentripplanner.common.geometry.DistanceLibrary;
 import org.opentripplanner.common.geometry.GeometryUtils;
 import org.opentripplanner.common.model.GenericLocation;
 import org.opentripplanner.common.model.P2;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.core.TraversalRequirements;
-import org.opentripplanner.routing.core.TraverseMode;
-import org.opentripplanner.routing.core.TraverseModeSet;
 import org.opentripplanner.routing.edgetype.AreaEdge;
 import org.opentripplanner.routing.edgetype.PlainStreetEdge;
 import org.opentripplanner.routing.edgetype.StreetBikeRentalLink;
@@ -38,6 +33,7 @@ import org.opentripplanner.routing.edgetype.StreetEdge;
 import org.opentripplanner.routing.edgetype.StreetTransitLink;
 import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.edgetype.loader.NetworkLinkerLibrary.StopCandidates;
 import org.opentripplanner.routing.impl.CandidateEdgeBundle;
 import org.opentripplanner.routing.vertextype.BikeRentalStationVertex;
 import org.opentripplanner.routing.vertextype.IntersectionVertex;
@@ -112,11 +108,7 @@ public class LinkRequest {
         if (existing != null)
             return existing;
 
-        String vertexLabel;
-        if (v instanceof TransitVertex)
-            vertexLabel = "link for " + ((TransitVertex)v).getStopId();
-        else
-            vertexLabel = "link for " + v;
+        String vertexLabel = getLabel(v);
         Coordinate coordinate = v.getCoordinate();
 
         /* is there a bundle of edges nearby to use or split? */
@@ -142,10 +134,17 @@ public class LinkRequest {
                 if (edges.getScore() > distanceLibrary.distance(atIntersection.getCoordinate(), coordinate))
                     return Arrays.asList(atIntersection);
             }
-            return getSplitterVertices(vertexLabel, edges.toEdgeList(), coordinate);
+            return getSplitterVertices(vertexLabel, edges.toEdgeList(), coordinate, false);
         }
     }
 
+    private String getLabel(Vertex v) {
+        if (v instanceof TransitVertex)
+            return "link for " + ((TransitVertex)v).getStopId();
+        else
+            return "link for " + v;
+    }
+
     /** 
      * Given a bundle of parallel, coincident edges, find a vertex splitting the set of edges as close as
      * possible to the given coordinate. If necessary, create new edges reflecting the split and update the 
@@ -153,8 +152,12 @@ public class LinkRequest {
      * 
      * Split edges are not added to the graph immediately, so that they can be re-split later if another stop
      * is located near the same bundle of original edges.
+     *
+     * If splitLast is true, the caller guarantees that the coordinate lies on the last sub-segment of the
+     * replacement, as is the case when the stops on a bundle are linked in order along it.
      */
-    private Collection<StreetVertex> getSplitterVertices(String label, Collection<StreetEdge> edges, Coordinate coordinate) {
+    private Collection<StreetVertex> getSplitterVertices(String label, Collection<StreetEdge> edges,
+            Coordinate coordinate, boolean splitLast) {
 
         // It is assumed that we are splitting at least one edge.
         if (edges.size() < 1) {
@@ -162,41 +165,23 @@ public class LinkRequest {
         }
 
         // Has this set of original edges already been replaced by split edges?
-        HashSet<StreetEdge> edgeSet = new HashSet<StreetEdge>(edges);
-        LinkedList<P2<PlainStreetEdge>> replacement = linker.replacements.get(edgeSet);
-        if (replacement == null) {
-            replacement = new LinkedList<P2<PlainStreetEdge>>();
-            Iterator<StreetEdge> iter = edges.iterator();
-            StreetEdge first = iter.next();
-            StreetEdge second = null;
-            while (iter.hasNext()) {
-                StreetEdge edge = iter.next();
-                if (edge.getFromVertex() == first.getToVertex() && edge.getToVertex() == first.getFromVertex()) {
-                    second = edge;
-                }
-            }
-            PlainStreetEdge secondClone;
-            if (second == null) {
-                secondClone = null;
-            } else {
-                secondClone = ((PlainStreetEdge) second).clone();
-            }
-            P2<PlainStreetEdge> newEdges = new P2<PlainStreetEdge>(((PlainStreetEdge) first).clone(), secondClone); 
-            replacement.add(newEdges);
-            linker.replacements.put(edgeSet, replacement);
-        }
+        LinkedList<P2<PlainStreetEdge>> replacement = linker.getReplacement(edges);
 
-        // If the original replacement edge pair has already been split,
-        // decide out which sub-segment the current coordinate lies on.
-        double bestDist = Double.MAX_VALUE;
         P2<PlainStreetEdge> bestPair = null;
-        Point p = GeometryUtils.getGeometryFactory().createPoint(coordinate);
-        for (P2<PlainStreetEdge> pair : replacement) {
-            PlainStreetEdge e1 = pair.getFirst();
-            double dist = e1.getGeometry().distance(p);
-            if (dist < bestDist) {
-                bestDist = dist;
-                bestPair = pair;
+        if (splitLast) {
+            bestPair = replacement.getLast();
+        } else {
+            // If the original replacement edge pair has already been split,
+            // decide out which sub-segment the current coordinate lies on.
+            double bestDist = Double.MAX_VALUE;
+            Point p = GeometryUtils.getGeometryFactory().createPoint(coordinate);
+            for (P2<PlainStreetEdge> pair : replacement) {
+                PlainStreetEdge e1 = pair.getFirst();
+                double dist = e1.getGeometry().distance(p);
+                if (dist < bestDist) {
+                    bestDist = dist;
+                    bestPair = pair;
+                }
             }
         }
         
@@ -340,20 +325,37 @@ public class LinkRequest {
     }
 
     public void connectVertexToStreets(TransitStop v, boolean wheelchairAccessible) {
-        List<Edge> nearbyEdges = null;
-        if (linker.edgesForRoute != null) {
-            nearbyEdges = new ArrayList<Edge>();
-            for (Route route : linker.graph.index.routesForStop(v.getStop())) {
-                Collection<Edge> edges = linker.edgesForRoute.get(route);
-                if (edges != null) {
-                    nearbyEdges.addAll(edges);
-                }
-            }
-        }
-        TraverseModeSet modes = v.getModes().clone();
-        modes.setMode(TraverseMode.WALK, true);
-        RoutingRequest request = new RoutingRequest(modes);
+        List<Edge> nearbyEdges = linker.getRouteEdges(v);
+        RoutingRequest request = linker.getRequestForStop(v);
         Collection<StreetVertex> nearbyStreetVertices = getNearbyStreetVertices(v, nearbyEdges, request);
+        linkTransitStop(v, wheelchairAccessible, nearbyStreetVertices);
+    }
+
+    /**
+     * Link a transit stop using the result of an earlier search for its closest edges, as done when linking stops in
+     * bulk. If splitLast is true, the stop lies on the last sub-segment of its bundle's replacement edges.
+     */
+    void connectVertexToStreets(StopCandidates candidates, boolean splitLast) {
+        TransitStop v = candidates.stop;
+        CandidateEdgeBundle edges = candidates.edges;
+        Collection<StreetVertex> nearbyStreetVertices;
+        if (edges == null || edges.size() < 1) {
+            LOG.debug("found too few edges: {} {}", v.getName(), v.getCoordinate());
+            nearbyStreetVertices = null;
+        } else if (edges.endwise()) {
+            nearbyStreetVertices = Arrays.asList(edges.endwiseVertex);
+            linker.splitVertices.put(v, nearbyStreetVertices);
+        } else if (candidates.atIntersection != null) {
+            nearbyStreetVertices = Arrays.asList(candidates.atIntersection);
+        } else {
+            nearbyStreetVertices = getSplitterVertices(getLabel(v), edges.toEdgeList(), v.getCoordinate(),
+                    splitLast);
+        }
+        linkTransitStop(v, candidates.wheelchairAccessible, nearbyStreetVertices);
+    }
+
+    private void linkTransitStop(TransitStop v, boolean wheelchairAccessible,
+            Collection<StreetVertex> nearbyStreetVertices) {
         if (nearbyStreetVertices == null) {
             result = false;
         } else {
@@ -14,20 +14,33 @@
 package org.opentripplanner.routing.edgetype.loader;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.google.common.collect.Iterables;
+import com.vividsolutions.jts.linearref.LinearLocation;
+import com.vividsolutions.jts.linearref.LocationIndexedLine;
+
 import org.opentripplanner.common.model.P2;
+import org.opentripplanner.graph_builder.SpatialTiles;
 import org.opentripplanner.graph_builder.annotation.BikeRentalStationUnlinked;
 import org.opentripplanner.graph_builder.annotation.StopUnlinked;
+import org.opentripplanner.routing.core.MortonVertexComparator;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.edgetype.PlainStreetEdge;
 import org.opentripplanner.routing.edgetype.StreetEdge;
 import org.opentripplanner.routing.edgetype.StreetTransitLink;
 import org.opentripplanner.routing.edgetype.factory.FindMaxWalkDistances;
+import org.opentripplanner.routing.edgetype.loader.NetworkLinkerLibrary.StopCandidates;
 import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Vertex;
@@ -40,10 +53,20 @@ public class NetworkLinker {
 
     private static Logger LOG = LoggerFactory.getLogger(NetworkLinker.class);
 
+    /** The number of consecutive stops, in Morton order, searched for candidate edges by one task. */
+    private static final int STOPS_PER_TASK = 256;
+
     private Graph graph;
 
     private NetworkLinkerLibrary networkLinkerLibrary;
 
+    /**
+     * If true, the closest edges of all transit stops are found in parallel before any edge is split, and the stops
+     * sharing a bundle of edges are then linked together in order along it. Otherwise each stop is searched for and
+     * linked in turn.
+     */
+    private boolean batchLinking = true;
+
     public NetworkLinker(Graph graph, HashMap<Class<?>,Object> extra) {
         this.graph = graph;
         this.networkLinkerLibrary = new NetworkLinkerLibrary(graph, extra);
@@ -55,6 +78,10 @@ public class NetworkLinker {
         this(graph, new HashMap<Class<?>, Object>());
     }
 
+    public void setBatchLinking(boolean batchLinking) {
+        this.batchLinking = batchLinking;
+    }
+
     /**
      * Link the transit network to the street network. Connect each transit vertex to the nearest
      * Street edge with a StreetTransitLink.
@@ -66,7 +93,7 @@ public class NetworkLinker {
         ArrayList<Vertex> vertices = new ArrayList<Vertex>();
         vertices.addAll(graph.getVertices());
 
-        int nUnlinked = 0;
+        List<TransitStop> stops = new ArrayList<TransitStop>();
         for (TransitStop ts : Iterables.filter(vertices, TransitStop.class)) {
             // if the street is already linked there is no need to linked it again,
             // could happened if using the prune isolated island
@@ -81,13 +108,10 @@ public class NetworkLinker {
             // only connect transit stops that (a) are entrances, or (b) have no associated
             // entrances
             if (ts.isEntrance() || !ts.hasEntrances()) {
-                boolean wheelchairAccessible = ts.hasWheelchairEntrance();
-                if (!networkLinkerLibrary.connectVertexToStreets(ts, wheelchairAccessible).getResult()) {
-                    LOG.debug(graph.addBuilderAnnotation(new StopUnlinked(ts)));
-                    nUnlinked += 1;
-                }
+                stops.add(ts);
             }
         }
+        int nUnlinked = batchLinking ? linkStopsInBulk(stops) : linkStops(stops);
         if (nUnlinked > 0) {
             LOG.warn("{} transit stops were not close enough to the street network to be connected to it.", nUnlinked);
         }
@@ -125,4 +149,120 @@ public class NetworkLinker {
             }
         }
     }
+
+    /** Link each stop in turn. @return the number of stops that could not be linked. */
+    private int linkStops(List<TransitStop> stops) {
+        int nUnlinked = 0;
+        for (TransitStop ts : stops) {
+            boolean wheelchairAccessible = ts.hasWheelchairEntrance();
+            if (!networkLinkerLibrary.connectVertexToStreets(ts, wheelchairAccessible).getResult()) {
+                LOG.debug(graph.addBuilderAnnotation(new StopUnlinked(ts)));
+                nUnlinked += 1;
+            }
+        }
+        return nUnlinked;
+    }
+
+    /**
+     * Link the stops in two phases. First the closest edges of every stop are found, in parallel: the stops are
+     * sorted along a Morton curve so that each task searches a compact area of the street index, and the search
+     * only reads the graph, since split edges are kept aside until all stops are linked. Then the stops are grouped
+     * by the bundle of edges they are closest to, and each bundle is split once at all of its stops, in order along
+     * it, instead of searching its sub-segments again for every stop.
+     *
+     * @return the number of stops that could not be linked.
+     */
+    private int linkStopsInBulk(List<TransitStop> stops) {
+        if (stops.isEmpty()) return 0;
+        long startTime = System.currentTimeMillis();
+        Collections.sort(stops, new MortonVertexComparator(new ArrayList<Vertex>(stops)));
+        StopCandidates[] candidates = findCandidates(stops);
+        long searchTime = System.currentTimeMillis() - startTime;
+
+        int nUnlinked = 0;
+        LinkedHashMap<HashSet<StreetEdge>, List<StopCandidates>> stopsByBundle =
+                new LinkedHashMap<HashSet<StreetEdge>, List<StopCandidates>>();
+        for (StopCandidates c : candidates) {
+            if (c.edges == null || c.edges.size() < 1 || c.edges.endwise() || c.atIntersection != null) {
+                // nothing to split
+                nUnlinked += link(c, false);
+                continue;
+            }
+            HashSet<StreetEdge> edgeSet = new HashSet<StreetEdge>(c.edges.toEdgeList());
+            List<StopCandidates> group = stopsByBundle.get(edgeSet);
+            if (group == null) {
+                group = new ArrayList<StopCandidates>();
+                stopsByBundle.put(edgeSet, group);
+            }
+            group.add(c);
+        }
+        for (List<StopCandidates> group : stopsByBundle.values()) {
+            LinkedList<P2<PlainStreetEdge>> replacement =
+                    networkLinkerLibrary.getReplacement(group.get(0).edges.toEdgeList());
+            // Bundles that were split before (which does not happen when all stops are linked in one go) fall back
+            // on looking up the sub-segment of each stop.
+            boolean inOrder = replacement.size() == 1;
+            if (inOrder && group.size() > 1) {
+                sortAlong(group, replacement.getFirst().getFirst());
+            }
+            for (StopCandidates c : group) nUnlinked += link(c, inOrder);
+        }
+        LOG.info("Linked {} transit stops to {} split street bundles in {} msec ({} msec searching).", stops.size(),
+                stopsByBundle.size(), System.currentTimeMillis() - startTime, searchTime);
+        return nUnlinked;
+    }
+
+    /** Search for the closest edges of each stop on the graph builder thread pool. */
+    private StopCandidates[] findCandidates(final List<TransitStop> stops) {
+        final StopCandidates[] candidates = new StopCandidates[stops.size()];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int start = 0; start < stops.size(); start += STOPS_PER_TASK) {
+            final int from = start;
+            final int to = Math.min(start + STOPS_PER_TASK, stops.size());
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = from; i < to; i++) {
+                        TransitStop ts = stops.get(i);
+                        candidates[i] = networkLinkerLibrary.findCandidates(ts, ts.hasWheelchairEntrance());
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : SpatialTiles.getPool().invokeAll(tasks)) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while linking transit stops", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+        return candidates;
+    }
+
+    /** Sort the stops of a group by where they project onto the given edge. */
+    private static void sortAlong(List<StopCandidates> group, PlainStreetEdge edge) {
+        LocationIndexedLine line = new LocationIndexedLine(edge.getGeometry());
+        final HashMap<StopCandidates, LinearLocation> locations = new HashMap<StopCandidates, LinearLocation>();
+        for (StopCandidates c : group) locations.put(c, line.indexOf(c.stop.getCoordinate()));
+        Collections.sort(group, new Comparator<StopCandidates>() {
+            @Override
+            public int compare(StopCandidates c1, StopCandidates c2) {
+                return locations.get(c1).compareTo(locations.get(c2));
+            }
+        });
+    }
+
+    /** @return 1 if the stop could not be linked, 0 otherwise. */
+    private int link(StopCandidates c, boolean splitLast) {
+        LinkRequest request = new LinkRequest(networkLinkerLibrary);
+        request.connectVertexToStreets(c, splitLast);
+        if (!request.getResult()) {
+            LOG.debug(graph.addBuilderAnnotation(new StopUnlinked(c.stop)));
+            return 1;
+        }
+        return 0;
+    }
 }
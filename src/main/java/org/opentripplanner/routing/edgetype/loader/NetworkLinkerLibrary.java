@@ -13,21 +13,31 @@
 
 package org.opentripplanner.routing.edgetype.loader;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
+import org.onebusaway.gtfs.model.Route;
 import org.opentripplanner.common.geometry.DistanceLibrary;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
+import org.opentripplanner.common.model.GenericLocation;
 import org.opentripplanner.common.model.P2;
 import org.opentripplanner.extra_graph.EdgesForRoute;
 import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.TraversalRequirements;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
 import org.opentripplanner.routing.edgetype.PlainStreetEdge;
 import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.impl.CandidateEdgeBundle;
 import org.opentripplanner.routing.impl.StreetVertexIndexServiceImpl;
 import org.opentripplanner.routing.vertextype.BikeRentalStationVertex;
 import org.opentripplanner.routing.vertextype.StreetVertex;
@@ -35,6 +45,7 @@ import org.opentripplanner.routing.vertextype.TransitStop;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vividsolutions.jts.geom.Coordinate;
 
 public class NetworkLinkerLibrary {
 
@@ -92,6 +103,89 @@ public class NetworkLinkerLibrary {
         return request;
     }
 
+    /**
+     * The result of the search for the street edges closest to a transit stop, which only reads the graph and the
+     * index and so can be run for many stops in parallel before any edge is split.
+     */
+    static class StopCandidates {
+        TransitStop stop;
+        boolean wheelchairAccessible;
+        /** The closest bundle of edges, or null if there is none within range. */
+        CandidateEdgeBundle edges;
+        /** The intersection to link to instead of splitting the bundle, if the stop is right at one. */
+        StreetVertex atIntersection;
+    }
+
+    /** Find the edges closest to the given transit stop without modifying the graph. Safe to call concurrently. */
+    StopCandidates findCandidates(TransitStop v, boolean wheelchairAccessible) {
+        StopCandidates candidates = new StopCandidates();
+        candidates.stop = v;
+        candidates.wheelchairAccessible = wheelchairAccessible;
+        Coordinate coordinate = v.getCoordinate();
+        TraversalRequirements reqs = new TraversalRequirements(getRequestForStop(v));
+        candidates.edges = index.getClosestEdges(new GenericLocation(coordinate), reqs, null,
+                getRouteEdges(v), true);
+        if (candidates.edges != null && candidates.edges.size() > 0 && !candidates.edges.endwise()) {
+            StreetVertex atIntersection = index.getIntersectionAt(coordinate);
+            if (atIntersection != null && candidates.edges.getScore() >
+                    distanceLibrary.distance(atIntersection.getCoordinate(), coordinate)) {
+                candidates.atIntersection = atIntersection;
+            }
+        }
+        return candidates;
+    }
+
+    /** @return the edges of the routes serving the given stop, which are preferred when linking it. */
+    List<Edge> getRouteEdges(TransitStop v) {
+        if (edgesForRoute == null) return null;
+        List<Edge> nearbyEdges = new ArrayList<Edge>();
+        for (Route route : graph.index.routesForStop(v.getStop())) {
+            Collection<Edge> edges = edgesForRoute.get(route);
+            if (edges != null) {
+                nearbyEdges.addAll(edges);
+            }
+        }
+        return nearbyEdges;
+    }
+
+    /** @return a request for the modes of the given stop, plus walking. */
+    RoutingRequest getRequestForStop(TransitStop v) {
+        TraverseModeSet modes = v.getModes().clone();
+        modes.setMode(TraverseMode.WALK, true);
+        return new RoutingRequest(modes);
+    }
+
+    /**
+     * @return the list of edge pairs that replaces the given bundle of original edges, creating it from clones of
+     *         the original edges if the bundle has not been replaced yet.
+     */
+    LinkedList<P2<PlainStreetEdge>> getReplacement(Collection<StreetEdge> edges) {
+        HashSet<StreetEdge> edgeSet = new HashSet<StreetEdge>(edges);
+        LinkedList<P2<PlainStreetEdge>> replacement = replacements.get(edgeSet);
+        if (replacement == null) {
+            replacement = new LinkedList<P2<PlainStreetEdge>>();
+            Iterator<StreetEdge> iter = edges.iterator();
+            StreetEdge first = iter.next();
+            StreetEdge second = null;
+            while (iter.hasNext()) {
+                StreetEdge edge = iter.next();
+                if (edge.getFromVertex() == first.getToVertex() && edge.getToVertex() == first.getFromVertex()) {
+                    second = edge;
+                }
+            }
+            PlainStreetEdge secondClone;
+            if (second == null) {
+                secondClone = null;
+            } else {
+                secondClone = ((PlainStreetEdge) second).clone();
+            }
+            P2<PlainStreetEdge> newEdges = new P2<PlainStreetEdge>(((PlainStreetEdge) first).clone(), secondClone);
+            replacement.add(newEdges);
+            replacements.put(edgeSet, replacement);
+        }
+        return replacement;
+    }
+
     public DistanceLibrary getDistanceLibrary() {
         return distanceLibrary ;
     }
@@ -0,0 +1,191 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.graph;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A frozen, compressed sparse row copy of the adjacency lists of a graph. The edges are numbered densely, and for each
+ * vertex index an offset array gives the range of positions holding the numbers of its outgoing (or incoming) edges.
+ * Parallel primitive arrays hold the endpoints, length and street permissions of each edge, so that a search can
+ * walk the graph and discard edges it cannot use without allocating and without touching the Edge objects, which
+ * are only needed to traverse an edge.
+ *
+ * The index reflects the graph at the time it was built. A vertex whose edge lists change afterwards (e.g. when a bike
+ * rental station is linked by an updater) is no longer covered by the index, and searches must fall back on the edge
+ * lists of the vertex itself. Temporary edges created for a request are never in the index, see RoutingContext.
+ */
+public class AdjacencyIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdjacencyIndex.class);
+
+    /* Stamps identifying the index that covers a vertex. Zero means not covered by any index. */
+    private static final AtomicInteger stamps = new AtomicInteger(1);
+
+    /** The value of permissions for edges that are not plain street edges, which are never filtered out. */
+    public static final int ALL_PERMISSIONS = -1;
+
+    private final int stamp = stamps.getAndIncrement();
+
+    /** The edges of the graph, by edge number. */
+    public final Edge[] edges;
+
+    /** The index of the from and to vertex of each edge, or -1 if it has none. */
+    public final int[] fromVertex, toVertex;
+
+    /** The length of each edge in meters, as given by Edge.getDistance(). */
+    public final float[] lengths;
+
+    /** The StreetTraversalPermission code of each plain street edge, ALL_PERMISSIONS for other edges. */
+    public final int[] permissions;
+
+    /* Edge numbers of outgoing edges, those of vertex v at positions outStart[v] (inclusive) to outStart[v + 1]. */
+    private final int[] outStart, outEdges;
+
+    /* The same for incoming edges. */
+    private final int[] inStart, inEdges;
+
+    public AdjacencyIndex(Graph graph) {
+        long t0 = System.currentTimeMillis();
+        Collection<Vertex> vertices = graph.getVertices();
+        int nVertices = 0;
+        for (Vertex v : vertices) nVertices = Math.max(nVertices, v.getIndex() + 1);
+        Vertex[] byIndex = new Vertex[nVertices];
+        for (Vertex v : vertices) byIndex[v.getIndex()] = v;
+
+        // Number the edges in the order of the outgoing lists of the vertices by index, so that the outgoing edges
+        // of a vertex have consecutive numbers, which are also their positions. An edge only found in an incoming
+        // list is numbered after all the others.
+        Map<Edge, Integer> edgeNumbers = new IdentityHashMap<Edge, Integer>();
+        outStart = new int[nVertices + 1];
+        inStart = new int[nVertices + 1];
+        for (int i = 0; i < nVertices; i++) {
+            Vertex v = byIndex[i];
+            if (v != null) {
+                for (Edge e : v.getOutgoing()) {
+                    if (!edgeNumbers.containsKey(e)) edgeNumbers.put(e, edgeNumbers.size());
+                }
+                outStart[i + 1] = v.getDegreeOut();
+                inStart[i + 1] = v.getDegreeIn();
+            }
+            outStart[i + 1] += outStart[i];
+            inStart[i + 1] += inStart[i];
+        }
+        for (Vertex v : vertices) {
+            for (Edge e : v.getIncoming()) {
+                if (!edgeNumbers.containsKey(e)) edgeNumbers.put(e, edgeNumbers.size());
+            }
+        }
+
+        int nEdges = edgeNumbers.size();
+        edges = new Edge[nEdges];
+        fromVertex = new int[nEdges];
+        toVertex = new int[nEdges];
+        lengths = new float[nEdges];
+        permissions = new int[nEdges];
+        for (Map.Entry<Edge, Integer> entry : edgeNumbers.entrySet()) {
+            Edge e = entry.getKey();
+            int n = entry.getValue();
+            edges[n] = e;
+            fromVertex[n] = e.getFromVertex() == null ? -1 : e.getFromVertex().getIndex();
+            toVertex[n] = e.getToVertex() == null ? -1 : e.getToVertex().getIndex();
+            lengths[n] = (float) e.getDistance();
+            permissions[n] = ALL_PERMISSIONS;
+            if (e instanceof PlainStreetEdge) {
+                StreetTraversalPermission permission = ((PlainStreetEdge) e).getPermission();
+                if (permission != null) permissions[n] = permission.code;
+            }
+        }
+
+        outEdges = new int[outStart[nVertices]];
+        inEdges = new int[inStart[nVertices]];
+        for (Vertex v : vertices) {
+            int pos = outStart[v.getIndex()];
+            for (Edge e : v.getOutgoing()) outEdges[pos++] = edgeNumbers.get(e);
+            pos = inStart[v.getIndex()];
+            for (Edge e : v.getIncoming()) inEdges[pos++] = edgeNumbers.get(e);
+            v.adjacencyStamp = stamp;
+        }
+        LOG.info("Built adjacency index of {} vertices and {} edges in {} msec.", vertices.size(), nEdges,
+                System.currentTimeMillis() - t0);
+    }
+
+    /** @return whether the edges of this vertex are those in the index. */
+    public boolean covers(Vertex v) {
+        return v.adjacencyStamp == stamp;
+    }
+
+    /** @return the first position of the edges of a covered vertex, outgoing or incoming. */
+    public int start(Vertex v, boolean incoming) {
+        return start(v.getIndex(), incoming);
+    }
+
+    /** @return the position after the last edge of a covered vertex, outgoing or incoming. */
+    public int end(Vertex v, boolean incoming) {
+        return end(v.getIndex(), incoming);
+    }
+
+    /** @return the first position of the edges of the vertex with the given index, outgoing or incoming. */
+    public int start(int vertexIndex, boolean incoming) {
+        return incoming ? inStart[vertexIndex] : outStart[vertexIndex];
+    }
+
+    /** @return the position after the last edge of the vertex with the given index, outgoing or incoming. */
+    public int end(int vertexIndex, boolean incoming) {
+        return incoming ? inStart[vertexIndex + 1] : outStart[vertexIndex + 1];
+    }
+
+    /** @return one more than the largest vertex index in the index. */
+    public int vertexIndexLimit() {
+        return outStart.length - 1;
+    }
+
+    /** @return the number of the edge at a position between start and end. */
+    public int edgeAt(int position, boolean incoming) {
+        return incoming ? inEdges[position] : outEdges[position];
+    }
+
+    /** @return the number of edges in the index. */
+    public int size() {
+        return edges.length;
+    }
+
+    /**
+     * @return the permission bits of the modes a request could use on a street. A plain street edge whose permission
+     *         shares no bit with them cannot be traversed in that request. Walking is always included, as nearly
+     *         every search may switch to walking (e.g. to walk a bike or after parking a car).
+     */
+    public static int permissionMask(RoutingRequest options) {
+        TraverseModeSet modes = options.modes;
+        int mask = StreetTraversalPermission.PEDESTRIAN.code;
+        if (modes.getBicycle() || options.allowBikeRental || options.bikeParkAndRide)
+            mask |= StreetTraversalPermission.BICYCLE.code;
+        if (modes.getCar() || options.parkAndRide || options.kissAndRide)
+            mask |= StreetTraversalPermission.CAR.code;
+        if (modes.getCustomMotorVehicle())
+            mask |= StreetTraversalPermission.CUSTOM_MOTOR_VEHICLE.code;
+        return mask;
+    }
+
+}
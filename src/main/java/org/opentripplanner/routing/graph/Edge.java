@@ -66,8 +66,21 @@ public abstract class Edge implements Serializable {
         // " constructed with bad vertex types");
         // }
 
-        fromv.addOutgoing(this);
-        tov.addIncoming(this);
+        if (isListedAt(fromv))
+            fromv.addOutgoing(this);
+        if (isListedAt(tov))
+            tov.addIncoming(this);
+    }
+
+    /**
+     * A temporary edge, with one end at a temporary vertex and the other at a permanent vertex of the shared graph,
+     * is only listed at its temporary end. See {@link Vertex#isTemporary()}.
+     * 
+     * @return whether this edge is in the edge lists of the given endpoint.
+     */
+    private boolean isListedAt(Vertex v) {
+        Vertex other = (v == fromv) ? tov : fromv;
+        return v.isTemporary() || other == null || !other.isTemporary();
     }
 
     public Vertex getFromVertex() {
@@ -105,7 +118,8 @@ public abstract class Edge implements Serializable {
         if (fromv == null)
             throw new IllegalStateException("attaching to fromv null");
         this.fromv = fromv;
-        fromv.addOutgoing(this);
+        if (isListedAt(fromv))
+            fromv.addOutgoing(this);
     }
 
     public void attachTo(Vertex tov) {
@@ -113,7 +127,8 @@ public abstract class Edge implements Serializable {
         if (tov == null)
             throw new IllegalStateException("attaching to tov null");
         this.tov = tov;
-        tov.addIncoming(this);
+        if (isListedAt(tov))
+            tov.addIncoming(this);
     }
 
     /** Attach this edge to new endpoint vertices, keeping edgelists coherent */
@@ -134,7 +149,8 @@ public abstract class Edge implements Serializable {
     protected boolean detachFrom() {
         boolean detached = false;
         if (fromv != null) {
-            detached = fromv.removeOutgoing(this);
+            if (isListedAt(fromv))
+                detached = fromv.removeOutgoing(this);
             fromv = null;
         }
         return detached;
@@ -143,7 +159,8 @@ public abstract class Edge implements Serializable {
     protected boolean detachTo() {
         boolean detached = false;
         if (tov != null) {
-            detached = tov.removeIncoming(this);
+            if (isListedAt(tov))
+                detached = tov.removeIncoming(this);
             tov = null;
         }
         return detached;
@@ -156,11 +173,21 @@ public abstract class Edge implements Serializable {
      */
     public int detach() {
         int nDetached = 0;
-        if (detachFrom()) {
-            ++nDetached;
-        }
-        if (detachTo()) {
-            ++nDetached;
+        // Detach the temporary end of a temporary edge last, so the permanent end is still recognized as such.
+        if (fromv != null && fromv.isTemporary()) {
+            if (detachTo()) {
+                ++nDetached;
+            }
+            if (detachFrom()) {
+                ++nDetached;
+            }
+        } else {
+            if (detachFrom()) {
+                ++nDetached;
+            }
+            if (detachTo()) {
+                ++nDetached;
+            }
         }
         return nDetached;
     }
@@ -322,4 +349,9 @@ public abstract class Edge implements Serializable {
     	return this.id;
     }
 
+    /** Restore the ID of an edge read from a graph file. */
+    void setId(int id) {
+        this.id = id;
+    }
+
 }
@@ -119,6 +119,9 @@ public class Graph implements Serializable {
     public transient StreetVertexIndexService streetIndex;
 
     public transient GraphIndex index;
+
+    /** The frozen adjacency arrays of the graph as it was when indexed, used by searches to iterate over edges. */
+    public transient AdjacencyIndex adjacency;
     
     private transient GeometryIndex geomIndex;
     
@@ -333,20 +336,20 @@ public class Graph implements Serializable {
     }
 
     @SuppressWarnings("unchecked")
-    public <T> T putService(Class<T> serviceType, T service) {
+    public synchronized <T> T putService(Class<T> serviceType, T service) {
         return (T) _services.put(serviceType, service);
     }
 
-    public boolean hasService(Class<?> serviceType) {
+    public synchronized boolean hasService(Class<?> serviceType) {
         return _services.containsKey(serviceType);
     }
 
     @SuppressWarnings("unchecked")
-    public <T> T getService(Class<T> serviceType) {
+    public synchronized <T> T getService(Class<T> serviceType) {
         return (T) _services.get(serviceType);
     }
 
-    public <T> T getService(Class<T> serviceType, boolean autoCreate) {
+    public synchronized <T> T getService(Class<T> serviceType, boolean autoCreate) {
         @SuppressWarnings("unchecked")
         T t = (T) _services.get(serviceType);
         if (t == null) {
@@ -506,8 +509,12 @@ public class Graph implements Serializable {
      */
     public String addBuilderAnnotation(GraphBuilderAnnotation gba) {
         String ret = gba.getMessage();
-        if (this.graphBuilderAnnotations != null)
-            this.graphBuilderAnnotations.add(gba);
+        if (this.graphBuilderAnnotations != null) {
+            // Graph builders may run concurrently.
+            synchronized (this.graphBuilderAnnotations) {
+                this.graphBuilderAnnotations.add(gba);
+            }
+        }
         return ret;
     }
 
@@ -522,10 +529,23 @@ public class Graph implements Serializable {
     }
 
     public static Graph load(File file, LoadLevel level) throws IOException, ClassNotFoundException {
+        return load(file, level, new DefaultStreetVertexIndexFactory());
+    }
+
+    /**
+     * Load a graph from a file, which may be either a plain serialized graph or a
+     * {@link MappedStreetFile}. The format is detected from the file header.
+     */
+    public static Graph load(File file, LoadLevel level, StreetVertexIndexFactory indexFactory)
+            throws IOException, ClassNotFoundException {
         LOG.info("Reading graph " + file.getAbsolutePath() + " ...");
+        if (MappedStreetFile.isMappedFile(file)) {
+            MappedStreetFile.Reader reader = MappedStreetFile.open(file);
+            return load(reader.objectInputStream(), level, indexFactory, reader);
+        }
         // cannot use getClassLoader() in static context
-        ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
-        return load(in, level);
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        return load(in, level, indexFactory);
     }
 
     public static Graph load(ClassLoader classLoader, File file, LoadLevel level)
@@ -576,6 +596,7 @@ public class Graph implements Serializable {
         }
         // TODO: Move this ^ stuff into the graph index
         this.index = new GraphIndex(this);
+        this.adjacency = new AdjacencyIndex(this);
     }
     
     /**
@@ -587,9 +608,19 @@ public class Graph implements Serializable {
      * @throws IOException
      * @throws ClassNotFoundException
      */
-    @SuppressWarnings("unchecked")
     public static Graph load(ObjectInputStream in, LoadLevel level,
             StreetVertexIndexFactory indexFactory) throws IOException, ClassNotFoundException {
+        return load(in, level, indexFactory, null);
+    }
+
+    /**
+     * @param mapped if non-null, the street vertices and edges stored in columns, whose references
+     * in the object stream are resolved by the stream itself.
+     */
+    @SuppressWarnings("unchecked")
+    private static Graph load(ObjectInputStream in, LoadLevel level,
+            StreetVertexIndexFactory indexFactory, MappedStreetFile.Reader mapped)
+            throws IOException, ClassNotFoundException {
         try {
             Graph graph = (Graph) in.readObject();
             LOG.debug("Basic graph info read.");
@@ -607,6 +638,11 @@ public class Graph implements Serializable {
                 graph.vertices.put(e.getFromVertex().getLabel(), e.getFromVertex());
                 graph.vertices.put(e.getToVertex().getLabel(), e.getToVertex());
             }
+            if (mapped != null) {
+                for (Vertex v : mapped.getVertices()) {
+                    graph.vertices.put(v.getLabel(), v);
+                }
+            }
 
             LOG.info("Main graph read. |V|={} |E|={}", graph.countVertices(), graph.countEdges());
             graph.index(indexFactory);
@@ -676,6 +712,16 @@ public class Graph implements Serializable {
         }
     }
 
+    /**
+     * Save the graph in the {@link MappedStreetFile} format, which stores the street network in
+     * memory-mappable columns and loads much faster than plain serialization.
+     */
+    public void saveMapped(File file) throws IOException {
+        LOG.info("Main graph size: |V|={} |E|={}", this.countVertices(), this.countEdges());
+        LOG.info("Writing mapped graph " + file.getAbsolutePath() + " ...");
+        MappedStreetFile.write(this, file);
+    }
+
     public void save(ObjectOutputStream out) throws IOException {
         LOG.debug("Consolidating edges...");
         // this is not space efficient
@@ -689,6 +735,11 @@ public class Graph implements Serializable {
         }
         LOG.debug("Assigning vertex/edge ID numbers...");
         this.rebuildVertexAndEdgeIndices();
+        writeGraph(out, edges);
+    }
+
+    /** Write this graph and the given edges, which are all the edges not stored elsewhere. */
+    void writeGraph(ObjectOutputStream out, List<Edge> edges) throws IOException {
         LOG.debug("Writing edges...");
         out.writeObject(this);
         out.writeObject(edges);
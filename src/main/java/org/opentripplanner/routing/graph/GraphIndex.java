@@ -10,6 +10,7 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import org.joda.time.LocalDate;
 import org.onebusaway.gtfs.model.Agency;
 import org.onebusaway.gtfs.model.AgencyAndId;
@@ -23,12 +24,14 @@ import org.opentripplanner.common.LuceneIndex;
 import org.opentripplanner.common.geometry.DistanceLibrary;
 import org.opentripplanner.common.geometry.HashGrid;
 import org.opentripplanner.common.geometry.PackedCoordinateSequence;
+import org.opentripplanner.common.geometry.PackedSpatialIndex;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
 import org.opentripplanner.common.model.P2;
 import org.opentripplanner.index.model.StopTimesInPattern;
 import org.opentripplanner.index.model.TripTimeShort;
 import org.opentripplanner.model.StopPattern;
 import org.opentripplanner.profile.ProfileTransfer;
+import org.opentripplanner.profile.ProfileTransitIndex;
 import org.opentripplanner.profile.StopCluster;
 import org.opentripplanner.profile.StopNameNormalizer;
 import org.opentripplanner.routing.core.RoutingRequest;
@@ -70,7 +73,7 @@ public class GraphIndex {
     public final Multimap<Route, TripPattern> patternsForRoute = ArrayListMultimap.create();
     public final Multimap<Stop, TripPattern> patternsForStop = ArrayListMultimap.create();
     public final Multimap<String, Stop> stopsForParentStation = ArrayListMultimap.create();
-    public final HashGrid<TransitStop> stopSpatialIndex = new HashGrid<TransitStop>();
+    public final PackedSpatialIndex<TransitStop> stopSpatialIndex = new PackedSpatialIndex<TransitStop>();
     public final Map<Stop, StopCluster> stopClusterForStop = Maps.newHashMap();
     public final Map<String, StopCluster> stopClusterForId = Maps.newHashMap();
 
@@ -84,6 +87,8 @@ public class GraphIndex {
     /* Separate transfers for profile routing */
     public Multimap<StopCluster, ProfileTransfer> transfersFromStopCluster;
     public HashGrid<StopCluster> stopClusterSpatialIndex;
+    /* Built on first use by getProfileTransitIndex, possibly by concurrent searches. */
+    private volatile ProfileTransitIndex profileTransitIndex;
 
     /* This is a workaround, and should probably eventually be removed. */
     public Graph graph;
@@ -119,10 +124,10 @@ public class GraphIndex {
                 stopsForParentStation.put(stop.getParentStation(), stop);
             }
         }
-        stopSpatialIndex.setProjectionMeridian(vertices.iterator().next().getCoordinate().x);
         for (TransitStop stopVertex : stopVertexForStop.values()) {
-            stopSpatialIndex.put(stopVertex.getCoordinate(), stopVertex);
+            stopSpatialIndex.insert(new Envelope(stopVertex.getCoordinate()), stopVertex);
         }
+        stopSpatialIndex.build();
         for (TripPattern pattern : patternForId.values()) {
             patternsForAgency.put(pattern.route.getAgency(), pattern);
             patternsForRoute.put(pattern.route, pattern);
@@ -237,6 +242,24 @@ public class GraphIndex {
         LOG.info("Done finding transfers.");
     }
 
+    /**
+     * The dense transit index used by round-based profile searches, built on first use since it is slow to build.
+     * The profile transfers must already be initialized.
+     */
+    public ProfileTransitIndex getProfileTransitIndex() {
+        ProfileTransitIndex index = profileTransitIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = profileTransitIndex;
+                if (index == null) {
+                    index = new ProfileTransitIndex(this);
+                    profileTransitIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
     /**
      * Find transfer candidates for profile routing.
      * TODO replace with an on-street search using the existing profile router functions.
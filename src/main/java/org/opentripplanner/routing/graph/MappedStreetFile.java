@@ -0,0 +1,522 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.graph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An alternative graph file layout in which the street network is stored as columns of primitive
+ * values rather than as serialized objects. The file begins with a header and the columns, which
+ * are memory-mapped on load, followed by an ordinary Java serialization stream holding the Graph
+ * object and all the vertices and edges that could not be stored in columns.
+ *
+ * Only plain IntersectionVertices and the PlainStreetEdges between them are stored in columns,
+ * and only when the edge has no turn restrictions and no elevation profile. These make up the
+ * great majority of a typical graph. References to them from the serialized part of the file
+ * (transit links, turn restrictions, alert patches, notes...) are written as small tokens that are
+ * resolved on load. The columnar vertices and edges are only materialized when the first token is
+ * read or the edges are requested, so a BASIC load does not build the street network at all.
+ *
+ * Column data is written big-endian, as DataOutputStream does and ByteBuffer reads by default.
+ * Repeated strings such as street names are stored once in a shared string table.
+ *
+ * The column section is mapped as a single ByteBuffer, so it cannot exceed 2GB. At about 80 bytes
+ * per edge with its share of vertices and geometry, that holds some 20 million street edges: a
+ * large country, but not a continent. Larger street networks must be saved in the serialized
+ * format.
+ */
+public class MappedStreetFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedStreetFile.class);
+
+    /** "OTPS", which can never be mistaken for the 0xACED magic of a Java serialization stream. */
+    private static final int MAGIC = 0x4F545053;
+
+    private static final int VERSION = 1;
+
+    /** Header size: magic, version, column section length, string/vertex/edge/geometry counts. */
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 4 + 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int[] STRAIGHT_LINE = new int[0];
+
+    private static final StreetTraversalPermission[] PERMISSIONS = StreetTraversalPermission.values();
+
+    private static final byte TRAFFIC_LIGHT = 1, FREE_FLOWING = 2;
+
+    /** @return true if the file starts with the header of this format. */
+    public static boolean isMappedFile(File file) throws IOException {
+        if (file.length() < HEADER_BYTES)
+            return false;
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Can this vertex be stored in columns? Subclasses carry fields we do not know about. */
+    private static boolean storable(Vertex v) {
+        return v.getClass() == IntersectionVertex.class && v.getDegreeIn() + v.getDegreeOut() > 0;
+    }
+
+    /** Can this edge be stored in columns? Its vertices must already be known to be storable. */
+    private static boolean storable(Edge e) {
+        if (e.getClass() != PlainStreetEdge.class)
+            return false;
+        PlainStreetEdge pse = (PlainStreetEdge) e;
+        return pse.getTurnRestrictions().isEmpty() && pse.getElevationProfile() == null
+                && !pse.isElevationFlattened();
+    }
+
+    /* WRITING */
+
+    /**
+     * Write the given graph to a file in this format. Vertex and edge IDs are assigned as in
+     * {@link Graph#save(ObjectOutputStream)}.
+     */
+    public static void write(Graph graph, File file) throws IOException {
+        graph.rebuildVertexAndEdgeIndices();
+        final Map<Vertex, Integer> vertexIndex = new IdentityHashMap<Vertex, Integer>();
+        final Map<Edge, Integer> edgeIndex = new IdentityHashMap<Edge, Integer>();
+        List<IntersectionVertex> vertices = new ArrayList<IntersectionVertex>();
+        List<PlainStreetEdge> edges = new ArrayList<PlainStreetEdge>();
+        List<Edge> otherEdges = new ArrayList<Edge>();
+        for (Vertex v : graph.getVertices()) {
+            if (storable(v)) {
+                vertexIndex.put(v, vertices.size());
+                vertices.add((IntersectionVertex) v);
+            }
+        }
+        for (Vertex v : graph.getVertices()) {
+            for (Edge e : v.getOutgoing()) {
+                if (storable(e) && vertexIndex.containsKey(e.getFromVertex())
+                        && vertexIndex.containsKey(e.getToVertex())) {
+                    edgeIndex.put(e, edges.size());
+                    edges.add((PlainStreetEdge) e);
+                } else {
+                    otherEdges.add(e);
+                }
+            }
+        }
+        LOG.info("Writing {} vertices and {} edges in columns, {} other edges serialized.",
+                vertices.size(), edges.size(), otherEdges.size());
+
+        StringTable strings = new StringTable();
+        for (IntersectionVertex v : vertices) {
+            strings.add(v.getLabel());
+            strings.add(v.getName());
+        }
+        int nGeometryInts = 0;
+        for (PlainStreetEdge e : edges) {
+            strings.add(e.getName());
+            strings.add(e.getLabel());
+            int[] geometry = e.getCompactGeometry();
+            if (geometry != null)
+                nGeometryInts += geometry.length;
+        }
+        long columnBytes = HEADER_BYTES + strings.byteLength()
+                + vertices.size() * (8L + 8 + 4 + 4 + 4 + 8 + 1)
+                + edges.size() * (4L + 4 + 4 + 8 + 4 + 4 + 4 + 1 + 1 + 1 + 2 + 2 + 4 + 4 + 4)
+                + nGeometryInts * 4L;
+
+        if (columnBytes > Integer.MAX_VALUE)
+            throw new IOException("Street network columns take " + columnBytes + " bytes, more "
+                    + "than the 2GB that can be memory-mapped. Save the graph in the serialized format.");
+        OutputStream fileOut = new FileOutputStream(file);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(columnBytes);
+            out.writeInt(strings.size());
+            out.writeInt(vertices.size());
+            out.writeInt(edges.size());
+            out.writeInt(nGeometryInts);
+            strings.write(out);
+            writeVertexColumns(out, vertices, strings);
+            writeEdgeColumns(out, edges, vertexIndex, strings);
+            out.flush();
+            if (out.size() != columnBytes) // size() saturates at 2GB, which cannot be mapped
+                throw new IllegalStateException("Column section length mismatch.");
+
+            // Everything else is serialized, with references to columnar objects replaced.
+            ObjectOutputStream objectOut = new ObjectOutputStream(new BufferedOutputStream(fileOut)) {
+                {
+                    enableReplaceObject(true);
+                }
+
+                @Override
+                protected Object replaceObject(Object obj) {
+                    if (obj instanceof Vertex) {
+                        Integer i = vertexIndex.get(obj);
+                        if (i != null)
+                            return new VertexRef(i);
+                    } else if (obj instanceof Edge) {
+                        Integer i = edgeIndex.get(obj);
+                        if (i != null)
+                            return new EdgeRef(i);
+                    }
+                    return obj;
+                }
+            };
+            graph.writeGraph(objectOut, otherEdges);
+            objectOut.close();
+        } catch (RuntimeException e) {
+            fileOut.close();
+            file.delete(); // remove half-written file
+            throw e;
+        } catch (IOException e) {
+            fileOut.close();
+            file.delete();
+            throw e;
+        }
+    }
+
+    private static void writeVertexColumns(DataOutputStream out, List<IntersectionVertex> vertices,
+            StringTable strings) throws IOException {
+        for (Vertex v : vertices) out.writeDouble(v.getX());
+        for (Vertex v : vertices) out.writeDouble(v.getY());
+        for (Vertex v : vertices) out.writeInt(strings.get(v.getLabel()));
+        for (Vertex v : vertices) out.writeInt(strings.get(v.getName()));
+        for (Vertex v : vertices) out.writeInt(v.getGroupIndex());
+        for (Vertex v : vertices) out.writeDouble(v.getDistanceToNearestTransitStop());
+        for (IntersectionVertex v : vertices) {
+            out.writeByte((v.trafficLight ? TRAFFIC_LIGHT : 0) | (v.freeFlowing ? FREE_FLOWING : 0));
+        }
+    }
+
+    private static void writeEdgeColumns(DataOutputStream out, List<PlainStreetEdge> edges,
+            Map<Vertex, Integer> vertexIndex, StringTable strings) throws IOException {
+        for (Edge e : edges) out.writeInt(e.getId());
+        for (Edge e : edges) out.writeInt(vertexIndex.get(e.getFromVertex()));
+        for (Edge e : edges) out.writeInt(vertexIndex.get(e.getToVertex()));
+        for (PlainStreetEdge e : edges) out.writeDouble(e.getLength());
+        for (PlainStreetEdge e : edges) out.writeFloat(e.getBicycleSafetyFactor());
+        for (PlainStreetEdge e : edges) out.writeFloat(e.getCarSpeed());
+        for (PlainStreetEdge e : edges) out.writeInt(e.getStreetClass());
+        for (PlainStreetEdge e : edges) out.writeByte(e.getPermission().ordinal());
+        for (PlainStreetEdge e : edges) out.writeByte(e.getFlags());
+        for (PlainStreetEdge e : edges) out.writeByte(e.isWheelchairAccessible() ? 1 : 0);
+        for (PlainStreetEdge e : edges) out.writeShort(e.getInAngle());
+        for (PlainStreetEdge e : edges) out.writeShort(e.getOutAngle());
+        for (PlainStreetEdge e : edges) out.writeInt(strings.get(e.getName()));
+        for (PlainStreetEdge e : edges) out.writeInt(strings.get(e.getLabel()));
+        for (PlainStreetEdge e : edges) {
+            int[] geometry = e.getCompactGeometry();
+            out.writeInt(geometry == null ? -1 : geometry.length);
+        }
+        for (PlainStreetEdge e : edges) {
+            int[] geometry = e.getCompactGeometry();
+            if (geometry != null) {
+                for (int i : geometry) out.writeInt(i);
+            }
+        }
+    }
+
+    /** Deduplicating string table. Index -1 stands for null. */
+    private static class StringTable {
+
+        private final Map<String, Integer> index = new HashMap<String, Integer>();
+
+        private final List<byte[]> encoded = new ArrayList<byte[]>();
+
+        private long byteLength = 0;
+
+        void add(String s) {
+            if (s == null || index.containsKey(s))
+                return;
+            byte[] bytes = s.getBytes(UTF8);
+            index.put(s, encoded.size());
+            encoded.add(bytes);
+            byteLength += 4 + bytes.length;
+        }
+
+        int get(String s) {
+            return s == null ? -1 : index.get(s);
+        }
+
+        int size() {
+            return encoded.size();
+        }
+
+        long byteLength() {
+            return byteLength;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            for (byte[] bytes : encoded) {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /* READING */
+
+    /**
+     * Map the column section of the given file. The vertices and edges are not created until
+     * they are needed.
+     */
+    public static Reader open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.readInt() != MAGIC)
+                throw new IOException("Not a mapped street file: " + file);
+            int version = raf.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported mapped street file version " + version);
+            long columnBytes = raf.readLong();
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, columnBytes);
+            return new Reader(file, buffer);
+        } finally {
+            // the mapping remains valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Gives access to the contents of a mapped street file: the columnar vertices and edges, and
+     * an ObjectInputStream over the serialized remainder that resolves references to them.
+     */
+    public static class Reader {
+
+        private final File file;
+
+        private ByteBuffer buffer;
+
+        private final long columnBytes;
+
+        private IntersectionVertex[] vertices;
+
+        private PlainStreetEdge[] edges;
+
+        private Reader(File file, ByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            this.columnBytes = buffer.getLong(8);
+        }
+
+        /** @return the vertices stored in columns, creating them and their edges on first use. */
+        public synchronized List<IntersectionVertex> getVertices() {
+            materialize();
+            return Arrays.asList(vertices);
+        }
+
+        /** @return the stream of serialized objects following the columns. */
+        public ObjectInputStream objectInputStream() throws IOException {
+            InputStream in = new FileInputStream(file);
+            long toSkip = columnBytes;
+            while (toSkip > 0) {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0)
+                    throw new IOException("Mapped street file is truncated.");
+                toSkip -= skipped;
+            }
+            return new ObjectInputStream(new BufferedInputStream(in)) {
+                {
+                    enableResolveObject(true);
+                }
+
+                @Override
+                protected Object resolveObject(Object obj) {
+                    if (obj instanceof VertexRef) {
+                        materialize();
+                        return vertices[((VertexRef) obj).index];
+                    } else if (obj instanceof EdgeRef) {
+                        materialize();
+                        return edges[((EdgeRef) obj).index];
+                    }
+                    return obj;
+                }
+            };
+        }
+
+        private synchronized void materialize() {
+            if (vertices != null)
+                return;
+            long startTime = System.currentTimeMillis();
+            ByteBuffer b = buffer.duplicate();
+            b.position(16);
+            int nStrings = b.getInt();
+            int nVertices = b.getInt();
+            int nEdges = b.getInt();
+            b.getInt(); // total number of geometry ints
+
+            String[] strings = new String[nStrings];
+            for (int i = 0; i < nStrings; i++) {
+                byte[] bytes = new byte[b.getInt()];
+                b.get(bytes);
+                strings[i] = new String(bytes, UTF8);
+            }
+
+            DoubleBuffer x = doubles(b, nVertices);
+            DoubleBuffer y = doubles(b, nVertices);
+            IntBuffer label = ints(b, nVertices);
+            IntBuffer name = ints(b, nVertices);
+            IntBuffer groupIndex = ints(b, nVertices);
+            DoubleBuffer distanceToStop = doubles(b, nVertices);
+            ByteBuffer vertexFlags = bytes(b, nVertices);
+            vertices = new IntersectionVertex[nVertices];
+            for (int i = 0; i < nVertices; i++) {
+                IntersectionVertex v = new IntersectionVertex(null, string(strings, label.get(i)),
+                        x.get(i), y.get(i), string(strings, name.get(i)));
+                v.setGroupIndex(groupIndex.get(i));
+                v.setDistanceToNearestTransitStop(distanceToStop.get(i));
+                byte flags = vertexFlags.get(i);
+                v.trafficLight = (flags & TRAFFIC_LIGHT) != 0;
+                v.freeFlowing = (flags & FREE_FLOWING) != 0;
+                vertices[i] = v;
+            }
+
+            IntBuffer id = ints(b, nEdges);
+            IntBuffer from = ints(b, nEdges);
+            IntBuffer to = ints(b, nEdges);
+            DoubleBuffer length = doubles(b, nEdges);
+            FloatBuffer bicycleSafety = floats(b, nEdges);
+            FloatBuffer carSpeed = floats(b, nEdges);
+            IntBuffer streetClass = ints(b, nEdges);
+            ByteBuffer permission = bytes(b, nEdges);
+            ByteBuffer edgeFlags = bytes(b, nEdges);
+            ByteBuffer wheelchair = bytes(b, nEdges);
+            ShortBuffer inAngle = shorts(b, nEdges);
+            ShortBuffer outAngle = shorts(b, nEdges);
+            IntBuffer edgeName = ints(b, nEdges);
+            IntBuffer edgeLabel = ints(b, nEdges);
+            IntBuffer geometryLength = ints(b, nEdges);
+            edges = new PlainStreetEdge[nEdges];
+            for (int i = 0; i < nEdges; i++) {
+                PlainStreetEdge e = new PlainStreetEdge(vertices[from.get(i)], vertices[to.get(i)],
+                        null, string(strings, edgeName.get(i)), length.get(i),
+                        PERMISSIONS[permission.get(i)], false, carSpeed.get(i));
+                ((Edge) e).setId(id.get(i)); // package-private, not inherited
+                e.setFlags(edgeFlags.get(i));
+                e.setBicycleSafetyFactor(bicycleSafety.get(i));
+                e.setStreetClass(streetClass.get(i));
+                e.setWheelchairAccessible(wheelchair.get(i) != 0);
+                e.inAngle = inAngle.get(i);
+                e.outAngle = outAngle.get(i);
+                e.setLabel(string(strings, edgeLabel.get(i)));
+                int n = geometryLength.get(i);
+                if (n == 0) {
+                    e.setCompactGeometry(STRAIGHT_LINE);
+                } else if (n > 0) {
+                    int[] geometry = new int[n];
+                    b.asIntBuffer().get(geometry);
+                    b.position(b.position() + n * 4);
+                    e.setCompactGeometry(geometry);
+                }
+                edges[i] = e;
+            }
+            // The objects now hold everything, let the mapping be garbage collected.
+            buffer = null;
+            LOG.info("Materialized {} columnar vertices and {} edges in {} msec.", nVertices,
+                    nEdges, System.currentTimeMillis() - startTime);
+        }
+
+        private static String string(String[] strings, int i) {
+            return i < 0 ? null : strings[i];
+        }
+
+        /* Each of these returns a view of the next n values and advances past them. */
+
+        private static ByteBuffer bytes(ByteBuffer b, int n) {
+            ByteBuffer view = b.slice();
+            view.limit(n);
+            b.position(b.position() + n);
+            return view;
+        }
+
+        private static ShortBuffer shorts(ByteBuffer b, int n) {
+            ShortBuffer view = b.slice().asShortBuffer();
+            view.limit(n);
+            b.position(b.position() + n * 2);
+            return view;
+        }
+
+        private static IntBuffer ints(ByteBuffer b, int n) {
+            IntBuffer view = b.slice().asIntBuffer();
+            view.limit(n);
+            b.position(b.position() + n * 4);
+            return view;
+        }
+
+        private static FloatBuffer floats(ByteBuffer b, int n) {
+            FloatBuffer view = b.slice().asFloatBuffer();
+            view.limit(n);
+            b.position(b.position() + n * 4);
+            return view;
+        }
+
+        private static DoubleBuffer doubles(ByteBuffer b, int n) {
+            DoubleBuffer view = b.slice().asDoubleBuffer();
+            view.limit(n);
+            b.position(b.position() + n * 8);
+            return view;
+        }
+    }
+
+    /** Stands in for a columnar vertex in the serialized part of the file. */
+    private static class VertexRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int index;
+        VertexRef(int index) {
+            this.index = index;
+        }
+    }
+
+    /** Stands in for a columnar edge in the serialized part of the file. */
+    private static class EdgeRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int index;
+        EdgeRef(int index) {
+            this.index = index;
+        }
+    }
+
+}
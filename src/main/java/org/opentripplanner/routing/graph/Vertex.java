@@ -19,6 +19,7 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.bind.annotation.XmlTransient;
 
@@ -39,7 +40,7 @@ public abstract class Vertex implements Serializable, Cloneable {
 
     private static final Logger LOG = LoggerFactory.getLogger(Vertex.class);
 
-    private static int maxIndex = 0;
+    private static final AtomicInteger maxIndex = new AtomicInteger();
 
     private int index;
     
@@ -61,6 +62,9 @@ public abstract class Vertex implements Serializable, Cloneable {
 
     private transient Edge[] outgoing = new Edge[0];
 
+    /* The stamp of the AdjacencyIndex holding the current edges of this vertex, zero if there is none. */
+    transient int adjacencyStamp = 0;
+
     
     /* PUBLIC CONSTRUCTORS */
 
@@ -68,7 +72,7 @@ public abstract class Vertex implements Serializable, Cloneable {
         this.label = label;
         this.x = x;
         this.y = y;
-        this.index = maxIndex  ++;
+        this.index = maxIndex.getAndIncrement();
         // null graph means temporary vertex
         if (g != null)
             g.addVertex(this);
@@ -147,6 +151,7 @@ public abstract class Vertex implements Serializable, Cloneable {
     public void addOutgoing(Edge edge) {
         synchronized (this) {
             outgoing = addEdge(outgoing, edge);
+            adjacencyStamp = 0;
         }
     }
 
@@ -155,6 +160,7 @@ public abstract class Vertex implements Serializable, Cloneable {
         synchronized (this) {
             int n = outgoing.length;
             outgoing = removeEdge(outgoing, edge);
+            adjacencyStamp = 0;
             return (outgoing.length < n);
         }
     }
@@ -163,6 +169,7 @@ public abstract class Vertex implements Serializable, Cloneable {
     public void addIncoming(Edge edge) {
         synchronized (this) {
             incoming = addEdge(incoming, edge);
+            adjacencyStamp = 0;
         }
     }
 
@@ -171,6 +178,7 @@ public abstract class Vertex implements Serializable, Cloneable {
         synchronized (this) {
             int n = incoming.length;
             incoming = removeEdge(incoming, edge);
+            adjacencyStamp = 0;
             return (incoming.length < n);
         }
     }
@@ -278,10 +286,11 @@ public abstract class Vertex implements Serializable, Cloneable {
 
     public void setIndex(int index) {
         this.index = index;
+        adjacencyStamp = 0;
     }
 
     public static int getMaxIndex() {
-        return maxIndex;
+        return maxIndex.get();
     }
 
 
@@ -296,7 +305,7 @@ public abstract class Vertex implements Serializable, Cloneable {
         in.defaultReadObject();
         this.incoming = new Edge[0];
         this.outgoing = new Edge[0];
-        index = maxIndex++;
+        index = maxIndex.getAndIncrement();
     }
 
     /* UTILITY METHODS FOR SEARCHING, GRAPH BUILDING, AND GENERATING WALKSTEPS */
@@ -332,6 +341,7 @@ public abstract class Vertex implements Serializable, Cloneable {
         }
         incoming = new Edge[0];
         outgoing = new Edge[0];
+        adjacencyStamp = 0;
     }
 
 
@@ -384,6 +394,17 @@ public abstract class Vertex implements Serializable, Cloneable {
         }
     }
 
+    /**
+     * Temporary vertices are created for a single request, such as the origin and destination of a trip. Edges between
+     * a temporary vertex and a permanent one are only added to the edge lists of the temporary vertex, so that the
+     * shared graph is never modified by a request; the search finds them at the permanent vertex through the
+     * RoutingContext instead.
+     * @return whether this vertex is temporary.
+     */
+    public boolean isTemporary() {
+        return false;
+    }
+
     /**
      * Clean up before garbage collection. Usually this method does nothing, but temporary vertices
      * must provide a method to remove their associated temporary edges from adjacent vertices'
@@ -13,7 +13,7 @@
 
 package org.opentripplanner.routing.impl;
 
-import org.opentripplanner.routing.algorithm.strategies.DefaultRemainingWeightHeuristic;
+import org.opentripplanner.routing.algorithm.strategies.LandmarkRemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.services.RemainingWeightHeuristicFactory;
@@ -21,8 +21,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This trivial RemainingWeightHeuristicFactory returns a Euclidean heuristic instance
- * for every search, irrespective of destination, modes, etc.
+ * This RemainingWeightHeuristicFactory returns a landmark heuristic instance for every search.
+ * It gives the Euclidean bound for transit searches, and for any search when the graph has no
+ * landmarks for its modes.
  * 
  * @author andrewbyrd
  */
@@ -34,8 +35,7 @@ public class DefaultRemainingWeightHeuristicFactoryImpl
 
     @Override
     public RemainingWeightHeuristic getInstanceForSearch(RoutingRequest opt) {
-        //LOG.debug("Using Euclidean heuristic independent of search type.");
-        return new DefaultRemainingWeightHeuristic();
+        return new LandmarkRemainingWeightHeuristic();
     }
 
 }
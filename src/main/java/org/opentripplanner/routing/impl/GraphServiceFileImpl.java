@@ -139,6 +139,7 @@ public class GraphServiceFileImpl implements GraphService {
 
         LOG.debug("graph file for routerId '{}' is at {}", routerId, graphFileName);
         InputStream is = null;
+        File graphFile = null;
         final String CLASSPATH_PREFIX = "classpath:/";
         if (graphFileName.startsWith(CLASSPATH_PREFIX)) {
             // look for graph on classpath
@@ -148,7 +149,7 @@ public class GraphServiceFileImpl implements GraphService {
         } else {
             // look for graph in filesystem
             try {
-                File graphFile = new File(graphFileName);
+                graphFile = new File(graphFileName);
                 is = new FileInputStream(graphFile);
             } catch (IOException ex) {
                 is = null;
@@ -164,7 +165,13 @@ public class GraphServiceFileImpl implements GraphService {
         LOG.info("Loading graph...");
         Graph graph = null;
         try {
-            graph = Graph.load(new ObjectInputStream(is), loadLevel, indexFactory);
+            if (graphFile != null) {
+                // files may be in the mapped format, which cannot be read from a stream
+                is.close();
+                graph = Graph.load(graphFile, loadLevel, indexFactory);
+            } else {
+                graph = Graph.load(new ObjectInputStream(is), loadLevel, indexFactory);
+            }
         } catch (Exception ex) {
             LOG.error("Exception while loading graph from {}.", graphFileName);
             ex.printStackTrace();
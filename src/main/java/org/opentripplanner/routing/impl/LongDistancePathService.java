@@ -22,8 +22,8 @@ import static org.opentripplanner.routing.automata.Nonterminal.star;
 import java.util.Collections;
 import java.util.List;
 
-import org.opentripplanner.routing.algorithm.strategies.DefaultRemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.InterleavedBidirectionalHeuristic;
+import org.opentripplanner.routing.algorithm.strategies.LandmarkRemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.TrivialRemainingWeightHeuristic;
 import org.opentripplanner.routing.automata.DFA;
@@ -94,7 +94,7 @@ public class LongDistancePathService implements PathService {
             // Only use the BiDi heuristic for transit.
             heuristic = new InterleavedBidirectionalHeuristic(options.rctx.graph);
         } else {
-            heuristic = new DefaultRemainingWeightHeuristic();
+            heuristic = new LandmarkRemainingWeightHeuristic();
         }
         options.rctx.remainingWeightHeuristic = heuristic;
         /* In RoutingRequest, maxTransfers defaults to 2. Over long distances, we may see 
@@ -114,6 +114,7 @@ public class LongDistancePathService implements PathService {
         }
         //spt.getPaths().get(0).dump();
         List<GraphPath> paths = spt.getPaths();
+        spt.release();
         Collections.sort(paths, new PathWeightComparator());
         return paths;
     }
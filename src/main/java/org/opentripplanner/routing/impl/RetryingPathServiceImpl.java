@@ -15,11 +15,20 @@ package org.opentripplanner.routing.impl;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.onebusaway.gtfs.model.AgencyAndId;
+import org.opentripplanner.routing.core.RoutingContext;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.pathparser.BasicPathParser;
 import org.opentripplanner.routing.pathparser.NoThruTrafficPathParser;
@@ -32,6 +41,8 @@ import org.opentripplanner.routing.spt.ShortestPathTree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import javax.ws.rs.core.Context;
 
 public class RetryingPathServiceImpl implements PathService {
@@ -81,6 +92,31 @@ public class RetryingPathServiceImpl implements PathService {
         multiPathTimeout = seconds;
     }
 
+    private int subsearchThreads = 0;
+
+    /* The threads running subsearches ahead of time, shared by all requests, created on first use. */
+    private ExecutorService subsearchExecutor;
+
+    /**
+     * Search for the itineraries beyond the first one on this many threads. Once the first path is known, the
+     * subsearches banning the trips of the paths found so far are started ahead of time, up to this many per request
+     * and no more than the itineraries still needed. Their results are still used in the order of a one-at-a-time
+     * search, so the itineraries are the same, only sooner. Each subsearch has the multiPathTimeout. The SPTService
+     * must allow concurrent searches, as GenericAStar does. Zero (the default) runs every subsearch on the thread of
+     * the request.
+     */
+    public void setSubsearchThreads(int threads) {
+        subsearchThreads = threads;
+    }
+
+    private synchronized ExecutorService getSubsearchExecutor() {
+        if (subsearchExecutor == null) {
+            subsearchExecutor = Executors.newFixedThreadPool(subsearchThreads, new ThreadFactoryBuilder()
+                    .setNameFormat("subsearch-%d").setDaemon(true).build());
+        }
+        return subsearchExecutor;
+    }
+
     @Override
     public List<GraphPath> getPaths(RoutingRequest options) {
 
@@ -106,95 +142,125 @@ public class RetryingPathServiceImpl implements PathService {
         double initialMaxWalk = maxWalk;
         long maxTime = options.arriveBy ? 0 : Long.MAX_VALUE;
         RoutingRequest currOptions;
-        while (paths.size() < options.numItineraries) {
-            currOptions = optionQueue.poll();
-            if (currOptions == null) {
-                LOG.debug("Ran out of options to try.");
-                break;
-            }
-            currOptions.setMaxWalkDistance(maxWalk);
+        // the subsearches started ahead of time, by the queued options they were started for
+        Map<RoutingRequest, Subsearch> started = new IdentityHashMap<RoutingRequest, Subsearch>();
+        try {
+            while (paths.size() < options.numItineraries) {
+                if (subsearchThreads > 0 && !paths.isEmpty()) {
+                    startSubsearches(optionQueue, started, maxWalk, options.numItineraries - paths.size());
+                }
+                currOptions = optionQueue.poll();
+                if (currOptions == null) {
+                    LOG.debug("Ran out of options to try.");
+                    break;
+                }
+                currOptions.setMaxWalkDistance(maxWalk);
             
-            // apply appropriate timeout
-            double timeout = paths.isEmpty() ? firstPathTimeout : multiPathTimeout;
+                // apply appropriate timeout
+                double timeout = paths.isEmpty() ? firstPathTimeout : multiPathTimeout;
             
-            // options.worstTime = maxTime;
-            //options.maxWeight = maxWeight;
-            long subsearchBeginTime = System.currentTimeMillis();
+                // options.worstTime = maxTime;
+                //options.maxWeight = maxWeight;
+                long subsearchBeginTime = System.currentTimeMillis();
             
-            LOG.debug("BEGIN SUBSEARCH");
-            ShortestPathTree spt = sptService.getShortestPathTree(currOptions, timeout);
-            if (spt == null) {
-                // Serious failure, no paths provided. This could be signaled with an exception.
-                LOG.warn("Aborting search. {} paths found, elapsed time {} sec", 
-                        paths.size(), (System.currentTimeMillis() - searchBeginTime) / 1000.0);
-                break;
-            }
-            List<GraphPath> somePaths = spt.getPaths(); // somePaths may be empty, but is never null.
-            LOG.debug("END SUBSEARCH ({} msec of {} msec total)", 
-                    System.currentTimeMillis() - subsearchBeginTime,
-                    System.currentTimeMillis() - searchBeginTime);
-            LOG.debug("SPT provides {} paths to target.", somePaths.size());
-
-            /* First, accumulate any new paths found into the list of itineraries. */
-            for (GraphPath path : somePaths) {
-                if ( ! paths.contains(path)) {
-                    if (path.getWalkDistance() > maxWalk) {
-                        maxWalk = path.getWalkDistance() * 1.25;
+                LOG.debug("BEGIN SUBSEARCH");
+                List<GraphPath> somePaths;
+                RoutingContext rctx = options.rctx;
+                Subsearch subsearch = started.remove(currOptions);
+                if (subsearch != null && (subsearch.maxWalk != maxWalk || subsearch.abandonIfNotBegun())) {
+                    // started with another walk distance, or not begun yet: search here rather than wait for it
+                    stopSubsearches(Collections.singletonList(subsearch));
+                    subsearch = null;
+                }
+                if (subsearch != null) {
+                    try {
+                        somePaths = subsearch.future.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof RuntimeException)
+                            throw (RuntimeException) e.getCause();
+                        throw new RuntimeException(e.getCause());
                     }
-                    paths.add(path);
-                    LOG.debug("New trips: {}", path.getTrips());
-                    // ban the trips in this path
-                    // unless is is a non-transit trip (in which case this would cause a useless retry)
-                    if ( ! path.getTrips().isEmpty()) {
-                        RoutingRequest newOptions = currOptions.clone();
-                        for (AgencyAndId trip : path.getTrips()) {
-                            newOptions.banTrip(trip);
-                        }
-                        if (!optionQueue.contains(newOptions)) {
-                            optionQueue.add(newOptions);
+                    rctx = subsearch.options.rctx;
+                } else {
+                    somePaths = search(currOptions, timeout);
+                }
+                if (somePaths == null) {
+                    // Serious failure, no paths provided. This could be signaled with an exception.
+                    LOG.warn("Aborting search. {} paths found, elapsed time {} sec", 
+                            paths.size(), (System.currentTimeMillis() - searchBeginTime) / 1000.0);
+                    break;
+                }
+                LOG.debug("END SUBSEARCH ({} msec of {} msec total)", 
+                        System.currentTimeMillis() - subsearchBeginTime,
+                        System.currentTimeMillis() - searchBeginTime);
+                LOG.debug("SPT provides {} paths to target.", somePaths.size());
+
+                /* First, accumulate any new paths found into the list of itineraries. */
+                for (GraphPath path : somePaths) {
+                    if ( ! paths.contains(path)) {
+                        if (path.getWalkDistance() > maxWalk) {
+                            maxWalk = path.getWalkDistance() * 1.25;
                         }
-                    }           
+                        paths.add(path);
+                        LOG.debug("New trips: {}", path.getTrips());
+                        // ban the trips in this path
+                        // unless is is a non-transit trip (in which case this would cause a useless retry)
+                        if ( ! path.getTrips().isEmpty()) {
+                            RoutingRequest newOptions = currOptions.clone();
+                            for (AgencyAndId trip : path.getTrips()) {
+                                newOptions.banTrip(trip);
+                            }
+                            if (!optionQueue.contains(newOptions)) {
+                                optionQueue.add(newOptions);
+                            }
+                        }           
+                    }
+                }
+                LOG.debug("{} / {} itineraries", paths.size(), currOptions.numItineraries);
+                if (rctx.aborted) {
+                    // search was cleanly aborted, probably due to a timeout. 
+                    // There may be useful paths, but we should stop retrying.
+                    break;
                 }
-            }
-            LOG.debug("{} / {} itineraries", paths.size(), currOptions.numItineraries);
-            if (options.rctx.aborted) {
-                // search was cleanly aborted, probably due to a timeout. 
-                // There may be useful paths, but we should stop retrying.
-                break;
-            }
 
-            /* Vary weight, time, and walk constraints for next iteration. */
-            if (maxWeight == Double.MAX_VALUE && maxWalk == Double.MAX_VALUE) {
-                /* the worst trip we are willing to accept is at most twice as bad or twice as long */
-                if (somePaths.isEmpty()) {
-                    // if there is no first path, there won't be any other paths
-                    return null;
+                /* Vary weight, time, and walk constraints for next iteration. */
+                if (maxWeight == Double.MAX_VALUE && maxWalk == Double.MAX_VALUE) {
+                    /* the worst trip we are willing to accept is at most twice as bad or twice as long */
+                    if (somePaths.isEmpty()) {
+                        // if there is no first path, there won't be any other paths
+                        return null;
+                    }
+                    GraphPath path = somePaths.get(0);
+                    long duration = path.getDuration();
+                    LOG.debug("Setting max time and weight for subsequent searches.");
+                    LOG.debug("First path start time:  {}", path.getStartTime());
+                    maxTime = path.getStartTime() + 
+                    		  MAX_TIME_FACTOR * (currOptions.arriveBy ? -duration : duration);
+                    LOG.debug("First path duration:  {}", duration);
+                    LOG.debug("Max time set to:  {}", maxTime);
+                    maxWeight = path.getWeight() * MAX_WEIGHT_FACTOR;
+                    LOG.debug("Max weight set to:  {}", maxWeight);
+                    if (path.getWalkDistance() > maxWalk) {
+                        maxWalk = path.getWalkDistance() * 1.25;
+                    }
                 }
-                GraphPath path = somePaths.get(0);
-                long duration = path.getDuration();
-                LOG.debug("Setting max time and weight for subsequent searches.");
-                LOG.debug("First path start time:  {}", path.getStartTime());
-                maxTime = path.getStartTime() + 
-                		  MAX_TIME_FACTOR * (currOptions.arriveBy ? -duration : duration);
-                LOG.debug("First path duration:  {}", duration);
-                LOG.debug("Max time set to:  {}", maxTime);
-                maxWeight = path.getWeight() * MAX_WEIGHT_FACTOR;
-                LOG.debug("Max weight set to:  {}", maxWeight);
-                if (path.getWalkDistance() > maxWalk) {
-                    maxWalk = path.getWalkDistance() * 1.25;
+                if (somePaths.isEmpty()) {
+                    //try again doubling maxwalk
+                    LOG.debug("No paths were found.");
+                    if (maxWalk > initialMaxWalk * MAX_WALK_MULTIPLE || maxWalk >= Double.MAX_VALUE)
+                        break;
+                    maxWalk *= 2;
+                    LOG.debug("Doubled walk distance to {}", maxWalk);
+                    optionQueue.add(currOptions);
+                    continue;
                 }
-            }
-            if (somePaths.isEmpty()) {
-                //try again doubling maxwalk
-                LOG.debug("No paths were found.");
-                if (maxWalk > initialMaxWalk * MAX_WALK_MULTIPLE || maxWalk >= Double.MAX_VALUE)
-                    break;
-                maxWalk *= 2;
-                LOG.debug("Doubled walk distance to {}", maxWalk);
-                optionQueue.add(currOptions);
-                continue;
-            }
 
+            }
+        } finally {
+            stopSubsearches(started.values());
         }
         if (paths.size() == 0) {
             return null;
@@ -204,6 +270,124 @@ public class RetryingPathServiceImpl implements PathService {
         return paths;
     }
 
+    /** @return the paths found by a search, or null if it failed. */
+    private List<GraphPath> search(RoutingRequest options, double timeout) {
+        ShortestPathTree spt = sptService.getShortestPathTree(options, timeout);
+        if (spt == null)
+            return null;
+        List<GraphPath> paths = spt.getPaths(); // paths may be empty, but is never null.
+        spt.release();
+        return paths;
+    }
+
+    /**
+     * Start the subsearches of the first queued options, up to the number of threads or of itineraries still needed.
+     * Those started with another walk distance are stopped first, as their paths could differ.
+     */
+    private void startSubsearches(Queue<RoutingRequest> optionQueue, Map<RoutingRequest, Subsearch> started,
+            double maxWalk, int needed) {
+        List<Subsearch> stale = new ArrayList<Subsearch>();
+        for (Iterator<Subsearch> it = started.values().iterator(); it.hasNext();) {
+            Subsearch subsearch = it.next();
+            if (subsearch.maxWalk != maxWalk) {
+                stale.add(subsearch);
+                it.remove();
+            }
+        }
+        stopSubsearches(stale);
+        int limit = Math.min(subsearchThreads, needed);
+        for (RoutingRequest queued : optionQueue) {
+            if (started.size() >= limit)
+                break;
+            if (!started.containsKey(queued)) {
+                Subsearch subsearch = new Subsearch(queued, maxWalk);
+                subsearch.future = getSubsearchExecutor().submit(subsearch);
+                started.put(queued, subsearch);
+            }
+        }
+    }
+
+    /**
+     * Stop subsearches whose paths are not needed, and wait for those already running to notice. They must be done
+     * before the request is cleaned up, as they use its temporary edges.
+     */
+    private static void stopSubsearches(Iterable<Subsearch> subsearches) {
+        for (Subsearch subsearch : subsearches) {
+            subsearch.future.cancel(true);
+        }
+        for (Subsearch subsearch : subsearches) {
+            subsearch.awaitStop();
+        }
+    }
+
+    /**
+     * A search with a copy of queued options and its own routing context, so that it can run while the request
+     * thread and other subsearches use the options of the same request.
+     */
+    private class Subsearch implements Callable<List<GraphPath>> {
+
+        final RoutingRequest options;
+
+        final double maxWalk;
+
+        Future<List<GraphPath>> future;
+
+        /* whether call() has begun or ended its search, and whether it must no longer begin */
+        private boolean begun = false;
+
+        private boolean ended = false;
+
+        private boolean abandoned = false;
+
+        Subsearch(RoutingRequest queued, double maxWalk) {
+            this.maxWalk = maxWalk;
+            options = queued.clone();
+            options.setMaxWalkDistance(maxWalk);
+            options.rctx = queued.rctx.copyForConcurrentSearch(options);
+        }
+
+        @Override
+        public List<GraphPath> call() {
+            synchronized (this) {
+                if (abandoned)
+                    return null;
+                begun = true;
+            }
+            try {
+                return search(options, multiPathTimeout);
+            } finally {
+                synchronized (this) {
+                    ended = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /** @return true if the search had not begun, and will not. */
+        synchronized boolean abandonIfNotBegun() {
+            if (begun)
+                return false;
+            abandoned = true;
+            return true;
+        }
+
+        /** Keep the search from beginning, or wait until it is over. Cancel the future first to end it sooner. */
+        synchronized void awaitStop() {
+            abandoned = true;
+            boolean interrupted = false;
+            while (begun && !ended) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+    }
+
     public GraphService getGraphService() {
         return graphService;
     }
@@ -16,6 +16,8 @@ package org.opentripplanner.routing.impl;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -25,6 +27,7 @@ import java.util.Set;
 
 import org.opentripplanner.common.geometry.DistanceLibrary;
 import org.opentripplanner.common.geometry.HashGridSpatialIndex;
+import org.opentripplanner.common.geometry.PackedSpatialIndex;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
 import org.opentripplanner.common.model.GenericLocation;
 import org.opentripplanner.routing.core.RoutingRequest;
@@ -45,6 +48,7 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Iterables;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.index.SpatialIndex;
@@ -87,23 +91,50 @@ public class StreetVertexIndexServiceImpl implements StreetVertexIndexService {
 
     static final Logger LOG = LoggerFactory.getLogger(StreetVertexIndexServiceImpl.class);
 
+    private static final double M_PER_DEGREE_LAT = 111111.111111;
+
+    /** The kinds of spatial index the edges, vertices and stops can be held in. */
+    public enum IndexType {
+        /** An immutable index packed in flat arrays, see {@link PackedSpatialIndex}. The default. */
+        PACKED,
+        /** A hash grid, see {@link HashGridSpatialIndex}. */
+        HASH_GRID,
+        /** A JTS STR packed R-tree. */
+        STR_TREE
+    }
+
     public StreetVertexIndexServiceImpl(Graph graph) {
-        this(graph, true);
+        this(graph, IndexType.PACKED);
     }
 
     public StreetVertexIndexServiceImpl(Graph graph, boolean hashGrid) {
+        this(graph, hashGrid ? IndexType.HASH_GRID : IndexType.STR_TREE);
+    }
+
+    public StreetVertexIndexServiceImpl(Graph graph, IndexType indexType) {
         this.graph = graph;
-        if (hashGrid) {
+        switch (indexType) {
+        case PACKED:
+            edgeTree = new PackedSpatialIndex<Edge>();
+            transitStopTree = new PackedSpatialIndex<TransitStop>();
+            verticesTree = new PackedSpatialIndex<Vertex>();
+            break;
+        case HASH_GRID:
             edgeTree = new HashGridSpatialIndex<>();
             transitStopTree = new HashGridSpatialIndex<>();
             verticesTree = new HashGridSpatialIndex<>();
-        } else {
+            break;
+        default:
             edgeTree = new STRtree();
             transitStopTree = new STRtree();
             verticesTree = new STRtree();
         }
         postSetup();
-        if (!hashGrid) {
+        if (indexType == IndexType.PACKED) {
+            ((PackedSpatialIndex<?>) edgeTree).build();
+            ((PackedSpatialIndex<?>) transitStopTree).build();
+            ((PackedSpatialIndex<?>) verticesTree).build();
+        } else if (indexType == IndexType.STR_TREE) {
             ((STRtree) edgeTree).build();
             ((STRtree) transitStopTree).build();
         }
@@ -332,6 +363,75 @@ public class StreetVertexIndexServiceImpl implements StreetVertexIndexService {
         return transitStops;
     }
 
+    /** The distance in meters from a point to the geometry of a street edge, infinite for other edges. */
+    private static final PackedSpatialIndex.DistanceFunction<Edge> STREET_EDGE_DISTANCE =
+            new PackedSpatialIndex.DistanceFunction<Edge>() {
+        @Override
+        public double distance(Edge edge, double lon, double lat) {
+            if (!(edge instanceof StreetEdge) || edge.getGeometry() == null) return Double.POSITIVE_INFINITY;
+            return distanceToGeometry(edge.getGeometry(), lon, lat);
+        }
+    };
+
+    /**
+     * Find the k street edges closest to a point, using the distance to their geometry.
+     *
+     * @return up to k edges within radiusMeters of the coordinate, closest first.
+     */
+    @SuppressWarnings("unchecked")
+    public List<StreetEdge> getNearestEdges(final Coordinate coordinate, int k, double radiusMeters) {
+        List<Edge> nearest;
+        if (edgeTree instanceof PackedSpatialIndex) {
+            nearest = ((PackedSpatialIndex<Edge>) edgeTree).nearest(coordinate.x, coordinate.y, k, radiusMeters,
+                    STREET_EDGE_DISTANCE);
+        } else {
+            // other indexes: search the whole radius at once and sort
+            double dLat = radiusMeters / M_PER_DEGREE_LAT;
+            double dLon = dLat / Math.cos(Math.toRadians(coordinate.y));
+            Envelope envelope = new Envelope(coordinate.x - dLon, coordinate.x + dLon, coordinate.y - dLat,
+                    coordinate.y + dLat);
+            nearest = new ArrayList<Edge>();
+            for (Edge e : getEdgesForEnvelope(envelope)) {
+                if (STREET_EDGE_DISTANCE.distance(e, coordinate.x, coordinate.y) <= radiusMeters) nearest.add(e);
+            }
+            Collections.sort(nearest, new Comparator<Edge>() {
+                @Override
+                public int compare(Edge e1, Edge e2) {
+                    return Double.compare(STREET_EDGE_DISTANCE.distance(e1, coordinate.x, coordinate.y),
+                            STREET_EDGE_DISTANCE.distance(e2, coordinate.x, coordinate.y));
+                }
+            });
+            if (nearest.size() > k) nearest = nearest.subList(0, k);
+        }
+        List<StreetEdge> result = new ArrayList<StreetEdge>(nearest.size());
+        for (Edge e : nearest) result.add((StreetEdge) e);
+        return result;
+    }
+
+    /**
+     * @return the distance in meters from a point to a line string, in an equirectangular projection centered on the
+     *         point. Avoids creating any JTS geometry.
+     */
+    static double distanceToGeometry(LineString geometry, double lon, double lat) {
+        CoordinateSequence coords = geometry.getCoordinateSequence();
+        double xScale = Math.cos(Math.toRadians(lat));
+        double best = Double.POSITIVE_INFINITY;
+        double x0 = (coords.getX(0) - lon) * xScale, y0 = coords.getY(0) - lat;
+        if (coords.size() == 1) best = x0 * x0 + y0 * y0;
+        for (int i = 1; i < coords.size(); i++) {
+            double x1 = (coords.getX(i) - lon) * xScale, y1 = coords.getY(i) - lat;
+            // squared distance from the origin to segment (x0, y0) - (x1, y1)
+            double dx = x1 - x0, dy = y1 - y0;
+            double len2 = dx * dx + dy * dy;
+            double t = len2 == 0 ? 0 : Math.max(0, Math.min(1, -(x0 * dx + y0 * dy) / len2));
+            double px = x0 + t * dx, py = y0 + t * dy;
+            best = Math.min(best, px * px + py * py);
+            x0 = x1;
+            y0 = y1;
+        }
+        return Math.sqrt(best) * M_PER_DEGREE_LAT;
+    }
+
     @Override
     public CandidateEdgeBundle getClosestEdges(GenericLocation location,
             TraversalRequirements reqs, List<Edge> extraEdges, Collection<Edge> preferredEdges,
@@ -39,6 +39,8 @@ public class TrivialPathServiceImpl implements PathService {
         if (spt == null) {
             return Collections.emptyList();
         }
-        return spt.getPaths();
+        List<GraphPath> paths = spt.getPaths();
+        spt.release();
+        return paths;
     }
 }
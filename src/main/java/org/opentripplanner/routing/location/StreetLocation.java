@@ -167,13 +167,13 @@ public class StreetLocation extends StreetVertex {
             if (distanceLibrary.distance(nearestPoint, fromv.getCoordinate()) < 1) {
                 // no need to link to area edges caught on-end
                 edgeLocation = fromv;
-                new FreeEdge(location, edgeLocation);
-                new FreeEdge(edgeLocation, location);
+                location.extra.add(new FreeEdge(location, edgeLocation));
+                location.extra.add(new FreeEdge(edgeLocation, location));
             } else if (distanceLibrary.distance(nearestPoint, tov.getCoordinate()) < 1) {
                 // no need to link to area edges caught on-end
                 edgeLocation = tov;
-                new FreeEdge(location, edgeLocation);
-                new FreeEdge(edgeLocation, location);
+                location.extra.add(new FreeEdge(location, edgeLocation));
+                location.extra.add(new FreeEdge(edgeLocation, location));
             } else {
                 // location is somewhere in the middle of the edge.
                 edgeLocation = location;
@@ -287,6 +287,11 @@ public class StreetLocation extends StreetVertex {
         extra.add(new FreeEdge(target, this));
     }
 
+    @Override
+    public boolean isTemporary() {
+        return true;
+    }
+
     @Override
     public int removeTemporaryEdges() {
         int nRemoved = 0;
@@ -298,19 +303,6 @@ public class StreetLocation extends StreetVertex {
         return nRemoved;
     }
 
-    /**
-     * This finalizer is intended as a failsafe to prevent memory leakage in case someone does
-     * not remove temporary edges. It could even be considered an error if it does any work.
-     * removeTemporaryEdges is called by both this finalizer and the RoutingContext.destroy() 
-     * method, which is in turn called by the RoutingRequest.cleanup() method. You need to call 
-     * one of these after you handle a request and know that you no longer need the context.
-     */
-    @Override
-    public void finalize() {
-        if (removeTemporaryEdges() > 0)
-            LOG.error("Temporary edges were removed by finalizer: this is a memory leak.");
-    }
-
     /**
      * Temporary edges are traversable to only one routing context. It was too awkward to rework all the edge-splitting
      * code to pass the routing context down into the temporary edge constructors. Therefore we set the context for
@@ -68,6 +68,10 @@ public abstract class AbstractShortestPathTree implements ShortestPathTree {
     @Override
     public void postVisit(State u) {
     }
+
+    @Override
+    public void release() {
+    }
     
     @Override
     public RoutingRequest getOptions() {
@@ -73,7 +73,7 @@ public class SPTWalker {
         Collection<? extends State> allStates = spt.getAllStates();
         Set<Edge> processedEdges = new HashSet<Edge>(allStates.size());
         for (State s0 : allStates) {
-            for (Edge e : s0.getVertex().getIncoming()) {
+            for (Edge e : s0.getContext().getIncomingEdges(s0.getVertex())) {
                 // Take only street
                 if (e != null && visitor.accept(e)) {
                     State s1 = spt.getState(e.getFromVertex());
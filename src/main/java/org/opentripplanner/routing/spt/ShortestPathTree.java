@@ -114,4 +114,11 @@ public interface ShortestPathTree {
     /** Visit a vertex after it has been settled */
     public void postVisit(State u);
 
+    /**
+     * Signal that the caller is done with this tree, allowing implementations to recycle their
+     * internal storage. The tree must not be used afterward, though states and paths that were
+     * already extracted from it remain valid. Most implementations do nothing.
+     */
+    public void release();
+
 }
\ No newline at end of file
@@ -0,0 +1,196 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.spt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Vertex;
+
+/**
+ * A ShortestPathTree with a single optimal state per vertex, like {@link BasicShortestPathTree}
+ * or {@link EarliestArrivalShortestPathTree}, but storing states in a flat array indexed by
+ * {@link Vertex#getIndex()} instead of a vertex-keyed map. This avoids hashing a Vertex on every
+ * relaxation.
+ *
+ * The arrays are sized to {@link Vertex#getMaxIndex()}, which is too large to allocate for every
+ * search, so they are taken from a small shared pool and must be handed back with
+ * {@link #release()} once the caller has extracted what it needs from the tree. Clearing them
+ * only touches the vertices reached by the search. A tree that is never released is simply
+ * garbage collected.
+ */
+public class VertexIndexedShortestPathTree extends AbstractShortestPathTree {
+
+    /** The criterion used to decide which of two states at the same vertex is kept. */
+    public static enum Criterion {
+        /** Lowest weight, as in {@link BasicShortestPathTree}. */
+        WEIGHT,
+        /** Earliest arrival, as in {@link EarliestArrivalShortestPathTree}. */
+        ARRIVAL_TIME
+    }
+
+    private static final int MAX_POOLED = 8;
+
+    private static final ConcurrentLinkedQueue<Storage> pool = new ConcurrentLinkedQueue<Storage>();
+
+    private final Criterion criterion;
+
+    private Storage storage;
+
+    /**
+     * The per-vertex arrays, kept separate from the tree so that they can outlive it in the pool.
+     * touched lists the indexes of all non-null entries in states, in the order they were reached.
+     */
+    private static class Storage {
+        State[] states;
+        int[] touched;
+        int nTouched;
+
+        Storage(int capacity) {
+            states = new State[capacity];
+            touched = new int[64];
+        }
+
+        void clear() {
+            for (int i = 0; i < nTouched; i++) {
+                states[touched[i]] = null;
+            }
+            nTouched = 0;
+        }
+    }
+
+    public VertexIndexedShortestPathTree(RoutingRequest options, Criterion criterion) {
+        super(options);
+        this.criterion = criterion;
+        storage = pool.poll();
+        if (storage == null) {
+            storage = new Storage(Vertex.getMaxIndex());
+        }
+    }
+
+    /**
+     * Return this tree's storage to the pool. The tree must not be used afterward, but states and
+     * paths already extracted from it remain valid.
+     */
+    @Override
+    public void release() {
+        if (storage == null)
+            return;
+        storage.clear();
+        if (pool.size() < MAX_POOLED) {
+            pool.offer(storage);
+        }
+        storage = null;
+    }
+
+    private State get(Vertex v) {
+        int index = v.getIndex();
+        State[] states = storage.states;
+        return index < states.length ? states[index] : null;
+    }
+
+    private void put(Vertex v, State s) {
+        int index = v.getIndex();
+        Storage st = storage;
+        if (index >= st.states.length) {
+            // vertices created since the storage was allocated, e.g. temporary request vertices
+            st.states = Arrays.copyOf(st.states, Math.max(index + 1, Vertex.getMaxIndex()));
+        }
+        if (st.states[index] == null) {
+            if (st.nTouched == st.touched.length) {
+                st.touched = Arrays.copyOf(st.touched, st.touched.length * 2);
+            }
+            st.touched[st.nTouched++] = index;
+        }
+        st.states[index] = s;
+    }
+
+    private boolean better(State s0, State s1) {
+        if (criterion == Criterion.ARRIVAL_TIME)
+            return s0.getActiveTime() < s1.getActiveTime();
+        return s0.betterThan(s1);
+    }
+
+    /**
+     * See {@link BasicShortestPathTree}: a vertex reached through an edge with turn restrictions
+     * must be explored again by other paths. This does not apply to earliest arrival searches.
+     */
+    private boolean reachedThroughTurnRestriction(State existing) {
+        if (criterion == Criterion.ARRIVAL_TIME)
+            return false;
+        final Edge backEdge = existing.getBackEdge();
+        return backEdge instanceof PlainStreetEdge
+                && ((PlainStreetEdge) backEdge).hasExplicitTurnRestrictions();
+    }
+
+    @Override
+    public List<State> getAllStates() {
+        Storage st = storage;
+        List<State> ret = new ArrayList<State>(st.nTouched);
+        for (int i = 0; i < st.nTouched; i++) {
+            ret.add(st.states[st.touched[i]]);
+        }
+        return ret;
+    }
+
+    /****
+     * {@link ShortestPathTree} Interface
+     ****/
+
+    @Override
+    public boolean add(State state) {
+        Vertex here = state.getVertex();
+        State existing = get(here);
+        if (existing == null || better(state, existing)) {
+            put(here, state);
+            return true;
+        }
+        return reachedThroughTurnRestriction(existing);
+    }
+
+    @Override
+    public List<State> getStates(Vertex dest) {
+        State s = get(dest);
+        if (s == null)
+            return Collections.emptyList();
+        else
+            return Arrays.asList(s); // single-element array-backed list
+    }
+
+    @Override
+    public State getState(Vertex dest) {
+        return get(dest);
+    }
+
+    @Override
+    public boolean visit(State s) {
+        final State existing = get(s.getVertex());
+        if (reachedThroughTurnRestriction(existing))
+            return true;
+        return (s == existing);
+    }
+
+    @Override
+    public int getVertexCount() {
+        return storage.nTouched;
+    }
+
+}
@@ -43,7 +43,7 @@ public class IncrementingIdGenerator<T> implements UniqueIdGenerator<T> {
      * 
      * @return 
      */
-    public int getId(T elem) {
+    public synchronized int getId(T elem) {
         return next++;
     }
 }
@@ -30,6 +30,11 @@ public class OnboardDepartVertex extends Vertex {
         super(null, label, lon, lat, label);
     }
 
+    @Override
+    public boolean isTemporary() {
+        return true;
+    }
+
     @Override
     public int removeTemporaryEdges() {
         // We can remove all
@@ -99,6 +99,19 @@ public class CommandLineParameters {
     description = "Skip embedding config in graph (Embed.properties)")
     boolean noEmbedConfig = false;
 
+    @Parameter(names = {"--buildThreads"}, validateWith = PositiveInteger.class,
+    description = "number of threads used to build the graph")
+    int buildThreads = 1;
+
+    @Parameter(names = {"--landmarks"},
+    description = "precompute landmark distances for faster car and bicycle searches")
+    boolean landmarks = false;
+
+    @Parameter(names = {"--mappedGraph"},
+    description = "save the street network in a memory-mappable columnar format, which loads faster. "
+            + "Its columns are limited to 2GB, about 20 million street edges.")
+    boolean mappedGraph = false;
+
     @Parameter(names = { "--skipVisibility"},
             description = "skip area visibility calculations, which are often time consuming.")
     boolean skipVisibility;
@@ -129,6 +142,10 @@ public class CommandLineParameters {
     @Parameter(names = { "--autoScan" }, description = "auto-scan for graphs in graph directory. Also activate auto-reload.")
     boolean autoScan = false;
 
+    @Parameter( names = { "--itineraryThreads"},
+            description = "number of threads searching ahead for the itineraries beyond the first one")
+    int itineraryThreads = 0;
+
     @Parameter( names = { "-l", "--longDistance"}, 
             description = "use an algorithm tailored for long-distance routing")
     boolean longDistance = false;
@@ -12,6 +12,7 @@ import org.glassfish.grizzly.ssl.SSLContextConfigurator;
 import org.glassfish.grizzly.ssl.SSLEngineConfigurator;
 import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
 import org.glassfish.jersey.server.ContainerFactory;
+import org.opentripplanner.analyst.BinaryFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.bridge.SLF4JBridgeHandler;
@@ -80,7 +81,7 @@ public class GrizzlyServer {
             CompressionConfig cc = listener.getCompressionConfig();
             cc.setCompressionMode(CompressionConfig.CompressionMode.ON);
             cc.setCompressionMinSize(50000); // the min number of bytes to compress
-            cc.setCompressableMimeTypes("application/json", "text/json"); // the mime types to compress
+            cc.setCompressableMimeTypes("application/json", "text/json", BinaryFormat.MEDIA_TYPE); // the mime types to compress
             listener.getTransport().setWorkerThreadPoolConfig(threadPoolConfig);
             httpServer.addListener(listener);
         }
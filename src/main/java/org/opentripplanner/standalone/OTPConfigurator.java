@@ -23,6 +23,7 @@ import java.util.zip.ZipFile;
 import org.opentripplanner.graph_builder.GraphBuilderTask;
 import org.opentripplanner.graph_builder.impl.EmbeddedConfigGraphBuilderImpl;
 import org.opentripplanner.graph_builder.impl.GtfsGraphBuilderImpl;
+import org.opentripplanner.graph_builder.impl.LandmarkGraphBuilderImpl;
 import org.opentripplanner.graph_builder.impl.PruneFloatingIslands;
 import org.opentripplanner.graph_builder.impl.StreetfulStopLinker;
 import org.opentripplanner.graph_builder.impl.StreetlessStopLinker;
@@ -177,7 +178,6 @@ public class OTPConfigurator {
             osmBuilder.setDefaultWayPropertySetSource(defaultWayPropertySetSource);
             osmBuilder.skipVisibility = params.skipVisibility;
             graphBuilder.addGraphBuilder(osmBuilder);
-            graphBuilder.addGraphBuilder(new PruneFloatingIslands());            
         }
         if ( hasGTFS ) {
             List<GtfsBundle> gtfsBundles = Lists.newArrayList();
@@ -191,7 +191,15 @@ public class OTPConfigurator {
                 gtfsBundles.add(gtfsBundle);
             }
             GtfsGraphBuilderImpl gtfsBuilder = new GtfsGraphBuilderImpl(gtfsBundles);
+            gtfsBuilder.setFareServiceFactory(new DefaultFareServiceFactory());
             graphBuilder.addGraphBuilder(gtfsBuilder);
+        }
+        // Islands are pruned after the transit builder but before any linking, so that the street and transit
+        // builders can run concurrently.
+        if ( hasOSM ) {
+            graphBuilder.addGraphBuilder(new PruneFloatingIslands());
+        }
+        if ( hasGTFS ) {
             // When using the long distance path service, or when there is no street data,
             // link stops to each other based on distance only, unless user has requested linking
             // based on transfers.txt or the street network (if available).
@@ -210,7 +218,6 @@ public class OTPConfigurator {
                     graphBuilder.addGraphBuilder(new StreetfulStopLinker());
                 }
             }
-            gtfsBuilder.setFareServiceFactory(new DefaultFareServiceFactory());
         }
         if (configFile != null) {
             EmbeddedConfigGraphBuilderImpl embeddedConfigBuilder = new EmbeddedConfigGraphBuilderImpl();
@@ -223,7 +230,13 @@ public class OTPConfigurator {
             GraphBuilder elevationBuilder = new ElevationGraphBuilderImpl(gcf);
             graphBuilder.addGraphBuilder(elevationBuilder);
         }
+        // Landmark distances depend on the whole street network, elevation included, so they are computed last.
+        if (hasOSM && params.landmarks) {
+            graphBuilder.addGraphBuilder(new LandmarkGraphBuilderImpl());
+        }
         graphBuilder.serializeGraph = ( ! params.inMemory ) || params.preFlight;
+        graphBuilder.mappedGraph = params.mappedGraph;
+        graphBuilder.threads = params.buildThreads;
         return graphBuilder;
     }
 
@@ -81,6 +81,7 @@ public class OTPServer {
             RetryingPathServiceImpl pathService = new RetryingPathServiceImpl(graphService, sptService);
             pathService.setFirstPathTimeout(10.0);
             pathService.setMultiPathTimeout(1.0);
+            pathService.setSubsearchThreads(params.itineraryThreads);
             this.pathService = pathService;
             // cpf.bind(RemainingWeightHeuristicFactory.class,
             //        new DefaultRemainingWeightHeuristicFactoryImpl());
@@ -16,6 +16,7 @@ package org.opentripplanner.updater.stoptime;
 import java.text.ParseException;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Trip;
@@ -53,7 +54,7 @@ public class TimetableSnapshotSource {
      * The last committed snapshot that was handed off to a routing thread. This snapshot may be
      * given to more than one routing thread if the maximum snapshot frequency is exceeded.
      */
-    private TimetableResolver snapshot = null;
+    private volatile TimetableResolver snapshot = null;
 
     /** The working copy of the timetable resolver. Should not be visible to routing threads. */
     private TimetableResolver buffer = new TimetableResolver();
@@ -63,7 +64,13 @@ public class TimetableSnapshotSource {
 
     protected ServiceDate lastPurgeDate = null;
 
-    protected long lastSnapshotTime = -1;
+    protected volatile long lastSnapshotTime = -1;
+
+    /**
+     * Guards the buffer. It is held by the updater thread while applying updates, and only ever
+     * tried (never waited on) by routing threads, which fall back on the current snapshot.
+     */
+    private final ReentrantLock bufferLock = new ReentrantLock();
 
     private final TimeZone timeZone;
 
@@ -81,10 +88,29 @@ public class TimetableSnapshotSource {
      *         release its reference to the snapshot to release resources.
      */
     public TimetableResolver getTimetableSnapshot() {
-        return getTimetableSnapshot(false);
+        // Routing threads never block: if the updater is busy, take the snapshot already published.
+        if (System.currentTimeMillis() - lastSnapshotTime > maxSnapshotFrequency
+                && bufferLock.tryLock()) {
+            try {
+                return commitSnapshot(false);
+            } finally {
+                bufferLock.unlock();
+            }
+        }
+        return snapshot;
     }
 
-    protected synchronized TimetableResolver getTimetableSnapshot(boolean force) {
+    protected TimetableResolver getTimetableSnapshot(boolean force) {
+        bufferLock.lock();
+        try {
+            return commitSnapshot(force);
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    /** Publish a new snapshot if one is due. Must be called with the buffer lock held. */
+    private TimetableResolver commitSnapshot(boolean force) {
         long now = System.currentTimeMillis();
         if (force || now - lastSnapshotTime > maxSnapshotFrequency) {
             if (force || buffer.isDirty()) {
@@ -108,7 +134,15 @@ public class TimetableSnapshotSource {
             LOG.warn("updates is null");
             return;
         }
+        bufferLock.lock();
+        try {
+            applyTripUpdatesLocked(updates, agencyId);
+        } finally {
+            bufferLock.unlock();
+        }
+    }
 
+    private void applyTripUpdatesLocked(List<TripUpdate> updates, String agencyId) {
         LOG.debug("message contains {} trip updates", updates.size());
         int uIndex = 0;
         for (TripUpdate tripUpdate : updates) {
@@ -0,0 +1,171 @@
+package org.opentripplanner.analyst;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class BinaryFormatTest extends TestCase {
+
+    /**
+     * A surface over vertices numbered roughly in order of their position, as they are when created from OSM ways,
+     * so that consecutive vertices have similar times. A quarter of them are unreachable.
+     */
+    private static TimeSurface makeSurface(Random rand, int nVertices) {
+        int[] times = new int[nVertices];
+        int t = 0;
+        for (int v = 0; v < nVertices; v++) {
+            t = Math.max(0, Math.min(5400, t + rand.nextInt(61) - 30));
+            times[v] = rand.nextInt(4) == 0 ? TimeSurface.UNREACHABLE : t;
+        }
+        return new TimeSurface("default", times, 45.5, -122.6);
+    }
+
+    private static PointSet makePointSet(Random rand, int n) {
+        PointSetBuilder builder = new PointSetBuilder();
+        for (int i = 0; i < n; i++) {
+            int index = builder.addFeature("feature" + i, 45.5 + (i / 1000) * 1e-3, -122.6 + (i % 1000) * 1e-3, null);
+            builder.setProperty(index, "jobs:retail", rand.nextInt(50));
+            builder.setProperty(index, "jobs:office", rand.nextInt(200));
+        }
+        PointSet pset = builder.build();
+        pset.id = "random";
+        return pset;
+    }
+
+    private static DataInputStream input(ByteArrayOutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        return in;
+    }
+
+    public void testTimeSurface() throws IOException {
+        TimeSurface surface = makeSurface(new Random(42), 10000);
+        surface.cutoffMinutes = 90;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        surface.writeBinary(out);
+        DataInputStream in = input(out);
+        assertEquals(BinaryFormat.TIME_SURFACE, BinaryFormat.readHeader(in));
+        assertEquals(surface.id, in.readInt());
+        assertEquals(surface.lat, in.readDouble());
+        assertEquals(surface.lon, in.readDouble());
+        assertEquals(90, in.readInt());
+        assertTrue(Arrays.equals(surface.times, BinaryFormat.readDeltas(in)));
+        assertEquals(0, in.available());
+    }
+
+    public void testResultFeature() throws IOException {
+        Random rand = new Random(43);
+        PointSet pset = makePointSet(rand, 5000);
+        int[] times = new int[pset.capacity];
+        for (int i = 0; i < times.length; i++) times[i] = rand.nextInt(5400);
+        ResultFeature indicator = new ResultFeature();
+        indicator.id = "indicator";
+        for (String property : pset.properties.keySet()) {
+            indicator.histograms.put(property, new Histogram(times, pset.properties.get(property)));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        indicator.writeBinary(out);
+        DataInputStream in = input(out);
+        assertEquals(BinaryFormat.RESULT_FEATURE, BinaryFormat.readHeader(in));
+        assertEquals("indicator", in.readUTF());
+        assertEquals(2, in.readInt());
+        for (int h = 0; h < 2; h++) {
+            Histogram histogram = indicator.histograms.get(in.readUTF());
+            assertTrue(Arrays.equals(histogram.sums, BinaryFormat.readDeltas(in)));
+            assertTrue(Arrays.equals(histogram.counts, BinaryFormat.readDeltas(in)));
+        }
+        assertEquals(0, in.available());
+    }
+
+    public void testPointSet() throws IOException {
+        PointSet pset = makePointSet(new Random(44), 3000).slice(1000, 2000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pset.writeBinary(out);
+        DataInputStream in = input(out);
+        assertEquals(BinaryFormat.POINT_SET, BinaryFormat.readHeader(in));
+        assertEquals("random", in.readUTF());
+        assertEquals("", in.readUTF());
+        assertEquals("", in.readUTF());
+        assertEquals(1000, in.readInt());
+        for (int i = 0; i < 1000; i++) assertEquals("feature" + (1000 + i), in.readUTF());
+        int[] lats = BinaryFormat.readDeltas(in);
+        int[] lons = BinaryFormat.readDeltas(in);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(pset.getLat(i), PointSet.fromFixed(lats[i]));
+            assertEquals(pset.getLon(i), PointSet.fromFixed(lons[i]));
+        }
+        assertEquals(2, in.readInt());
+        for (int p = 0; p < 2; p++) {
+            String property = in.readUTF();
+            int[] values = BinaryFormat.readDeltas(in);
+            assertEquals(1000, values.length);
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(pset.getFeature(i).getProperty(property), values[i]);
+            }
+        }
+        assertEquals(0, in.available());
+    }
+
+    private interface Writer {
+        public void write(OutputStream out) throws IOException;
+    }
+
+    /** The number of bytes the writer writes, as is and gzipped. */
+    private static int[] sizes(Writer writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(out);
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+        gzip.write(out.toByteArray());
+        gzip.close();
+        return new int[] { out.size(), gzipped.size() };
+    }
+
+    /**
+     * Check that the binary format is smaller than JSON for a surface over a million vertices and a 100k-point set,
+     * also when both are gzipped as they are in transfer.
+     */
+    public void testSmallerThanJson() throws IOException {
+        Random rand = new Random(45);
+        final TimeSurface surface = makeSurface(rand, 1000000);
+        final PointSet pset = makePointSet(rand, 100000);
+        final ObjectMapper mapper = new ObjectMapper();
+        int[] surfaceJson = sizes(new Writer() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                mapper.writeValue(out, surface.times);
+            }
+        });
+        int[] surfaceBinary = sizes(new Writer() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                surface.writeBinary(out);
+            }
+        });
+        assertTrue(surfaceBinary[0] * 3 < surfaceJson[0]);
+        assertTrue(surfaceBinary[1] < surfaceJson[1]);
+        int[] psetJson = sizes(new Writer() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                pset.writeJson(out, true);
+            }
+        });
+        int[] psetBinary = sizes(new Writer() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                pset.writeBinary(out);
+            }
+        });
+        assertTrue(psetBinary[0] * 5 < psetJson[0]);
+        assertTrue(psetBinary[1] * 2 < psetJson[1]);
+    }
+
+}
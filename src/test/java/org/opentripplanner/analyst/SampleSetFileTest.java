@@ -0,0 +1,219 @@
+package org.opentripplanner.analyst;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.analyst.core.Sample;
+import org.opentripplanner.analyst.request.SampleFactory;
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
+import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Graph.LoadLevel;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+
+/**
+ * Snaps a point set to a small street grid, and saves the sample set to a file and loads it back.
+ */
+public class SampleSetFileTest extends TestCase {
+
+    private static final int GRID_SIZE = 8;
+
+    private static final double LON0 = -122.68, LAT0 = 45.52, STEP = 0.002;
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("samples", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @Override
+    protected void tearDown() {
+        for (File file : dir.listFiles()) file.delete();
+        dir.delete();
+    }
+
+    /** A grid of two-way streets, with vertices labeled by their position in the grid. */
+    static Graph makeGraph() {
+        Graph graph = new Graph();
+        IntersectionVertex[][] vertices = new IntersectionVertex[GRID_SIZE][GRID_SIZE];
+        for (int x = 0; x < GRID_SIZE; x++) {
+            for (int y = 0; y < GRID_SIZE; y++) {
+                vertices[x][y] = new IntersectionVertex(graph, "v_" + x + "_" + y, LON0 + x * STEP, LAT0 + y * STEP);
+            }
+        }
+        for (int x = 0; x < GRID_SIZE; x++) {
+            for (int y = 0; y < GRID_SIZE; y++) {
+                if (x + 1 < GRID_SIZE) makeStreet(vertices[x][y], vertices[x + 1][y]);
+                if (y + 1 < GRID_SIZE) makeStreet(vertices[x][y], vertices[x][y + 1]);
+            }
+        }
+        graph.rebuildVertexAndEdgeIndices();
+        return graph;
+    }
+
+    private static void makeStreet(IntersectionVertex a, IntersectionVertex b) {
+        double length = SphericalDistanceLibrary.getInstance().distance(a.getCoordinate(), b.getCoordinate());
+        new PlainStreetEdge(a, b, GeometryUtils.makeLineString(a.getX(), a.getY(), b.getX(), b.getY()),
+                a.getLabel() + " to " + b.getLabel(), length, StreetTraversalPermission.ALL, false);
+        new PlainStreetEdge(b, a, GeometryUtils.makeLineString(b.getX(), b.getY(), a.getX(), a.getY()),
+                b.getLabel() + " to " + a.getLabel(), length, StreetTraversalPermission.ALL, true);
+    }
+
+    /** Random points over the grid, and every tenth point too far from it to be snapped. */
+    static PointSet makePointSet(String id, int n) {
+        Random rand = new Random(42);
+        PointSetBuilder builder = new PointSetBuilder();
+        double extent = (GRID_SIZE - 1) * STEP;
+        for (int i = 0; i < n; i++) {
+            double lat = LAT0 + rand.nextDouble() * extent;
+            double lon = LON0 + rand.nextDouble() * extent;
+            if (i % 10 == 0) lon += 1;
+            int index = builder.addFeature("point" + i, lat, lon, null);
+            builder.setProperty(index, "jobs", rand.nextInt(100));
+        }
+        PointSet pset = builder.build();
+        pset.id = id;
+        return pset;
+    }
+
+    private static void assertSameSamples(SampleSet expected, SampleSet actual) {
+        assertTrue(Arrays.equals(expected.v0s, actual.v0s));
+        assertTrue(Arrays.equals(expected.v1s, actual.v1s));
+        assertTrue(Arrays.equals(expected.t0s, actual.t0s));
+        assertTrue(Arrays.equals(expected.t1s, actual.t1s));
+    }
+
+    public void testGetSamples() {
+        Graph graph = makeGraph();
+        PointSet pset = makePointSet("points", 500);
+        SampleFactory sfac = graph.getSampleFactory();
+        Sample[] samples = sfac.getSamples(pset);
+        assertEquals(pset.capacity, samples.length);
+        for (int i = 0; i < pset.capacity; i++) {
+            Sample expected = sfac.getSample(pset.getLon(i), pset.getLat(i));
+            if (expected == null) {
+                assertNull(samples[i]);
+                continue;
+            }
+            assertSame(expected.v0, samples[i].v0);
+            assertSame(expected.v1, samples[i].v1);
+            assertEquals(expected.t0, samples[i].t0);
+            assertEquals(expected.t1, samples[i].t1);
+        }
+        assertNull(samples[0]); // too far from the grid
+    }
+
+    public void testWriteRead() throws IOException {
+        Graph graph = makeGraph();
+        PointSet pset = makePointSet("points", 500);
+        SampleSet samples = new SampleSet(pset, graph);
+        File file = new File(dir, "points.samples");
+        samples.write(file, graph);
+        assertEquals(1, dir.listFiles().length); // no temporary file left behind
+        SampleSet read = SampleSet.read(file, pset, graph);
+        assertNotNull(read);
+        assertSameSamples(samples, read);
+        // overwriting an existing file
+        samples.write(file, graph);
+        assertSameSamples(samples, SampleSet.read(file, pset, graph));
+    }
+
+    public void testRejectStaleBuildTime() throws IOException {
+        Graph graph = makeGraph();
+        PointSet pset = makePointSet("points", 500);
+        File file = new File(dir, "points.samples");
+        new SampleSet(pset, graph).write(file, graph);
+        graph.buildTime.setTime(graph.buildTime.getTime() + 1000);
+        assertNull(SampleSet.read(file, pset, graph));
+    }
+
+    public void testRejectOtherPointSet() throws IOException {
+        Graph graph = makeGraph();
+        PointSet pset = makePointSet("points", 500);
+        File file = new File(dir, "points.samples");
+        new SampleSet(pset, graph).write(file, graph);
+        assertNull(SampleSet.read(file, makePointSet("others", 500), graph));
+        assertNull(SampleSet.read(file, makePointSet("points", 499), graph));
+    }
+
+    public void testMissingVertex() throws IOException {
+        Graph graph = makeGraph();
+        PointSet pset = makePointSet("points", 500);
+        SampleSet samples = new SampleSet(pset, graph);
+        File file = new File(dir, "points.samples");
+        samples.write(file, graph);
+        // the same streets, built again at the same time, but without a sampled vertex
+        Graph other = makeGraph();
+        other.buildTime.setTime(graph.buildTime.getTime());
+        other.removeVertexAndEdges(other.getVertex(graph.getVertexById(samples.v0s[1]).getLabel()));
+        assertNull(SampleSet.read(file, pset, other));
+    }
+
+    public void testGetSampleSetSavesFile() {
+        Graph graph = makeGraph();
+        graph.routerId = "test";
+        PointSet pset = makePointSet("points", 500);
+        pset.setSampleSetDirectory(dir);
+        SampleSet samples = pset.getSampleSet(graph);
+        assertTrue(pset.getSampleSetFile(graph).exists());
+        assertSame(samples, pset.getSampleSet(graph));
+        // another copy of the point set loads the samples from the file
+        PointSet copy = makePointSet("points", 500);
+        copy.setSampleSetDirectory(dir);
+        assertSameSamples(samples, copy.getSampleSet(graph));
+    }
+
+    /**
+     * Vertex indexes are assigned anew when a graph is loaded, so a graph reloaded from the same file must not reuse
+     * the samples made for the graph it replaces, although both have the same build time.
+     */
+    public void testReloadedGraph() throws Exception {
+        Graph graph = makeGraph();
+        graph.routerId = "test";
+        PointSet pset = makePointSet("points", 500);
+        SampleSet samples = pset.getSampleSet(graph);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        graph.save(out);
+        out.close();
+        Graph reloaded = Graph.load(new ByteArrayInputStream(bytes.toByteArray()), LoadLevel.FULL);
+        reloaded.routerId = "test";
+        assertEquals(graph.buildTime, reloaded.buildTime);
+        SampleSet reloadedSamples = pset.getSampleSet(reloaded);
+        assertNotSame(samples, reloadedSamples);
+        assertTrue(reloadedSamples.isFor(reloaded));
+        assertFalse(reloadedSamples.isFor(graph));
+        // the indicator is the same as with samples made for the reloaded graph
+        TimeSurface surf = makeSurface(reloaded);
+        SampleSet expected = new SampleSet(pset, reloaded);
+        assertTrue(Arrays.equals(expected.eval(surf), reloadedSamples.eval(surf)));
+        Histogram jobs = reloadedSamples.evalHistograms(surf).get("jobs");
+        assertTrue(jobs.counts.length > 0);
+        assertTrue(Arrays.equals(expected.evalHistograms(surf).get("jobs").counts, jobs.counts));
+        assertTrue(Arrays.equals(expected.evalHistograms(surf).get("jobs").sums, jobs.sums));
+    }
+
+    /** Times that depend on the vertex labels only, not on their indexes. */
+    private static TimeSurface makeSurface(Graph graph) {
+        int[] times = new int[Vertex.getMaxIndex()];
+        Arrays.fill(times, TimeSurface.UNREACHABLE);
+        for (Vertex v : graph.getVertices()) {
+            times[v.getIndex()] = Math.abs(v.getLabel().hashCode()) % 1800;
+        }
+        return new TimeSurface("test", times, LAT0, LON0);
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.opentripplanner.analyst;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SampleSetTest extends TestCase {
+
+    private static final int N_VERTICES = 200000;
+
+    /**
+     * Make a point set of the given size with two properties, sampled to random vertices, some points unsampled or
+     * sampled to one end of their road only.
+     */
+    private static SampleSet randomSampleSet(Random rand, int n) {
+        PointSet pset = new PointSet(n);
+        pset.id = "random";
+        int[] jobs = new int[n];
+        int[] population = new int[n];
+        for (int i = 0; i < n; i++) {
+            jobs[i] = rand.nextInt(20);
+            population[i] = rand.nextInt(100);
+        }
+        pset.properties.put("jobs", jobs);
+        pset.properties.put("population", population);
+        SampleSet samples = new SampleSet(pset, 0);
+        for (int i = 0; i < n; i++) {
+            if (rand.nextInt(50) == 0) continue; // too far from any street
+            samples.v0s[i] = rand.nextInt(N_VERTICES);
+            samples.t0s[i] = rand.nextInt(300);
+            if (rand.nextInt(10) == 0) continue; // dead end
+            samples.v1s[i] = rand.nextInt(N_VERTICES);
+            samples.t1s[i] = rand.nextInt(300);
+        }
+        return samples;
+    }
+
+    private static TimeSurface randomSurface(Random rand) {
+        int[] times = new int[N_VERTICES];
+        for (int v = 0; v < N_VERTICES; v++) {
+            times[v] = rand.nextInt(4) == 0 ? TimeSurface.UNREACHABLE : rand.nextInt(7200);
+        }
+        return new TimeSurface("default", times, 45.5, -122.6);
+    }
+
+    /** Evaluate a surface one point at a time, as a single sample would. */
+    private static int[] evalPointByPoint(SampleSet samples, TimeSurface surf) {
+        int[] ret = new int[samples.pset.capacity];
+        for (int i = 0; i < ret.length; i++) {
+            long m0 = Integer.MAX_VALUE;
+            long m1 = Integer.MAX_VALUE;
+            if (samples.v0s[i] >= 0 && surf.times[samples.v0s[i]] != TimeSurface.UNREACHABLE) {
+                m0 = surf.times[samples.v0s[i]] + samples.t0s[i];
+            }
+            if (samples.v1s[i] >= 0 && surf.times[samples.v1s[i]] != TimeSurface.UNREACHABLE) {
+                m1 = surf.times[samples.v1s[i]] + samples.t1s[i];
+            }
+            ret[i] = (int) Math.min(m0, m1);
+        }
+        return ret;
+    }
+
+    private static void assertSameHistograms(SampleSet samples, int[] times, Map<String, Histogram> histograms) {
+        assertEquals(samples.pset.properties.keySet(), histograms.keySet());
+        for (Map.Entry<String, int[]> property : samples.pset.properties.entrySet()) {
+            Histogram expected = new Histogram(times, property.getValue());
+            Histogram actual = histograms.get(property.getKey());
+            assertTrue(Arrays.equals(expected.counts, actual.counts));
+            assertTrue(Arrays.equals(expected.sums, actual.sums));
+        }
+    }
+
+    public void testEval() {
+        Random rand = new Random(42);
+        TimeSurface surf = randomSurface(rand);
+        // below and above the size at which evaluation is split across threads
+        for (int n : new int[] { 0, 1000, 300000 }) {
+            SampleSet samples = randomSampleSet(rand, n);
+            int[] expected = evalPointByPoint(samples, surf);
+            int[] times = samples.eval(surf);
+            assertTrue(Arrays.equals(expected, times));
+            assertSameHistograms(samples, times, samples.evalHistograms(surf));
+        }
+    }
+
+    public void testHistogramBins() {
+        assertEquals(-1, Histogram.bin(TimeSurface.UNREACHABLE));
+        assertEquals(-1, Histogram.bin(Integer.MAX_VALUE));
+        assertEquals(0, Histogram.bin(0));
+        assertEquals(1, Histogram.bin(1));
+        assertEquals(1, Histogram.bin(60));
+        assertEquals(2, Histogram.bin(61));
+        assertEquals(Histogram.MAX_BINS - 1, Histogram.bin((Histogram.MAX_BINS - 1) * 60));
+        assertEquals(-1, Histogram.bin((Histogram.MAX_BINS - 1) * 60 + 1));
+    }
+
+}
@@ -0,0 +1,232 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.analyst.batch;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opentripplanner.analyst.batch.aggregator.Aggregator;
+import org.opentripplanner.analyst.batch.aggregator.ThresholdSumAggregator;
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
+import org.opentripplanner.common.model.GenericLocation;
+import org.opentripplanner.routing.algorithm.GenericAStar;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.impl.GraphServiceBeanImpl;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+
+/**
+ * Runs a small batch on a grid of streets, and compares the results with searches made one origin after another
+ * with a single shared search service, as the processor used to do.
+ */
+public class BatchProcessorTest {
+
+    private static final int GRID_SIZE = 6;
+
+    private static final double LON0 = -122.68, LAT0 = 45.52, STEP = 0.002;
+
+    private static final int N_THREADS = 2, TASKS_PER_THREAD = 2;
+
+    private static final int THRESHOLD_SECONDS = 300;
+
+    private Graph graph;
+
+    private Random rand;
+
+    /**
+     * A population which keeps the result set written at the end of a run, and counts the individuals handed out
+     * by every iterator after the first, which only counts the tasks.
+     */
+    private static class RecordingPopulation extends BasicPopulation {
+
+        private int nIterators = 0;
+
+        final AtomicInteger nTaken = new AtomicInteger();
+
+        ResultSet written;
+
+        @Override
+        public Iterator<Individual> iterator() {
+            final Iterator<Individual> iter = super.iterator();
+            if (nIterators++ == 0) return iter;
+            return new Iterator<Individual>() {
+                public boolean hasNext() {
+                    return iter.hasNext();
+                }
+
+                public Individual next() {
+                    nTaken.incrementAndGet();
+                    return iter.next();
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public void writeAppropriateFormat(String outFileName, ResultSet results) {
+            written = results;
+        }
+    }
+
+    /** Counts the origins completed, and tracks how many were taken but not yet completed. */
+    private static class CountingAggregator implements Aggregator {
+
+        final Aggregator aggregator;
+
+        final RecordingPopulation origins;
+
+        final AtomicInteger nCompleted = new AtomicInteger();
+
+        int maxInFlight = 0;
+
+        CountingAggregator(Aggregator aggregator, RecordingPopulation origins) {
+            this.aggregator = aggregator;
+            this.origins = origins;
+        }
+
+        @Override
+        public double computeAggregate(ResultSet results) {
+            synchronized (this) {
+                maxInFlight = Math.max(maxInFlight, origins.nTaken.get() - nCompleted.get());
+            }
+            double aggregate = aggregator.computeAggregate(results);
+            nCompleted.incrementAndGet();
+            return aggregate;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        graph = new Graph();
+        IntersectionVertex[][] vertices = new IntersectionVertex[GRID_SIZE][GRID_SIZE];
+        for (int x = 0; x < GRID_SIZE; x++) {
+            for (int y = 0; y < GRID_SIZE; y++) {
+                vertices[x][y] = new IntersectionVertex(graph, "v_" + x + "_" + y, LON0 + x * STEP, LAT0 + y * STEP);
+            }
+        }
+        for (int x = 0; x < GRID_SIZE; x++) {
+            for (int y = 0; y < GRID_SIZE; y++) {
+                if (x + 1 < GRID_SIZE) makeStreet(vertices[x][y], vertices[x + 1][y]);
+                if (y + 1 < GRID_SIZE) makeStreet(vertices[x][y], vertices[x][y + 1]);
+            }
+        }
+        graph.rebuildVertexAndEdgeIndices();
+        rand = new Random(42);
+    }
+
+    private static void makeStreet(IntersectionVertex a, IntersectionVertex b) {
+        double length = SphericalDistanceLibrary.getInstance().distance(a.getCoordinate(), b.getCoordinate());
+        new PlainStreetEdge(a, b, GeometryUtils.makeLineString(a.getX(), a.getY(), b.getX(), b.getY()),
+                a.getLabel() + " to " + b.getLabel(), length, StreetTraversalPermission.ALL, false);
+        new PlainStreetEdge(b, a, GeometryUtils.makeLineString(b.getX(), b.getY(), a.getX(), a.getY()),
+                b.getLabel() + " to " + a.getLabel(), length, StreetTraversalPermission.ALL, true);
+    }
+
+    /** Random individuals over the grid, with small whole inputs so that sums are exact in any order. */
+    private RecordingPopulation makePopulation(String prefix, int n) {
+        RecordingPopulation population = new RecordingPopulation();
+        double extent = (GRID_SIZE - 1) * STEP;
+        for (int i = 0; i < n; i++) {
+            population.addIndividual(new Individual(prefix + i, LON0 + rand.nextDouble() * extent,
+                    LAT0 + rand.nextDouble() * extent, rand.nextInt(10)));
+        }
+        return population;
+    }
+
+    private BatchProcessor makeProcessor(Population origins, Population destinations) {
+        BatchProcessor processor = new BatchProcessor();
+        GraphServiceBeanImpl graphService = new GraphServiceBeanImpl();
+        graphService.setGraph(graph);
+        processor.setGraphService(graphService);
+        processor.setSptService(new GenericAStar());
+        processor.setSampleFactory(graph.getSampleFactory());
+        processor.setOrigins(origins);
+        processor.setDestinations(destinations);
+        processor.setPrototypeRoutingRequest(new RoutingRequest("WALK"));
+        processor.setNThreads(N_THREADS);
+        processor.setTasksPerThread(TASKS_PER_THREAD);
+        return processor;
+    }
+
+    /** The travel times from one origin, searched with a new service as all origins once shared. */
+    private ResultSet search(Individual origin, Population destinations) {
+        RoutingRequest req = new RoutingRequest("WALK");
+        req.setDateTime("2011-02-04", "08:00 AM", TimeZone.getDefault());
+        req.batch = true;
+        req.from = new GenericLocation(origin.lat, origin.lon);
+        req.setRoutingContext(graph);
+        ShortestPathTree spt = new GenericAStar().getShortestPathTree(req);
+        ResultSet results = ResultSet.forTravelTimes(destinations, spt);
+        req.cleanup();
+        return results;
+    }
+
+    @Test
+    public void testAggregate() {
+        RecordingPopulation origins = makePopulation("origin", 30);
+        RecordingPopulation destinations = makePopulation("destination", 40);
+        ThresholdSumAggregator sum = new ThresholdSumAggregator();
+        sum.threshold = THRESHOLD_SECONDS;
+        CountingAggregator aggregator = new CountingAggregator(sum, origins);
+        BatchProcessor processor = makeProcessor(origins, destinations);
+        processor.setAggregator(aggregator);
+        processor.run();
+
+        assertEquals(30, aggregator.nCompleted.get());
+        assertTrue(aggregator.maxInFlight <= N_THREADS * TASKS_PER_THREAD);
+        ResultSet results = origins.written;
+        assertNotNull(results);
+        int i = 0;
+        boolean someReached = false;
+        for (Individual origin : origins) {
+            double expected = sum.computeAggregate(search(origin, destinations));
+            assertEquals(expected, results.results[i++], 0);
+            someReached |= expected > 0;
+        }
+        assertTrue(someReached);
+    }
+
+    @Test
+    public void testAccumulate() {
+        RecordingPopulation origins = makePopulation("origin", 30);
+        RecordingPopulation destinations = makePopulation("destination", 40);
+        ThresholdAccumulator accumulator = new ThresholdAccumulator();
+        accumulator.thresholdSeconds = THRESHOLD_SECONDS;
+        BatchProcessor processor = makeProcessor(origins, destinations);
+        processor.setAccumulator(accumulator);
+        processor.run();
+
+        ResultSet results = destinations.written;
+        assertNotNull(results);
+        ResultSet expected = new ResultSet(destinations, new double[destinations.size()]);
+        for (Individual origin : origins) {
+            accumulator.accumulate(origin.input, search(origin, destinations), expected);
+        }
+        assertArrayEquals(expected.results, results.results, 0);
+    }
+
+}
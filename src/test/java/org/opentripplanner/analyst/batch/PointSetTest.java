@@ -5,13 +5,18 @@ import junit.framework.TestCase;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.opentripplanner.analyst.EmptyPolygonException;
+import org.opentripplanner.analyst.GeoJsonPointSetReader;
 import org.opentripplanner.analyst.PointFeature;
 import org.opentripplanner.analyst.PointSet;
 import org.opentripplanner.analyst.UnsupportedGeometryException;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -67,6 +72,52 @@ public class PointSetTest extends TestCase {
     	PointSet lastHalf = points.slice(1, 2);
     	assertEquals( lastHalf.featureCount(), 1 );
     	assertEquals( lastHalf.getFeature(0).getId(), "XYZ0002" );
+    	assertEquals( lastHalf.getLat(0), points.getLat(1) );
+    	assertEquals( lastHalf.getFeature(0).getProperty("age:child"), 5 );
+    	
+    	// slices share the features of the point set they were taken from
+    	PointFeature changed = lastHalf.getFeature(0);
+    	changed.addAttribute("age:child", 7);
+    	lastHalf.addFeature(changed, 0);
+    	assertEquals( points.getFeature(1).getProperty("age:child"), 7 );
+    }
+
+    public void testReadGeoJsonInChunks() throws IOException {
+        GeoJsonPointSetReader reader = new GeoJsonPointSetReader(
+                new FileInputStream("src/test/resources/pointset/population.geo.json"));
+        try {
+            PointSet first = reader.next(1);
+            assertEquals(first.capacity, 1);
+            assertEquals(first.getFeature(0).getId(), "XYZ0001");
+            PointSet second = reader.next(1);
+            assertEquals(second.capacity, 1);
+            assertEquals(second.getFeature(0).getId(), "XYZ0002");
+            assertEquals(second.getFeature(0).getProperty("education:high"), 8);
+            assertNull(reader.next(1));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Load a large GeoJSON point set, which is read in a single streaming pass. */
+    public void testLoadLarge() throws IOException {
+        File file = File.createTempFile("points", ".geo.json");
+        file.deleteOnExit();
+        int n = 100000;
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        out.println("{\"type\": \"FeatureCollection\", \"features\": [");
+        for (int i = 0; i < n; i++) {
+            // the root locale writes JSON numbers whatever the default locale
+            out.printf(Locale.ROOT, "{\"type\": \"Feature\", \"id\": \"%d\", \"properties\": {\"structured\": "
+                    + "{\"jobs\": {\"retail\": %d, \"office\": %d}}}, \"geometry\": {\"type\": \"Point\", "
+                    + "\"coordinates\": [%f, %f]}}%s\n", i, i % 10, i % 7, -122.6 + (i % 1000) * 1e-4,
+                    45.5 + (i / 1000) * 1e-4, i < n - 1 ? "," : "");
+        }
+        out.println("]}");
+        out.close();
+        PointSet points = PointSet.fromGeoJson(file);
+        assertEquals(points.capacity, n);
+        assertEquals(points.getFeature(n - 1).getProperty("jobs:office"), (n - 1) % 7);
     }
 
     /* TODO Round trip serialization and deserialization to GeoJSON. */
@@ -0,0 +1,85 @@
+package org.opentripplanner.api.resource;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+import junit.framework.TestCase;
+
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ContainerResponse;
+import org.opentripplanner.analyst.BinaryFormat;
+import org.opentripplanner.analyst.PointFeature;
+import org.opentripplanner.analyst.PointSet;
+import org.opentripplanner.analyst.PointSetCache;
+import org.opentripplanner.standalone.CommandLineParameters;
+import org.opentripplanner.standalone.OTPApplication;
+import org.opentripplanner.standalone.OTPServer;
+
+/**
+ * Requests a point set through the whole web application, to check which representation each Accept header gets.
+ */
+public class PointSetResourceTest extends TestCase {
+
+    private ApplicationHandler handler;
+
+    @Override
+    protected void setUp() {
+        final PointSet pset = new PointSet(3);
+        pset.id = "test";
+        for (int i = 0; i < pset.capacity; i++) {
+            PointFeature feature = new PointFeature("point" + i);
+            feature.setLat(45.5 + i * 1e-3);
+            feature.setLon(-122.6);
+            feature.addAttribute("jobs", i);
+            pset.addFeature(feature, i);
+        }
+        OTPServer server = new OTPServer(new CommandLineParameters(), new SimpleGraphServiceImpl());
+        server.pointSetCache = new PointSetCache() {
+            @Override
+            public PointSet get(String pointSetId) {
+                return pset.id.equals(pointSetId) ? pset : null;
+            }
+
+            @Override
+            public List<String> getPointSetIds() {
+                return Collections.singletonList(pset.id);
+            }
+        };
+        handler = new ApplicationHandler(new OTPApplication(server));
+    }
+
+    private MediaType get(String path, String accept) throws Exception {
+        ContainerRequest request = new ContainerRequest(URI.create("http://localhost/"),
+                URI.create("http://localhost" + path), "GET", null, new MapPropertiesDelegate());
+        if (accept != null) request.header(HttpHeaders.ACCEPT, accept);
+        ContainerResponse response = handler.apply(request).get();
+        assertEquals(200, response.getStatus());
+        return response.getMediaType();
+    }
+
+    private static void assertType(String expected, MediaType actual) {
+        assertTrue(actual + " is not " + expected, MediaType.valueOf(expected).isCompatible(actual));
+    }
+
+    public void testWildcardGetsJson() throws Exception {
+        assertType(MediaType.APPLICATION_JSON, get("/pointsets/test", "*/*"));
+        assertType(MediaType.APPLICATION_JSON, get("/pointsets/test", null));
+        // browsers send something like this
+        assertType(MediaType.APPLICATION_JSON, get("/pointsets/test",
+                "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8"));
+    }
+
+    public void testBinaryOnRequest() throws Exception {
+        assertType(MediaType.APPLICATION_JSON, get("/pointsets/test", MediaType.APPLICATION_JSON));
+        assertType(BinaryFormat.MEDIA_TYPE, get("/pointsets/test", BinaryFormat.MEDIA_TYPE));
+        assertType(BinaryFormat.MEDIA_TYPE, get("/pointsets/test",
+                BinaryFormat.MEDIA_TYPE + ", " + MediaType.APPLICATION_JSON + ";q=0.5"));
+    }
+
+}
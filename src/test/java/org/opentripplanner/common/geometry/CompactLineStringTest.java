@@ -13,6 +13,8 @@
 
 package org.opentripplanner.common.geometry;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -102,6 +104,16 @@ public class CompactLineStringTest extends TestCase {
         assertEquals(expectedPackedLen, packed.length);
         int[] unpacked = DlugoszVarLenIntPacker.unpack(packed);
         assertTrue(Arrays.equals(arr, unpacked));
+        // values are read back one by one from a stream just the same
+        ByteArrayInputStream in = new ByteArrayInputStream(packed);
+        for (int i = 0; i < arr.length; i++) {
+            try {
+                assertEquals(arr[i], DlugoszVarLenIntPacker.unpack(in));
+            } catch (IOException e) {
+                fail(e.toString());
+            }
+        }
+        assertEquals(0, in.available());
     }
 
     private String unsignedCharString(byte[] data) {
@@ -0,0 +1,184 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common.geometry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.SpatialIndex;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+public class PackedSpatialIndexTest extends TestCase {
+
+    /* A 10km square straddling the prime meridian, to exercise negative coordinates. */
+    private static final double X0 = -0.05, Y0 = 44.0, DX = 0.1, DY = 0.1;
+
+    private static class DummyObject {
+        Envelope envelope;
+
+        @Override
+        public String toString() {
+            return envelope.toString();
+        }
+    }
+
+    /** Short random segments, like street edges. */
+    private static List<DummyObject> randomObjects(Random rand, int n) {
+        return randomObjects(rand, n, DX, DY);
+    }
+
+    private static List<DummyObject> randomObjects(Random rand, int n, double dx, double dy) {
+        List<DummyObject> objs = new ArrayList<DummyObject>();
+        for (int i = 0; i < n; i++) {
+            double x = rand.nextDouble() * dx + X0, y = rand.nextDouble() * dy + Y0;
+            DummyObject obj = new DummyObject();
+            obj.envelope = new Envelope(x, x + (rand.nextDouble() - 0.5) * 0.004,
+                    y, y + (rand.nextDouble() - 0.5) * 0.004);
+            objs.add(obj);
+        }
+        return objs;
+    }
+
+    private static final PackedSpatialIndex.DistanceFunction<DummyObject> DISTANCE =
+            new PackedSpatialIndex.DistanceFunction<DummyObject>() {
+        @Override
+        public double distance(DummyObject obj, double lon, double lat) {
+            // distance to the envelope, in meters
+            double dx = Math.max(0, Math.max(obj.envelope.getMinX() - lon, lon - obj.envelope.getMaxX()));
+            double dy = Math.max(0, Math.max(obj.envelope.getMinY() - lat, lat - obj.envelope.getMaxY()));
+            dx *= Math.cos(Math.toRadians(lat));
+            return Math.sqrt(dx * dx + dy * dy) * 111111.111111;
+        }
+    };
+
+    /**
+     * Check against a brute-force search that queries return exactly the objects intersecting the query envelope,
+     * each of them once.
+     */
+    @SuppressWarnings("unchecked")
+    public void testQuery() {
+        Random rand = new Random(42);
+        List<DummyObject> objs = randomObjects(rand, 2000);
+        PackedSpatialIndex<DummyObject> index = new PackedSpatialIndex<DummyObject>(0.003);
+        for (DummyObject obj : objs) index.insert(obj.envelope, obj);
+        index.build();
+        for (int i = 0; i < 1000; i++) {
+            Coordinate a = new Coordinate(rand.nextDouble() * DX * 1.2 + X0 - 0.01, rand.nextDouble() * DY + Y0);
+            Coordinate b = new Coordinate(a.x + rand.nextDouble() * 0.02, a.y + rand.nextDouble() * 0.02);
+            // every few queries, a large one
+            if (i % 50 == 0) b = new Coordinate(a.x + 0.1, a.y + 0.1);
+            Envelope searchEnv = new Envelope(a, b);
+            Set<DummyObject> expected = new HashSet<DummyObject>();
+            for (DummyObject obj : objs) {
+                if (obj.envelope.intersects(searchEnv)) expected.add(obj);
+            }
+            List<DummyObject> found = index.query(searchEnv);
+            assertEquals(expected.size(), found.size());
+            assertEquals(expected, new HashSet<DummyObject>(found));
+        }
+    }
+
+    public void testNearest() {
+        Random rand = new Random(43);
+        final List<DummyObject> objs = randomObjects(rand, 2000);
+        PackedSpatialIndex<DummyObject> index = new PackedSpatialIndex<DummyObject>();
+        for (DummyObject obj : objs) index.insert(obj.envelope, obj);
+        for (int i = 0; i < 500; i++) {
+            final double x = rand.nextDouble() * DX + X0, y = rand.nextDouble() * DY + Y0;
+            List<DummyObject> expected = new ArrayList<DummyObject>();
+            for (DummyObject obj : objs) {
+                if (DISTANCE.distance(obj, x, y) <= 1000) expected.add(obj);
+            }
+            Collections.sort(expected, new Comparator<DummyObject>() {
+                @Override
+                public int compare(DummyObject o1, DummyObject o2) {
+                    return Double.compare(DISTANCE.distance(o1, x, y), DISTANCE.distance(o2, x, y));
+                }
+            });
+            List<DummyObject> nearest = index.nearest(x, y, 5, 1000, DISTANCE);
+            assertEquals(Math.min(5, expected.size()), nearest.size());
+            for (int j = 0; j < nearest.size(); j++) {
+                assertEquals(DISTANCE.distance(expected.get(j), x, y), DISTANCE.distance(nearest.get(j), x, y), 1e-9);
+            }
+        }
+        // nothing within range
+        assertTrue(index.nearest(X0 - 1, Y0 - 1, 5, 1000, DISTANCE).isEmpty());
+    }
+
+    public void testImmutable() {
+        PackedSpatialIndex<DummyObject> index = new PackedSpatialIndex<DummyObject>();
+        assertTrue(index.query(new Envelope(0, 1, 0, 1)).isEmpty());
+        try {
+            index.insert(new Envelope(0, 1, 0, 1), new DummyObject());
+            fail("Inserting into a built index should fail.");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    public void testMorton() {
+        assertEquals(0, PackedSpatialIndex.morton(0, 0));
+        assertEquals(1, PackedSpatialIndex.morton(1, 0));
+        assertEquals(2, PackedSpatialIndex.morton(0, 1));
+        assertEquals(15, PackedSpatialIndex.morton(3, 3));
+    }
+
+    /**
+     * Check that the packed index, the hash grid and the STRtree find the same objects for random snap queries, as
+     * done for each origin and destination of a search. Each query looks for objects in a 100m square, as
+     * getClosestEdges does first. The objects are spread over a 40km x 55km area, about as dense as the street edges
+     * of a city.
+     */
+    @SuppressWarnings("unchecked")
+    public void testAgreesWithOtherIndexes() {
+        Random rand = new Random(44);
+        double dx = 0.5, dy = 0.5;
+        List<DummyObject> objs = randomObjects(rand, 200000, dx, dy);
+        PackedSpatialIndex<DummyObject> packed = new PackedSpatialIndex<DummyObject>();
+        HashGridSpatialIndex<DummyObject> hashGrid = new HashGridSpatialIndex<DummyObject>();
+        STRtree strTree = new STRtree();
+        for (DummyObject obj : objs) {
+            packed.insert(obj.envelope, obj);
+            hashGrid.insert(obj.envelope, obj);
+            strTree.insert(obj.envelope, obj);
+        }
+        packed.build();
+        strTree.build();
+        SpatialIndex[] indexes = { packed, hashGrid, strTree };
+        for (int i = 0; i < 1000; i++) {
+            Coordinate c = new Coordinate(rand.nextDouble() * dx + X0, rand.nextDouble() * dy + Y0);
+            Envelope query = new Envelope(c);
+            query.expandBy(0.001);
+            Set<DummyObject> expected = null;
+            for (SpatialIndex index : indexes) {
+                Set<DummyObject> found = new HashSet<DummyObject>();
+                // the hash grid returns false positives, filter them out as its callers do
+                for (DummyObject obj : (List<DummyObject>) index.query(query)) {
+                    if (obj.envelope.intersects(query)) found.add(obj);
+                }
+                if (expected == null) expected = found;
+                else assertEquals(expected, found);
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@ package org.opentripplanner.common.pqueue;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.Random;
 import junit.framework.TestCase;
 
 /*
@@ -143,4 +144,95 @@ public class TestPQueues extends TestCase {
 
         }
     }    
+
+    /*
+     * Check the indexed heap against a reference implementation, including decrease-key.
+     */
+    public void testIndexedHeap() {
+        final int N = 5000;
+        Random random = new Random(42);
+        IndexedDaryHeap<Integer> q = new IndexedDaryHeap<Integer>(20);
+        double[] keys = new double[N];
+        for (int iter = 0; iter < 2; iter++) {
+            q.reset();
+            for (int i = 0; i < N; i++) {
+                keys[i] = random.nextDouble() * 10000;
+                q.insert(i, i, keys[i]);
+            }
+            assertEquals(N, q.size());
+            // decrease half of the keys, try to increase the others (which must be refused)
+            for (int i = 0; i < N; i++) {
+                if (i % 2 == 0) {
+                    keys[i] = keys[i] / 2;
+                    assertTrue(q.insert_or_dec_key(i, i, keys[i]));
+                } else {
+                    assertFalse(q.insert_or_dec_key(i, i, keys[i] + 1));
+                }
+                assertEquals(keys[i], q.key(i));
+            }
+            PriorityQueue<Double> expected = new PriorityQueue<Double>(N);
+            for (double k : keys)
+                expected.add(k);
+            while (!q.empty()) {
+                double k = q.peek_min_key();
+                Integer i = q.extract_min();
+                assertEquals(expected.remove(), k);
+                assertEquals(keys[i], k);
+                assertFalse(q.contains(i));
+            }
+            assertNull(q.extract_min());
+            assertNull(q.peek_min());
+        }
+    }
+
+    /*
+     * Compare the indexed heap with the binary heap on a workload that resembles a
+     * label-setting search: each index is improved several times before being extracted.
+     * The binary heap has to hold one entry per improvement, the indexed heap one per index.
+     */
+    public void testIndexedHeapImprovements() {
+        final int N = 20000;
+        final int IMPROVEMENTS = 4;
+        Random random = new Random(42);
+        double[][] keys = new double[IMPROVEMENTS][N];
+        for (int i = 0; i < N; i++) {
+            double k = random.nextDouble() * 10000;
+            for (int j = 0; j < IMPROVEMENTS; j++) {
+                keys[j][i] = k;
+                k *= random.nextDouble();
+            }
+        }
+
+        BinHeap<Integer> bh = new BinHeap<Integer>();
+        for (int j = 0; j < IMPROVEMENTS; j++)
+            for (int i = 0; i < N; i++)
+                bh.insert(i, keys[j][i]);
+        assertEquals(N * IMPROVEMENTS, bh.size());
+        long sum = 0;
+        while (!bh.empty())
+            sum += bh.extract_min();
+
+        IndexedDaryHeap<Integer> ih = new IndexedDaryHeap<Integer>(N);
+        for (int j = 0; j < IMPROVEMENTS; j++)
+            for (int i = 0; i < N; i++)
+                ih.insert_or_dec_key(i, i, keys[j][i]);
+        assertEquals(N, ih.size());
+        long indexedSum = 0;
+        double lastKey = Double.NEGATIVE_INFINITY;
+        int n = 0;
+        while (!ih.empty()) {
+            double k = ih.peek_min_key();
+            assertTrue(k >= lastKey);
+            lastKey = k;
+            Integer i = ih.extract_min();
+            // each index comes out once, with its last improvement
+            assertEquals(keys[IMPROVEMENTS - 1][i], k);
+            indexedSum += i;
+            n++;
+        }
+
+        // the binary heap returns every index IMPROVEMENTS times, the indexed heap only once
+        assertEquals(N, n);
+        assertEquals(sum, indexedSum * IMPROVEMENTS);
+    }
 }
@@ -0,0 +1,140 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.opentripplanner.graph_builder.services.GraphBuilder;
+import org.opentripplanner.routing.graph.Graph;
+
+public class GraphBuilderSchedulerTest {
+
+    /** A builder with the given declarations that records the order in which builders finish. */
+    private static class FakeBuilder implements GraphBuilder {
+        final List<String> provides;
+        final List<String> prerequisites;
+        final AtomicInteger clock;
+        CountDownLatch waitFor = null;
+        int finished = -1;
+
+        FakeBuilder(AtomicInteger clock, List<String> provides, List<String> prerequisites) {
+            this.clock = clock;
+            this.provides = provides;
+            this.prerequisites = prerequisites;
+        }
+
+        @Override
+        public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
+            if (waitFor != null) {
+                try {
+                    assertTrue("Independent builders should run concurrently.",
+                            waitFor.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            finished = clock.getAndIncrement();
+        }
+
+        @Override
+        public List<String> provides() {
+            return provides;
+        }
+
+        @Override
+        public List<String> getPrerequisites() {
+            return prerequisites;
+        }
+
+        @Override
+        public void checkInputs() {
+        }
+    }
+
+    private static List<String> none() {
+        return Collections.emptyList();
+    }
+
+    @Test
+    public void testDependencies() {
+        AtomicInteger clock = new AtomicInteger();
+        FakeBuilder streets = new FakeBuilder(clock, Arrays.asList("streets"), none());
+        FakeBuilder transit = new FakeBuilder(clock, Arrays.asList("transit"), none());
+        FakeBuilder prune = new FakeBuilder(clock, none(), Arrays.asList("streets"));
+        FakeBuilder linker = new FakeBuilder(clock, Arrays.asList("linking"), Arrays.asList("streets", "transit"));
+        FakeBuilder elevation = new FakeBuilder(clock, Arrays.asList("elevation"), Arrays.asList("streets"));
+        List<GraphBuilder> builders = Arrays.<GraphBuilder>asList(streets, transit, prune, linker, elevation);
+        List<List<Integer>> deps = new GraphBuilderScheduler(builders, 4).dependencies();
+        assertEquals(none(), deps.get(1));
+        assertEquals(Arrays.asList(0, 1), deps.get(2));
+        assertEquals(Arrays.asList(0, 1, 2), deps.get(3));
+        // elevation and linking both refine the streets, so they must not overlap
+        assertEquals(Arrays.asList(0, 2, 3), deps.get(4));
+    }
+
+    @Test
+    public void testConcurrentRun() {
+        AtomicInteger clock = new AtomicInteger();
+        FakeBuilder streets = new FakeBuilder(clock, Arrays.asList("streets"), none());
+        final FakeBuilder transit = new FakeBuilder(clock, Arrays.asList("transit"), none());
+        FakeBuilder linker = new FakeBuilder(clock, Arrays.asList("linking"), Arrays.asList("streets", "transit"));
+        // The street builder can only finish once the transit builder has started, which would deadlock if they
+        // were run one after the other.
+        final CountDownLatch transitStarted = new CountDownLatch(1);
+        streets.waitFor = transitStarted;
+        FakeBuilder startTransit = new FakeBuilder(clock, Arrays.asList("transit"), none()) {
+            @Override
+            public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
+                transitStarted.countDown();
+                transit.buildGraph(graph, extra);
+            }
+        };
+        List<GraphBuilder> builders = Arrays.<GraphBuilder>asList(streets, startTransit, linker);
+        new GraphBuilderScheduler(builders, 2).run(null, new HashMap<Class<?>, Object>());
+        assertEquals(0, transit.finished);
+        assertEquals(1, streets.finished);
+        assertEquals(2, linker.finished);
+    }
+
+    @Test
+    public void testFailure() {
+        AtomicInteger clock = new AtomicInteger();
+        FakeBuilder streets = new FakeBuilder(clock, Arrays.asList("streets"), none()) {
+            @Override
+            public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
+                throw new IllegalStateException("bad input");
+            }
+        };
+        FakeBuilder linker = new FakeBuilder(clock, Arrays.asList("linking"), Arrays.asList("streets"));
+        List<GraphBuilder> builders = Arrays.<GraphBuilder>asList(streets, linker);
+        try {
+            new GraphBuilderScheduler(builders, 2).run(null, new HashMap<Class<?>, Object>());
+            assertTrue("The failure of a builder should be rethrown.", false);
+        } catch (IllegalStateException e) {
+            assertEquals("bad input", e.getMessage());
+        }
+        assertEquals(-1, linker.finished);
+    }
+
+}
@@ -0,0 +1,63 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class SpatialTilesTest {
+
+    private static final SpatialTiles.Locator<Coordinate> IDENTITY = new SpatialTiles.Locator<Coordinate>() {
+        @Override
+        public Coordinate getCoordinate(Coordinate item) {
+            return item;
+        }
+    };
+
+    @Test
+    public void testTiles() {
+        List<Coordinate> coordinates = new ArrayList<Coordinate>();
+        for (int i = 0; i < 100; i++) {
+            // a 10x10 grid of points a quarter degree apart, straddling the prime meridian
+            coordinates.add(new Coordinate(-1.0 + (i % 10) * 0.25, 45 + (i / 10) * 0.25));
+        }
+        SpatialTiles<Coordinate> tiles = new SpatialTiles<Coordinate>(coordinates, IDENTITY, 0.5);
+        assertEquals(25, tiles.getTiles().size());
+        final AtomicInteger count = new AtomicInteger();
+        tiles.forEachTile(new SpatialTiles.TileProcessor<Coordinate>() {
+            @Override
+            public void process(List<Coordinate> tile) {
+                assertEquals(4, tile.size());
+                // all points of a tile are in the same half degree cell
+                for (Coordinate c : tile) {
+                    assertEquals(Math.floor(tile.get(0).x / 0.5), Math.floor(c.x / 0.5), 0);
+                    assertEquals(Math.floor(tile.get(0).y / 0.5), Math.floor(c.y / 0.5), 0);
+                }
+                count.addAndGet(tile.size());
+            }
+        });
+        assertEquals(100, count.get());
+        // tiles are sorted by row, then column
+        assertEquals(-1.0, tiles.getTiles().get(0).get(0).x, 1e-9);
+        assertEquals(45.0, tiles.getTiles().get(0).get(0).y, 1e-9);
+    }
+
+}
@@ -0,0 +1,125 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.ned;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.media.jai.InterpolationBilinear;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.Interpolator2D;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+import org.opengis.coverage.Coverage;
+
+/**
+ * Checks that the elevation sampler agrees with the geotools bilinear interpolation, also when used from several
+ * threads, on a synthetic DEM so that no elevation data needs to be downloaded.
+ */
+public class ElevationSamplerTest {
+
+    private static final int SIZE = 1800; // one arc-second pixels over half a degree
+
+    private static final double WEST = -122.75, EAST = -122.25, SOUTH = 45.25, NORTH = 45.75;
+
+    private static final int N_POINTS = 100000;
+
+    /** Rolling hills with a few hundred meters of relief. */
+    private static Coverage makeDem() {
+        float[][] matrix = new float[SIZE][SIZE];
+        for (int row = 0; row < SIZE; row++) {
+            for (int col = 0; col < SIZE; col++) {
+                matrix[row][col] = (float) (200 + 150 * Math.sin(col / 97.0) * Math.cos(row / 61.0) + row * 0.05);
+            }
+        }
+        ReferencedEnvelope envelope = new ReferencedEnvelope(WEST, EAST, SOUTH, NORTH, DefaultGeographicCRS.WGS84);
+        GridCoverage2D grid = new GridCoverageFactory().create("dem", matrix, envelope);
+        return Interpolator2D.create(grid, new InterpolationBilinear());
+    }
+
+    private static double[] randomPoints(long seed) {
+        Random random = new Random(seed);
+        double[] points = new double[N_POINTS * 2];
+        for (int i = 0; i < N_POINTS; i++) {
+            points[i * 2] = WEST + random.nextDouble() * (EAST - WEST);
+            points[i * 2 + 1] = SOUTH + random.nextDouble() * (NORTH - SOUTH);
+        }
+        return points;
+    }
+
+    @Test
+    public void testSamplerMatchesCoverage() {
+        Coverage dem = makeDem();
+        ElevationSampler sampler = new ElevationSampler(dem, 16);
+        Random random = new Random(42);
+        double[] values = new double[1];
+        for (int i = 0; i < 10000; i++) {
+            double x = WEST + random.nextDouble() * (EAST - WEST);
+            double y = SOUTH + random.nextDouble() * (NORTH - SOUTH);
+            dem.evaluate(new DirectPosition2D(x, y), values);
+            assertEquals(values[0], sampler.getElevation(x, y), 0.01);
+        }
+        // outside the coverage
+        assertEquals(0, sampler.getElevation(WEST - 1, SOUTH - 1), 0);
+    }
+
+    /** Samplers used from several threads at once, one per thread, give the same values as a single sampler. */
+    @Test
+    public void testParallelSamplers() throws Exception {
+        final Coverage dem = makeDem();
+        final double[] points = randomPoints(1);
+
+        ElevationSampler sampler = new ElevationSampler(dem, 64);
+        double[] expected = new double[N_POINTS];
+        for (int i = 0; i < N_POINTS; i++) {
+            expected[i] = sampler.getElevation(points[i * 2], points[i * 2 + 1]);
+        }
+
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final double[] actual = new double[N_POINTS];
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            final int from = N_POINTS * t / threads, to = N_POINTS * (t + 1) / threads;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    ElevationSampler sampler = new ElevationSampler(dem, 64);
+                    for (int i = from; i < to; i++) {
+                        actual[i] = sampler.getElevation(points[i * 2], points[i * 2 + 1]);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        executor.shutdown();
+
+        for (int i = 0; i < N_POINTS; i++) {
+            assertEquals(expected[i], actual[i], 0);
+        }
+    }
+
+}
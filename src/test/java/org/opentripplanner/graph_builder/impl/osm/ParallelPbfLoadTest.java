@@ -0,0 +1,53 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.impl.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.opentripplanner.openstreetmap.impl.BinaryFileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.graph.Graph;
+
+/**
+ * Builds a street graph from the same PBF extract with single-threaded and parallel block decoding, and checks that
+ * both produce the same graph.
+ */
+public class ParallelPbfLoadTest {
+
+    private Graph build(int threads) {
+        Graph graph = new Graph();
+        OpenStreetMapGraphBuilderImpl loader = new OpenStreetMapGraphBuilderImpl();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        BinaryFileBasedOpenStreetMapProviderImpl provider = new BinaryFileBasedOpenStreetMapProviderImpl();
+        provider.setPath(new File(getClass().getResource("map.osm.pbf").getPath()));
+        provider.setThreads(threads);
+        loader.setProvider(provider);
+        loader.buildGraph(graph, new HashMap<Class<?>, Object>());
+        return graph;
+    }
+
+    @Test
+    public void testParallelLoad() {
+        Graph serial = build(1);
+        Graph parallel = build(4);
+        assertTrue(serial.getVertices().size() > 0);
+        assertEquals(serial.getVertices().size(), parallel.getVertices().size());
+        assertEquals(serial.getEdges().size(), parallel.getEdges().size());
+    }
+
+}
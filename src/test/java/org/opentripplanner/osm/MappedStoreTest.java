@@ -0,0 +1,145 @@
+package org.opentripplanner.osm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class MappedStoreTest {
+
+    /** Make ascending ids with mostly small gaps, and a few gaps too large for a block's int offsets. */
+    private static long[] makeIds(int n, Random random) {
+        long[] ids = new long[n];
+        long id = 1;
+        for (int i = 0; i < n; i++) {
+            id += (random.nextInt(100) == 0) ? (1L << 33) + random.nextInt(1000) : 1 + random.nextInt(20);
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    private static Node makeNode(Random random) {
+        Node node = new Node();
+        node.lat = (float) (random.nextDouble() * 180 - 90);
+        node.lon = (float) (random.nextDouble() * 360 - 180);
+        node.tags = (random.nextInt(10) == 0) ? "highway=traffic_signals" : "";
+        return node;
+    }
+
+    private static Way makeWay(Random random) {
+        Way way = new Way();
+        way.tags = "highway=residential;bicycle=yes";
+        way.nodes = new long[2 + random.nextInt(20)];
+        long node = random.nextInt(Integer.MAX_VALUE) * 10L;
+        for (int n = 0; n < way.nodes.length; n++) {
+            // node references usually ascend, but not always
+            node += random.nextInt(1000) - 100;
+            way.nodes[n] = node;
+        }
+        return way;
+    }
+
+    @Test
+    public void testNodes() {
+        Random random = new Random(42);
+        long[] ids = makeIds(100000, random);
+        Node[] nodes = new Node[ids.length];
+        Map<Long, Node> store = new MappedNodeStore();
+        for (int i = 0; i < ids.length; i++) {
+            nodes[i] = makeNode(random);
+            store.put(ids[i], nodes[i]);
+        }
+        assertEquals(ids.length, store.size());
+        for (int i = 0; i < ids.length; i++) {
+            Node node = store.get(ids[i]);
+            assertEquals(nodes[i].lat, node.lat, 1e-5);
+            assertEquals(nodes[i].lon, node.lon, 1e-5);
+            assertEquals(nodes[i].tags, node.tags);
+            // ids between two stored ids must not be found
+            if (ids[i] - 1 != (i > 0 ? ids[i - 1] : 0)) assertFalse(store.containsKey(ids[i] - 1));
+        }
+        assertNull(store.get(0L));
+        assertNull(store.get(ids[ids.length - 1] + 1));
+        int i = 0;
+        for (Map.Entry<Long, Node> entry : store.entrySet()) {
+            assertEquals(ids[i], entry.getKey().longValue());
+            assertEquals(nodes[i].lat, entry.getValue().lat, 1e-5);
+            i++;
+        }
+        assertEquals(ids.length, i);
+    }
+
+    @Test
+    public void testWays() {
+        Random random = new Random(43);
+        long[] ids = makeIds(20000, random);
+        Way[] ways = new Way[ids.length];
+        Map<Long, Way> store = new MappedWayStore();
+        for (int i = 0; i < ids.length; i++) {
+            ways[i] = makeWay(random);
+            store.put(ids[i], ways[i]);
+        }
+        for (int i = 0; i < ids.length; i++) {
+            Way way = store.get(ids[i]);
+            assertEquals(ways[i].tags, way.tags);
+            assertArrayEquals(ways[i].nodes, way.nodes);
+        }
+        int i = 0;
+        for (Way way : store.values()) {
+            assertArrayEquals(ways[i++].nodes, way.nodes);
+        }
+        assertEquals(ids.length, i);
+    }
+
+    @Test
+    public void testRejectsUnsortedIds() {
+        Random random = new Random(44);
+        Map<Long, Node> store = new MappedNodeStore();
+        store.put(10L, makeNode(random));
+        try {
+            store.put(5L, makeNode(random));
+            assertTrue("Out of order ids should be rejected.", false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        store.get(10L);
+        try {
+            store.put(20L, makeNode(random));
+            assertTrue("Writes after reads should be rejected.", false);
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /** Threads reading a store that has not been sealed explicitly all see its whole contents. */
+    @Test
+    public void testConcurrentFirstReads() throws InterruptedException {
+        Random random = new Random(45);
+        final long[] ids = makeIds(10000, random);
+        final Map<Long, Node> store = new MappedNodeStore();
+        for (long id : ids) store.put(id, makeNode(random));
+        final AtomicInteger nMissing = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long id : ids) {
+                        if (store.get(id) == null) nMissing.incrementAndGet();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        assertEquals(0, nMissing.get());
+    }
+
+}
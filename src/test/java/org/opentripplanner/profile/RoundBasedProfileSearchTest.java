@@ -0,0 +1,108 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.joda.time.LocalDate;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Stop;
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.analyst.TimeSurface;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.GraphIndex;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.vertextype.TransitStop;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Runs the queue-based and round-based transit searches of the profile router from the same origin on the same
+ * GTFS feed, and checks that they reach the same stops with the same travel time bounds.
+ */
+public class RoundBasedProfileSearchTest {
+
+    private static Graph graph;
+
+    private static TransitStop origin;
+
+    @BeforeClass
+    public static void onlyOnce() {
+        graph = ConstantsForTests.buildGraph(ConstantsForTests.CALTRAIN_GTFS);
+        graph.index = new GraphIndex(graph);
+        graph.index.initializeProfileTransfers();
+        Stop stop = graph.index.stopForId.get(new AgencyAndId("Caltrain", "San Francisco Caltrain"));
+        assertNotNull(stop);
+        origin = graph.index.stopVertexForStop.get(stop);
+    }
+
+    /** Run the transit part of an analyst profile search from the origin stop with the given engine. */
+    private ProfileRouter search(boolean roundBased) {
+        ProfileRequest request = new ProfileRequest();
+        request.fromTime = 7 * 60 * 60;
+        request.toTime = 9 * 60 * 60;
+        request.walkSpeed = 1.4f;
+        request.date = new LocalDate(2014, 9, 16); // a Tuesday
+        request.modes = new TraverseModeSet("WALK,TRANSIT");
+        request.analyst = true;
+        request.roundBased = roundBased;
+        ProfileRouter router = new ProfileRouter(graph, request);
+        router.window = new TimeWindow(request.fromTime, request.toTime,
+                graph.index.servicesRunning(request.date));
+        router.mins = new int[Vertex.getMaxIndex()];
+        router.maxs = new int[Vertex.getMaxIndex()];
+        Arrays.fill(router.mins, TimeSurface.UNREACHABLE);
+        Arrays.fill(router.maxs, TimeSurface.UNREACHABLE);
+
+        RoutingRequest rr = new RoutingRequest(TraverseMode.WALK);
+        rr.setRoutingContext(graph, origin, null);
+        StopAtDistance sd = new StopAtDistance(new State(origin, rr));
+        Multimap<StopCluster, StopAtDistance> fromStopPaths = ArrayListMultimap.create();
+        fromStopPaths.put(sd.stop, sd);
+        router.fromStops = router.findClosestPatterns(fromStopPaths);
+        router.findRides(Long.MAX_VALUE);
+        rr.rctx.destroy();
+        return router;
+    }
+
+    @Test
+    public void testSameStopsReached() {
+        ProfileRouter queue = search(false);
+        ProfileRouter rounds = search(true);
+        int nReached = 0;
+        for (TransitStop tstop : graph.index.stopVertexForStop.values()) {
+            int i = tstop.getIndex();
+            boolean reached = queue.mins[i] != TimeSurface.UNREACHABLE;
+            assertEquals(tstop.getName(), reached, rounds.mins[i] != TimeSurface.UNREACHABLE);
+            if (reached) {
+                nReached++;
+                assertEquals(tstop.getName(), queue.mins[i], rounds.mins[i]);
+                assertEquals(tstop.getName(), queue.maxs[i], rounds.maxs[i]);
+            }
+        }
+        assertTrue(nReached > 0);
+    }
+
+}
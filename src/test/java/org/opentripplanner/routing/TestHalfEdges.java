@@ -18,13 +18,20 @@ import static com.google.common.collect.Iterables.filter;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Stop;
+import org.opentripplanner.analyst.request.SampleGridRenderer;
+import org.opentripplanner.analyst.request.SampleGridRenderer.WTWD;
 import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.common.geometry.SparseMatrixZSampleGrid;
+import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
+import org.opentripplanner.common.geometry.ZSampleGrid.ZSamplePoint;
 import org.opentripplanner.common.model.GenericLocation;
 import org.opentripplanner.routing.alertpatch.Alert;
 import org.opentripplanner.routing.algorithm.GenericAStar;
@@ -44,6 +51,8 @@ import org.opentripplanner.routing.impl.StreetVertexIndexServiceImpl;
 import org.opentripplanner.routing.location.StreetLocation;
 import org.opentripplanner.routing.services.notes.StreetNotesService;
 import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.SPTWalker;
+import org.opentripplanner.routing.spt.SPTWalker.SPTVisitor;
 import org.opentripplanner.routing.spt.ShortestPathTree;
 import org.opentripplanner.routing.vertextype.IntersectionVertex;
 import org.opentripplanner.routing.vertextype.TransitStop;
@@ -456,9 +465,167 @@ public class TestHalfEdges extends TestCase {
         }
     }
 
+    public void testTemporaryEdgesOnlyInRoutingContext() {
+        int degreeOut = bl.getDegreeOut();
+        int degreeIn = tl.getDegreeIn();
+
+        HashSet<Edge> turns = new HashSet<Edge>();
+        turns.add(left);
+        StreetLocation start = StreetLocation.createStreetLocation(graph, "start", "start",
+                filter(turns, StreetEdge.class),
+                new LinearLocation(0, 0.4).getCoordinate(left.getGeometry()));
+
+        // the half edges are only in the edge lists of the temporary vertex
+        assertEquals(degreeOut, bl.getDegreeOut());
+        assertEquals(degreeIn, tl.getDegreeIn());
+        assertEquals(1, start.getDegreeIn());
+        assertEquals(1, start.getDegreeOut());
+
+        // the routing context adds them at the vertices they lead from and to
+        RoutingRequest options = new RoutingRequest();
+        options.setMaxWalkDistance(Double.MAX_VALUE);
+        options.setRoutingContext(graph, br, start);
+        assertEquals(degreeOut + 1, options.rctx.getOutgoingEdges(bl).size());
+        assertTrue(options.rctx.getOutgoingEdges(bl).containsAll(start.getIncoming()));
+        assertEquals(degreeIn + 1, options.rctx.getIncomingEdges(tl).size());
+        assertEquals(br.getDegreeOut(), options.rctx.getOutgoingEdges(br).size());
+
+        // but not another routing context
+        RoutingRequest other = new RoutingRequest();
+        other.setRoutingContext(graph, br, bl);
+        assertEquals(degreeOut, other.rctx.getOutgoingEdges(bl).size());
+
+        ShortestPathTree spt = aStar.getShortestPathTree(options);
+        assertNotNull("There must be a path from br to start", spt.getPath(start, false));
+        options.cleanup();
+        assertEquals(degreeOut, bl.getDegreeOut());
+        assertEquals(0, start.getDegreeIn());
+    }
+
+    /**
+     * Render a surface from an origin in the middle of a one-way street. The half edge from the origin to the end of
+     * the street is only listed at the origin, so the sampling must find it through the routing context.
+     */
+    public void testSampleFromMidBlockOrigin() {
+        HashSet<Edge> turns = new HashSet<Edge>();
+        turns.add(left);
+        StreetLocation start = StreetLocation.createStreetLocation(graph, "start", "start",
+                filter(turns, StreetEdge.class),
+                new LinearLocation(0, 0.4).getCoordinate(left.getGeometry()));
+
+        RoutingRequest options = new RoutingRequest(TraverseMode.WALK);
+        options.dateTime = TestUtils.dateInSeconds("America/New_York", 2009, 11, 1, 12, 34, 25);
+        options.worstTime = options.dateTime + 7200;
+        options.setMaxWalkDistance(Double.MAX_VALUE);
+        options.batch = true;
+        options.setRoutingContext(graph, start, null);
+        ShortestPathTree spt = aStar.getShortestPathTree(options);
+
+        // the walk is offered the half edges leaving the origin
+        final Set<Edge> walked = new HashSet<Edge>();
+        // halfway between the origin and the top of the street, 334 m away from each
+        final Coordinate halfway = new LinearLocation(0, 0.7).getCoordinate(left.getGeometry());
+        final double[] tHalfway = { Double.POSITIVE_INFINITY };
+        new SPTWalker(spt).walk(new SPTVisitor() {
+            @Override
+            public boolean accept(Edge e) {
+                walked.add(e);
+                return e instanceof StreetEdge;
+            }
+
+            @Override
+            public void visit(Coordinate c, State s0, State s1, double d0, double d1) {
+                if (SphericalDistanceLibrary.getInstance().fastDistance(c, halfway) < 20) {
+                    double t = Math.min(s0.getActiveTime() + d0, s1.getActiveTime() + d1);
+                    tHalfway[0] = Math.min(tHalfway[0], t);
+                }
+            }
+        }, 10);
+        for (Edge e : start.getOutgoing())
+            assertTrue(walked.contains(e));
+        // at 1 m/s, from the origin along the half edge rather than back from the top of the street (over 800 s)
+        assertTrue(tHalfway[0] < 400);
+
+        // the rendered surface has the same half edge
+        double gridSizeMeters = 20;
+        double cosLat = Math.cos(Math.toRadians(start.getY()));
+        double dY = Math.toDegrees(gridSizeMeters / SphericalDistanceLibrary.RADIUS_OF_EARTH_IN_M);
+        SparseMatrixZSampleGrid<WTWD> grid = new SparseMatrixZSampleGrid<WTWD>(16,
+                spt.getVertexCount(), dY / cosLat, dY, start.getCoordinate());
+        SampleGridRenderer.sampleSPT(spt, grid, gridSizeMeters * 0.7, gridSizeMeters, 1.0,
+                Double.MAX_VALUE, cosLat);
+        WTWD zHalfway = null;
+        double dMin = Double.MAX_VALUE;
+        for (ZSamplePoint<WTWD> p : grid) {
+            double d = SphericalDistanceLibrary.getInstance().fastDistance(grid.getCoordinates(p), halfway);
+            if (d < dMin) {
+                dMin = d;
+                zHalfway = p.getZ();
+            }
+        }
+        assertTrue(dMin < gridSizeMeters);
+        // the samples of the full street alone give over 800 s here, averaged with those of the half edge
+        assertTrue(zHalfway.wTime / zHalfway.w < 750);
+        options.cleanup();
+    }
+
+    /**
+     * Route between random locations from several threads at once, each request splitting the streets at its
+     * endpoints.
+     */
+    public void testConcurrentRequests() throws InterruptedException {
+        final int nThreads = 4;
+        final int nRequests = 5;
+        int nEdges = graph.getEdges().size();
+        graph.streetIndex = new StreetVertexIndexServiceImpl(graph);
+        final AtomicInteger nFailed = new AtomicInteger();
+        Thread[] threads = new Thread[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    GenericAStar search = new GenericAStar();
+                    Random rand = new Random(thread);
+                    for (int i = 0; i < nRequests; i++) {
+                        RoutingRequest options = new RoutingRequest(TraverseMode.WALK);
+                        options.setMaxWalkDistance(Double.MAX_VALUE);
+                        options.from = new GenericLocation(40.0 + rand.nextDouble() * 0.01,
+                                -74.01 + rand.nextDouble() * 0.01);
+                        options.to = new GenericLocation(40.0 + rand.nextDouble() * 0.01,
+                                -74.01 + rand.nextDouble() * 0.01);
+                        try {
+                            options.setRoutingContext(graph);
+                            search.getShortestPathTree(options);
+                        } catch (RuntimeException e) {
+                            nFailed.incrementAndGet();
+                        } finally {
+                            options.cleanup();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(0, nFailed.get());
+        // requests never touch the edge lists of the shared graph
+        assertEquals(nEdges, graph.getEdges().size());
+    }
+
     public void testNetworkLinker() {
+        checkNetworkLinker(true);
+    }
+
+    public void testNetworkLinkerOneStopAtATime() {
+        checkNetworkLinker(false);
+    }
+
+    private void checkNetworkLinker(boolean batchLinking) {
         int numVerticesBefore = graph.getVertices().size();
         NetworkLinker nl = new NetworkLinker(graph);
+        nl.setBatchLinking(batchLinking);
         nl.createLinkage();
         int numVerticesAfter = graph.getVertices().size();
         assertEquals(4, numVerticesAfter - numVerticesBefore);
@@ -476,5 +643,23 @@ public class TestHalfEdges extends TestCase {
         Vertex station2point = edge.getToVertex();
         assertTrue(Math.abs(station2point.getCoordinate().x - -74.002) < 0.00000001);
 
+        // both stations are on the top street, which is split at each of them, in order along it
+        Vertex v = tl;
+        double[] expectedX = { -74.005, -74.002, -74.0 };
+        for (double x : expectedX) {
+            // the closest vertex to the east along the top street
+            Vertex next = null;
+            for (Edge e : v.getOutgoing()) {
+                Vertex to = e.getToVertex();
+                if (e instanceof PlainStreetEdge && to.getY() > 40.009 && to.getX() > v.getX()
+                        && (next == null || to.getX() < next.getX())) {
+                    next = to;
+                }
+            }
+            assertNotNull(next);
+            assertEquals(x, next.getX(), 0.00000001);
+            v = next;
+        }
+        assertSame(tr, v);
     }
 }
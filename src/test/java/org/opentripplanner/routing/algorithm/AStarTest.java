@@ -34,6 +34,7 @@ import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.location.StreetLocation;
 import org.opentripplanner.routing.spt.GraphPath;
 import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.spt.VertexIndexedShortestPathTree;
 
 import com.vividsolutions.jts.geom.Coordinate;
 
@@ -115,6 +116,34 @@ public class AStarTest {
         assertEquals("leary_20th", states.get(6).getVertex().getLabel());
     }
 
+    @Test
+    public void testForwardVertexIndexed() {
+        // walk only, as the default modes include transit, which needs several states per vertex
+        RoutingRequest options = new RoutingRequest("WALK");
+        options.walkSpeed = 1.0;
+        options.setRoutingContext(_graph, _graph.getVertex("56th_24th"),
+                _graph.getVertex("leary_20th"));
+        GenericAStar aStar = new GenericAStar();
+        aStar.setVertexIndexed(true);
+        ShortestPathTree tree = aStar.getShortestPathTree(options);
+        assertTrue(tree instanceof VertexIndexedShortestPathTree);
+
+        GraphPath path = tree.getPath(_graph.getVertex("leary_20th"), false);
+
+        List<State> states = path.states;
+
+        assertEquals(7, states.size());
+
+        assertEquals("56th_24th", states.get(0).getVertex().getLabel());
+        assertEquals("market_24th", states.get(1).getVertex().getLabel());
+        assertEquals("market_ballard", states.get(2).getVertex().getLabel());
+        assertEquals("market_22nd", states.get(3).getVertex().getLabel());
+        assertEquals("market_leary", states.get(4).getVertex().getLabel());
+        assertEquals("leary_vernon", states.get(5).getVertex().getLabel());
+        assertEquals("leary_20th", states.get(6).getVertex().getLabel());
+        tree.release();
+    }
+
     @Test
     public void testBack() {
 
@@ -0,0 +1,114 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opentripplanner.graph_builder.impl.osm.DefaultWayPropertySetSource;
+import org.opentripplanner.graph_builder.impl.osm.OpenStreetMapGraphBuilderImpl;
+import org.opentripplanner.openstreetmap.impl.FileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+
+/**
+ * Checks that a single GenericAStar gives the same results when shared between threads as when used serially, and
+ * when its per-thread search state is reused.
+ */
+public class GenericAStarConcurrencyTest {
+
+    private static final int N_ORIGINS = 16;
+
+    private static Graph graph;
+
+    private static List<Vertex> origins = new ArrayList<Vertex>();
+
+    @BeforeClass
+    public static void onlyOnce() {
+        graph = new Graph();
+        OpenStreetMapGraphBuilderImpl loader = new OpenStreetMapGraphBuilderImpl();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        File file = new File(GenericAStarConcurrencyTest.class.getResource(
+                "/org/opentripplanner/graph_builder/impl/osm/NYC_small.osm.gz").getFile());
+        provider.setPath(file);
+        loader.setProvider(provider);
+        loader.buildGraph(graph, new HashMap<Class<?>, Object>());
+        graph.rebuildVertexAndEdgeIndices();
+        for (Vertex v : graph.getVertices()) {
+            if (v instanceof IntersectionVertex && v.getDegreeOut() > 0) origins.add(v);
+            if (origins.size() == N_ORIGINS) break;
+        }
+    }
+
+    /** @return the total weight of all states reached from the given origin, as a fingerprint of the search. */
+    private static double search(GenericAStar aStar, Vertex origin) {
+        RoutingRequest options = new RoutingRequest("WALK");
+        options.batch = true;
+        options.setRoutingContext(graph, origin, null);
+        ShortestPathTree spt = aStar.getShortestPathTree(options);
+        double total = 0;
+        for (State state : spt.getAllStates()) total += state.getWeight();
+        options.cleanup();
+        return total;
+    }
+
+    @Test
+    public void testSharedInstance() throws Exception {
+        final GenericAStar aStar = new GenericAStar();
+        double[] serial = new double[origins.size()];
+        for (int i = 0; i < origins.size(); i++) serial[i] = search(aStar, origins.get(i));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Double>> futures = new ArrayList<Future<Double>>();
+        for (final Vertex origin : origins) {
+            futures.add(executor.submit(new Callable<Double>() {
+                @Override
+                public Double call() {
+                    return search(aStar, origin);
+                }
+            }));
+        }
+        for (int i = 0; i < origins.size(); i++) {
+            assertEquals(serial[i], futures.get(i).get(), 1e-6 * serial[i]);
+        }
+        executor.shutdown();
+    }
+
+    /** Searches from other origins in between, which reuse the search state of this thread, change nothing. */
+    @Test
+    public void testReusedSearchState() {
+        GenericAStar aStar = new GenericAStar();
+        assertTrue(origins.size() > 1);
+        double first = search(aStar, origins.get(0));
+        for (int i = 1; i < origins.size(); i++) search(aStar, origins.get(i));
+        assertEquals(first, search(aStar, origins.get(0)), 1e-6 * first);
+    }
+
+}
@@ -0,0 +1,92 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opentripplanner.graph_builder.impl.osm.DefaultWayPropertySetSource;
+import org.opentripplanner.graph_builder.impl.osm.OpenStreetMapGraphBuilderImpl;
+import org.opentripplanner.openstreetmap.impl.FileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.StateData;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+
+/**
+ * Checks that street-only searches on an OSM graph share StateData between states.
+ */
+public class StreetSearchAllocationTest {
+
+    private static Graph graph;
+
+    private static Vertex origin;
+
+    @BeforeClass
+    public static void onlyOnce() {
+        graph = new Graph();
+        OpenStreetMapGraphBuilderImpl loader = new OpenStreetMapGraphBuilderImpl();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        File file = new File(StreetSearchAllocationTest.class.getResource(
+                "/org/opentripplanner/graph_builder/impl/osm/NYC_small.osm.gz").getFile());
+        provider.setPath(file);
+        loader.setProvider(provider);
+        loader.buildGraph(graph, new HashMap<Class<?>, Object>());
+        graph.rebuildVertexAndEdgeIndices();
+        origin = graph.getVertex("osm:node:1919595913");
+    }
+
+    private void checkSharing(String modes) {
+        assertNotNull(origin);
+        RoutingRequest options = new RoutingRequest(modes);
+        options.batch = true;
+        options.setRoutingContext(graph, origin, origin);
+        ShortestPathTree spt = new GenericAStar().getShortestPathTree(options);
+
+        Set<StateData> stateData = Collections.newSetFromMap(new IdentityHashMap<StateData, Boolean>());
+        int nStates = 0;
+        for (State state : spt.getAllStates()) {
+            stateData.add(state.stateData);
+            nStates++;
+        }
+        options.cleanup();
+        assertTrue(nStates > 1);
+        // Street traversals only change fields held directly in State, so every state should
+        // share the StateData of the initial state.
+        assertEquals(1, stateData.size());
+    }
+
+    @Test
+    public void testWalk() {
+        checkSharing("WALK");
+    }
+
+    @Test
+    public void testBicycle() {
+        checkSharing("BICYCLE");
+    }
+
+}
@@ -46,7 +46,7 @@ public class TurnRestrictionTest {
 
     private Vertex bottomLeft;
     
-    private PlainStreetEdge maple_main1, broad1_2;
+    private PlainStreetEdge maple_main1, main1_2, broad1_2;
 
     @Before
     public void before() {
@@ -69,7 +69,7 @@ public class TurnRestrictionTest {
         PlainStreetEdge maple1_2 = edge(maple1, maple2, 100.0, false);
         PlainStreetEdge maple2_3 = edge(maple2, maple3, 100.0, false);
 
-        PlainStreetEdge main1_2 = edge(main1, main2, 100.0, false);
+        main1_2 = edge(main1, main2, 100.0, false);
         PlainStreetEdge main2_3 = edge(main2, main3, 100.0, false);
 
         broad1_2 = edge(broad1, broad2, 100.0, false);
@@ -103,6 +103,21 @@ public class TurnRestrictionTest {
         assertTrue(this.maple_main1.hasExplicitTurnRestrictions());
         assertFalse(this.broad1_2.hasExplicitTurnRestrictions());
     }
+
+    @Test
+    public void testNoStateForRestrictedTurn() {
+        RoutingRequest options = new RoutingRequest(TraverseMode.CAR);
+        options.setRoutingContext(_graph, topRight, bottomLeft);
+        State onMain = maple_main1.traverse(new State(topRight, options));
+        assertNotNull(onMain);
+        assertNull(main1_2.traverse(onMain));
+
+        // walking, the turn is allowed
+        options = new RoutingRequest(TraverseMode.WALK);
+        options.setRoutingContext(_graph, topRight, bottomLeft);
+        onMain = maple_main1.traverse(new State(topRight, options));
+        assertNotNull(main1_2.traverse(onMain));
+    }
     
     @Test
     public void testForwardDefault() {
@@ -181,6 +196,71 @@ public class TurnRestrictionTest {
         assertEquals("broad_3rd", states.get(4).getVertex().getLabel());
     }
 
+    @Test
+    public void testForwardAsCarVertexIndexed() {
+        RoutingRequest options = new RoutingRequest(TraverseMode.CAR);
+        options.carSpeed = 1.0;
+
+        options.setRoutingContext(_graph, topRight, bottomLeft);
+        GenericAStar aStar = new GenericAStar();
+        aStar.setVertexIndexed(true);
+        ShortestPathTree tree = aStar.getShortestPathTree(options);
+
+        GraphPath path = tree.getPath(bottomLeft, false);
+        assertNotNull(path);
+
+        // Only one state is kept per vertex, but states reaching a vertex through a restricted
+        // turn must still be explored, giving the same path as testForwardAsCar.
+
+        List<State> states = path.states;
+        assertEquals(5, states.size());
+
+        assertEquals("maple_1st", states.get(0).getVertex().getLabel());
+        assertEquals("main_1st", states.get(1).getVertex().getLabel());
+        assertEquals("broad_1st", states.get(2).getVertex().getLabel());
+        assertEquals("broad_2nd", states.get(3).getVertex().getLabel());
+        assertEquals("broad_3rd", states.get(4).getVertex().getLabel());
+        tree.release();
+    }
+
+    /**
+     * The state reaching a vertex through a restricted turn is better than the one already queued
+     * for that vertex, but only the queued state may continue to the destination. The indexed
+     * queue must not drop it when the better state replaces it.
+     */
+    @Test
+    public void testReplacedStateStillExpandedVertexIndexed() {
+        StreetVertex start = vertex("start", 10.0, 10.0);
+        StreetVertex side = vertex("side", 10.1, 10.0);
+        StreetVertex junction = vertex("junction", 10.0, 11.0);
+        StreetVertex end = vertex("end", 10.0, 12.0);
+        edge(start, junction, 100.0, false);
+        edge(start, side, 10.0, false);
+        PlainStreetEdge side_junction = edge(side, junction, 40.0, false);
+        PlainStreetEdge junction_end = edge(junction, end, 1.0, false);
+        DisallowTurn(side_junction, junction_end);
+
+        // a batch search, so that no heuristic changes the order in which the states are reached
+        RoutingRequest options = new RoutingRequest(TraverseMode.CAR);
+        options.carSpeed = 1.0;
+        options.batch = true;
+        options.setRoutingContext(_graph, start, null);
+        GenericAStar aStar = new GenericAStar();
+        aStar.setVertexIndexed(true);
+        ShortestPathTree tree = aStar.getShortestPathTree(options);
+
+        // the best state at the junction came from the side street
+        assertEquals(side_junction, tree.getState(junction).getBackEdge());
+        GraphPath path = tree.getPath(end, false);
+        assertNotNull(path);
+        List<State> states = path.states;
+        assertEquals(3, states.size());
+        assertEquals("start", states.get(0).getVertex().getLabel());
+        assertEquals("junction", states.get(1).getVertex().getLabel());
+        assertEquals("end", states.get(2).getVertex().getLabel());
+        tree.release();
+    }
+
     @Test
     public void testForwardAsCustomMotorVehicle() {
         RoutingRequest options = new RoutingRequest(TraverseMode.CUSTOM_MOTOR_VEHICLE);
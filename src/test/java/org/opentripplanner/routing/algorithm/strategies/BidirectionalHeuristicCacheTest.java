@@ -0,0 +1,173 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opentripplanner.api.resource.DebugOutput;
+import org.opentripplanner.common.model.GenericLocation;
+import org.opentripplanner.graph_builder.impl.GtfsGraphBuilderImpl;
+import org.opentripplanner.graph_builder.model.GtfsBundle;
+import org.opentripplanner.routing.algorithm.GenericAStar;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
+import org.opentripplanner.routing.impl.LongDistancePathService;
+import org.opentripplanner.routing.spt.GraphPath;
+
+/**
+ * Checks that plans reuse the reverse searches of InterleavedBidirectionalHeuristic for the same target and services,
+ * whatever the origin and time, that the reused searches give the same paths, and that the cache is bounded.
+ */
+public class BidirectionalHeuristicCacheTest {
+
+    private static final String[] ORIGINS = { "San Francisco Caltrain", "Millbrae Caltrain", "Palo Alto Caltrain",
+            "Mountain View Caltrain", "Tamien Caltrain" };
+
+    private static Graph graph;
+
+    private static DebugOutput debugOutput;
+
+    @BeforeClass
+    public static void onlyOnce() {
+        graph = new Graph();
+        GtfsBundle bundle = new GtfsBundle(new File("src/test/resources/caltrain_gtfs.zip"));
+        new GtfsGraphBuilderImpl(Collections.singletonList(bundle)).buildGraph(graph, null);
+        graph.index(new DefaultStreetVertexIndexFactory());
+    }
+
+    /** @return a time on a day of June 2010, in the time zone of Caltrain. */
+    private static long time(int day, int hour) {
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("America/Los_Angeles"));
+        calendar.clear();
+        calendar.set(2010, Calendar.JUNE, day, hour, 0);
+        return calendar.getTimeInMillis() / 1000;
+    }
+
+    private static BidirectionalHeuristicCache newCache(long maxBytes) {
+        BidirectionalHeuristicCache cache = new BidirectionalHeuristicCache();
+        cache.maxBytes = maxBytes;
+        graph.putService(BidirectionalHeuristicCache.class, cache);
+        return cache;
+    }
+
+    /** @return the weights of the paths of a plan, with its trips. */
+    private static List<String> plan(String from, String to, long time, double walkReluctance) {
+        RoutingRequest options = new RoutingRequest("WALK,TRANSIT");
+        options.dateTime = time;
+        options.walkReluctance = walkReluctance;
+        options.from = new GenericLocation(null, "Caltrain:" + from);
+        options.to = new GenericLocation(null, "Caltrain:" + to);
+        options.setRoutingContext(graph);
+        List<GraphPath> paths = new LongDistancePathService(null, new GenericAStar()).getPaths(options);
+        debugOutput = options.rctx.debugOutput;
+        options.cleanup();
+        List<String> ret = new ArrayList<String>();
+        for (GraphPath path : paths) {
+            ret.add(path.getWeight() + " " + path.getTrips());
+        }
+        return ret;
+    }
+
+    @Test
+    public void testSamePaths() {
+        List<List<String>> expected = new ArrayList<List<String>>();
+        newCache(0);
+        for (String to : new String[] { "San Francisco Caltrain", "San Jose Caltrain" }) {
+            for (int i = 0; i < ORIGINS.length; i++) {
+                if (!ORIGINS[i].equals(to)) {
+                    List<String> paths = plan(ORIGINS[i], to, time(9, 7 + 2 * i), 2.0);
+                    assertFalse(paths.isEmpty());
+                    assertFalse(debugOutput.precalculationReused);
+                    expected.add(paths);
+                }
+            }
+        }
+        BidirectionalHeuristicCache cache = newCache(1 << 20);
+        int n = 0;
+        for (String to : new String[] { "San Francisco Caltrain", "San Jose Caltrain" }) {
+            boolean first = true;
+            for (int i = 0; i < ORIGINS.length; i++) {
+                if (!ORIGINS[i].equals(to)) {
+                    assertEquals(expected.get(n++), plan(ORIGINS[i], to, time(9, 7 + 2 * i), 2.0));
+                    assertEquals(!first, debugOutput.precalculationReused);
+                    first = false;
+                }
+            }
+        }
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.stats().missCount());
+        assertEquals(n - 2, cache.stats().hitCount());
+        assertTrue(cache.getTimeSavedMillis() >= 0);
+    }
+
+    /** The reverse searches are reused on other days running the same services, and not with other parameters. */
+    @Test
+    public void testKeys() {
+        BidirectionalHeuristicCache cache = newCache(1 << 20);
+        String to = "San Francisco Caltrain";
+        // Wednesday the 9th of June 2010
+        plan("Palo Alto Caltrain", to, time(9, 8), 2.0);
+        assertFalse(debugOutput.precalculationReused);
+        plan("Tamien Caltrain", to, time(9, 17), 2.0);
+        assertTrue(debugOutput.precalculationReused);
+        // a week later
+        plan("Palo Alto Caltrain", to, time(16, 8), 2.0);
+        assertTrue(debugOutput.precalculationReused);
+        // the weekend services also run from the Friday to the Monday around a Saturday or a Sunday
+        plan("Palo Alto Caltrain", to, time(12, 10), 2.0);
+        assertFalse(debugOutput.precalculationReused);
+        plan("Palo Alto Caltrain", to, time(13, 10), 2.0);
+        assertTrue(debugOutput.precalculationReused);
+        plan("Palo Alto Caltrain", to, time(9, 8), 3.0);
+        assertFalse(debugOutput.precalculationReused);
+        plan("Palo Alto Caltrain", "San Jose Caltrain", time(9, 8), 2.0);
+        assertFalse(debugOutput.precalculationReused);
+        assertEquals(4, cache.size());
+        assertEquals(4, cache.stats().missCount());
+        assertEquals(3, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testEviction() {
+        BidirectionalHeuristicCache cache = newCache(1 << 20);
+        plan("Palo Alto Caltrain", "San Francisco Caltrain", time(9, 8), 2.0);
+        long bytes = cache.getEstimatedBytes();
+        assertTrue(bytes > 0);
+        // room for one table only
+        cache = newCache(bytes * 3 / 2);
+        plan("Palo Alto Caltrain", "San Francisco Caltrain", time(9, 8), 2.0);
+        plan("Palo Alto Caltrain", "Tamien Caltrain", time(9, 8), 2.0);
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.stats().evictionCount());
+        assertTrue(cache.getEstimatedBytes() <= bytes * 3 / 2);
+        plan("Palo Alto Caltrain", "San Francisco Caltrain", time(9, 8), 2.0);
+        assertFalse(debugOutput.precalculationReused);
+        assertNotNull(cache.toString());
+    }
+
+}
@@ -0,0 +1,285 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.graph_builder.impl.LandmarkGraphBuilderImpl;
+import org.opentripplanner.graph_builder.impl.osm.DefaultWayPropertySetSource;
+import org.opentripplanner.graph_builder.impl.osm.OpenStreetMapGraphBuilderImpl;
+import org.opentripplanner.openstreetmap.impl.FileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.algorithm.GenericAStar;
+import org.opentripplanner.routing.algorithm.TraverseVisitor;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.location.StreetLocation;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+
+import com.vividsolutions.jts.linearref.LinearLocation;
+
+/**
+ * Checks that the landmark heuristic never overestimates the remaining weight of car and bicycle searches and that
+ * they find paths of the same weight with it as with the Euclidean heuristic, and that it settles fewer vertices on
+ * random car trips across a grid.
+ */
+public class LandmarkRemainingWeightHeuristicTest {
+
+    private static final String[] MODES = { "CAR", "BICYCLE", "BICYCLE,WALK" };
+
+    private static Graph graph;
+
+    private static List<Vertex> intersections = new ArrayList<Vertex>();
+
+    private static List<PlainStreetEdge> streets = new ArrayList<PlainStreetEdge>();
+
+    @BeforeClass
+    public static void onlyOnce() {
+        graph = new Graph();
+        OpenStreetMapGraphBuilderImpl loader = new OpenStreetMapGraphBuilderImpl();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        File file = new File(LandmarkRemainingWeightHeuristicTest.class.getResource(
+                "/org/opentripplanner/graph_builder/impl/osm/map.osm.gz").getFile());
+        provider.setPath(file);
+        loader.setProvider(provider);
+        loader.buildGraph(graph, new HashMap<Class<?>, Object>());
+        graph.rebuildVertexAndEdgeIndices();
+        new LandmarkGraphBuilderImpl().buildGraph(graph, new HashMap<Class<?>, Object>());
+        // intersections on streets open to all modes
+        for (Vertex v : graph.getVertices()) {
+            if (!(v instanceof IntersectionVertex)) continue;
+            for (Edge e : v.getOutgoing()) {
+                if (e instanceof PlainStreetEdge && e.getGeometry() != null
+                        && ((PlainStreetEdge) e).getPermission() == StreetTraversalPermission.ALL) {
+                    intersections.add(v);
+                    streets.add((PlainStreetEdge) e);
+                    break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTable() {
+        LandmarkTable table = graph.getService(LandmarkTable.class);
+        assertNotNull(table);
+        assertEquals(graph.getVertices().size(), table.size());
+        for (Vertex v : graph.getVertices()) assertEquals(v, table.getVertex(table.position(v)));
+        for (TraverseMode mode : new TraverseMode[] { TraverseMode.CAR, TraverseMode.BICYCLE }) {
+            LandmarkTable.Landmarks landmarks = table.get(mode);
+            assertEquals(8, landmarks.vertices.length);
+            for (int l = 0; l < landmarks.vertices.length; l++) {
+                int p = table.position(landmarks.vertices[l]);
+                assertEquals(0, landmarks.fromLandmark(l, p));
+                assertEquals(0, landmarks.toLandmark(l, p));
+            }
+        }
+        assertEquals(TraverseMode.CAR, LandmarkRemainingWeightHeuristic.getMode(new RoutingRequest("CAR")));
+        assertEquals(TraverseMode.BICYCLE, LandmarkRemainingWeightHeuristic.getMode(new RoutingRequest("BICYCLE")));
+        assertNull(LandmarkRemainingWeightHeuristic.getMode(new RoutingRequest("WALK")));
+        assertNull(LandmarkRemainingWeightHeuristic.getMode(new RoutingRequest("BICYCLE,TRANSIT")));
+        RoutingRequest rental = new RoutingRequest("BICYCLE,WALK");
+        rental.allowBikeRental = true;
+        assertNull(LandmarkRemainingWeightHeuristic.getMode(rental));
+    }
+
+    /** Compare the heuristic at every vertex with the weight of the best path between it and each origin. */
+    @Test
+    public void testAdmissible() {
+        for (String modes : MODES) {
+            for (boolean arriveBy : new boolean[] { false, true }) {
+                for (int i = 0; i < 5; i++) {
+                    Vertex origin = intersections.get(i * intersections.size() / 5);
+                    // a batch search from the origin in the other direction finds the weight of every path to it
+                    RoutingRequest batch = new RoutingRequest(modes);
+                    batch.batch = true;
+                    batch.setArriveBy(!arriveBy);
+                    if (arriveBy) batch.setRoutingContext(graph, origin, null);
+                    else batch.setRoutingContext(graph, null, origin);
+                    ShortestPathTree spt = new GenericAStar().getShortestPathTree(batch);
+
+                    RoutingRequest options = new RoutingRequest(modes);
+                    options.setArriveBy(arriveBy);
+                    options.setRoutingContext(graph, origin, origin);
+                    LandmarkRemainingWeightHeuristic heuristic = new LandmarkRemainingWeightHeuristic();
+                    heuristic.initialize(new State(origin, 0, options), origin, Long.MAX_VALUE);
+                    int nBounded = 0;
+                    for (State s : spt.getAllStates()) {
+                        State here = new State(s.getVertex(), 0, options);
+                        double h = arriveBy ? heuristic.computeReverseWeight(here, origin)
+                                : heuristic.computeForwardWeight(here, origin);
+                        assertTrue(h <= s.getWeight() + 1e-6);
+                        if (h > 0) nBounded++;
+                    }
+                    assertTrue(nBounded > spt.getVertexCount() / 2);
+                }
+            }
+        }
+    }
+
+    private static GraphPath plan(Graph g, String modes, boolean arriveBy, Vertex from, Vertex to,
+            RemainingWeightHeuristic heuristic, TraverseVisitor visitor) {
+        RoutingRequest options = new RoutingRequest(modes);
+        options.setArriveBy(arriveBy);
+        options.setMaxWalkDistance(Double.MAX_VALUE);
+        options.setRoutingContext(g, from, to);
+        options.rctx.remainingWeightHeuristic = heuristic;
+        GenericAStar aStar = new GenericAStar();
+        aStar.setTraverseVisitor(visitor);
+        ShortestPathTree spt = aStar.getShortestPathTree(options);
+        GraphPath path = spt.getPath(arriveBy ? from : to, false);
+        options.cleanup();
+        return path;
+    }
+
+    private static void assertSameWeight(GraphPath expected, GraphPath path) {
+        if (expected == null) {
+            assertNull(path);
+        } else {
+            assertNotNull(path);
+            assertEquals(expected.getWeight(), path.getWeight(), 1e-6 * expected.getWeight());
+        }
+    }
+
+    @Test
+    public void testSamePaths() {
+        Random random = new Random(42);
+        for (String modes : MODES) {
+            for (boolean arriveBy : new boolean[] { false, true }) {
+                for (int i = 0; i < 20; i++) {
+                    Vertex from = intersections.get(random.nextInt(intersections.size()));
+                    Vertex to = intersections.get(random.nextInt(intersections.size()));
+                    assertSameWeight(plan(graph, modes, arriveBy, from, to, new DefaultRemainingWeightHeuristic(), null),
+                            plan(graph, modes, arriveBy, from, to, new LandmarkRemainingWeightHeuristic(), null));
+                }
+            }
+        }
+    }
+
+    /** The target may be a temporary vertex in the middle of a street, which is not in the table. */
+    @Test
+    public void testTemporaryTarget() {
+        Random random = new Random(43);
+        for (String modes : MODES) {
+            for (boolean arriveBy : new boolean[] { false, true }) {
+                for (int i = 0; i < 10; i++) {
+                    Vertex v = intersections.get(random.nextInt(intersections.size()));
+                    PlainStreetEdge street = streets.get(random.nextInt(streets.size()));
+                    GraphPath[] paths = new GraphPath[2];
+                    for (int k = 0; k < 2; k++) {
+                        // the location is destroyed with the routing context of each search
+                        StreetLocation location = StreetLocation.createStreetLocation(graph, "location" + i,
+                                "location", Arrays.<StreetEdge> asList(street),
+                                new LinearLocation(0, 0.5).getCoordinate(street.getGeometry()));
+                        RemainingWeightHeuristic heuristic = k == 0 ? new DefaultRemainingWeightHeuristic()
+                                : new LandmarkRemainingWeightHeuristic();
+                        if (arriveBy) paths[k] = plan(graph, modes, true, location, v, heuristic, null);
+                        else paths[k] = plan(graph, modes, false, v, location, heuristic, null);
+                    }
+                    assertSameWeight(paths[0], paths[1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Make a square grid of streets 100 meters apart, with edges in both directions. Every eighth street in each
+     * direction is an arterial where cars go 25 m/s, on the others they go 8 m/s.
+     */
+    private static Graph makeGrid(int n, List<Vertex> vertices) {
+        Graph g = new Graph();
+        IntersectionVertex[][] grid = new IntersectionVertex[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                grid[i][j] = new IntersectionVertex(g, "v" + i + "_" + j, -122 + j * 0.0013, 45 + i * 0.0009);
+                vertices.add(grid[i][j]);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (j + 1 < n) makeStreet(grid[i][j], grid[i][j + 1], i);
+                if (i + 1 < n) makeStreet(grid[i][j], grid[i + 1][j], j);
+            }
+        }
+        return g;
+    }
+
+    private static void makeStreet(IntersectionVertex a, IntersectionVertex b, int street) {
+        float carSpeed = street % 8 == 0 ? 25 : 8;
+        new PlainStreetEdge(a, b, GeometryUtils.makeLineString(a.getX(), a.getY(), b.getX(), b.getY()), "street",
+                100, StreetTraversalPermission.ALL, false, carSpeed);
+        new PlainStreetEdge(b, a, GeometryUtils.makeLineString(b.getX(), b.getY(), a.getX(), a.getY()), "street",
+                100, StreetTraversalPermission.ALL, true, carSpeed);
+    }
+
+    private static class SettledCounter implements TraverseVisitor {
+        long nSettled = 0;
+
+        @Override
+        public void visitEdge(Edge edge, State state) {
+        }
+
+        @Override
+        public void visitVertex(State state) {
+            nSettled++;
+        }
+
+        @Override
+        public void visitEnqueue(State state) {
+        }
+    }
+
+    /**
+     * Drive between random pairs of vertices of a 40 by 40 grid with the Euclidean and the landmark heuristic. The
+     * landmark heuristic settles fewer vertices.
+     */
+    @Test
+    public void testFewerSettled() {
+        List<Vertex> vertices = new ArrayList<Vertex>();
+        Graph grid = makeGrid(40, vertices);
+        new LandmarkGraphBuilderImpl().buildGraph(grid, new HashMap<Class<?>, Object>());
+        Random random = new Random(44);
+        SettledCounter[] counters = { new SettledCounter(), new SettledCounter() };
+        for (int i = 0; i < 10; i++) {
+            Vertex from = vertices.get(random.nextInt(vertices.size()));
+            Vertex to = vertices.get(random.nextInt(vertices.size()));
+            assertSameWeight(plan(grid, "CAR", false, from, to, new DefaultRemainingWeightHeuristic(), counters[0]),
+                    plan(grid, "CAR", false, from, to, new LandmarkRemainingWeightHeuristic(), counters[1]));
+        }
+        assertTrue(counters[1].nSettled < counters[0].nSettled);
+    }
+
+}
@@ -241,4 +241,38 @@ public class TimetableResolverTest {
         assertNull(resolver.commit());
         assertFalse(resolver.isDirty());
     }
+
+    @Test
+    public void testSnapshotsAreIndependent() {
+        ServiceDate today = new ServiceDate();
+        ServiceDate yesterday = today.previous();
+        TripPattern pattern = patternIndex.get(new AgencyAndId("agency", "1.1"));
+        TripPattern otherPattern = patternIndex.get(new AgencyAndId("agency", "2.1"));
+
+        TripDescriptor.Builder tripDescriptorBuilder = TripDescriptor.newBuilder();
+        tripDescriptorBuilder.setTripId("1.1");
+        tripDescriptorBuilder.setScheduleRelationship(ScheduleRelationship.CANCELED);
+        TripUpdate.Builder tripUpdateBuilder = TripUpdate.newBuilder();
+        tripUpdateBuilder.setTrip(tripDescriptorBuilder);
+        TripUpdate tripUpdate = tripUpdateBuilder.build();
+
+        TimetableResolver resolver = new TimetableResolver();
+        resolver.update(pattern, tripUpdate, "agency", timeZone, today);
+        TimetableResolver first = resolver.commit();
+
+        // the second snapshot shares the first one's base, with an overlay for the new change
+        resolver.update(pattern, tripUpdate, "agency", timeZone, yesterday);
+        TimetableResolver second = resolver.commit();
+        assertEquals(pattern.scheduledTimetable, first.resolve(pattern, yesterday));
+        assertNotSame(pattern.scheduledTimetable, second.resolve(pattern, yesterday));
+        assertEquals(first.resolve(pattern, today), second.resolve(pattern, today));
+        assertEquals(otherPattern.scheduledTimetable, second.resolve(otherPattern, today));
+
+        // purged timetables disappear from the next snapshot only
+        assertTrue(resolver.purgeExpiredData(yesterday));
+        TimetableResolver third = resolver.commit(true);
+        assertEquals(pattern.scheduledTimetable, third.resolve(pattern, yesterday));
+        assertNotSame(pattern.scheduledTimetable, second.resolve(pattern, yesterday));
+        assertEquals(second.resolve(pattern, today), third.resolve(pattern, today));
+    }
 }
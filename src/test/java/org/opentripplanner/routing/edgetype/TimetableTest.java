@@ -16,18 +16,26 @@ package org.opentripplanner.routing.edgetype;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.opentripplanner.util.TestUtils.AUGUST;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TimeZone;
 
 import com.google.common.collect.Iterables;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
@@ -35,12 +43,19 @@ import org.opentripplanner.ConstantsForTests;
 import org.opentripplanner.gtfs.GtfsContext;
 import org.opentripplanner.gtfs.GtfsLibrary;
 import org.opentripplanner.routing.algorithm.GenericAStar;
+import org.opentripplanner.routing.core.RoutingContext;
 import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.ServiceDay;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.StateEditor;
+import org.opentripplanner.routing.core.StopTransfer;
+import org.opentripplanner.routing.core.TransferTable;
 import org.opentripplanner.routing.edgetype.factory.GTFSPatternHopFactory;
 import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.spt.GraphPath;
 import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.trippattern.Deduplicator;
 import org.opentripplanner.routing.trippattern.TripTimes;
 import org.opentripplanner.routing.vertextype.TransitStopDepart;
 import org.opentripplanner.util.TestUtils;
@@ -298,4 +313,260 @@ public class TimetableTest {
         tripUpdate = tripUpdateBuilder.build();
         assertFalse(timetable.update(tripUpdate, "agency", timeZone, serviceDate));
     }
+
+    /* A service code that does not run on any day. */
+    private static final int NOT_RUNNING = 1000;
+
+    private static Trip makeTrip(String id) {
+        Trip trip = new Trip();
+        trip.setId(new AgencyAndId("agency", id));
+        return trip;
+    }
+
+    /**
+     * A trip on the pattern of trip 1.1 with random times. Times are whole minutes, so that trips often share times,
+     * and running times vary, so that trips overtake each other.
+     */
+    private static TripTimes randomScheduledTripTimes(Random rand, String id) {
+        TripTimes base = pattern.scheduledTimetable.getTripTimes(0);
+        Trip trip = makeTrip(id);
+        trip.setRoute(base.trip.getRoute());
+        trip.setServiceId(base.trip.getServiceId());
+        List<StopTime> stopTimes = new ArrayList<StopTime>();
+        int time = 60 * rand.nextInt(90);
+        for (int s = 0; s < pattern.stopPattern.size; s++) {
+            StopTime stopTime = new StopTime();
+            stopTime.setTrip(trip);
+            stopTime.setStop(pattern.getStop(s));
+            stopTime.setStopSequence(s + 1);
+            stopTime.setArrivalTime(time);
+            time += 60 * rand.nextInt(2);
+            stopTime.setDepartureTime(time);
+            time += 60 * (1 + rand.nextInt(20));
+            stopTimes.add(stopTime);
+        }
+        TripTimes tripTimes = new TripTimes(trip, stopTimes, new Deduplicator());
+        tripTimes.serviceCode = base.serviceCode;
+        return tripTimes;
+    }
+
+    /** A random trip which may not run on the service day, and may have unavailable times or be canceled. */
+    private static TripTimes randomTripTimes(Random rand, String id) {
+        TripTimes tripTimes = randomScheduledTripTimes(rand, id);
+        if (rand.nextInt(8) == 0) tripTimes.serviceCode = NOT_RUNNING;
+        if (rand.nextInt(8) == 0) {
+            int stop = rand.nextInt(pattern.stopPattern.size);
+            tripTimes.updateArrivalTime(stop, TripTimes.UNAVAILABLE);
+            tripTimes.updateDepartureTime(stop, TripTimes.UNAVAILABLE);
+        }
+        if (rand.nextInt(20) == 0) tripTimes.cancel();
+        return tripTimes;
+    }
+
+    /** A finished timetable with enough trips to be searched through its sorted indexes. */
+    private static Timetable randomTimetable(Random rand, int nTrips) {
+        Timetable tt = new Timetable(pattern);
+        for (int i = 0; i < nTrips; i++) tt.addTripTimes(randomTripTimes(rand, "random" + i));
+        tt.finish();
+        return tt;
+    }
+
+    /** A copy of the timetable which is not finished, so that getNextTrip scans all its trips. */
+    private static Timetable linearScan(Timetable tt) {
+        return new Timetable(tt, null);
+    }
+
+    /** A search time relative to the service day, sometimes before its start and often on a whole minute. */
+    private static int randomSearchTime(Random rand) {
+        return rand.nextBoolean() ? 60 * (rand.nextInt(200) - 30) : rand.nextInt(12000) - 1800;
+    }
+
+    private static ServiceDay serviceDay() {
+        return new ServiceDay(graph, serviceDate, graph.getCalendarService(), "agency");
+    }
+
+    private static RoutingRequest options(boolean arriveBy) {
+        RoutingRequest options = new RoutingRequest();
+        options.setArriveBy(arriveBy);
+        options.setRoutingContext(graph, graph.getVertex("agency:A"), graph.getVertex("agency:C"));
+        return options;
+    }
+
+    /** Check that the indexed timetable finds the same trips as the linear scan, at every stop. */
+    private static void assertSameNextTrips(Timetable expected, Timetable actual, State s0, ServiceDay serviceDay,
+            boolean boarding) {
+        for (int stop = 0; stop < pattern.stopPattern.size; stop++) {
+            assertSame(expected.getNextTrip(s0, serviceDay, stop, boarding),
+                    actual.getNextTrip(s0, serviceDay, stop, boarding));
+        }
+    }
+
+    @Test
+    public void testNextTripMatchesLinearScan() {
+        Random rand = new Random(42);
+        ServiceDay serviceDay = serviceDay();
+        RoutingRequest departAfter = options(false);
+        RoutingRequest arriveBy = options(true);
+        for (int nTrips : new int[] { 16, 17, 40, 200 }) {
+            Timetable indexed = randomTimetable(rand, nTrips);
+            Timetable linear = linearScan(indexed);
+            for (int i = 0; i < 200; i++) {
+                long time = serviceDay.time(randomSearchTime(rand));
+                Vertex vertex = graph.getVertex("agency:A");
+                assertSameNextTrips(linear, indexed, new State(vertex, time, departAfter), serviceDay, true);
+                assertSameNextTrips(linear, indexed, new State(vertex, time, arriveBy), serviceDay, false);
+            }
+        }
+    }
+
+    @Test
+    public void testNextTripTiesLowestIndex() {
+        TripTimes first = randomScheduledTripTimes(new Random(43), "first");
+        Timetable tt = new Timetable(pattern);
+        for (int i = 0; i < 20; i++) tt.addTripTimes(new TripTimes(first));
+        tt.finish();
+        ServiceDay serviceDay = serviceDay();
+        Vertex vertex = graph.getVertex("agency:A");
+        for (int stop = 0; stop < pattern.stopPattern.size; stop++) {
+            int departure = first.getDepartureTime(stop);
+            State s0 = new State(vertex, serviceDay.time(departure), options(false));
+            assertSame(tt.getTripTimes(0), tt.getNextTrip(s0, serviceDay, stop, true));
+            int arrival = first.getArrivalTime(stop);
+            s0 = new State(vertex, serviceDay.time(arrival), options(true));
+            assertSame(tt.getTripTimes(0), tt.getNextTrip(s0, serviceDay, stop, false));
+        }
+        // the lowest index among the trips that run
+        tt.getTripTimes(0).serviceCode = NOT_RUNNING;
+        State s0 = new State(vertex, serviceDay.time(first.getDepartureTime(0)), options(false));
+        assertSame(tt.getTripTimes(1), tt.getNextTrip(s0, serviceDay, 0, true));
+    }
+
+    @Test
+    public void testNextTripWithTransfers() {
+        Random rand = new Random(44);
+        Timetable indexed = randomTimetable(rand, 40);
+        Timetable linear = linearScan(indexed);
+        // the trip alighted from before each transfer
+        Trip previousTrip = makeTrip("previous");
+        previousTrip.setRoute(pattern.route);
+        // Minimum transfer times from the previous trip, longer to some trips, and forbidden to others. Alighting
+        // searches look the transfers up in the other direction.
+        TransferTable transferTable = graph.getTransferTable();
+        Stop previousStop = pattern.getStop(0);
+        for (int stop = 0; stop < pattern.stopPattern.size; stop++) {
+            Stop currentStop = pattern.getStop(stop);
+            transferTable.addTransferTime(previousStop, currentStop, null, null, previousTrip, null, 120);
+            transferTable.addTransferTime(currentStop, previousStop, null, null, null, previousTrip, 120);
+            for (int i = 0; i < indexed.tripTimes.size(); i++) {
+                Trip trip = indexed.getTripTimes(i).trip;
+                int transferTime = i % 5 == 1 ? 900 : i % 7 == 3 ? StopTransfer.FORBIDDEN_TRANSFER : -1;
+                if (transferTime == -1) continue;
+                transferTable.addTransferTime(previousStop, currentStop, null, null, previousTrip, trip,
+                        transferTime);
+                transferTable.addTransferTime(currentStop, previousStop, null, null, trip, previousTrip,
+                        transferTime);
+            }
+        }
+        ServiceDay serviceDay = serviceDay();
+        RoutingRequest departAfter = options(false);
+        RoutingRequest arriveBy = options(true);
+        for (int i = 0; i < 200; i++) {
+            long time = serviceDay.time(randomSearchTime(rand));
+            // alighted just before (boarding) or boarded just after (alighting) the search time
+            int margin = 60 * rand.nextInt(5);
+            assertSameNextTrips(linear, indexed, transferState(departAfter, previousTrip, time, time - margin), serviceDay, true);
+            assertSameNextTrips(linear, indexed, transferState(arriveBy, previousTrip, time, time + margin), serviceDay, false);
+        }
+    }
+
+    private static State transferState(RoutingRequest options, Trip previousTrip, long time, long lastAlighted) {
+        StateEditor editor = new StateEditor(options, graph.getVertex("agency:A"));
+        editor.setTimeSeconds(time);
+        editor.setEverBoarded(true);
+        editor.setPreviousStop(pattern.getStop(0));
+        editor.setPreviousTrip(previousTrip);
+        editor.setLastAlightedTimeSeconds(lastAlighted);
+        return editor.makeState();
+    }
+
+    /**
+     * A realtime snapshot copies the timetable and replaces or adds trips. Finishing the copy sorts its trips again,
+     * starting from the orders of the original.
+     */
+    @Test
+    public void testNextTripAfterRealtimeUpdate() {
+        Random rand = new Random(45);
+        Timetable scheduled = randomTimetable(rand, 40);
+        Timetable updated = new Timetable(scheduled, serviceDate);
+        for (int i = 0; i < updated.tripTimes.size(); i += 3) {
+            TripTimes tripTimes = new TripTimes(updated.getTripTimes(i));
+            int delay = 60 * (rand.nextInt(30) - 5);
+            for (int stop = 0; stop < pattern.stopPattern.size; stop++) {
+                tripTimes.updateArrivalDelay(stop, delay);
+                tripTimes.updateDepartureDelay(stop, delay);
+            }
+            if (i % 9 == 6) tripTimes.cancel();
+            updated.tripTimes.set(i, tripTimes);
+        }
+        for (int i = 0; i < 5; i++) updated.addTripTimes(randomTripTimes(rand, "added" + i));
+        updated.finish();
+        Timetable linear = linearScan(updated);
+        ServiceDay serviceDay = serviceDay();
+        RoutingRequest departAfter = options(false);
+        RoutingRequest arriveBy = options(true);
+        Vertex vertex = graph.getVertex("agency:A");
+        for (int i = 0; i < 200; i++) {
+            long time = serviceDay.time(randomSearchTime(rand));
+            assertSameNextTrips(linear, updated, new State(vertex, time, departAfter), serviceDay, true);
+            assertSameNextTrips(linear, updated, new State(vertex, time, arriveBy), serviceDay, false);
+        }
+    }
+
+    /** Check that the cached set of trips running is the one serviceRunning gives for each trip. */
+    private static void assertRunningCached(Timetable tt, RoutingContext rctx, ServiceDay serviceDay) {
+        BitSet running = rctx.tripsRunning.get(serviceDay).get(tt);
+        assertNotNull(running);
+        for (int i = 0; i < tt.tripTimes.size(); i++) {
+            assertEquals(serviceDay.serviceRunning(tt.getTripTimes(i).serviceCode), running.get(i));
+        }
+    }
+
+    @Test
+    public void testTripsRunningCache() {
+        Random rand = new Random(46);
+        Timetable indexed = randomTimetable(rand, 40);
+        Timetable linear = linearScan(indexed);
+        int weekdays = graph.serviceCodes.get(new AgencyAndId("agency", "weekdays"));
+        for (int i = 0; i < indexed.tripTimes.size(); i += 2) {
+            TripTimes tripTimes = indexed.getTripTimes(i);
+            if (tripTimes.serviceCode != NOT_RUNNING) tripTimes.serviceCode = weekdays;
+        }
+        ServiceDay friday = serviceDay();
+        ServiceDay saturday = new ServiceDay(graph, new ServiceDate(2009, 8, 8), graph.getCalendarService(),
+                "agency");
+        RoutingRequest options = options(false);
+        RoutingContext rctx = options.getRoutingContext();
+        Vertex vertex = graph.getVertex("agency:A");
+        // one search consults the same timetable on both days
+        for (int i = 0; i < 50; i++) {
+            long time = friday.time(randomSearchTime(rand));
+            assertSameNextTrips(linear, indexed, new State(vertex, time, options), friday, true);
+            assertSameNextTrips(linear, indexed, new State(vertex, time, options), saturday, true);
+        }
+        assertRunningCached(indexed, rctx, friday);
+        assertRunningCached(indexed, rctx, saturday);
+        assertFalse(rctx.tripsRunning.get(friday).get(indexed).equals(rctx.tripsRunning.get(saturday).get(indexed)));
+        // a copy for another search starts with an empty cache
+        RoutingContext copy = rctx.copyForConcurrentSearch(options.clone());
+        assertNotSame(rctx.tripsRunning, copy.tripsRunning);
+        assertTrue(copy.tripsRunning.isEmpty());
+        // a later search sees the trips that run at its own time
+        for (int i = 0; i < indexed.tripTimes.size(); i += 3) indexed.getTripTimes(i).serviceCode = NOT_RUNNING;
+        RoutingRequest later = options(false);
+        for (int i = 0; i < 50; i++) {
+            long time = friday.time(randomSearchTime(rand));
+            assertSameNextTrips(linear, indexed, new State(vertex, time, later), friday, true);
+        }
+        assertRunningCached(indexed, later.getRoutingContext(), friday);
+    }
 }
@@ -0,0 +1,152 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opentripplanner.graph_builder.impl.osm.DefaultWayPropertySetSource;
+import org.opentripplanner.graph_builder.impl.osm.OpenStreetMapGraphBuilderImpl;
+import org.opentripplanner.openstreetmap.impl.FileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.algorithm.GenericAStar;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.edgetype.FreeEdge;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+
+/**
+ * Checks that the adjacency index holds the edges of every vertex, that a vertex is no longer covered once its edges
+ * change, and that searches give the same trees with and without it.
+ */
+public class AdjacencyIndexTest {
+
+    private static final int N_ORIGINS = 5;
+
+    private static Graph graph;
+
+    private static List<Vertex> origins = new ArrayList<Vertex>();
+
+    @BeforeClass
+    public static void onlyOnce() {
+        graph = new Graph();
+        OpenStreetMapGraphBuilderImpl loader = new OpenStreetMapGraphBuilderImpl();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        File file = new File(AdjacencyIndexTest.class.getResource(
+                "/org/opentripplanner/graph_builder/impl/osm/map.osm.gz").getFile());
+        provider.setPath(file);
+        loader.setProvider(provider);
+        loader.buildGraph(graph, new HashMap<Class<?>, Object>());
+        graph.rebuildVertexAndEdgeIndices();
+        // spread the origins over the vertices of the graph
+        List<Vertex> intersections = new ArrayList<Vertex>();
+        for (Vertex v : graph.getVertices()) {
+            if (v instanceof IntersectionVertex && v.getDegreeOut() > 0) intersections.add(v);
+        }
+        for (int i = 0; i < N_ORIGINS; i++) {
+            origins.add(intersections.get(i * intersections.size() / N_ORIGINS));
+        }
+    }
+
+    @Test
+    public void testEdgeLists() {
+        AdjacencyIndex adjacency = new AdjacencyIndex(graph);
+        assertEquals(graph.countEdges(), adjacency.size());
+        for (Vertex v : graph.getVertices()) {
+            assertTrue(adjacency.covers(v));
+            checkEdges(adjacency, v, new ArrayList<Edge>(v.getOutgoing()), false);
+            checkEdges(adjacency, v, new ArrayList<Edge>(v.getIncoming()), true);
+        }
+    }
+
+    private static void checkEdges(AdjacencyIndex adjacency, Vertex v, List<Edge> expected, boolean incoming) {
+        int start = adjacency.start(v, incoming);
+        assertEquals(expected.size(), adjacency.end(v, incoming) - start);
+        for (int i = 0; i < expected.size(); i++) {
+            int e = adjacency.edgeAt(start + i, incoming);
+            Edge edge = expected.get(i);
+            assertSame(edge, adjacency.edges[e]);
+            assertEquals(edge.getFromVertex().getIndex(), adjacency.fromVertex[e]);
+            assertEquals(edge.getToVertex().getIndex(), adjacency.toVertex[e]);
+            assertEquals(edge.getDistance(), adjacency.lengths[e], 1e-3);
+        }
+    }
+
+    @Test
+    public void testChangedVertexNotCovered() {
+        Graph g = new Graph();
+        Vertex a = new SimpleConcreteVertex(g, "a", 47.5, -122.5);
+        Vertex b = new SimpleConcreteVertex(g, "b", 47.5, -122.6);
+        Vertex c = new SimpleConcreteVertex(g, "c", 47.6, -122.6);
+        new FreeEdge(a, b);
+        AdjacencyIndex adjacency = new AdjacencyIndex(g);
+        assertTrue(adjacency.covers(a) && adjacency.covers(b) && adjacency.covers(c));
+        Edge bc = new FreeEdge(b, c);
+        assertTrue(adjacency.covers(a));
+        assertFalse(adjacency.covers(b));
+        assertFalse(adjacency.covers(c));
+        // a newer index covers them again, and the old one does not cover vertices it is not up to date for
+        AdjacencyIndex newer = new AdjacencyIndex(g);
+        assertTrue(newer.covers(b));
+        assertFalse(adjacency.covers(b));
+        assertEquals(2, newer.size());
+        b.removeOutgoing(bc);
+        assertFalse(newer.covers(b));
+    }
+
+    /** @return the weight of the state at each vertex reached by a batch search from the origin. */
+    private static Map<Vertex, Double> search(Vertex origin, String modes, boolean arriveBy) {
+        RoutingRequest options = new RoutingRequest(modes);
+        options.batch = true;
+        options.setArriveBy(arriveBy);
+        if (arriveBy) options.setRoutingContext(graph, null, origin);
+        else options.setRoutingContext(graph, origin, null);
+        ShortestPathTree spt = new GenericAStar().getShortestPathTree(options);
+        Map<Vertex, Double> weights = new HashMap<Vertex, Double>();
+        for (State state : spt.getAllStates()) {
+            Double w = weights.get(state.getVertex());
+            if (w == null || state.getWeight() < w) weights.put(state.getVertex(), state.getWeight());
+        }
+        options.cleanup();
+        return weights;
+    }
+
+    @Test
+    public void testSameTrees() {
+        AdjacencyIndex adjacency = new AdjacencyIndex(graph);
+        for (String modes : new String[] { "WALK", "BICYCLE", "CAR" }) {
+            for (boolean arriveBy : new boolean[] { false, true }) {
+                for (Vertex origin : origins) {
+                    graph.adjacency = null;
+                    Map<Vertex, Double> expected = search(origin, modes, arriveBy);
+                    graph.adjacency = adjacency;
+                    assertEquals(expected, search(origin, modes, arriveBy));
+                }
+            }
+        }
+        graph.adjacency = null;
+    }
+
+}
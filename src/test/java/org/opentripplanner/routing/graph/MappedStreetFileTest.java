@@ -0,0 +1,118 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opentripplanner.graph_builder.impl.osm.DefaultWayPropertySetSource;
+import org.opentripplanner.graph_builder.impl.osm.OpenStreetMapGraphBuilderImpl;
+import org.opentripplanner.openstreetmap.impl.FileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.edgetype.PlainStreetEdge;
+import org.opentripplanner.routing.graph.Graph.LoadLevel;
+
+/**
+ * Round-trips an OSM graph through both the serialized and the mapped graph file formats, and
+ * checks that the results are identical.
+ */
+public class MappedStreetFileTest {
+
+    private static File serializedFile;
+
+    private static File mappedFile;
+
+    @BeforeClass
+    public static void onlyOnce() throws Exception {
+        Graph graph = new Graph();
+        OpenStreetMapGraphBuilderImpl loader = new OpenStreetMapGraphBuilderImpl();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        File file = new File(MappedStreetFileTest.class.getResource(
+                "/org/opentripplanner/graph_builder/impl/osm/NYC_small.osm.gz").getFile());
+        provider.setPath(file);
+        loader.setProvider(provider);
+        loader.buildGraph(graph, new HashMap<Class<?>, Object>());
+        serializedFile = File.createTempFile("Graph", ".obj");
+        mappedFile = File.createTempFile("Graph", ".mapped");
+        graph.save(serializedFile);
+        graph.saveMapped(mappedFile);
+    }
+
+    @AfterClass
+    public static void cleanUp() {
+        serializedFile.delete();
+        mappedFile.delete();
+    }
+
+    @Test
+    public void testFormatDetection() throws Exception {
+        assertFalse(MappedStreetFile.isMappedFile(serializedFile));
+        assertTrue(MappedStreetFile.isMappedFile(mappedFile));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Graph serialized = Graph.load(serializedFile, LoadLevel.FULL);
+        Graph mapped = Graph.load(mappedFile, LoadLevel.FULL);
+
+        assertEquals(serialized.countVertices(), mapped.countVertices());
+        assertEquals(serialized.countEdges(), mapped.countEdges());
+        for (Vertex v : serialized.getVertices()) {
+            Vertex w = mapped.getVertex(v.getLabel());
+            assertNotNull(w);
+            assertEquals(v.getClass(), w.getClass());
+            assertEquals(v.getX(), w.getX(), 0);
+            assertEquals(v.getY(), w.getY(), 0);
+            assertEquals(v.getName(), w.getName());
+            assertEquals(v.getDegreeOut(), w.getDegreeOut());
+            assertEquals(v.getDegreeIn(), w.getDegreeIn());
+        }
+        for (Edge e : serialized.getEdges()) {
+            Edge f = mapped.getEdgeById(e.getId());
+            assertNotNull(f);
+            assertEquals(e.getClass(), f.getClass());
+            assertEquals(e.getFromVertex().getLabel(), f.getFromVertex().getLabel());
+            assertEquals(e.getToVertex().getLabel(), f.getToVertex().getLabel());
+            assertEquals(e.getName(), f.getName());
+            assertEquals(e.getDistance(), f.getDistance(), 0);
+            if (e instanceof PlainStreetEdge) {
+                PlainStreetEdge pe = (PlainStreetEdge) e;
+                PlainStreetEdge pf = (PlainStreetEdge) f;
+                assertEquals(pe.getPermission(), pf.getPermission());
+                assertEquals(pe.getFlags(), pf.getFlags());
+                assertEquals(pe.getCarSpeed(), pf.getCarSpeed(), 0);
+                assertEquals(pe.getBicycleSafetyFactor(), pf.getBicycleSafetyFactor(), 0);
+                assertEquals(pe.getInAngle(), pf.getInAngle());
+                assertEquals(pe.getOutAngle(), pf.getOutAngle());
+                assertEquals(pe.getTurnRestrictions().size(), pf.getTurnRestrictions().size());
+                assertTrue(pe.getGeometry().equalsExact(pf.getGeometry()));
+            }
+        }
+    }
+
+    @Test
+    public void testBasicLoad() throws Exception {
+        Graph graph = Graph.load(mappedFile, LoadLevel.BASIC);
+        assertNotNull(graph);
+    }
+
+}
@@ -0,0 +1,153 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opentripplanner.common.model.GenericLocation;
+import org.opentripplanner.graph_builder.impl.GtfsGraphBuilderImpl;
+import org.opentripplanner.graph_builder.model.GtfsBundle;
+import org.opentripplanner.routing.algorithm.GenericAStar;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.services.SPTService;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+
+/**
+ * Checks that searching ahead for the itineraries beyond the first one on several threads finds the same itineraries
+ * as searching for them one at a time, and that no subsearch is left running once a plan is returned.
+ */
+public class RetryingPathServiceImplTest {
+
+    private static final String[] STOPS = { "San Francisco Caltrain", "Millbrae Caltrain", "Palo Alto Caltrain",
+            "Mountain View Caltrain", "San Jose Caltrain", "Tamien Caltrain" };
+
+    private static Graph graph;
+
+    @BeforeClass
+    public static void onlyOnce() {
+        graph = new Graph();
+        GtfsBundle bundle = new GtfsBundle(new File("src/test/resources/caltrain_gtfs.zip"));
+        new GtfsGraphBuilderImpl(Collections.singletonList(bundle)).buildGraph(graph, null);
+        graph.index(new DefaultStreetVertexIndexFactory());
+    }
+
+    /** @return a time on Wednesday the 9th of June 2010, in the time zone of Caltrain. */
+    private static long time(int hour) {
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("America/Los_Angeles"));
+        calendar.clear();
+        calendar.set(2010, Calendar.JUNE, 9, hour, 0);
+        return calendar.getTimeInMillis() / 1000;
+    }
+
+    /** @return the start times, weights and trips of the itineraries of a plan. */
+    private static List<String> plan(RetryingPathServiceImpl pathService, String from, String to, long time,
+            boolean arriveBy) {
+        RoutingRequest options = new RoutingRequest("WALK,TRANSIT");
+        options.dateTime = time;
+        options.setArriveBy(arriveBy);
+        options.numItineraries = 5;
+        options.from = new GenericLocation(null, "Caltrain:" + from);
+        options.to = new GenericLocation(null, "Caltrain:" + to);
+        options.setRoutingContext(graph);
+        List<GraphPath> paths = pathService.getPaths(options);
+        options.cleanup();
+        List<String> ret = new ArrayList<String>();
+        if (paths != null) {
+            for (GraphPath path : paths) {
+                ret.add(path.getStartTime() + " " + path.getWeight() + " " + path.getTrips());
+            }
+        }
+        return ret;
+    }
+
+    /** @return the plans between every pair of stops. */
+    private static List<List<String>> planAll(RetryingPathServiceImpl pathService) {
+        List<List<String>> ret = new ArrayList<List<String>>();
+        for (int i = 0; i < STOPS.length; i++) {
+            for (int j = 0; j < STOPS.length; j++) {
+                if (i != j) {
+                    ret.add(plan(pathService, STOPS[i], STOPS[j], time(7 + (i + j) % 12), (i + j) % 2 == 1));
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void testSameItineraries() {
+        RetryingPathServiceImpl sequential = new RetryingPathServiceImpl(null, new GenericAStar());
+        RetryingPathServiceImpl parallel = new RetryingPathServiceImpl(null, new GenericAStar());
+        parallel.setSubsearchThreads(4);
+        List<List<String>> expected = planAll(sequential);
+        List<List<String>> found = planAll(parallel);
+        int itineraries = 0;
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), found.get(i));
+            itineraries += expected.get(i).size();
+        }
+        assertTrue(itineraries > 2 * expected.size());
+    }
+
+    /** An SPTService which records how many searches it is running. */
+    private static class CountingSPTService extends GenericAStar {
+
+        final AtomicInteger running = new AtomicInteger();
+
+        @Override
+        public ShortestPathTree getShortestPathTree(RoutingRequest options, double relTimeout) {
+            running.incrementAndGet();
+            try {
+                return super.getShortestPathTree(options, relTimeout);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+    }
+
+    /** Subsearches still running when enough itineraries are found are stopped before the plan returns. */
+    @Test
+    public void testFewItineraries() {
+        CountingSPTService service = new CountingSPTService();
+        RetryingPathServiceImpl parallel = new RetryingPathServiceImpl(null, service);
+        parallel.setSubsearchThreads(4);
+        RoutingRequest options = new RoutingRequest("WALK,TRANSIT");
+        options.dateTime = time(8);
+        options.numItineraries = 2;
+        options.from = new GenericLocation(null, "Caltrain:" + STOPS[0]);
+        options.to = new GenericLocation(null, "Caltrain:" + STOPS[4]);
+        options.setRoutingContext(graph);
+        List<GraphPath> paths = parallel.getPaths(options);
+        assertEquals(0, service.running.get());
+        options.cleanup();
+        assertNotNull(paths);
+        assertTrue(paths.size() >= 2);
+    }
+
+}
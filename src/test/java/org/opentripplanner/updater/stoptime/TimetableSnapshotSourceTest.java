@@ -17,8 +17,14 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -206,4 +212,51 @@ public class TimetableSnapshotSourceTest {
 
         // TODO: write test for added trips
     }
+
+    /**
+     * Routing threads reading snapshots while the updater applies trip updates always find a
+     * timetable.
+     */
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        AgencyAndId tripId = new AgencyAndId("agency", "1.1");
+        final TripPattern pattern = graph.index.patternForTrip.get(graph.index.tripForId.get(tripId));
+        final List<TripUpdate> updates = Arrays.asList(TripUpdate.parseFrom(cancellation));
+        updater.maxSnapshotFrequency = 0;
+        updater.applyTripUpdates(updates, "agency");
+
+        final int nReaders = 4;
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int r = 0; r < nReaders; r++) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        long n = 0;
+                        do {
+                            TimetableResolver snapshot = updater.getTimetableSnapshot();
+                            if (snapshot.resolve(pattern, serviceDate) == null)
+                                throw new AssertionError("null timetable");
+                            n++;
+                        } while (running.get());
+                        reads.addAndGet(n);
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            };
+            readers.add(reader);
+            reader.start();
+        }
+        for (int i = 0; i < 200; i++) {
+            updater.applyTripUpdates(updates, "agency");
+        }
+        running.set(false);
+        for (Thread reader : readers) reader.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        assertTrue(reads.get() > 0);
+    }
 }